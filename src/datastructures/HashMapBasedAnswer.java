@@ -3,6 +3,7 @@ package de.mpii.trinitreloaded.datastructures;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Set;
 
 import com.google.common.collect.Maps;
 
@@ -61,6 +62,17 @@ public class HashMapBasedAnswer implements Answer, Comparable<HashMapBasedAnswer
     }
   }
 
+  /**
+   * Copies the bindings of {@code input} for the given variables only.
+   */
+  public void putAll(Answer input, Set<String> variables) throws Exception {
+    for (String var : input.getVariables()) {
+      if (variables.contains(var)) {
+        this.map.put(var, input.getVariableBinding(var));
+      }
+    }
+  }
+
   public List<String> getVariables() {
     List<String> variables = new ArrayList<String>();
     variables.addAll(this.map.keySet());
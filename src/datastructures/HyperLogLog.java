@@ -0,0 +1,109 @@
+package de.mpii.trinitreloaded.datastructures;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * A HyperLogLog sketch of a set of keys, estimating the number of distinct keys with 2^p
+ * registers of one byte, to about 1.04/sqrt(2^p).
+ *
+ * Sketches of the same precision are combined with {@code union()}, and the number of keys two
+ * sets share is estimated from their union with {@code intersectionSize()}.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class HyperLogLog implements Serializable {
+  private static final long serialVersionUID = 1L;
+  private static final HashFunction HASH = Hashing.murmur3_128();
+
+  private final int precision;
+  private final byte[] registers;
+
+  public HyperLogLog(int precision) {
+    this.precision = Math.max(4, Math.min(precision, 18));
+    this.registers = new byte[1 << this.precision];
+  }
+
+  /**
+   * Creates a sketch from the registers of another, e.g. as stored, of a length which is a power
+   * of two.
+   */
+  public HyperLogLog(byte[] registers) {
+    this.precision = Integer.numberOfTrailingZeros(registers.length);
+    this.registers = registers;
+  }
+
+  public void add(String key) {
+    long hash = HASH.hashString(key, Charsets.UTF_8).asLong();
+    int index = (int) (hash >>> (64 - precision));
+    // The bits below the index, with a stop bit so the rank is at most 64 - precision + 1.
+    long rest = (hash << precision) | (1L << (precision - 1));
+    byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+    if (rank > registers[index]) {
+      registers[index] = rank;
+    }
+  }
+
+  /**
+   * Returns the sketch of the union of the sets of this and another sketch of the same precision.
+   */
+  public HyperLogLog union(HyperLogLog other) {
+    if (other.precision != precision) {
+      throw new IllegalArgumentException("Sketches of different precision cannot be combined.");
+    }
+    HyperLogLog union = new HyperLogLog(Arrays.copyOf(registers, registers.length));
+    for (int i = 0; i < registers.length; i++) {
+      if (other.registers[i] > union.registers[i]) {
+        union.registers[i] = other.registers[i];
+      }
+    }
+    return union;
+  }
+
+  /**
+   * Returns the estimated number of distinct keys.
+   */
+  public double cardinality() {
+    int m = registers.length;
+    double sum = 0.0;
+    int zeros = 0;
+    for (byte register : registers) {
+      sum += 1.0 / (1L << register);
+      if (register == 0) {
+        zeros++;
+      }
+    }
+    double alpha = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709 : 0.7213 / (1 + 1.079 / m);
+    double estimate = alpha * m * m / sum;
+    if (estimate <= 2.5 * m && zeros > 0) {
+      // Linear counting is more accurate for few keys.
+      return m * Math.log((double) m / zeros);
+    }
+    return estimate;
+  }
+
+  /**
+   * Returns the estimated number of keys in both the sets of this and another sketch, by
+   * inclusion-exclusion, between 0 and the smaller set.
+   */
+  public double intersectionSize(HyperLogLog other) {
+    double size = cardinality();
+    double otherSize = other.cardinality();
+    double intersection = size + otherSize - union(other).cardinality();
+    return Math.max(0.0, Math.min(intersection, Math.min(size, otherSize)));
+  }
+
+  public byte[] getRegisters() {
+    return registers;
+  }
+
+  @Override
+  public String toString() {
+    return "HyperLogLog [precision=" + precision + ", cardinality=" + cardinality() + "]";
+  }
+}
@@ -16,10 +16,24 @@ import de.mpii.trinitreloaded.utils.Config.PlanType;
 public class LogicalQueryPlan {
   public final Set<TriplePatternInPlan> plan;
   public final PlanType planType;
+  /** The projection variables of the query, {@code null} if unknown. */
+  public final Set<String> projectionVariables;
+  /**
+   * The variables whose bindings are used during execution: the projection variables and the
+   * variables shared by more than one {@link TriplePattern}. {@code null} if unknown.
+   */
+  public final Set<String> neededVariables;
 
   public LogicalQueryPlan(Set<TriplePatternInPlan> plan, PlanType planType) {
+    this(plan, planType, null, null);
+  }
+
+  public LogicalQueryPlan(Set<TriplePatternInPlan> plan, PlanType planType,
+      Set<String> projectionVariables, Set<String> neededVariables) {
     this.plan = plan;
     this.planType = planType;
+    this.projectionVariables = projectionVariables;
+    this.neededVariables = neededVariables;
   }
 
   public Set<TriplePatternInPlan> getPlan() {       
@@ -4,11 +4,14 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
 
+import de.mpii.trinitreloaded.queryprocessing.CodeGen;
 import de.mpii.trinitreloaded.queryprocessing.Operator;
-import de.mpii.trinitreloaded.queryprocessing.PopularityBasedScan;
-import de.mpii.trinitreloaded.queryprocessing.SyntheticScan;
+import de.mpii.trinitreloaded.queryprocessing.ScoreAggregation;
+import de.mpii.trinitreloaded.queryprocessing.ScoreAggregation.RankedScore;
+import de.mpii.trinitreloaded.queryprocessing.ScoreAggregation.ScoreBucket;
 import de.mpii.trinitreloaded.utils.Config;
 import de.mpii.trinitreloaded.utils.Logger;
 //import de.mpii.trinitreloaded.utils.Config.LoggingLevel;
@@ -47,36 +50,43 @@ public class MultiBucketHistogram implements ProbabilityDistribution {
     int resultsCount = 0;
     double maxScore = 0.0;
     double totalCumulativeScore = 0.0;
-    Operator sc, sc1;
-    if(!Config.isSyntheticData){
-      sc = new PopularityBasedScan(tp, false);
-      sc1 = new PopularityBasedScan(tp, false);
-    }
-    else{
-      sc = new SyntheticScan(tp, false);
-      sc1 = new SyntheticScan(tp, false);
-    }
-
-    try {
-      sc1.open();
-      while (sc1.hasNext()) { 
-        Answer a = sc1.next();
-        double count = a.getScore();
-        if (resultsCount == 0) {
-          maxScore = count;
+    Operator sc = CodeGen.newScan(tp, false);
+    Operator sc1 = CodeGen.newScan(tp, false);
+
+    PatternStatistics stats = ScoreAggregation.getStatistics(tp);
+    if (stats != null) {
+      // The catalog or the database spares the first pass over the matches.
+      resultsCount = (int) stats.numberOfResults;
+      maxScore = stats.maxScore;
+      totalCumulativeScore = stats.totalScore;
+    } else {
+      try {
+        sc1.open();
+        while (sc1.hasNext()) { 
+          Answer a = sc1.next();
+          double count = a.getScore();
+          if (resultsCount == 0) {
+            maxScore = count;
+          }
+          totalCumulativeScore+=count;
+          resultsCount++;
         }
-        totalCumulativeScore+=count;
-        resultsCount++;
+        sc1.close();
+      } catch (SQLException e) {
+        e.printStackTrace();
+      } catch (Exception e) {
+        e.printStackTrace();
       }
-      sc1.close();
-    } catch (SQLException e) {
-      e.printStackTrace();
-    } catch (Exception e) {
-      e.printStackTrace();
     }
     // TODO: Check if this assertion is in fact true.
     assert resultsCount>Config.numBuckets : "The number of buckets in the histogram cannot be greater than the total number of triple pattern matches.";
 
+    if (stats != null && (Config.histType == Config.HistogramType.EQUIDEPTHSCORE
+        ? buildFromRankedScores(tp, stats, resultsCount, maxScore, totalCumulativeScore)
+        : buildFromBuckets(tp, stats, resultsCount, maxScore))) {
+      return;
+    }
+
     List<Double> scoreAtRanksTemp;
     List<Double> cumulativeScoreAtRanksTemp;
 
@@ -256,6 +266,154 @@ public class MultiBucketHistogram implements ProbabilityDistribution {
     }
   }
 
+  /**
+   * Builds the buckets of an {@code EQUIDEPTH} or {@code EQUIWIDTH} histogram as the scans of the
+   * constructor do, from the matches grouped into buckets by {@link ScoreAggregation}.
+   *
+   * @return Whether the buckets were built, {@code false} if the matches could not be read so.
+   */
+  private boolean buildFromBuckets(TriplePattern tp, PatternStatistics stats, int resultsCount,
+      double maxScore) {
+    int numBuckets = Config.numBuckets;
+    int bucketDepth = Math.max(resultsCount / numBuckets, 1);
+    double bucketWidth = Math.round((maxScore / numBuckets) * 100.0) / 100.0;
+    // The left ends of the buckets but the last, from the right end.
+    double[] leftEnds = new double[Math.max(numBuckets - 1, 0)];
+    double leftEnd = maxScore;
+    for (int i = 0; i < leftEnds.length; i++) {
+      leftEnd = leftEnd - bucketWidth;
+      leftEnds[i] = leftEnd;
+    }
+    String bucket;
+    List<Object> bucketParams;
+    switch (Config.histType) {
+    case EQUIDEPTH:
+      // The matches ranked after the last full bucket fall into the last one.
+      bucket = "LEAST((row_number() OVER (ORDER BY score DESC) - 1) / ?, ?)";
+      bucketParams = Lists.<Object>newArrayList(bucketDepth, leftEnds.length);
+      break;
+    case EQUIWIDTH:
+    {
+      // width_bucket() counts the left ends up to the score, which it needs in ascending order.
+      List<String> ascending = Lists.newArrayList();
+      for (int i = leftEnds.length - 1; i >= 0; i--) {
+        ascending.add(Double.toString(leftEnds[i]));
+      }
+      bucket = "? - width_bucket(score, CAST(? AS float8[]))";
+      bucketParams = Lists.<Object>newArrayList(leftEnds.length,
+          "{" + Joiner.on(",").join(ascending) + "}");
+      break;
+    }
+    default:
+      return false;
+    }
+    List<ScoreBucket> buckets = ScoreAggregation.getBuckets(tp, stats, bucket, bucketParams);
+    if (buckets == null || buckets.isEmpty()) {
+      return false;
+    }
+
+    double[] bucketScores = new double[numBuckets];
+    double[] bucketMaxScores = new double[numBuckets];
+    boolean[] isFilled = new boolean[numBuckets];
+    double lastScore = 0.0;
+    for (ScoreBucket scoreBucket : buckets) {
+      bucketScores[scoreBucket.bucket] = scoreBucket.totalScore;
+      bucketMaxScores[scoreBucket.bucket] = scoreBucket.maxScore;
+      isFilled[scoreBucket.bucket] = true;
+      lastScore = scoreBucket.minScore;
+    }
+    List<Double> scoreAtRanksTemp = Lists.newArrayList();
+    List<Double> cumulativeScoreAtRanksTemp = Lists.newArrayList();
+    double cumulativeScore = bucketScores[0];
+    for (int i = 1; i < numBuckets; i++) {
+      if (Config.histType == Config.HistogramType.EQUIWIDTH) {
+        // The boundary is the left end, whether or not a match lies below it.
+        scoreAtRanksTemp.add(leftEnds[i - 1]);
+      } else if (isFilled[i]) {
+        scoreAtRanksTemp.add(bucketMaxScores[i]);
+      } else {
+        // There are fewer matches than buckets: the remaining boundaries are filled as the scan
+        // does, with the last score once and 0 after.
+        scoreAtRanksTemp.add(lastScore);
+        lastScore = 0.0;
+      }
+      cumulativeScoreAtRanksTemp.add(cumulativeScore);
+      cumulativeScore += bucketScores[i];
+    }
+
+    this.scoreAtRanks = scoreAtRanksTemp;
+    this.cumulativeScoreAtRanks = cumulativeScoreAtRanksTemp;
+    this.cumulativeScoreAtRankN = cumulativeScore;
+    this.numberOfResults = resultsCount;
+    this.maxScore = maxScore;
+    this.n = numBuckets;
+    Logger.println("MultiBucketHistogram of " + tp + " from " + buckets.size() + " buckets of "
+        + resultsCount + " matches", Config.LoggingLevel.VARIABLEVALUES);
+    return true;
+  }
+
+  /**
+   * Builds the buckets of an {@code EQUIDEPTHSCORE} histogram as the scan of the constructor
+   * does, from only the matches at which their boundaries may lie, read by
+   * {@link ScoreAggregation}.
+   *
+   * Unlike the other histograms, its buckets cannot be grouped by the database: a boundary is
+   * crossed at the first match after the previous boundary whose running sum passes it, so a
+   * high-scored match passing several multiples of the bucket score puts the following
+   * boundaries on the matches after it. These buckets depend on the individual matches, not on
+   * an aggregate of a range of them.
+   *
+   * @return Whether the buckets were built, {@code false} if the matches could not be read so.
+   */
+  private boolean buildFromRankedScores(TriplePattern tp, PatternStatistics stats,
+      int resultsCount, double maxScore, double totalCumulativeScore) {
+    int numBuckets = Config.numBuckets;
+    double bucketDepthScore = totalCumulativeScore / numBuckets;
+    double[] thresholds = new double[Math.max(numBuckets - 1, 0)];
+    for (int i = 0; i < thresholds.length; i++) {
+      thresholds[i] = (i + 1) * bucketDepthScore;
+    }
+    List<RankedScore> rankedScores = ScoreAggregation.getRankedScores(tp, stats,
+        "before >= t", thresholds, thresholds.length);
+    if (rankedScores == null || rankedScores.isEmpty()) {
+      return false;
+    }
+
+    List<Double> scoreAtRanksTemp = Lists.newArrayList();
+    List<Double> cumulativeScoreAtRanksTemp = Lists.newArrayList();
+    int bucketCount = 1;
+    double count = 0.0;
+    for (RankedScore rankedScore : rankedScores) {
+      count = rankedScore.score;
+      if (rankedScore.scoreBefore >= (bucketCount * bucketDepthScore)
+          && bucketCount < numBuckets) {
+        scoreAtRanksTemp.add(count);
+        cumulativeScoreAtRanksTemp.add(rankedScore.scoreBefore);
+        bucketCount++;
+      }
+    }
+    RankedScore last = rankedScores.get(rankedScores.size() - 1);
+    double cumulativeScore = last.scoreBefore + last.score;
+
+    //If the number of buckets haven't been reached, fill the remaining.
+    while (bucketCount < numBuckets) {
+      scoreAtRanksTemp.add(count);
+      cumulativeScoreAtRanksTemp.add(cumulativeScore);
+      count = 0.0;
+      bucketCount++;
+    }
+
+    this.scoreAtRanks = scoreAtRanksTemp;
+    this.cumulativeScoreAtRanks = cumulativeScoreAtRanksTemp;
+    this.cumulativeScoreAtRankN = cumulativeScore;
+    this.numberOfResults = resultsCount;
+    this.maxScore = maxScore;
+    this.n = numBuckets;
+    Logger.println("MultiBucketHistogram of " + tp + " from " + rankedScores.size() + " of "
+        + resultsCount + " matches", Config.LoggingLevel.VARIABLEVALUES);
+    return true;
+  }
+
   /**
    * Get total score from a {@link TriplePattern}.
    * 
@@ -265,11 +423,7 @@ public class MultiBucketHistogram implements ProbabilityDistribution {
    */
   @SuppressWarnings("unused")
   private double getSumOfTotalScore(TriplePattern tp) {
-    Operator sc;
-    if(!Config.isSyntheticData)
-      sc = new PopularityBasedScan(tp, false);
-    else
-      sc = new SyntheticScan(tp, false);
+    Operator sc = CodeGen.newScan(tp, false);
     double totalScore = 0.0;
     try {
       sc.open();
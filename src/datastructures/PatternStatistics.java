@@ -0,0 +1,61 @@
+package de.mpii.trinitreloaded.datastructures;
+
+import de.mpii.trinitreloaded.utils.Config;
+
+/**
+ * The statistics of the matches of a {@link TriplePattern}, as kept in the catalog of
+ * {@link de.mpii.trinitreloaded.utils.PatternStatisticsCatalog} or aggregated by the database.
+ *
+ * The scores are normalized as the scans normalize them, i.e. by the highest score of the
+ * pattern, so the highest one is {@code scoreMultipler}. The inflection rank is the adaptive one,
+ * the last rank at which the scores ranked above hold at most {@code headFraction} of the total;
+ * {@code headFraction} is NaN if it is not known.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ */
+public class PatternStatistics {
+
+  public final long numberOfResults;
+  /** The highest score as stored in the database. */
+  public final double rawMaxScore;
+  public final double maxScore;
+  public final double minScore;
+  public final double totalScore;
+  public final double headFraction;
+  public final long inflectionRank;
+  public final double scoreAtInflectionRank;
+  public final double cumulativeScoreAtInflectionRank;
+
+  /**
+   * Creates the statistics from the scores as stored in the database.
+   */
+  public PatternStatistics(long numberOfResults, double rawMaxScore, double rawMinScore,
+      double rawTotalScore, double headFraction, long inflectionRank,
+      double rawScoreAtInflectionRank, double rawCumulativeScoreAtInflectionRank) {
+    double multiplier = rawMaxScore != 0.0 ? Config.scoreMultipler / rawMaxScore : 0.0;
+    this.numberOfResults = numberOfResults;
+    this.rawMaxScore = rawMaxScore;
+    this.maxScore = rawMaxScore * multiplier;
+    this.minScore = rawMinScore * multiplier;
+    this.totalScore = rawTotalScore * multiplier;
+    this.headFraction = headFraction;
+    this.inflectionRank = inflectionRank;
+    this.scoreAtInflectionRank = rawScoreAtInflectionRank * multiplier;
+    this.cumulativeScoreAtInflectionRank = rawCumulativeScoreAtInflectionRank * multiplier;
+  }
+
+  /**
+   * Returns whether the inflection rank is the one {@code adaptiveInflectionRank} would find with
+   * the current {@code fractionOfScoreInTheHead}.
+   */
+  public boolean hasInflectionRank() {
+    return Config.adaptiveInflectionRank && headFraction == Config.fractionOfScoreInTheHead;
+  }
+
+  @Override
+  public String toString() {
+    return "PatternStatistics [numberOfResults=" + numberOfResults + ", maxScore=" + maxScore
+        + ", minScore=" + minScore + ", totalScore=" + totalScore + ", inflectionRank="
+        + inflectionRank + "]";
+  }
+}
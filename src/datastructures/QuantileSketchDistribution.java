@@ -0,0 +1,344 @@
+package de.mpii.trinitreloaded.datastructures;
+
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TLongArrayList;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import de.mpii.trinitreloaded.utils.Config;
+
+/**
+ * A {@link ProbabilityDistribution} of scores kept as a quantile sketch, in the manner of the
+ * relative-error variant of the KLL sketch.
+ *
+ * The sketch is built in one pass over the scores, in any order, with {@code update()}. It keeps
+ * the scores in levels, a score at level h standing for 2^h scores. When a level holds 2k scores,
+ * with k = {@code sketchK}, all but its k highest are sorted and every other one of them is
+ * promoted to the next level. So the k highest scores, which the top-k is estimated from, are
+ * kept exactly, lower ranks are known up to a small fraction of the rank, and about
+ * 2k log(n/k) scores are kept. The number of scores and their highest, lowest and total score are
+ * kept exactly.
+ *
+ * Sketches are mergeable: the sketch of the matches of a sharded table is the {@code merge()} of
+ * the sketches of its shards, and the sketch of a pattern and its relaxations is the merge of the
+ * sketch of the pattern and the sketches of the relaxations, each {@code scale()}d by the weight
+ * of its relaxation. Neither reads the matches again. Sketches are serializable, so they can be
+ * kept along with the data.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class QuantileSketchDistribution implements ProbabilityDistribution, Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final int k;
+  /** The scores kept at each level, a score at level h standing for 2^h scores. */
+  private final List<TDoubleArrayList> levels;
+  /** The number of scores the kept scores stand for. */
+  private long weight;
+  /** The number of scores, which only differs from {@code weight} for a convolution. */
+  private long numberOfResults;
+  private double maxScore = Double.NEGATIVE_INFINITY;
+  private double minScore = Double.POSITIVE_INFINITY;
+  private double totalScore;
+  private long compactions;
+
+  /** The kept scores in descending order, and the number of scores they stand for so far. */
+  private transient double[] sortedScores;
+  private transient long[] cumulativeWeights;
+
+  public QuantileSketchDistribution() {
+    this(Config.sketchK);
+  }
+
+  public QuantileSketchDistribution(int k) {
+    this.k = Math.max(k, 1);
+    this.levels = Lists.newArrayList();
+    this.levels.add(new TDoubleArrayList());
+  }
+
+  /**
+   * Adds a score to the sketch.
+   */
+  public void update(double score) {
+    levels.get(0).add(score);
+    weight++;
+    numberOfResults++;
+    maxScore = Math.max(maxScore, score);
+    minScore = Math.min(minScore, score);
+    totalScore += score;
+    sortedScores = null;
+    if (levels.get(0).size() >= 2 * k) {
+      compress();
+    }
+  }
+
+  /**
+   * Adds a score standing for {@code count} scores, at the levels of the bits of {@code count}.
+   * The statistics of the scores are left to the caller.
+   */
+  private void add(double score, long count) {
+    for (int h = 0; count >> h != 0; h++) {
+      if ((count >> h & 1) != 0) {
+        while (levels.size() <= h) {
+          levels.add(new TDoubleArrayList());
+        }
+        levels.get(h).add(score);
+      }
+    }
+    weight += count;
+    sortedScores = null;
+  }
+
+  /**
+   * Adds the scores of another sketch to this one, as if they had been added with
+   * {@code update()}. Neither sketch may be a convolution.
+   */
+  public void merge(QuantileSketchDistribution other) {
+    if (weight != numberOfResults || other.weight != other.numberOfResults) {
+      throw new IllegalArgumentException("Convoluted sketches cannot be merged.");
+    }
+    while (levels.size() < other.levels.size()) {
+      levels.add(new TDoubleArrayList());
+    }
+    for (int h = 0; h < other.levels.size(); h++) {
+      TDoubleArrayList level = levels.get(h);
+      TDoubleArrayList otherLevel = other.levels.get(h);
+      for (int i = 0; i < otherLevel.size(); i++) {
+        level.add(otherLevel.get(i));
+      }
+    }
+    weight += other.weight;
+    numberOfResults += other.numberOfResults;
+    maxScore = Math.max(maxScore, other.maxScore);
+    minScore = Math.min(minScore, other.minScore);
+    totalScore += other.totalScore;
+    sortedScores = null;
+    compress();
+  }
+
+  /**
+   * Returns a copy of the sketch with all scores multiplied by {@code factor}, e.g. the weight of
+   * a relaxation or the factor normalizing the scores. The factor must not be negative.
+   */
+  public QuantileSketchDistribution scale(double factor) {
+    QuantileSketchDistribution scaled = new QuantileSketchDistribution(k);
+    scaled.levels.clear();
+    for (TDoubleArrayList level : levels) {
+      TDoubleArrayList scaledLevel = new TDoubleArrayList(level.size());
+      for (int i = 0; i < level.size(); i++) {
+        scaledLevel.add(level.get(i) * factor);
+      }
+      scaled.levels.add(scaledLevel);
+    }
+    scaled.weight = weight;
+    scaled.numberOfResults = numberOfResults;
+    scaled.maxScore = maxScore * factor;
+    scaled.minScore = minScore * factor;
+    scaled.totalScore = totalScore * factor;
+    scaled.compactions = compactions;
+    return scaled;
+  }
+
+  /**
+   * Returns the sketch of the sums of the scores of this and another sketch, for a join with
+   * {@code numResults} results, assuming the scores of the joined matches are independent.
+   *
+   * The kept scores of each sketch are grouped into strata, one per score for the k/4 highest
+   * and growing with the rank below, and the sum of the mean scores of each pair of strata is added
+   * for its share of the {@code numResults} scores: the product of the fractions of the scores of
+   * each sketch in the pair. Rounding errors are carried over to the next pair, so the new sketch
+   * stands for about {@code numResults} scores, and counts cannot overflow as the products of the
+   * sizes of the sketches would.
+   */
+  public QuantileSketchDistribution convolute(QuantileSketchDistribution other,
+      long numResults) {
+    QuantileSketchDistribution convoluted = new QuantileSketchDistribution(k);
+    if (numResults <= 0 || numberOfResults == 0 || other.numberOfResults == 0) {
+      return convoluted;
+    }
+    // Coarser than the sketches, as the number of pairs grows with the square of the strata.
+    int resolution = Math.max(k / 4, 1);
+    TDoubleArrayList scores = new TDoubleArrayList();
+    TLongArrayList counts = new TLongArrayList();
+    getStrata(resolution, scores, counts);
+    TDoubleArrayList otherScores = new TDoubleArrayList();
+    TLongArrayList otherCounts = new TLongArrayList();
+    other.getStrata(resolution, otherScores, otherCounts);
+    double scale = (double) numResults / weight / other.weight;
+    double carry = 0.0;
+    for (int i = 0; i < scores.size(); i++) {
+      for (int j = 0; j < otherScores.size(); j++) {
+        double share = scale * counts.get(i) * otherCounts.get(j) + carry;
+        long count = Math.round(share);
+        carry = share - count;
+        if (count > 0) {
+          convoluted.add(scores.get(i) + otherScores.get(j), count);
+        }
+      }
+      convoluted.compress();
+    }
+    convoluted.numberOfResults = numResults;
+    convoluted.maxScore = maxScore + other.maxScore;
+    convoluted.minScore = minScore + other.minScore;
+    convoluted.totalScore = numResults
+        * (totalScore / numberOfResults + other.totalScore / other.numberOfResults);
+    return convoluted;
+  }
+
+  /**
+   * Groups the kept scores, in descending order, into strata of at least 1/{@code resolution} of
+   * the number of scores above them, and adds the mean score and the number of scores of each to
+   * {@code scores} and {@code counts}.
+   */
+  private void getStrata(int resolution, TDoubleArrayList scores, TLongArrayList counts) {
+    sort();
+    long above = 0;
+    double sum = 0.0;
+    long count = 0;
+    for (int i = 0; i < sortedScores.length; i++) {
+      long itemCount = cumulativeWeights[i] - (i > 0 ? cumulativeWeights[i - 1] : 0);
+      sum += sortedScores[i] * itemCount;
+      count += itemCount;
+      if (count * resolution >= above || i == sortedScores.length - 1) {
+        scores.add(sum / count);
+        counts.add(count);
+        above += count;
+        sum = 0.0;
+        count = 0;
+      }
+    }
+  }
+
+  /**
+   * Compacts every level holding at least 2k scores, from the lowest one.
+   */
+  private void compress() {
+    for (int h = 0; h < levels.size(); h++) {
+      if (levels.get(h).size() >= 2 * k) {
+        if (h == levels.size() - 1) {
+          levels.add(new TDoubleArrayList());
+        }
+        compact(h);
+      }
+    }
+  }
+
+  /**
+   * Promotes every other score of level {@code h} but its k highest, in sorted order, to the next
+   * level, starting alternately from the first and the second score, so the ranks are not skewed
+   * either way. An odd score out stays.
+   */
+  private void compact(int h) {
+    double[] scores = levels.get(h).toArray();
+    Arrays.sort(scores);
+    int end = scores.length - k;
+    if (end % 2 == 1) {
+      end--;
+    }
+    TDoubleArrayList kept = new TDoubleArrayList(2 * k);
+    for (int i = end; i < scores.length; i++) {
+      kept.add(scores[i]);
+    }
+    TDoubleArrayList next = levels.get(h + 1);
+    for (int i = (int) (compactions % 2); i < end; i += 2) {
+      next.add(scores[i]);
+    }
+    compactions++;
+    levels.set(h, kept);
+  }
+
+  /**
+   * Sorts the kept scores in descending order, once after each change.
+   */
+  private void sort() {
+    if (sortedScores != null) {
+      return;
+    }
+    int size = 0;
+    for (TDoubleArrayList level : levels) {
+      size += level.size();
+    }
+    final double[] scores = new double[size];
+    long[] weights = new long[size];
+    Integer[] order = new Integer[size];
+    int i = 0;
+    for (int h = 0; h < levels.size(); h++) {
+      TDoubleArrayList level = levels.get(h);
+      for (int j = 0; j < level.size(); j++) {
+        scores[i] = level.get(j);
+        weights[i] = 1L << h;
+        order[i] = i;
+        i++;
+      }
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer i1, Integer i2) {
+        return Double.compare(scores[i2], scores[i1]);
+      }
+    });
+    double[] sorted = new double[size];
+    long[] cumulative = new long[size];
+    long sum = 0;
+    for (i = 0; i < size; i++) {
+      sorted[i] = scores[order[i]];
+      sum += weights[order[i]];
+      cumulative[i] = sum;
+    }
+    cumulativeWeights = cumulative;
+    sortedScores = sorted;
+  }
+
+  public double getPercentile(long rank) {
+    if (rank < 1 || rank > this.numberOfResults) {
+      return 0.0;
+    }
+    sort();
+    // For a convolution, the kept scores stand for weight instead of numberOfResults scores.
+    double weightedRank = (double) rank * weight / numberOfResults;
+    // The first kept score whose cumulative weight reaches the rank, or the last one.
+    int low = 0;
+    int high = cumulativeWeights.length - 1;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (cumulativeWeights[mid] < weightedRank) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return sortedScores[low];
+  }
+
+  public long getNumResults() {
+    return this.numberOfResults;
+  }
+
+  public double getMaxScore() {
+    return this.numberOfResults > 0 ? this.maxScore : 0.0;
+  }
+
+  public double getMinScore() {
+    return this.numberOfResults > 0 ? this.minScore : 0.0;
+  }
+
+  public double getTotalScore() {
+    return this.totalScore;
+  }
+
+  @Override
+  public String toString() {
+    int retained = 0;
+    for (TDoubleArrayList level : levels) {
+      retained += level.size();
+    }
+    return "QuantileSketchDistribution [numberOfResults=" + numberOfResults + ", maxScore="
+        + getMaxScore() + ", minScore=" + getMinScore() + ", totalScore=" + totalScore + ", k="
+        + k + ", levels=" + levels.size() + ", retained=" + retained + "]";
+  }
+}
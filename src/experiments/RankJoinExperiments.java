@@ -18,7 +18,9 @@ import de.mpii.trinitreloaded.queryprocessing.QueryParser;
 import de.mpii.trinitreloaded.queryprocessing.QueryPlanner;
 import de.mpii.trinitreloaded.queryprocessing.RJCodeGen;
 import de.mpii.trinitreloaded.utils.Config;
+import de.mpii.trinitreloaded.utils.DBConnection;
 import de.mpii.trinitreloaded.utils.Logger;
+import de.mpii.trinitreloaded.utils.ScoreDistributionCache;
 import de.mpii.trinitreloaded.utils.Timer;
 import de.mpii.trinitreloaded.utils.Config.LoggingLevel;
 import de.mpii.trinitreloaded.utils.Config.PlanType;
@@ -98,6 +100,17 @@ public class RankJoinExperiments extends Experiments {
   protected static List<Answer> processRJQuery(String query, PlanType planType, int runCount) {
     // Make count=0 for no. of answer objects
     HashMapBasedAnswer.countOfAnswerObjects = 0;
+    DBConnection.resetStatistics();
+    DBConnection.beginQuery();
+    try {
+      return runRJQuery(query, planType, runCount);
+    } finally {
+      // Also after a failure, so the budget and shared connection do not leak into the next run.
+      DBConnection.endQuery();
+    }
+  }
+
+  private static List<Answer> runRJQuery(String query, PlanType planType, int runCount) {
     Logger.println("Plan Type:"+planType.toString(), LoggingLevel.EXPERIMENTS);
     // Parse the query.
     QueryParser qp = new QueryParser();
@@ -173,6 +186,8 @@ public class RankJoinExperiments extends Experiments {
     Logger.println("Query Execution time:" + t.getDuration(),LoggingLevel.EXPERIMENTS);
     Logger.println("Time Taken:"+totalRunTime, LoggingLevel.EXPERIMENTS);
     Logger.println("No. of Answer objects created:"+HashMapBasedAnswer.countOfAnswerObjects, LoggingLevel.EXPERIMENTS);
+    Logger.println("Connection pool statistics:"+DBConnection.getPoolStatistics(), LoggingLevel.EXPERIMENTS);
+    Logger.println("Score distribution cache statistics:"+ScoreDistributionCache.getStatistics(), LoggingLevel.EXPERIMENTS);
 
     return answersTopK;
 
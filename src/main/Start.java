@@ -3,7 +3,10 @@ package de.mpii.trinitreloaded.main;
 import de.mpii.trinitreloaded.experiments.Experiments;
 import de.mpii.trinitreloaded.experiments.RankJoinExperiments;
 import de.mpii.trinitreloaded.utils.Config;
+import de.mpii.trinitreloaded.utils.DBConnection;
+import de.mpii.trinitreloaded.utils.GraphConnection;
 import de.mpii.trinitreloaded.utils.Logger;
+import de.mpii.trinitreloaded.utils.TDBConnection;
 
 /**
  * The class with the main function to start running the Query Engine.
@@ -21,6 +24,11 @@ public class Start {
      */
     Config.loadProperties();
     Config.printProperties();
+    // RDF and synthetic runs do not use PostgreSQL.
+    boolean usesPostgres = !Config.isRDFDB && !Config.isSyntheticData;
+    if (usesPostgres) {
+      DBConnection.warmUp();
+    }
     
     /**
      * Uncomment this to run experiments and collate results for XKG and Twitter
@@ -31,5 +39,13 @@ public class Start {
      */
     Experiments rjExpt = new RankJoinExperiments();
     rjExpt.executeExperiments();
+    if (usesPostgres) {
+      DBConnection.shutdown();
+    }
+    if (Config.isRDFDB && Config.useTDB) {
+      TDBConnection.shutdown();
+    } else if (Config.isRDFDB) {
+      GraphConnection.shutdown();
+    }
   }
 }
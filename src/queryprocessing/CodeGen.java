@@ -4,9 +4,9 @@ import gnu.trove.list.TDoubleList;
 import gnu.trove.list.array.TDoubleArrayList;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
@@ -15,12 +15,15 @@ import com.google.common.collect.Lists;
 
 import de.mpii.trinitreloaded.datastructures.Answer;
 import de.mpii.trinitreloaded.datastructures.LogicalQueryPlan;
+import de.mpii.trinitreloaded.datastructures.PatternStatistics;
 import de.mpii.trinitreloaded.datastructures.TriplePattern;
 import de.mpii.trinitreloaded.datastructures.TriplePatternInPlan;
 import de.mpii.trinitreloaded.utils.Config;
 import de.mpii.trinitreloaded.utils.Config.LoggingLevel;
 import de.mpii.trinitreloaded.utils.DBConnection;
 import de.mpii.trinitreloaded.utils.Logger;
+import de.mpii.trinitreloaded.utils.SQLTemplateCache;
+import de.mpii.trinitreloaded.utils.Shards;
 
 /**
  * Executes the {@link LogicalQueryPlan} generated by {@link QueryPlanner} using the correct order
@@ -34,9 +37,12 @@ import de.mpii.trinitreloaded.utils.Logger;
 public class CodeGen {
 
   public final LogicalQueryPlan queryPlan;
+  /** The variables the operators have to bind, {@code null} for all. */
+  final Set<String> neededVariables;
 
   public CodeGen(LogicalQueryPlan queryPlan) {
     this.queryPlan = queryPlan;
+    this.neededVariables = Config.projectionPushdown ? queryPlan.neededVariables : null;
   }
 
   @Deprecated
@@ -91,11 +97,12 @@ public class CodeGen {
   }
 
   public Operator createRankJoin(List<Operator> ops, List<ArrayList<String>> variables) {
-    Operator op = new RankJoinCodeGen(ops, variables).translate();
+    Set<String> projectionVariables =
+        neededVariables == null ? null : queryPlan.projectionVariables;
+    Operator op = new RankJoinCodeGen(ops, variables, projectionVariables).translate();
     return op;
   }
 
-  @SuppressWarnings("deprecation")
   public Operator createJoinSort(Set<TriplePattern> querySubset) {
     ArrayList<TriplePattern> inputs = new ArrayList<TriplePattern>();
     inputs.addAll(querySubset);
@@ -105,6 +112,7 @@ public class CodeGen {
     }
     else{
       PopularityBasedDBJoinSort js = new PopularityBasedDBJoinSort(inputs);
+      js.setNeededVariables(neededVariables);
       return js;
     }
   }
@@ -113,21 +121,7 @@ public class CodeGen {
     assert (querySubset.getTPSet().size() == 1);
     IncrementalMerge icm = null;
     for (TriplePattern tp : querySubset.getTPSet()) {
-      Operator original;
-      
-      if(Config.isSyntheticData){
-        if(Config.isRDFDB)
-          original = new SyntheticRDFScan(tp);
-        else
-          original = new SyntheticScan(tp);
-      }
-      else if(Config.isRDFDB){
-        original = new PopularityBasedRDFScan(tp);
-      } 
-      else
-      {
-        original = new PopularityBasedScan(tp);
-      }
+      Operator original = createScan(tp);
       
       if(!querySubset.isRelaxed){
         return original;
@@ -136,6 +130,13 @@ public class CodeGen {
       imp.generateParameters();
       if (imp.relaxations.size() == 0) {
         return original;
+      } else if (Config.unionMerge && !Config.isSyntheticData && !Config.isRDFDB
+          && !Shards.isSharded()) {
+        Logger.println("CodeGen:Creating Union Merge with parameters:" + tp + " "
+            + imp.relaxedPatterns + " " + imp.weights, LoggingLevel.INTERMEDIATEINFO);
+        UnionMergeScan ums = new UnionMergeScan(tp, imp.relaxedPatterns, imp.weights);
+        ums.setNeededVariables(neededVariables);
+        return ums;
       } else {
         Logger.println("CodeGen:Creating Inc Merge with parameters:" + original + " "
             + imp.relaxations + " " + imp.weights + " " + imp.initialScores,
@@ -146,8 +147,67 @@ public class CodeGen {
     return icm;
   }
 
+  /**
+   * Creates the scan operator reading the matches of a {@link TriplePattern} during query
+   * execution, as per the data and database set in {@link Config}. Scans over a database are
+   * wrapped in a {@link PrefetchingOperator} if {@code prefetchScans} is set. Scans only bind the
+   * variables needed by the plan if {@code projectionPushdown} is set.
+   *
+   * @param tp The {@link TriplePattern} to be scanned.
+   * @return A scan {@link Operator} for {@code tp}.
+   */
+  public Operator createScan(TriplePattern tp) {
+    Operator scan = newScan(tp, true);
+    if(scan instanceof ProjectingOperator){
+      ((ProjectingOperator) scan).setNeededVariables(neededVariables);
+    }
+    if(Config.prefetchScans && !Config.isSyntheticData){
+      return new PrefetchingOperator(scan, Config.prefetchBufferSize);
+    }
+    return scan;
+  }
+
+  /**
+   * Creates the bare scan operator reading the matches of a {@link TriplePattern} from the
+   * backend set in {@link Config}. This is the only place choosing the backend, for the scans
+   * of query execution as well as for those reading statistics.
+   *
+   * @param tp The {@link TriplePattern} to be scanned.
+   * @param toBeCounted Set if the answers of the scan count as answers read by the query.
+   * @return A scan {@link Operator} for {@code tp}.
+   */
+  public static Operator newScan(TriplePattern tp, boolean toBeCounted) {
+    if(Config.isSyntheticData){
+      if(Config.isRDFDB)
+        return new SyntheticRDFScan(tp, toBeCounted);
+      else
+        return new SyntheticScan(tp, toBeCounted);
+    }
+    else if(Config.isRDFDB && Config.useTDB){
+      return new TDBScan(tp, toBeCounted);
+    }
+    else if(Config.isRDFDB){
+      return new PopularityBasedRDFScan(tp, toBeCounted);
+    }
+    else if(Config.postingStoreScans && PostingListScan.supports(tp)){
+      return new PostingListScan(tp, toBeCounted);
+    }
+    else if(Shards.isSharded()){
+      return new ShardedScan(tp, toBeCounted);
+    }
+    else if(Config.keysetScans){
+      return new KeysetPopularityBasedScan(tp, toBeCounted);
+    }
+    else
+    {
+      return new PopularityBasedScan(tp, toBeCounted);
+    }
+  }
+
   public class IncrementalMergeParameters {
     public List<Operator> relaxations;
+    /** The patterns scanned by {@code relaxations}, in the same order. */
+    public List<TriplePattern> relaxedPatterns;
     public TDoubleList weights;
     public TDoubleList initialScores;
     private final TriplePattern triplePattern;
@@ -156,30 +216,37 @@ public class CodeGen {
     public IncrementalMergeParameters(TriplePattern tp) {
       this.triplePattern = tp;
       this.relaxations = new ArrayList<Operator>();
+      this.relaxedPatterns = new ArrayList<TriplePattern>();
       this.weights = new TDoubleArrayList();
       this.initialScores = new TDoubleArrayList();
     }
 
     public void generateParameters() {
-      Operator sc;
-      
+      // The catalog or the database spares scanning all matches for the lowest score.
+      PatternStatistics stats = ScoreAggregation.getStatistics(triplePattern);
+      if (stats != null) {
+        minScore = stats.minScore;
+      } else {
+        minScore = scanMinScore();
+      }
       if(Config.isSyntheticData){
-        if(Config.isRDFDB)
-          sc = new SyntheticRDFScan(triplePattern, false);
-        else
-          sc = new SyntheticScan(triplePattern, false);
+        generateSyntheticParameters();
       }
-      else if(Config.isRDFDB){
-        sc = new PopularityBasedRDFScan(triplePattern, false);
-      } 
-      else
-      {
-        sc = new PopularityBasedScan(triplePattern, false);
+      else{
+        generateOriginalParameters();
       }
 
+    }
+
+    /**
+     * Returns the lowest score of the matches of the pattern, read by scanning all of them.
+     */
+    private double scanMinScore() {
+      Operator sc = newScan(triplePattern, false);
+      double minScore = 0.0;
+
       try {
         sc.open();
-        minScore = 0.0;
         while (sc.hasNext()) {
           Answer a = sc.next();
           minScore = a.getScore();
@@ -194,13 +261,7 @@ public class CodeGen {
         } catch (Exception e) {
         }
       }
-      if(Config.isSyntheticData){
-        generateSyntheticParameters();
-      }
-      else{
-        generateOriginalParameters();
-      }
-
+      return minScore;
     }
 
     private void generateOriginalParameters() {
@@ -287,86 +348,34 @@ public class CodeGen {
       }
 
       Connection conn = null;
-      Statement statement = null;
+      PreparedStatement statement = null;
       ResultSet rs = null;
       try {
+        if (Config.isRDFDB && Config.useTDB) {
+          Logger.print("Getting relaxations from " + relaxationRelationalTable + " for "
+              + seekFieldVal, LoggingLevel.INTERMEDIATEINFO);
+          TDBRelaxationScan relaxationScan = new TDBRelaxationScan(relaxationRelationalTable,
+              seekField, fetchField1, fetchField2, seekFieldVal, Config.numOfRelaxations);
+          relaxationScan.open();
+          while (relaxationScan.hasNext()) {
+            Answer r = relaxationScan.next();
+            addRelaxation(r.getVariableBinding(fetchField1), r.getScore(), field);
+          }
+          relaxationScan.close();
+          return;
+        }
         conn = DBConnection.getConnection();
-        String cmd =
-            "SELECT " + fetchField1 + "," + fetchField2 + " FROM " + relaxationRelationalTable
-            + " WHERE " + seekField + " = '" + seekFieldVal + "' ORDER BY "
-            + fetchField2 + " DESC LIMIT " + Config.numOfRelaxations; // Limiting the no. of
-        // relaxations to a fixed
-        // number.
-        Logger.print("Getting relaxations:" + cmd, LoggingLevel.INTERMEDIATEINFO);
-        statement = conn.createStatement();
-        rs = statement.executeQuery(cmd);
+        String cmd = QueryPlanner.getRelaxationCommand(fetchField1, fetchField2,
+            relaxationRelationalTable, seekField);
+        Logger.print("Getting relaxations:" + cmd + " for " + seekFieldVal,
+            LoggingLevel.INTERMEDIATEINFO);
+        // Limiting the no. of relaxations to a fixed number.
+        statement = SQLTemplateCache.prepare(conn, cmd,
+            Lists.<Object>newArrayList(seekFieldVal, Config.numOfRelaxations));
+        rs = statement.executeQuery();
 
         while (rs.next()) {
-          String relaxation = rs.getString(fetchField1);
-          double weight = rs.getDouble(fetchField2);
-
-          TriplePattern newTP = null;
-          switch(field){
-          case 0:
-            newTP = new TriplePattern(
-                relaxation, this.triplePattern.predicate, this.triplePattern.object);
-            break;
-          case 1:
-            newTP = new TriplePattern(
-                this.triplePattern.subject, relaxation, this.triplePattern.object);
-            break;
-          case 2:
-            newTP = new TriplePattern(
-                this.triplePattern.subject, this.triplePattern.predicate, relaxation);
-            break;
-          }
-          // TODO : use a class InitialScanParameters to fetch these values.
-          PopularityBasedScan relaxScan =
-              new PopularityBasedScan(newTP, false);
-          relaxScan.open();
-          Answer a = null;
-          if (relaxScan.hasNext()) {
-            a = relaxScan.next();
-          }
-          if (a != null) {
-            if(this.weights.size()>=Config.numOfRelaxations){
-              int indexI = -1;
-              double minWeight = Double.MAX_VALUE;
-              for(int index=0; index <this.weights.size();index++){
-                double wts = this.weights.get(index);
-                if(minWeight>wts){
-                  minWeight = wts;
-                  indexI = index;
-                }
-              }
-              if(weight>minWeight){ // If the current relaxation has a weight higher than the lowest weight till now, replace it.
-                //System.out.println("Resetting weights!!!!");
-                double initialScore = a.getScore();
-                if(Config.isRDFDB)
-                  this.relaxations.set(indexI,new PopularityBasedRDFScan(newTP));
-                else
-                  this.relaxations.set(indexI,new PopularityBasedScan(newTP));
-                this.initialScores.set(indexI, initialScore);
-                if(Config.isIncrementalWeighting)
-                  this.weights.set(indexI, weight*this.minScore);
-                else
-                  this.weights.set(indexI, weight);
-              }
-            }
-            else{
-              double initialScore = a.getScore();
-              if(Config.isRDFDB)
-                this.relaxations.add(new PopularityBasedRDFScan(newTP));
-              else
-                this.relaxations.add(new PopularityBasedScan(newTP));
-              this.initialScores.add((initialScore));
-              if(Config.isIncrementalWeighting)
-                this.weights.add(weight*this.minScore);
-              else
-                this.weights.add(weight);
-            }
-          }
-          relaxScan.close();
+          addRelaxation(rs.getString(fetchField1), rs.getDouble(fetchField2), field);
         }
       } catch (SQLException e) {
         e.printStackTrace();
@@ -389,42 +398,87 @@ public class CodeGen {
 
     }
 
-    private void generateSyntheticParameters() {
-      String relaxationRelationalTable;
-      String seekField, fetchField1, fetchField2;
+    /**
+     * Adds the relaxation of the term at position {@code field} of the pattern, if it has any
+     * match, keeping only the {@code numOfRelaxations} relaxations of highest weight.
+     */
+    private void addRelaxation(String relaxation, double weight, int field) throws Exception {
+      TriplePattern newTP = null;
+      switch(field){
+      case 0:
+        newTP = new TriplePattern(
+            relaxation, this.triplePattern.predicate, this.triplePattern.object);
+        break;
+      case 1:
+        newTP = new TriplePattern(
+            this.triplePattern.subject, relaxation, this.triplePattern.object);
+        break;
+      case 2:
+        newTP = new TriplePattern(
+            this.triplePattern.subject, this.triplePattern.predicate, relaxation);
+        break;
+      }
+      // TODO : use a class InitialScanParameters to fetch these values.
+      Operator relaxScan = newScan(newTP, false);
+      relaxScan.open();
+      Answer a = null;
+      if (relaxScan.hasNext()) {
+        a = relaxScan.next();
+      }
+      if (a != null) {
+        if(this.weights.size()>=Config.numOfRelaxations){
+          int indexI = -1;
+          double minWeight = Double.MAX_VALUE;
+          for(int index=0; index <this.weights.size();index++){
+            double wts = this.weights.get(index);
+            if(minWeight>wts){
+              minWeight = wts;
+              indexI = index;
+            }
+          }
+          if(weight>minWeight){ // If the current relaxation has a weight higher than the lowest weight till now, replace it.
+            //System.out.println("Resetting weights!!!!");
+            double initialScore = a.getScore();
+            this.relaxations.set(indexI,createScan(newTP));
+            this.relaxedPatterns.set(indexI, newTP);
+            this.initialScores.set(indexI, initialScore);
+            if(Config.isIncrementalWeighting)
+              this.weights.set(indexI, weight*this.minScore);
+            else
+              this.weights.set(indexI, weight);
+          }
+        }
+        else{
+          double initialScore = a.getScore();
+          this.relaxations.add(createScan(newTP));
+          this.relaxedPatterns.add(newTP);
+          this.initialScores.add((initialScore));
+          if(Config.isIncrementalWeighting)
+            this.weights.add(weight*this.minScore);
+          else
+            this.weights.add(weight);
+        }
+      }
+      relaxScan.close();
+    }
 
+    private void generateSyntheticParameters() {
       /**
        * Checking for relaxation only for object for Synthetic Data (Twitter).
        */
-      if (this.triplePattern.isObjectResource) { 
-        seekField = "semantic_type"; 
-        relaxationRelationalTable = Config.syntheticParaphraseTblName;
-        fetchField1 = "textual_type";
-        fetchField2 = "prob_textual_type_given_semantic_type";
-      } else {
-        seekField = "textual_type";
-        relaxationRelationalTable = Config.syntheticParaphraseTblName;
-        fetchField1 = "semantic_type";
-        fetchField2 = "prob_semantic_type_given_textual_type";
+      if (!this.triplePattern.isObjectConst) {
+        return;
       }
-      Connection conn = null;
-      Statement statement = null;
-      ResultSet rs = null;
+      List<String> relaxationTerms = Lists.newArrayList();
+      TDoubleList relaxationWeights = new TDoubleArrayList();
+      SyntheticData.getRelaxations(this.triplePattern.object, Config.numOfRelaxations,
+          relaxationTerms, relaxationWeights);
+      Logger.print("Getting relaxations for " + this.triplePattern.object,
+          LoggingLevel.INTERMEDIATEINFO);
       try {
-        conn = DBConnection.getConnection();
-        String cmd =
-            "SELECT " + fetchField1 + "," + fetchField2 + " FROM " + relaxationRelationalTable
-            + " WHERE " + seekField + " = '" + this.triplePattern.object + "' ORDER BY "
-            + fetchField2 + " DESC LIMIT " + Config.numOfRelaxations; // Limiting the no. of
-        // relaxations to a fixed
-        // number.
-        Logger.print("Getting relaxations:" + cmd, LoggingLevel.INTERMEDIATEINFO);
-        statement = conn.createStatement();
-        rs = statement.executeQuery(cmd);
-
-        while (rs.next()) {
-          String relaxation = rs.getString(fetchField1);
-          double weight = rs.getDouble(fetchField2);
+        for (int r = 0; r < relaxationTerms.size(); r++) {
+          String relaxation = relaxationTerms.get(r);
+          double weight = relaxationWeights.get(r);
           // TODO : use a class InitialScanParameters to fetch these values.
           SyntheticScan relaxScan =
               new SyntheticScan(new TriplePattern(this.triplePattern.subject,
@@ -436,6 +490,8 @@ public class CodeGen {
           }
           if (a != null) {
             double initialScore = a.getScore();
+            this.relaxedPatterns.add(new TriplePattern(
+                this.triplePattern.subject, this.triplePattern.predicate, relaxation));
             if(Config.isRDFDB)
               this.relaxations.add(new SyntheticRDFScan(new TriplePattern(
                   this.triplePattern.subject, this.triplePattern.predicate, relaxation)));
@@ -450,25 +506,9 @@ public class CodeGen {
           }
           relaxScan.close();
         }
-      } catch (SQLException e) {
-        e.printStackTrace();
       } catch (Exception e) {
         e.printStackTrace();
-      } finally {
-        try {
-          if (rs != null) {
-            rs.close();
-          }
-          if (statement != null) {
-            statement.close();
-          }
-          if (conn != null) {
-            conn.close();
-          }
-        } catch (Exception e) {
-        }
       }
-
     }
   }
 
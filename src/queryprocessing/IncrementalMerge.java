@@ -26,7 +26,7 @@ import com.google.common.collect.Lists;
  * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
  *
  */
-public class IncrementalMerge implements Operator {
+public class IncrementalMerge implements ThresholdedOperator, KeyFilteredOperator {
 
   public static final double ORIGINAL_TERM_WEIGHT = 1.0;
   public final TDoubleList weights;
@@ -173,6 +173,24 @@ public class IncrementalMerge implements Operator {
     return retVal;
   }
 
+  /**
+   * Passes the threshold on to all inputs, each of which applies its own weight.
+   */
+  public void setScoreThreshold(double threshold) {
+    for (WeightedOperator op : ops) {
+      op.setScoreThreshold(threshold);
+    }
+  }
+
+  /**
+   * Restricts all inputs, including those not opened yet, to the given keys.
+   */
+  public void setKeyFilter(String var, Set<String> keys) throws SQLException {
+    for (WeightedOperator op : ops) {
+      op.setKeyFilter(var, keys);
+    }
+  }
+
   public String getPartQuery() {
     return null;
   }
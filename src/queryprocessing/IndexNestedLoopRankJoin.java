@@ -0,0 +1,180 @@
+package de.mpii.trinitreloaded.queryprocessing;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import de.mpii.trinitreloaded.datastructures.Answer;
+import de.mpii.trinitreloaded.utils.Config;
+import de.mpii.trinitreloaded.utils.Logger;
+import de.mpii.trinitreloaded.utils.Config.LoggingLevel;
+
+/**
+ * A rank join which reads one input in score order and looks up the joining answers of the other
+ * input, a {@link RandomAccessOperator}, by join key.
+ *
+ * It suits a selective input joined with a broad one, which a {@link RankJoin} would read deeply
+ * in score order before its bound allows any result out. The tuples of the driving input are read
+ * in batches of up to {@code probeBatchSize} join keys, whose matches in the probed input are
+ * looked up with one query. All results of a tuple are then known, so a result is returned as
+ * soon as no unread tuple of the driving input can join into a higher score, i.e. when its score
+ * is at least the score of the last tuple read plus the highest score of the probed input.
+ *
+ * The probed input is never opened: it only answers the lookups.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class IndexNestedLoopRankJoin extends RankJoin {
+
+  private final RandomAccessOperator probed;
+  private PriorityQueue<Answer> results;
+  private Answer current;
+  /** The highest score of the probed input, and the score of the last driving tuple read. */
+  private double probedTop;
+  private double drivingBottom;
+  private boolean isDrivingExhausted;
+  private long numProbes;
+
+  public IndexNestedLoopRankJoin(Operator driving, RandomAccessOperator probed, String joinVar) {
+    super(driving, probed, joinVar);
+    this.probed = probed;
+  }
+
+  @Override
+  public boolean open() throws SQLException {
+    if (isOpen) {
+      return true;
+    }
+    left.open();
+    results = new PriorityQueue<Answer>();
+    topScores = new PriorityQueue<Double>();
+    probedTop = probed.getScoreUpperBound();
+    drivingBottom = Double.POSITIVE_INFINITY;
+    isDrivingExhausted = false;
+    numProbes = 0;
+    current = null;
+    this.isOpen = true;
+    return true;
+  }
+
+  @Override
+  public boolean hasNext() throws SQLException {
+    if (current != null) {
+      return true;
+    }
+    if (!isOpen) {
+      return false;
+    }
+    try {
+      while (true) {
+        if (!results.isEmpty()
+            && (isDrivingExhausted || results.peek().getScore() >= getUnseenUpperBound())) {
+          current = results.poll();
+          return true;
+        }
+        if (isDrivingExhausted) {
+          return false;
+        }
+        readBatch();
+      }
+    } catch (SQLException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private double getUnseenUpperBound() {
+    return aggregateScore(drivingBottom, probedTop);
+  }
+
+  /**
+   * Reads the next batch of tuples of the driving input and joins them with their matches in
+   * the probed input.
+   */
+  private void readBatch() throws Exception {
+    Map<String, List<Answer>> batch = Maps.newLinkedHashMap();
+    while (batch.size() < Math.max(1, Config.probeBatchSize) && left.hasNext()) {
+      Answer tuple = left.next();
+      String key = tuple.getVariableBinding(joinVar);
+      List<Answer> tuples = batch.get(key);
+      if (tuples == null) {
+        tuples = Lists.newArrayList();
+        batch.put(key, tuples);
+      }
+      tuples.add(tuple);
+      drivingBottom = tuple.getScore();
+    }
+    if (!left.hasNext()) {
+      isDrivingExhausted = true;
+    }
+    if (batch.isEmpty()) {
+      return;
+    }
+
+    List<Answer> matches = probed.probe(joinVar, batch.keySet());
+    numProbes++;
+    if (matches == null) {
+      throw new IllegalStateException(right.getPartQuery() + " cannot be probed on " + joinVar);
+    }
+    for (Answer match : matches) {
+      List<Answer> tuples = batch.get(match.getVariableBinding(joinVar));
+      if (tuples == null) {
+        continue;
+      }
+      for (Answer tuple : tuples) {
+        Answer result = joinTuples(tuple, match);
+        results.add(result);
+        recordScore(result.getScore());
+      }
+    }
+    Logger.println("Probe " + numProbes + " of " + right.getPartQuery() + " with "
+        + batch.size() + " keys of " + joinVar + ": " + matches.size() + " matches",
+        LoggingLevel.VARIABLEVALUES);
+
+    double threshold = getResultThreshold();
+    if (threshold != Double.NEGATIVE_INFINITY && left instanceof ThresholdedOperator) {
+      // A driving tuple can at best join with the top answer of the probed input.
+      ((ThresholdedOperator) left).setScoreThreshold(threshold - probedTop);
+    }
+  }
+
+  @Override
+  public Answer next() throws SQLException {
+    if (hasNext()) {
+      Answer toReturn = current;
+      current = null;
+      return toReturn;
+    }
+    throw new NoSuchElementException();
+  }
+
+  @Override
+  public boolean close() throws SQLException {
+    if (!isOpen) {
+      return true;
+    }
+    Logger.println("Join of " + getPartQuery() + " probed " + numProbes + " times",
+        LoggingLevel.INTERMEDIATEINFO);
+    left.close();
+    this.isOpen = false;
+    return true;
+  }
+
+  @Override
+  public double scoreOfNext() throws SQLException {
+    if (!isOpen) {
+      open();
+    }
+    if (!hasNext()) {
+      return 0.0;
+    }
+    return current.getScore();
+  }
+}
@@ -3,6 +3,7 @@ package de.mpii.trinitreloaded.queryprocessing;
 import java.sql.SQLException;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Set;
 
 import com.google.common.collect.ArrayListMultimap;
@@ -52,6 +53,16 @@ class InputRel {
 
   }
 
+  /**
+   * Returns the bindings of {@code varId} hashed so far.
+   */
+  public Set<String> getKeys(String varId) {
+    if (!hashTables.containsKey(varId)) {
+      return new HashSet<String>();
+    }
+    return hashTables.get(varId).keySet();
+  }
+
   public boolean isConsumed() throws SQLException {
     return !tuples.hasNext();
   }
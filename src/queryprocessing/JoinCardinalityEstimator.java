@@ -0,0 +1,134 @@
+package de.mpii.trinitreloaded.queryprocessing;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+import de.mpii.trinitreloaded.datastructures.HyperLogLog;
+import de.mpii.trinitreloaded.datastructures.PatternStatistics;
+import de.mpii.trinitreloaded.datastructures.TriplePattern;
+import de.mpii.trinitreloaded.utils.JoinSketchCatalog;
+import de.mpii.trinitreloaded.utils.JoinSketchCatalog.KeySketch;
+import de.mpii.trinitreloaded.utils.PatternStatisticsCatalog;
+
+/**
+ * Estimates the cardinality of the join of {@link TriplePattern} from the sketches of the
+ * {@link JoinSketchCatalog}, in memory, instead of counting the join in the database.
+ *
+ * The patterns are joined in order. Joining a pattern on a variable, the keys both sides share
+ * are estimated from the {@link HyperLogLog} of their keys, and the matches of each side are
+ * taken to be spread evenly over its keys, so the join has (shared keys) x (matches per key of
+ * one side) x (matches per key of the other side) answers. Joins on several variables are taken
+ * to be independent. The subjects of a (predicate, object) without a sketch of its own are taken
+ * to be a sample of those of the predicate, with its number of matches from the
+ * {@link PatternStatisticsCatalog}.
+ *
+ * The estimate is not rounded, and is at least 1 unless some pattern has no matches at all, so a
+ * join which is merely unlikely is not taken to be empty, and the joins extending it are still
+ * counted.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class JoinCardinalityEstimator {
+
+  /**
+   * The keys a variable is bound to, as a fraction of the keys of a sketch.
+   */
+  private static class Binding {
+    final HyperLogLog keys;
+    final double fraction;
+
+    Binding(HyperLogLog keys, double fraction) {
+      this.keys = keys;
+      this.fraction = fraction;
+    }
+
+    double getNumKeys() {
+      return keys.cardinality() * fraction;
+    }
+  }
+
+  /**
+   * Returns the estimated number of answers of the join of {@code tps}, or NaN if the catalogs do
+   * not describe all patterns, e.g. patterns with a constant subject or a variable predicate. It
+   * is 0 only if some pattern has no matches.
+   */
+  public static double estimate(List<TriplePattern> tps) {
+    double cardinality = 1.0;
+    boolean isEmpty = false;
+    Map<String, Binding> bindings = Maps.newHashMap();
+    for (TriplePattern tp : tps) {
+      if (tp.isSubjectConst || !tp.isPredicateConst) {
+        return Double.NaN;
+      }
+      boolean isScored = tp.isObjectResource || !tp.isObjectConst;
+      String predicate = QueryPlanner.formatParameter(tp.predicate);
+      KeySketch subjects =
+          JoinSketchCatalog.get(isScored, predicate, null, JoinSketchCatalog.SUBJECT);
+      if (subjects == null) {
+        return Double.NaN;
+      }
+      long numMatches;
+      Binding subjectKeys;
+      Binding objectKeys = null;
+      if (tp.isObjectConst) {
+        KeySketch objectSubjects = JoinSketchCatalog.get(isScored, predicate,
+            QueryPlanner.formatParameter(tp.object), JoinSketchCatalog.SUBJECT);
+        if (objectSubjects != null) {
+          numMatches = objectSubjects.numMatches;
+          subjectKeys = new Binding(objectSubjects.keys, 1.0);
+        } else {
+          PatternStatistics stats = PatternStatisticsCatalog.get(tp);
+          if (stats == null) {
+            return Double.NaN;
+          }
+          numMatches = stats.numberOfResults;
+          double numSubjects = subjects.keys.cardinality();
+          subjectKeys = new Binding(subjects.keys,
+              numSubjects > 0 ? Math.min(numMatches, numSubjects) / numSubjects : 0.0);
+        }
+      } else {
+        KeySketch objects =
+            JoinSketchCatalog.get(isScored, predicate, null, JoinSketchCatalog.OBJECT);
+        if (objects == null) {
+          return Double.NaN;
+        }
+        numMatches = subjects.numMatches;
+        subjectKeys = new Binding(subjects.keys, 1.0);
+        objectKeys = new Binding(objects.keys, 1.0);
+      }
+      isEmpty |= numMatches == 0;
+      cardinality *= numMatches;
+      cardinality *= join(bindings, tp.subject, subjectKeys);
+      if (objectKeys != null) {
+        cardinality *= join(bindings, tp.object, objectKeys);
+      }
+    }
+    return isEmpty ? 0.0 : Math.max(1.0, cardinality);
+  }
+
+  /**
+   * Binds {@code var} to {@code keys}, and returns the fraction of the pairs of answers so far
+   * and matches of the pattern which agree on it: 1 if it was not bound before.
+   */
+  private static double join(Map<String, Binding> bindings, String var, Binding keys) {
+    Binding bound = bindings.get(var);
+    if (bound == null) {
+      bindings.put(var, keys);
+      return 1.0;
+    }
+    double boundKeys = bound.getNumKeys();
+    double numKeys = keys.getNumKeys();
+    if (boundKeys <= 0 || numKeys <= 0) {
+      return 0.0;
+    }
+    double shared = bound.keys.intersectionSize(keys.keys) * bound.fraction * keys.fraction;
+    shared = Math.min(shared, Math.min(boundKeys, numKeys));
+    Binding smaller = boundKeys <= numKeys ? bound : keys;
+    double smallerSize = smaller.keys.cardinality();
+    bindings.put(var, new Binding(smaller.keys, smallerSize > 0 ? shared / smallerSize : 0.0));
+    return shared / (boundKeys * numKeys);
+  }
+}
@@ -0,0 +1,24 @@
+package de.mpii.trinitreloaded.queryprocessing;
+
+import java.sql.SQLException;
+import java.util.Set;
+
+/**
+ * An {@link Operator} which can restrict its answers to given bindings of a variable.
+ *
+ * A {@link RankJoin} whose input is exhausted knows all join keys that input can contribute.
+ * Passing them to the other input lets it skip, inside the database, all matches which would not
+ * join.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public interface KeyFilteredOperator extends Operator {
+
+  /**
+   * Restricts the answers not yet returned to those binding {@code var} to one of {@code keys}.
+   * It has no effect if the operator does not bind {@code var}.
+   */
+  public void setKeyFilter(String var, Set<String> keys) throws SQLException;
+
+}
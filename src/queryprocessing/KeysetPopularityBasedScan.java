@@ -0,0 +1,373 @@
+package de.mpii.trinitreloaded.queryprocessing;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+
+import de.mpii.trinitreloaded.datastructures.Answer;
+import de.mpii.trinitreloaded.datastructures.HashMapBasedAnswer;
+import de.mpii.trinitreloaded.datastructures.TriplePattern;
+import de.mpii.trinitreloaded.utils.Config;
+import de.mpii.trinitreloaded.utils.Config.LoggingLevel;
+import de.mpii.trinitreloaded.utils.DBConnection;
+import de.mpii.trinitreloaded.utils.Logger;
+import de.mpii.trinitreloaded.utils.SQLTemplateCache;
+import de.mpii.trinitreloaded.utils.ScoredDataTable;
+
+/**
+ * A scan operator for individual {@link TriplePattern} which reads the matches in pages of
+ * growing size.
+ *
+ * Unlike {@link PopularityBasedScan}, which asks the database for all matches in score order,
+ * this operator asks for the top {@code n} matches only, starting with {@code n = k}. Once a page
+ * is consumed, the next one is requested with twice the size, continuing after the last match
+ * read through a keyset predicate on (score, variable columns). The database thus only needs to
+ * produce the top-n matches of each page, which it can do with a bounded sort. A key filter, see
+ * {@link KeyFilteredOperator}, restricts the pages requested after it is set.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class KeysetPopularityBasedScan implements ProjectingOperator, ThresholdedOperator,
+    KeyFilteredOperator {
+  final TriplePattern input;
+  final boolean isScored;
+  /** The columns, besides the score, identifying a match: the variable positions. */
+  final List<String> keyColumns;
+  ResultSet rs;
+  PreparedStatement stmt;
+  Connection conn;
+  boolean isOpen;
+  /** The variables to bind, {@code null} for all. */
+  Set<String> neededVariables;
+  /** Answers scoring below it are not returned, see {@link ThresholdedOperator}. */
+  volatile double scoreThreshold = Double.NEGATIVE_INFINITY;
+  boolean isBelowThreshold;
+  Answer current;
+  double maxScore = Double.NaN;
+  boolean toBeCounted;
+
+  /** The size of the page being read. */
+  int limit;
+  /** The number of rows read from the current page. */
+  int rowsInPage;
+  /** Score and key columns of the last row read, where the next page continues. */
+  double lastScore;
+  List<String> lastKey;
+  /** The column restricted to {@code keyFilter}, see {@link KeyFilteredOperator}. */
+  String keyFilterColumn;
+  List<String> keyFilter;
+  /**
+   * Set while the key filter waits for the first row to be read: scores are normalized by the
+   * maximum score of all matches, not only of those passing the filter.
+   */
+  boolean isKeyFilterPending;
+
+  public KeysetPopularityBasedScan(TriplePattern input) {
+    this(input, true);
+  }
+
+  public KeysetPopularityBasedScan(TriplePattern input, boolean toBeCounted) {
+    this.toBeCounted = toBeCounted;
+    this.input = input;
+    this.isScored = input.isObjectResource || !input.isObjectConst;
+    this.keyColumns = Lists.newArrayList();
+    if (!input.isSubjectConst) {
+      keyColumns.add("subject");
+    }
+    if (!input.isPredicateConst) {
+      keyColumns.add("predicate");
+    }
+    if (!input.isObjectConst) {
+      keyColumns.add("object");
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "KeysetPopularityBasedScan [input=" + input + "]";
+  }
+
+  public boolean open() throws SQLException {
+    if (this.isOpen) {
+      return true;
+    }
+    limit = Math.max(Config.k, 1);
+    lastKey = null;
+    current = null;
+    isBelowThreshold = false;
+    this.isOpen = true;
+    fetchPage();
+    return true;
+  }
+
+  /**
+   * Requests the next page, of {@code limit} matches, after the last match read.
+   */
+  private void fetchPage() throws SQLException {
+    List<Object> params = Lists.newArrayList();
+    if (this.input.isSubjectConst) {
+      params.add(QueryPlanner.formatParameter(this.input.subject));
+    }
+    if (this.input.isPredicateConst) {
+      params.add(QueryPlanner.formatParameter(this.input.predicate));
+    }
+    if (this.input.isObjectConst) {
+      params.add(QueryPlanner.formatParameter(this.input.object));
+    }
+    if (isKeyFilterActive()) {
+      params.add(Joiner.on(PopularityBasedScan.KEY_SEPARATOR).join(keyFilter));
+    }
+    if (lastKey != null) {
+      params.add(lastScore);
+      params.addAll(lastKey);
+    }
+    params.add(limit);
+
+    String cmd = getDBCommand(lastKey != null);
+    Logger.println("KeysetPopularityBasedScan page of " + limit + " with " + params,
+        LoggingLevel.VARIABLEVALUES);
+    conn = DBConnection.getConnection();
+    stmt = SQLTemplateCache.prepare(conn, cmd, params);
+    rs = stmt.executeQuery();
+    rowsInPage = 0;
+  }
+
+  /**
+   * Closes the current page and returns its connection to the pool.
+   */
+  private void closePage() throws SQLException {
+    rs.close();
+    stmt.close();
+    conn.close();
+  }
+
+  private boolean isKeyFilterActive() {
+    return keyFilter != null && !isKeyFilterPending;
+  }
+
+  private String getDBCommand(boolean isContinuation) {
+    boolean isPreJoined = isScored && ScoredDataTable.isAvailable();
+    String shape = "KeysetPopularityBasedScan:" + isScored + ":" + isPreJoined + ":"
+        + this.input.isSubjectConst + ":" + this.input.isPredicateConst + ":"
+        + this.input.isObjectConst + ":" + isContinuation;
+    if (isKeyFilterActive()) {
+      shape += ":" + keyFilterColumn;
+    }
+    String cmd = SQLTemplateCache.get(shape);
+    if (cmd != null) {
+      return cmd;
+    }
+
+    String scoreColumn;
+    List<String> whereClause = Lists.newArrayList();
+    if (isPreJoined) {
+      scoreColumn = "d.score";
+      cmd = "SELECT d.subject as subject, d.predicate as predicate , d.object as object, "
+          + scoreColumn + " AS score FROM " + Config.scoredDataTableName + " d";
+    } else if (isScored) {
+      scoreColumn = "inlinks";
+      cmd = "SELECT d.subject as subject, d.predicate as predicate , d.object as object, "
+          + scoreColumn + " AS score FROM " + Config.dataTableName + " d, "
+          + Config.scoreTableName;
+    } else {
+      scoreColumn = "d.count";
+      cmd = "SELECT d.subject as subject, d.predicate as predicate , d.object as object, "
+          + scoreColumn + " AS score FROM " + Config.textualTypeDataTableName + " d";
+    }
+    cmd += " WHERE ";
+    if (this.input.isSubjectConst) {
+      whereClause.add("d.subject=? ");
+    }
+    if (this.input.isPredicateConst) {
+      whereClause.add("d.predicate=? ");
+    }
+    if (this.input.isObjectConst) {
+      whereClause.add("d.object=? ");
+    }
+    if (isScored && !isPreJoined) {
+      whereClause.add("d.subject = entity");
+    }
+    if (isKeyFilterActive()) {
+      whereClause.add("d." + keyFilterColumn + " = ANY(string_to_array(?, chr("
+          + (int) PopularityBasedScan.KEY_SEPARATOR + ")))");
+    }
+
+    // All sort keys are descending, so a row comparison continues right after the last row.
+    List<String> sortKeys = Lists.newArrayList(scoreColumn);
+    for (String column : keyColumns) {
+      sortKeys.add("d." + column);
+    }
+    if (isContinuation) {
+      List<String> placeholders = Lists.newArrayList();
+      for (int i = 0; i < sortKeys.size(); i++) {
+        placeholders.add("?");
+      }
+      whereClause.add("(" + Joiner.on(", ").join(sortKeys) + ") < ("
+          + Joiner.on(", ").join(placeholders) + ")");
+    }
+    cmd += Joiner.on(" AND ").join(whereClause) + " ORDER BY "
+        + Joiner.on(" DESC, ").join(sortKeys) + " DESC LIMIT ?";
+    Logger.println("KeysetPopularityBasedScan cmd: " + cmd, LoggingLevel.VARIABLEVALUES);
+    return SQLTemplateCache.put(shape, cmd);
+  }
+
+  /**
+   * Returns the column holding the bindings of {@code var}, or {@code null} if the pattern does
+   * not contain {@code var}.
+   */
+  private String getColumn(String var) {
+    if (!this.input.isSubjectConst && this.input.subject.equals(var)) {
+      return "subject";
+    } else if (!this.input.isPredicateConst && this.input.predicate.equals(var)) {
+      return "predicate";
+    } else if (!this.input.isObjectConst && this.input.object.equals(var)) {
+      return "object";
+    }
+    return null;
+  }
+
+  public void setKeyFilter(String var, Set<String> keys) throws SQLException {
+    String column = getColumn(var);
+    if (column == null) {
+      return;
+    }
+    Logger.println("Restricting " + this.input + " to " + keys.size() + " keys of " + var,
+        LoggingLevel.INTERMEDIATEINFO);
+    keyFilterColumn = column;
+    keyFilter = Lists.newArrayList(keys);
+    if (Double.isNaN(maxScore)) {
+      isKeyFilterPending = true;
+    } else if (isOpen && !isBelowThreshold) {
+      refetchPage();
+    }
+  }
+
+  /**
+   * Replaces the page being read by one of the same size with the key filter, continuing after
+   * the last match read.
+   */
+  private void refetchPage() throws SQLException {
+    closePage();
+    fetchPage();
+  }
+
+  public double getScoreMultiplier() {
+    if (Double.isNaN(maxScore)) {
+      try {
+        maxScore = rs.getDouble("score");
+      } catch (SQLException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    return 1 / maxScore;
+  }
+
+  public boolean close() throws SQLException {
+    if (!isOpen) {
+      return true;
+    }
+    closePage();
+    this.isOpen = false;
+    return true;
+  }
+
+  public boolean hasNext() throws SQLException {
+    if (current != null) {
+      return true;
+    }
+    if (isBelowThreshold) {
+      return false;
+    }
+    try {
+      boolean hasRow = rs.next();
+      if (!hasRow && rowsInPage == limit && lastKey != null) {
+        // The page was full, so there may be more matches after it.
+        closePage();
+        limit = 2 * limit;
+        fetchPage();
+        hasRow = rs.next();
+      }
+      if (hasRow) {
+        rowsInPage++;
+        HashMapBasedAnswer ans = new HashMapBasedAnswer(toBeCounted);
+        if (!this.input.isSubjectConst && isNeeded(this.input.subject)) {
+          ans.setVariableBinding(this.input.subject, rs.getString("subject"));
+        }
+        if (!this.input.isObjectConst && isNeeded(this.input.object)) {
+          ans.setVariableBinding(this.input.object, rs.getString("object"));
+        }
+        if (!this.input.isPredicateConst && isNeeded(this.input.predicate)) {
+          ans.setVariableBinding(this.input.predicate, rs.getString("predicate"));
+        }
+        lastScore = rs.getDouble("score");
+        lastKey = Lists.newArrayList();
+        for (String column : keyColumns) {
+          lastKey.add(rs.getString(column));
+        }
+        Double score = lastScore * getScoreMultiplier() * Config.scoreMultipler;
+        ans.setScore(score);
+        ans.setQuery(this.input.toString());
+        if (isKeyFilterPending) {
+          isKeyFilterPending = false;
+          refetchPage();
+        }
+        if (ans.getScore() < scoreThreshold) {
+          // The matches come in descending score order, so none of the remaining ones qualify.
+          Logger.println("Scan of " + this.input + " stopped below threshold " + scoreThreshold,
+              LoggingLevel.INTERMEDIATEINFO);
+          isBelowThreshold = true;
+        } else {
+          current = ans;
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+
+    if (current == null) {
+      return false;
+    } else {
+      return true;
+    }
+  }
+
+  public Answer next() throws Exception {
+    if (current != null) {
+      Answer tuple = current;
+      current = null;
+      return tuple;
+    } else {
+      throw new NoSuchElementException("No more results.");
+    }
+  }
+
+  public Double getMaxScore() {
+    return this.maxScore;
+  }
+
+  public void setScoreThreshold(double threshold) {
+    if (threshold > scoreThreshold) {
+      scoreThreshold = threshold;
+    }
+  }
+
+  public void setNeededVariables(Set<String> neededVariables) {
+    this.neededVariables = neededVariables;
+  }
+
+  private boolean isNeeded(String var) {
+    return neededVariables == null || neededVariables.contains(var);
+  }
+
+  public String getPartQuery() {
+    return this.input.toString();
+  }
+}
@@ -0,0 +1,367 @@
+package de.mpii.trinitreloaded.queryprocessing;
+
+import gnu.trove.list.TDoubleList;
+import gnu.trove.list.array.TDoubleArrayList;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import de.mpii.trinitreloaded.datastructures.Answer;
+import de.mpii.trinitreloaded.datastructures.HashMapBasedAnswer;
+import de.mpii.trinitreloaded.datastructures.TriplePattern;
+import de.mpii.trinitreloaded.utils.Config;
+import de.mpii.trinitreloaded.utils.Config.LoggingLevel;
+import de.mpii.trinitreloaded.utils.DBConnection;
+import de.mpii.trinitreloaded.utils.Logger;
+import de.mpii.trinitreloaded.utils.SQLTemplateCache;
+import de.mpii.trinitreloaded.utils.ScoredDataTable;
+
+/**
+ * A join operator for a conjunction of {@link TriplePattern}, evaluated by the database as a
+ * single query returning the join results in descending score order.
+ *
+ * The score of a result is the sum of the scores of its matches, each normalized by the highest
+ * score of its pattern, as when the patterns are scanned by {@link PopularityBasedScan} and
+ * joined by {@link RankJoin}. The highest scores are read before the query, see
+ * {@code PopularityBasedScan.getRawMaxScores()}, and passed as parameters, so the database does
+ * not compute a window over all matches of each pattern. The results are read in pages: the first
+ * query asks for {@code dbJoinSortPageSize} results, and each following one for twice as many as
+ * the previous one. The results are sorted on their bindings after their score, and each page
+ * continues after the (score, bindings) of the last result read, so the database can use a
+ * top-N sort of the results after it instead of sorting and skipping all those already read, and
+ * a query reading few results ends after one round trip.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class PopularityBasedDBJoinSort implements ProjectingOperator, ThresholdedOperator {
+  final List<TriplePattern> inputs;
+  /** The variables of the patterns, in order of first occurrence. */
+  List<String> variables;
+  /** The variables to bind, {@code null} for all. */
+  Set<String> neededVariables;
+  /** Answers scoring below it are not returned, see {@link ThresholdedOperator}. */
+  volatile double scoreThreshold = Double.NEGATIVE_INFINITY;
+  boolean isBelowThreshold;
+  /** The bindings and scores of the results of the current page. */
+  List<String[]> page;
+  TDoubleList pageScores;
+  int position;
+  /** The factor normalizing the scores of each pattern: 1 / its highest score, or 0. */
+  double[] scoreFactors;
+  /** The number of results read so far, and asked for by the next page. */
+  long numRead;
+  long limit;
+  /** The score and all bindings of the last result read, which the next page continues after. */
+  double lastScore;
+  String[] lastBindings;
+  boolean isExhausted;
+  boolean isOpen;
+
+  public PopularityBasedDBJoinSort(ArrayList<TriplePattern> inputs) {
+    this.inputs = inputs;
+  }
+
+  @Override
+  public String toString() {
+    return "PopularityBasedDBJoinSort [inputs=" + inputs + "]";
+  }
+
+  public boolean open() throws SQLException {
+    if (this.isOpen) {
+      return true;
+    }
+    variables = Lists.newArrayList();
+    for (TriplePattern tp : inputs) {
+      addVariable(tp.isSubjectConst, tp.subject);
+      addVariable(tp.isPredicateConst, tp.predicate);
+      addVariable(tp.isObjectConst, tp.object);
+    }
+    double[] maxScores = PopularityBasedScan.getRawMaxScores(inputs);
+    scoreFactors = new double[maxScores.length];
+    for (int i = 0; i < maxScores.length; i++) {
+      scoreFactors[i] = maxScores[i] > 0 ? 1.0 / maxScores[i] : 0.0;
+    }
+    page = Lists.newArrayList();
+    pageScores = new TDoubleArrayList();
+    position = 0;
+    numRead = 0;
+    lastBindings = null;
+    limit = Math.max(1, Config.dbJoinSortPageSize);
+    isExhausted = false;
+    isBelowThreshold = false;
+    this.isOpen = true;
+    return true;
+  }
+
+  private void addVariable(boolean isConst, String term) {
+    if (!isConst && !variables.contains(term)) {
+      variables.add(term);
+    }
+  }
+
+  private static boolean isScored(TriplePattern tp) {
+    return tp.isObjectResource || !tp.isObjectConst;
+  }
+
+  private String getDBCommand(boolean isContinued) {
+    boolean isPreJoined = ScoredDataTable.isAvailable();
+    List<String> shapes = Lists.newArrayList();
+    for (TriplePattern tp : inputs) {
+      shapes.add(isScored(tp) + ":" + (tp.isSubjectConst ? "?" : tp.subject) + ":"
+          + (tp.isPredicateConst ? "?" : tp.predicate) + ":"
+          + (tp.isObjectConst ? "?" : tp.object));
+    }
+    String shape = "PopularityBasedDBJoinSort:" + isPreJoined + ":" + isContinued + ":"
+        + Joiner.on("|").join(shapes);
+    String cmd = SQLTemplateCache.get(shape);
+    if (cmd != null) {
+      return cmd;
+    }
+
+    List<String> from = Lists.newArrayList();
+    List<String> scores = Lists.newArrayList();
+    List<String> whereClause = Lists.newArrayList();
+    // The column of the first occurrence of each variable, which the others are joined with.
+    Map<String, String> columns = Maps.newHashMap();
+    for (int i = 0; i < inputs.size(); i++) {
+      TriplePattern tp = inputs.get(i);
+      String alias = "t" + i;
+      from.add(getPatternCommand(tp, isPreJoined) + " " + alias);
+      scores.add(alias + ".score");
+      addJoinCondition(tp.isSubjectConst, tp.subject, alias + ".subject", columns, whereClause);
+      addJoinCondition(tp.isPredicateConst, tp.predicate, alias + ".predicate", columns,
+          whereClause);
+      addJoinCondition(tp.isObjectConst, tp.object, alias + ".object", columns, whereClause);
+    }
+
+    List<String> select = Lists.newArrayList();
+    List<String> sortKeys = Lists.newArrayList("score DESC");
+    List<String> keyColumns = Lists.newArrayList("-score");
+    List<String> keyParams = Lists.newArrayList("?");
+    for (int v = 0; v < variables.size(); v++) {
+      select.add(columns.get(variables.get(v)) + " AS v" + v);
+      sortKeys.add("v" + v);
+      keyColumns.add("v" + v);
+      keyParams.add("?");
+    }
+    select.add(Joiner.on(" + ").join(scores) + " AS score");
+    cmd = "SELECT " + Joiner.on(", ").join(select) + " FROM " + Joiner.on(", ").join(from);
+    if (!whereClause.isEmpty()) {
+      cmd += " WHERE " + Joiner.on(" AND ").join(whereClause);
+    }
+    if (isContinued) {
+      // The score is negated, so the results after the last one in the sort order compare higher.
+      cmd = "SELECT * FROM (" + cmd + ") j WHERE (" + Joiner.on(", ").join(keyColumns) + ") > ("
+          + Joiner.on(", ").join(keyParams) + ")";
+    }
+    cmd += " ORDER BY " + Joiner.on(", ").join(sortKeys) + " LIMIT ?";
+    Logger.println("PopularityBasedDBJoinSort cmd: " + cmd, LoggingLevel.VARIABLEVALUES);
+    return SQLTemplateCache.put(shape, cmd);
+  }
+
+  /**
+   * Returns the subquery selecting the matches of a pattern, with their score multiplied by a
+   * parameter normalizing it by the highest score of the pattern.
+   */
+  private static String getPatternCommand(TriplePattern tp, boolean isPreJoined) {
+    String from;
+    String scoreColumn;
+    List<String> whereClause = Lists.newArrayList();
+    if (isScored(tp) && isPreJoined) {
+      scoreColumn = "d.score";
+      from = Config.scoredDataTableName + " d";
+    } else if (isScored(tp)) {
+      scoreColumn = "inlinks";
+      from = Config.dataTableName + " d, " + Config.scoreTableName;
+      whereClause.add("d.subject = entity");
+    } else {
+      scoreColumn = "d.count";
+      from = Config.textualTypeDataTableName + " d";
+    }
+    if (tp.isSubjectConst) {
+      whereClause.add("d.subject=?");
+    }
+    if (tp.isPredicateConst) {
+      whereClause.add("d.predicate=?");
+    }
+    if (tp.isObjectConst) {
+      whereClause.add("d.object=?");
+    }
+    String cmd = "(SELECT d.subject AS subject, d.predicate AS predicate, d.object AS object, "
+        + "CAST(? AS float8) * " + scoreColumn + " AS score FROM " + from;
+    if (!whereClause.isEmpty()) {
+      cmd += " WHERE " + Joiner.on(" AND ").join(whereClause);
+    }
+    return cmd + ")";
+  }
+
+  private static void addJoinCondition(boolean isConst, String term, String column,
+      Map<String, String> columns, List<String> whereClause) {
+    if (isConst) {
+      return;
+    }
+    String first = columns.get(term);
+    if (first == null) {
+      columns.put(term, column);
+    } else {
+      whereClause.add(column + "=" + first);
+    }
+  }
+
+  /**
+   * Returns the score factors and constants of the patterns in the order of the placeholders in
+   * {@code getDBCommand()}, followed by the last result read, if any, and the limit of the next
+   * page.
+   */
+  private List<Object> getDBParameters() {
+    List<Object> params = Lists.newArrayList();
+    for (int i = 0; i < inputs.size(); i++) {
+      TriplePattern tp = inputs.get(i);
+      params.add(scoreFactors[i]);
+      if (tp.isSubjectConst) {
+        params.add(QueryPlanner.formatParameter(tp.subject));
+      }
+      if (tp.isPredicateConst) {
+        params.add(QueryPlanner.formatParameter(tp.predicate));
+      }
+      if (tp.isObjectConst) {
+        params.add(QueryPlanner.formatParameter(tp.object));
+      }
+    }
+    if (lastBindings != null) {
+      params.add(-lastScore);
+      for (String binding : lastBindings) {
+        params.add(binding);
+      }
+    }
+    params.add(limit);
+    return params;
+  }
+
+  /**
+   * Reads the next page of results, and doubles the size of the following one.
+   */
+  private void readPage() throws SQLException {
+    String cmd = getDBCommand(lastBindings != null);
+    List<Object> params = getDBParameters();
+    page = Lists.newArrayList();
+    pageScores = new TDoubleArrayList();
+    position = 0;
+    Connection conn = DBConnection.getConnection();
+    PreparedStatement stmt = null;
+    ResultSet rs = null;
+    try {
+      stmt = SQLTemplateCache.prepare(conn, cmd, params);
+      rs = stmt.executeQuery();
+      String[] rowBindings = null;
+      double rowScore = 0.0;
+      while (rs.next()) {
+        rowBindings = new String[variables.size()];
+        String[] bindings = new String[variables.size()];
+        for (int v = 0; v < variables.size(); v++) {
+          rowBindings[v] = rs.getString("v" + v);
+          if (isNeeded(variables.get(v))) {
+            bindings[v] = rowBindings[v];
+          }
+        }
+        rowScore = rs.getDouble("score");
+        page.add(bindings);
+        pageScores.add(rowScore * Config.scoreMultipler);
+      }
+      if (rowBindings != null) {
+        lastScore = rowScore;
+        lastBindings = rowBindings;
+      }
+    } finally {
+      if (rs != null) {
+        rs.close();
+      }
+      if (stmt != null) {
+        stmt.close();
+      }
+      conn.close();
+    }
+    Logger.println("PopularityBasedDBJoinSort of " + inputs + ": read " + page.size()
+        + " results after " + numRead, LoggingLevel.INTERMEDIATEINFO);
+    numRead += page.size();
+    isExhausted = page.size() < limit;
+    limit *= 2;
+  }
+
+  public boolean close() {
+    page = null;
+    pageScores = null;
+    this.isOpen = false;
+    return true;
+  }
+
+  public boolean hasNext() throws SQLException {
+    if (!isOpen || isBelowThreshold) {
+      return false;
+    }
+    if (position >= page.size()) {
+      if (isExhausted) {
+        return false;
+      }
+      readPage();
+      if (page.isEmpty()) {
+        return false;
+      }
+    }
+    if (pageScores.get(position) < scoreThreshold) {
+      // The results come in descending score order, so none of the remaining ones qualify.
+      Logger.println("Join of " + inputs + " stopped below threshold " + scoreThreshold,
+          LoggingLevel.INTERMEDIATEINFO);
+      isBelowThreshold = true;
+      return false;
+    }
+    return true;
+  }
+
+  public Answer next() throws Exception {
+    if (!hasNext()) {
+      throw new NoSuchElementException("No more results.");
+    }
+    String[] bindings = page.get(position);
+    HashMapBasedAnswer ans = new HashMapBasedAnswer(true);
+    for (int v = 0; v < variables.size(); v++) {
+      if (bindings[v] != null) {
+        ans.setVariableBinding(variables.get(v), bindings[v]);
+      }
+    }
+    ans.setScore(pageScores.get(position));
+    ans.setQuery(getPartQuery());
+    position++;
+    return ans;
+  }
+
+  public void setScoreThreshold(double threshold) {
+    if (threshold > scoreThreshold) {
+      scoreThreshold = threshold;
+    }
+  }
+
+  public void setNeededVariables(Set<String> neededVariables) {
+    this.neededVariables = neededVariables;
+  }
+
+  private boolean isNeeded(String var) {
+    return neededVariables == null || neededVariables.contains(var);
+  }
+
+  public String getPartQuery() {
+    return this.inputs.toString();
+  }
+}
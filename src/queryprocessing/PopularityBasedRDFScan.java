@@ -2,12 +2,18 @@ package de.mpii.trinitreloaded.queryprocessing;
 
 import org.apache.jena.query.*;
 import virtuoso.jena.driver.*;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import de.mpii.trinitreloaded.datastructures.Answer;
 import de.mpii.trinitreloaded.datastructures.HashMapBasedAnswer;
+import de.mpii.trinitreloaded.datastructures.PatternStatistics;
 import de.mpii.trinitreloaded.datastructures.TriplePattern;
 import de.mpii.trinitreloaded.utils.Config;
 import de.mpii.trinitreloaded.utils.GraphConnection;
@@ -17,20 +23,50 @@ import de.mpii.trinitreloaded.utils.Config.LoggingLevel;
 /**
  * A scan operator for individual {@link TriplePattern} over RDF DB.
  *
+ * If {@code rdfPageSize} is set, the matches are requested in pages, starting with
+ * {@code rdfPageSize} matches and doubling the page size up to {@code rdfMaxPageSize}, so that
+ * Virtuoso only sends the matches of the pages actually read.
+ *
+ * A key filter, see {@link KeyFilteredOperator}, re-issues the query with the keys as a
+ * {@code VALUES} block, continuing after the last match read, see {@link ScanPosition}.
+ *
  * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
  * 
  */
-public class PopularityBasedRDFScan implements Operator{
+public class PopularityBasedRDFScan implements ProjectingOperator, ThresholdedOperator,
+    KeyFilteredOperator {
   final TriplePattern input;
   VirtGraph conn;
+  VirtuosoQueryExecution vqe;
   Query stmt;
   ResultSet results;
   QuerySolution rs;
   String dbCmd;
   boolean isOpen;
+  /** The variables to bind, {@code null} for all. */
+  Set<String> neededVariables;
+  /** Answers scoring below it are not returned, see {@link ThresholdedOperator}. */
+  volatile double scoreThreshold = Double.NEGATIVE_INFINITY;
+  boolean isBelowThreshold;
   Answer current;
   double maxScore = Double.NaN;
   boolean toBeCounted;
+  /** Set if the matches are requested in pages of growing size. */
+  boolean isPaged;
+  /** The size and offset of the page being read, and the number of matches read from it. */
+  int limit;
+  long offset;
+  int rowsInPage;
+  /** The SPARQL variable restricted to {@code keyFilter}, see {@link KeyFilteredOperator}. */
+  String keyFilterVar;
+  List<String> keyFilter;
+  /**
+   * Set while the key filter waits for the first match to be read: scores are normalized by the
+   * maximum score of all matches, not only of those passing the filter.
+   */
+  boolean isKeyFilterPending;
+  /** Where a query re-issued with a key filter continues. */
+  final ScanPosition position = new ScanPosition();
 
   public PopularityBasedRDFScan(TriplePattern input) {
     this.toBeCounted = true;
@@ -51,13 +87,16 @@ public class PopularityBasedRDFScan implements Operator{
     if (this.isOpen) {
       return true;
     }
-    dbCmd = getDBCommand();
+    isPaged = Config.rdfPageSize > 0;
+    position.clear();
+    dbCmd = getSPARQLCommand(this.input, true, getRestriction());
     conn = GraphConnection.getConnection();
-    stmt = QueryFactory.create(dbCmd);
-    VirtuosoQueryExecution vqe = VirtuosoQueryExecutionFactory.create (stmt, conn);
-    results = vqe.execSelect();
+    limit = Config.rdfPageSize;
+    offset = 0;
+    executePage();
     this.isOpen = true;
     current = null;
+    isBelowThreshold = false;
     if (conn != null) {
       return true;
     } else {
@@ -65,54 +104,219 @@ public class PopularityBasedRDFScan implements Operator{
     }
   }
 
-  private String getDBCommand() {
-    Map<String,String> vars = Maps.newHashMap();
+  /**
+   * Executes the query for the current page, or for all matches if the scan is not paged.
+   */
+  private void executePage() {
+    String cmd = dbCmd;
+    if (isPaged) {
+      cmd += " LIMIT " + limit + " OFFSET " + offset;
+    }
+    stmt = QueryFactory.create(cmd);
+    vqe = VirtuosoQueryExecutionFactory.create (stmt, conn);
+    results = vqe.execSelect();
+    rowsInPage = 0;
+  }
+
+  /**
+   * Returns the graph patterns restricting the matches to the key filter, if any, and to the
+   * matches after the last one read, if any.
+   */
+  private String getRestriction() {
+    String restriction = "";
+    if (keyFilter != null && !isKeyFilterPending) {
+      List<String> values = Lists.newArrayList();
+      for (String key : keyFilter) {
+        values.add("<" + key + ">");
+      }
+      restriction += " VALUES ?" + keyFilterVar + " { " + Joiner.on(" ").join(values) + " }";
+    }
+    if (position.isSet()) {
+      List<String> keyVars = Lists.newArrayList();
+      if (!this.input.isSubjectConst) {
+        keyVars.add("?s");
+      }
+      if (!this.input.isPredicateConst) {
+        keyVars.add("?p");
+      }
+      restriction += position.getSPARQLFilter("?score", keyVars);
+    }
+    return restriction;
+  }
+
+  /**
+   * Returns the SPARQL command selecting the matches of a {@link TriplePattern} with their
+   * scores, in descending score order.
+   *
+   * @param breakTies If set, matches of the same score are ordered by their bindings.
+   */
+  static String getSPARQLCommand(TriplePattern input, boolean breakTies) {
+    return getSPARQLCommand(input, breakTies, "");
+  }
+
+  /**
+   * Returns the SPARQL command selecting the matches of a {@link TriplePattern} with their
+   * scores, in descending score order, which also match the graph patterns of
+   * {@code restriction}.
+   */
+  static String getSPARQLCommand(TriplePattern input, boolean breakTies, String restriction) {
     String cmd ="";
 
 
     cmd += "SELECT";
-    if (this.input.isSubjectConst) {
-      vars.put("subject", format(this.input.subject));
+    if (!input.isSubjectConst) {
+      cmd += " ?s";
+    }
+    if (!input.isPredicateConst) {
+      cmd += " ?p";
+    }
+    cmd += " ?score" + getSPARQLBody(input, restriction);
+
+    cmd+=" ORDER BY DESC(?score)";
+    if (breakTies) {
+      // Pages and continuations must not overlap, so ties are broken by the bindings.
+      if (!input.isSubjectConst) {
+        cmd += " DESC(?s)";
+      }
+      if (!input.isPredicateConst) {
+        cmd += " DESC(?p)";
+      }
+    }
+    Logger.println("PopularityBasedRDFScan cmd: " + cmd, LoggingLevel.VARIABLEVALUES);
+    return cmd;
+  }
+
+  /**
+   * Returns the SPARQL command aggregating the scores of the matches of a {@link TriplePattern}
+   * into their number, highest, lowest and total score, so Virtuoso sends one solution instead of
+   * all matches.
+   */
+  static String getSPARQLAggregateCommand(TriplePattern input) {
+    String cmd = "SELECT (COUNT(*) AS ?count) (MAX(?score) AS ?max) (MIN(?score) AS ?min) "
+        + "(SUM(?score) AS ?sum)" + getSPARQLBody(input, "");
+    Logger.println("PopularityBasedRDFScan cmd: " + cmd, LoggingLevel.VARIABLEVALUES);
+    return cmd;
+  }
+
+  /**
+   * Returns the SPARQL command counting the answers of the join of {@code tps}, each pattern
+   * matched in the named graph of its object as in {@code getSPARQLBody()}, and the subjects of
+   * the first one, if it is scored, required to have a score, as for the exact counts in the
+   * database.
+   */
+  static String getSPARQLJoinCountCommand(List<TriplePattern> tps) {
+    Map<String, String> vars = Maps.newHashMap();
+    Set<String> graphs = Sets.newLinkedHashSet();
+    List<String> patterns = Lists.newArrayList();
+    for (int i = 0; i < tps.size(); i++) {
+      TriplePattern tp = tps.get(i);
+      String subject = tp.isSubjectConst ? format(tp.subject) : getVariable(vars, tp.subject);
+      String predicate =
+          tp.isPredicateConst ? format(tp.predicate) : getVariable(vars, tp.predicate);
+      graphs.add(format(tp.object));
+      patterns.add("GRAPH " + format(tp.object) + " { " + subject + " " + predicate + " ?o" + i
+          + " .}");
+      if (i == 0 && tp.isObjectResource) {
+        graphs.add(Config.rdfScoreTableName);
+        patterns.add("GRAPH " + Config.rdfScoreTableName + " { " + subject
+            + " <http://xkg/hasCount> ?score .}");
+      }
+    }
+    String cmd = "SELECT (COUNT(*) AS ?count)";
+    for (String graph : graphs) {
+      cmd += " FROM NAMED " + graph;
+    }
+    cmd += " WHERE { " + Joiner.on(" ").join(patterns) + " }";
+    Logger.println("PopularityBasedRDFScan cmd: " + cmd, LoggingLevel.VARIABLEVALUES);
+    return cmd;
+  }
+
+  /**
+   * Returns the SPARQL variable standing for the query variable {@code var}.
+   */
+  private static String getVariable(Map<String, String> vars, String var) {
+    String name = vars.get(var);
+    if (name == null) {
+      name = "?v" + vars.size();
+      vars.put(var, name);
+    }
+    return name;
+  }
+
+  /**
+   * Returns the dataset and the graph patterns binding the matches of a {@link TriplePattern} and
+   * their scores to {@code ?s}, {@code ?p} and {@code ?score}, followed by those of
+   * {@code restriction}.
+   */
+  private static String getSPARQLBody(TriplePattern input, String restriction) {
+    Map<String,String> vars = Maps.newHashMap();
+    String cmd ="";
+    if (input.isSubjectConst) {
+      vars.put("subject", format(input.subject));
     }
     else{
       vars.put("subject", "?s");
-      cmd += " ?s";
     }
 
-    if (this.input.isPredicateConst) {
-      vars.put("predicate", format(this.input.predicate));
+    if (input.isPredicateConst) {
+      vars.put("predicate", format(input.predicate));
     } 
     else{
       vars.put("predicate", "?p");
-      cmd += " ?p";
     }
-    if(this.input.isObjectResource){ 
+    if(input.isObjectResource){ 
       cmd +=
-          " ?score FROM NAMED "+  format(this.input.object) + " FROM NAMED "+ Config.rdfScoreTableName;
+          " FROM NAMED "+  format(input.object) + " FROM NAMED "+ Config.rdfScoreTableName;
     }
     else{
       cmd +=
-          " ?score FROM NAMED "+  format(this.input.object);
+          " FROM NAMED "+  format(input.object);
     }
 
     cmd += " WHERE {";
 
-    if(this.input.isObjectResource){
+    if(input.isObjectResource){
       cmd +=
-          " GRAPH "+  format(this.input.object) + " { "+ vars.get("subject") + " " + vars.get("predicate") + " ?c .} GRAPH " 
+          " GRAPH "+  format(input.object) + " { "+ vars.get("subject") + " " + vars.get("predicate") + " ?c .} GRAPH " 
               + Config.rdfScoreTableName + " { "+ vars.get("subject") + " <http://xkg/hasCount> ?score .}";
     }
     else{
       cmd +=
-          " GRAPH "+  format(this.input.object) + " { "+ vars.get("subject") + " " + vars.get("predicate") + " ?score .} ";
+          " GRAPH "+  format(input.object) + " { "+ vars.get("subject") + " " + vars.get("predicate") + " ?score .} ";
     }
 
-    cmd+="} ORDER BY DESC(?score)";
-    Logger.println("PopularityBasedRDFScan cmd: " + cmd, LoggingLevel.VARIABLEVALUES);
+    cmd += restriction + "}";
     return cmd;
   }
 
-  private String format(String str) {
+  /**
+   * Reads the number of matches of {@code input} and their highest, lowest and total score with
+   * one aggregate query. The inflection rank is not known.
+   */
+  static PatternStatistics readStatistics(TriplePattern input) {
+    VirtGraph graph = GraphConnection.getConnection();
+    VirtuosoQueryExecution exec = VirtuosoQueryExecutionFactory.create(
+        QueryFactory.create(getSPARQLAggregateCommand(input)), graph);
+    try {
+      ResultSet aggregates = exec.execSelect();
+      if (!aggregates.hasNext()) {
+        return null;
+      }
+      QuerySolution row = aggregates.nextSolution();
+      long count = row.getLiteral("count").getLong();
+      if (count == 0) {
+        return new PatternStatistics(0, 0.0, 0.0, 0.0, Double.NaN, 0, 0.0, 0.0);
+      }
+      return new PatternStatistics(count, row.getLiteral("max").getDouble(),
+          row.getLiteral("min").getDouble(), row.getLiteral("sum").getDouble(), Double.NaN, 0,
+          0.0, 0.0);
+    } finally {
+      exec.close();
+      GraphConnection.release(graph);
+    }
+  }
+
+  static String format(String str) {
     str = str.replace(" ", "_");
     if (str.contains(":")) {
       return "<"+str+">";
@@ -138,7 +342,10 @@ public class PopularityBasedRDFScan implements Operator{
     if (!isOpen) {
       return true;
     }
-    conn.close();
+    // Closing the execution stops Virtuoso from sending the remaining solutions.
+    vqe.close();
+    GraphConnection.release(conn);
+    conn = null;
     this.isOpen = false;
     return true;
   }
@@ -147,21 +354,24 @@ public class PopularityBasedRDFScan implements Operator{
     if (current != null) {
       return true;
     }
+    if (isBelowThreshold) {
+      return false;
+    }
     try {
-      if (results.hasNext()) {
-        rs = results.nextSolution();
+      if (nextRow()) {
+        position.set(rs.getLiteral("score").getInt(), getKey());
         HashMapBasedAnswer ans = new HashMapBasedAnswer(toBeCounted);
-        if (!this.input.isSubjectConst) {
+        if (!this.input.isSubjectConst && isNeeded(this.input.subject)) {
           String var = this.input.subject;
           String binding = rs.get("s").toString();
           ans.setVariableBinding(var, binding);
         }
-        if (!this.input.isObjectConst) {
+        if (!this.input.isObjectConst && isNeeded(this.input.object)) {
           String var = this.input.object;
           String binding = rs.get("o").toString();
           ans.setVariableBinding(var, binding);
         }
-        if (!this.input.isPredicateConst) {
+        if (!this.input.isPredicateConst && isNeeded(this.input.predicate)) {
           String var = this.input.predicate;
           String binding = rs.get("p").toString();
           ans.setVariableBinding(var, binding);
@@ -173,7 +383,18 @@ public class PopularityBasedRDFScan implements Operator{
         }*/
         ans.setQuery(this.input.toString());
         //Debug.println("CurrentAns:" + ans.toString(), Config.debugLevel.VARIABLEVALUES);
-        current = ans;
+        if (isKeyFilterPending) {
+          isKeyFilterPending = false;
+          reexecute();
+        }
+        if (ans.getScore() < scoreThreshold) {
+          // The matches come in descending score order, so none of the remaining ones qualify.
+          Logger.println("Scan of " + this.input + " stopped below threshold " + scoreThreshold,
+              LoggingLevel.INTERMEDIATEINFO);
+          isBelowThreshold = true;
+        } else {
+          current = ans;
+        }
       }
     } catch (Exception e) {
       e.printStackTrace();
@@ -186,6 +407,72 @@ public class PopularityBasedRDFScan implements Operator{
     }
   }
 
+  /**
+   * Moves to the next match, requesting the next page if needed.
+   */
+  private boolean nextRow() {
+    boolean hasRow = results.hasNext();
+    if (!hasRow && isPaged && rowsInPage == limit) {
+      // The page was full, so there may be more matches after it.
+      vqe.close();
+      offset += limit;
+      limit = Math.min(2 * limit, Math.max(Config.rdfMaxPageSize, Config.rdfPageSize));
+      executePage();
+      hasRow = results.hasNext();
+    }
+    if (hasRow) {
+      rowsInPage++;
+      rs = results.nextSolution();
+    }
+    return hasRow;
+  }
+
+  /**
+   * Returns the bindings of the current match by which ties are broken.
+   */
+  private List<String> getKey() {
+    List<String> key = Lists.newArrayList();
+    if (!this.input.isSubjectConst) {
+      key.add(rs.get("s").toString());
+    }
+    if (!this.input.isPredicateConst) {
+      key.add(rs.get("p").toString());
+    }
+    return key;
+  }
+
+  public void setKeyFilter(String var, Set<String> keys) {
+    String name = null;
+    if (!this.input.isSubjectConst && this.input.subject.equals(var)) {
+      name = "s";
+    } else if (!this.input.isPredicateConst && this.input.predicate.equals(var)) {
+      name = "p";
+    }
+    if (name == null) {
+      return;
+    }
+    Logger.println("Restricting " + this.input + " to " + keys.size() + " keys of " + var,
+        LoggingLevel.INTERMEDIATEINFO);
+    keyFilterVar = name;
+    keyFilter = Lists.newArrayList(keys);
+    if (Double.isNaN(maxScore)) {
+      isKeyFilterPending = true;
+    } else if (isOpen && !isBelowThreshold) {
+      reexecute();
+    }
+  }
+
+  /**
+   * Re-issues the query of an open scan, continuing after the last match read.
+   */
+  private void reexecute() {
+    vqe.close();
+    dbCmd = getSPARQLCommand(this.input, true, getRestriction());
+    limit = Config.rdfPageSize;
+    offset = 0;
+    executePage();
+  }
+
   public Answer next() throws Exception {
     if (current != null) {
       Answer tuple = current;
@@ -201,6 +488,20 @@ public class PopularityBasedRDFScan implements Operator{
     return this.maxScore;
   }
 
+  public void setScoreThreshold(double threshold) {
+    if (threshold > scoreThreshold) {
+      scoreThreshold = threshold;
+    }
+  }
+
+  public void setNeededVariables(Set<String> neededVariables) {
+    this.neededVariables = neededVariables;
+  }
+
+  private boolean isNeeded(String var) {
+    return neededVariables == null || neededVariables.contains(var);
+  }
+
   public String getPartQuery() {
     return this.input.toString();
   }
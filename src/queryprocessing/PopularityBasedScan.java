@@ -1,22 +1,30 @@
 package de.mpii.trinitreloaded.queryprocessing;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.Collection;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
 
 import de.mpii.trinitreloaded.datastructures.Answer;
 import de.mpii.trinitreloaded.datastructures.HashMapBasedAnswer;
+import de.mpii.trinitreloaded.datastructures.PatternStatistics;
+import de.mpii.trinitreloaded.datastructures.QuantileSketchDistribution;
 import de.mpii.trinitreloaded.datastructures.TriplePattern;
 import de.mpii.trinitreloaded.utils.Config;
 import de.mpii.trinitreloaded.utils.Config.LoggingLevel;
+import de.mpii.trinitreloaded.utils.CursorMultiplexer;
 import de.mpii.trinitreloaded.utils.DBConnection;
 import de.mpii.trinitreloaded.utils.Logger;
+import de.mpii.trinitreloaded.utils.PatternStatisticsCatalog;
+import de.mpii.trinitreloaded.utils.SQLTemplateCache;
+import de.mpii.trinitreloaded.utils.ScoredDataTable;
 
 /**
  * A scan operator for individual {@link TriplePattern}.
@@ -25,20 +33,51 @@ import de.mpii.trinitreloaded.utils.Logger;
  * @author Mohamed Yahya (myahya@mpi-inf.mpg.de)
  * 
  */
-public class PopularityBasedScan implements Operator {
+public class PopularityBasedScan implements ProjectingOperator, ThresholdedOperator,
+    KeyFilteredOperator, RandomAccessOperator {
+  /** Separates the keys of a key filter passed as a single array parameter. */
+  static final char KEY_SEPARATOR = '\u001f';
+
   final TriplePattern input;
   Connection conn;
-  Statement stmt;
+  PreparedStatement stmt;
   ResultSet rs;
   String dbCmd;
   boolean isOpen;
+  /** The variables to bind, {@code null} for all. */
+  Set<String> neededVariables;
+  /** Answers scoring below it are not returned, see {@link ThresholdedOperator}. */
+  volatile double scoreThreshold = Double.NEGATIVE_INFINITY;
+  boolean isBelowThreshold;
   Answer current;
   double maxScore = Double.NaN;
+  /** The shard the matches are read from, -1 if the data is not sharded. */
+  int shard = -1;
+  /** The number of matches, -1 until counted, see {@link RandomAccessOperator}. */
+  long numMatches = -1;
   boolean toBeCounted;
+  /** Set if the matches are streamed through a server-side cursor. */
+  boolean isStreaming;
+  int fetchSize;
+  long rowsRead;
+  long rowsFetched;
+  /** The cursor on the connection shared by the query, if the scan is multiplexed. */
+  CursorMultiplexer.Cursor cursor;
+  /** The column restricted to {@code keyFilter}, see {@link KeyFilteredOperator}. */
+  String keyFilterColumn;
+  List<String> keyFilter;
+  /**
+   * Set while the key filter waits for the first row to be read: scores are normalized by the
+   * maximum score of all matches, not only of those passing the filter.
+   */
+  boolean isKeyFilterPending;
+  /** The columns, besides the score, identifying a match: the variable positions. */
+  final List<String> keyColumns;
+  /** Where a query re-issued with a key filter continues. */
+  final ScanPosition position = new ScanPosition();
 
   public PopularityBasedScan(TriplePattern input) {
-    this.toBeCounted = true;
-    this.input = input;
+    this(input, true);
   }
 
   @Override
@@ -49,30 +88,128 @@ public class PopularityBasedScan implements Operator {
   public PopularityBasedScan(TriplePattern input, boolean toBeCounted) {
     this.toBeCounted = toBeCounted;
     this.input = input;
+    this.keyColumns = Lists.newArrayList();
+    if (!input.isSubjectConst) {
+      keyColumns.add("subject");
+    }
+    if (!input.isPredicateConst) {
+      keyColumns.add("predicate");
+    }
+    if (!input.isObjectConst) {
+      keyColumns.add("object");
+    }
   }
 
   public boolean open() throws SQLException {
     if (this.isOpen) {
       return true;
     }
-    dbCmd = getDBCommand();
-    conn = DBConnection.getConnection();
-    stmt = conn.createStatement();
-    rs = stmt.executeQuery(dbCmd);
-    this.isOpen = true;
     current = null;
-    if (conn != null) {
-      return true;
-    } else {
-      return false;
+    isBelowThreshold = false;
+    position.clear();
+    execute();
+    this.isOpen = true;
+    return true;
+  }
+
+  /**
+   * Runs the query of the scan, restricted by the key filter, if any, and continuing after the
+   * last row read, if any.
+   */
+  private void execute() throws SQLException {
+    boolean isContinuation = position.isSet();
+    dbCmd = getDBCommand(isContinuation);
+    List<Object> params = Lists.<Object>newArrayList(getDBParameters());
+    if (isKeyFilterActive()) {
+      if (isKeyFilterArray()) {
+        params.add(Joiner.on(KEY_SEPARATOR).join(keyFilter));
+      } else {
+        params.addAll(keyFilter);
+      }
+    }
+    if (isContinuation) {
+      params.addAll(position.getSQLParameters());
     }
+    rowsRead = 0;
+    CursorMultiplexer multiplexer = CursorMultiplexer.current();
+    if (multiplexer != null) {
+      isStreaming = false;
+      cursor = multiplexer.declare(shard, dbCmd, params);
+      fetchSize = Math.max(Config.scanFetchSize, 1);
+      rs = cursor.fetch(fetchSize);
+      rowsFetched = fetchSize;
+      return;
+    }
+    conn = getConnection();
+    stmt = SQLTemplateCache.prepare(conn, dbCmd, params);
+    // The driver only uses a cursor, instead of reading all matches at once, inside a
+    // transaction and with a fetch size set.
+    isStreaming = Config.streamingScans;
+    if (isStreaming) {
+      conn.setAutoCommit(false);
+      fetchSize = Config.scanFetchSize;
+      stmt.setFetchSize(fetchSize);
+      rowsFetched = fetchSize;
+    }
+    rs = stmt.executeQuery();
+  }
+
+  /**
+   * Reads the matches on shard {@code shard} of the data only, see {@link ShardedScan}. It must be
+   * called before the scan is used.
+   */
+  void setShard(int shard) {
+    this.shard = shard;
+  }
+
+  /**
+   * Sets the score the scores of the matches are normalized by, instead of the highest one of this
+   * scan. It must be called before the scan is opened.
+   */
+  void setMaxScore(double maxScore) {
+    this.maxScore = maxScore;
+  }
+
+  private Connection getConnection() throws SQLException {
+    return shard < 0 ? DBConnection.getConnection() : DBConnection.getConnection(shard);
   }
 
-  private String getDBCommand() {
+  private boolean isKeyFilterActive() {
+    return keyFilter != null && !isKeyFilterPending;
+  }
+
+  private boolean isKeyFilterArray() {
+    return keyFilter.isEmpty() || keyFilter.size() > Config.semiJoinArrayThreshold;
+  }
+
+  private String getDBCommand(boolean isContinuation) {
+    boolean isScored = this.input.isObjectResource || !this.input.isObjectConst;
+    boolean isPreJoined = isScored && ScoredDataTable.isAvailable();
+    String shape = "PopularityBasedScan:" + isScored + ":" + isPreJoined + ":"
+        + this.input.isSubjectConst + ":" + this.input.isPredicateConst + ":"
+        + this.input.isObjectConst;
+    if (isKeyFilterActive()) {
+      shape += ":" + keyFilterColumn + ":" + (isKeyFilterArray() ? "array" : keyFilter.size());
+    }
+    if (isContinuation) {
+      shape += ":continuation";
+    }
+    String cmd = SQLTemplateCache.get(shape);
+    if (cmd != null) {
+      return cmd;
+    }
+
     List<String> whereClause = Lists.newArrayList();
-    String cmd ="";
+    cmd ="";
     String tblName = null;
-    if(this.input.isObjectResource || !this.input.isObjectConst){ //Different scoring scheme for semantic and textual types' matches.
+    if (isPreJoined) {
+      // The scores are stored with the matches, in index order.
+      tblName = Config.scoredDataTableName;
+      cmd +=
+          "SELECT d.subject as subject, d.predicate as predicate , "
+              + "d.object as object, d.score AS score FROM "+ tblName+ " d";
+    }
+    else if(isScored){ //Different scoring scheme for semantic and textual types' matches.
       tblName = Config.dataTableName;
       cmd +=
           "SELECT d.subject as subject, d.predicate as predicate , d.object as object, inlinks AS score FROM "+ tblName+ " d, "+ Config.scoreTableName;
@@ -85,23 +222,64 @@ public class PopularityBasedScan implements Operator {
     }
     cmd += " WHERE ";
     if (this.input.isSubjectConst) {
-      whereClause.add("subject='" + QueryPlanner.format(this.input.subject) + "' ");
+      whereClause.add("subject=? ");
     }
 
     if (this.input.isPredicateConst) {
-      whereClause.add("predicate='" + QueryPlanner.format(this.input.predicate) + "' ");
+      whereClause.add("predicate=? ");
     } 
 
     if (this.input.isObjectConst) {
-      whereClause.add("object='" + QueryPlanner.format(this.input.object) + "' ");
+      whereClause.add("object=? ");
     } 
-    if(this.input.isObjectResource || !this.input.isObjectConst)
+    if(isScored && !isPreJoined)
       whereClause.add("subject = entity");
+    if (isKeyFilterActive()) {
+      if (isKeyFilterArray()) {
+        whereClause.add("d." + keyFilterColumn + " = ANY(string_to_array(?, chr("
+            + (int) KEY_SEPARATOR + ")))");
+      } else {
+        List<String> placeholders = Lists.newArrayList();
+        for (int i = 0; i < keyFilter.size(); i++) {
+          placeholders.add("?");
+        }
+        whereClause.add("d." + keyFilterColumn + " IN (" + Joiner.on(", ").join(placeholders)
+            + ")");
+      }
+    }
+    // Ties are broken by the key columns, so a continuation starts right after the last row.
+    List<String> sortKeys = Lists.newArrayList();
+    for (String column : keyColumns) {
+      sortKeys.add("d." + column);
+    }
+    if (isContinuation) {
+      whereClause.add(ScanPosition.getSQLCondition(
+          isPreJoined ? "d.score" : isScored ? "inlinks" : "d.count", sortKeys));
+    }
+    sortKeys.add(0, "score");
 
-    cmd +=
-        Joiner.on(" AND ").join(whereClause) + " ORDER BY score DESC";
+    cmd += Joiner.on(" AND ").join(whereClause) + " ORDER BY "
+        + Joiner.on(" DESC, ").join(sortKeys) + " DESC";
     Logger.println("PopularityBasedScan cmd: " + cmd, LoggingLevel.VARIABLEVALUES);
-    return cmd;
+    return SQLTemplateCache.put(shape, cmd);
+  }
+
+  /**
+   * Returns the constants of the {@link TriplePattern} in the order of the placeholders in
+   * {@code getDBCommand()}.
+   */
+  private List<String> getDBParameters() {
+    List<String> params = Lists.newArrayList();
+    if (this.input.isSubjectConst) {
+      params.add(QueryPlanner.formatParameter(this.input.subject));
+    }
+    if (this.input.isPredicateConst) {
+      params.add(QueryPlanner.formatParameter(this.input.predicate));
+    }
+    if (this.input.isObjectConst) {
+      params.add(QueryPlanner.formatParameter(this.input.object));
+    }
+    return params;
   }
 
   public double getScoreMultiplier() {
@@ -119,31 +297,524 @@ public class PopularityBasedScan implements Operator {
     if (!isOpen) {
       return true;
     }
+    release();
+    this.isOpen = false;
+    return true;
+  }
+
+  /**
+   * Closes the query being read and returns its connection.
+   */
+  private void release() throws SQLException {
+    if (cursor != null) {
+      rs.close();
+      cursor.close();
+      cursor = null;
+      return;
+    }
+    // Closing the result set also closes the portal of a cursor that has not been read to the
+    // end, so the server stops producing the remaining matches.
     rs.close();
     stmt.close();
+    if (isStreaming) {
+      conn.rollback();
+      conn.setAutoCommit(true);
+    }
     conn.close();
-    this.isOpen = false;
-    return true;
+  }
+
+  /**
+   * Returns the column holding the bindings of {@code var}, or {@code null} if the pattern does
+   * not contain {@code var}.
+   */
+  private String getColumn(String var) {
+    if (!this.input.isSubjectConst && this.input.subject.equals(var)) {
+      return "subject";
+    } else if (!this.input.isPredicateConst && this.input.predicate.equals(var)) {
+      return "predicate";
+    } else if (!this.input.isObjectConst && this.input.object.equals(var)) {
+      return "object";
+    }
+    return null;
+  }
+
+  /**
+   * Returns the FROM and WHERE clauses selecting the matches of the pattern, with the parameters
+   * of {@code getDBParameters()} followed by those of {@code conditions}, if any.
+   */
+  private String getMatchesClause(boolean isScored, boolean isPreJoined,
+      List<String> conditions) {
+    String cmd;
+    List<String> whereClause = Lists.newArrayList();
+    if (isPreJoined) {
+      cmd = " FROM " + Config.scoredDataTableName + " d";
+    } else if (isScored) {
+      cmd = " FROM " + Config.dataTableName + " d, " + Config.scoreTableName;
+      whereClause.add("subject = entity");
+    } else {
+      cmd = " FROM " + Config.textualTypeDataTableName + " d";
+    }
+    if (this.input.isSubjectConst) {
+      whereClause.add("subject=? ");
+    }
+    if (this.input.isPredicateConst) {
+      whereClause.add("predicate=? ");
+    }
+    if (this.input.isObjectConst) {
+      whereClause.add("object=? ");
+    }
+    whereClause.addAll(conditions);
+    if (!whereClause.isEmpty()) {
+      cmd += " WHERE " + Joiner.on(" AND ").join(whereClause);
+    }
+    return cmd;
+  }
+
+  private static String getScoreColumn(boolean isScored, boolean isPreJoined) {
+    return isPreJoined ? "d.score" : isScored ? "inlinks" : "d.count";
+  }
+
+  public long getNumAnswers() throws SQLException {
+    if (numMatches < 0) {
+      readStatistics();
+    }
+    return numMatches;
+  }
+
+  public double getScoreUpperBound() {
+    // Scores are normalized by the highest one.
+    return Config.scoreMultipler;
+  }
+
+  /**
+   * Counts the matches of the pattern and reads their highest score, which normalizes the scores
+   * of probed matches before the scan is read. Both are taken from the
+   * {@link PatternStatisticsCatalog} if it holds them.
+   */
+  private void readStatistics() throws SQLException {
+    // The catalog describes the matches in all of the data, not on one shard.
+    PatternStatistics stats = shard < 0 ? PatternStatisticsCatalog.get(this.input) : null;
+    if (stats != null) {
+      numMatches = stats.numberOfResults;
+      if (Double.isNaN(maxScore)) {
+        maxScore = stats.rawMaxScore;
+      }
+      return;
+    }
+    boolean isScored = this.input.isObjectResource || !this.input.isObjectConst;
+    boolean isPreJoined = isScored && ScoredDataTable.isAvailable();
+    String shape = "PopularityBasedScan:statistics:" + isScored + ":" + isPreJoined + ":"
+        + this.input.isSubjectConst + ":" + this.input.isPredicateConst + ":"
+        + this.input.isObjectConst;
+    String cmd = SQLTemplateCache.get(shape);
+    if (cmd == null) {
+      cmd = SQLTemplateCache.put(shape, "SELECT count(*) AS count, MAX("
+          + getScoreColumn(isScored, isPreJoined) + ") AS score"
+          + getMatchesClause(isScored, isPreJoined, Lists.<String>newArrayList()));
+    }
+    Connection statConn = getConnection();
+    PreparedStatement statStmt = null;
+    ResultSet statRs = null;
+    try {
+      statStmt = SQLTemplateCache.prepare(statConn, cmd, getDBParameters());
+      statRs = statStmt.executeQuery();
+      statRs.next();
+      numMatches = statRs.getLong("count");
+      if (Double.isNaN(maxScore) && numMatches > 0) {
+        maxScore = statRs.getDouble("score");
+      }
+    } finally {
+      if (statRs != null) {
+        statRs.close();
+      }
+      if (statStmt != null) {
+        statStmt.close();
+      }
+      statConn.close();
+    }
+    Logger.println("PopularityBasedScan of " + this.input + ": " + numMatches + " matches",
+        LoggingLevel.INTERMEDIATEINFO);
+  }
+
+  /**
+   * Returns the highest score of the matches of each pattern as stored in the database, 0 for a
+   * pattern without matches, so that queries over several patterns can normalize their scores
+   * with parameters instead of a window over all matches. The scores are taken from the
+   * {@link PatternStatisticsCatalog} if it holds them, and the others are read with one aggregate
+   * query.
+   */
+  static double[] getRawMaxScores(List<TriplePattern> tps) throws SQLException {
+    double[] maxScores = new double[tps.size()];
+    List<Integer> unknown = Lists.newArrayList();
+    for (int i = 0; i < tps.size(); i++) {
+      PatternStatistics stats = PatternStatisticsCatalog.get(tps.get(i));
+      if (stats != null) {
+        maxScores[i] = stats.rawMaxScore;
+      } else {
+        unknown.add(i);
+      }
+    }
+    if (unknown.isEmpty()) {
+      return maxScores;
+    }
+    List<String> shapes = Lists.newArrayList();
+    List<String> branches = Lists.newArrayList();
+    List<Object> params = Lists.newArrayList();
+    for (int j = 0; j < unknown.size(); j++) {
+      PopularityBasedScan scan = new PopularityBasedScan(tps.get(unknown.get(j)), false);
+      boolean isScored = scan.input.isObjectResource || !scan.input.isObjectConst;
+      boolean isPreJoined = isScored && ScoredDataTable.isAvailable();
+      shapes.add(isScored + ":" + isPreJoined + ":" + scan.input.isSubjectConst + ":"
+          + scan.input.isPredicateConst + ":" + scan.input.isObjectConst);
+      branches.add("(SELECT " + j + " AS pattern, MAX(" + getScoreColumn(isScored, isPreJoined)
+          + ") AS score" + scan.getMatchesClause(isScored, isPreJoined,
+              Lists.<String>newArrayList()) + ")");
+      params.addAll(scan.getDBParameters());
+    }
+    String shape = "PopularityBasedScan:maxScores:" + Joiner.on("|").join(shapes);
+    String cmd = SQLTemplateCache.get(shape);
+    if (cmd == null) {
+      cmd = SQLTemplateCache.put(shape, Joiner.on(" UNION ALL ").join(branches));
+    }
+    Connection statConn = DBConnection.getConnection();
+    PreparedStatement statStmt = null;
+    ResultSet statRs = null;
+    try {
+      statStmt = SQLTemplateCache.prepare(statConn, cmd, params);
+      statRs = statStmt.executeQuery();
+      while (statRs.next()) {
+        // MAX() of no matches is NULL, read as 0.
+        maxScores[unknown.get(statRs.getInt("pattern"))] = statRs.getDouble("score");
+      }
+    } finally {
+      if (statRs != null) {
+        statRs.close();
+      }
+      if (statStmt != null) {
+        statStmt.close();
+      }
+      statConn.close();
+    }
+    return maxScores;
+  }
+
+  /**
+   * Reads the number of matches and their highest, lowest and total score, and the adaptive
+   * inflection rank for {@code fractionOfScoreInTheHead}, with one aggregate query, as
+   * {@link PatternStatisticsCatalog} does for all patterns.
+   */
+  PatternStatistics readScoreStatistics() throws SQLException {
+    boolean isScored = this.input.isObjectResource || !this.input.isObjectConst;
+    boolean isPreJoined = isScored && ScoredDataTable.isAvailable();
+    String shape = "PopularityBasedScan:scoreStatistics:" + isScored + ":" + isPreJoined + ":"
+        + this.input.isSubjectConst + ":" + this.input.isPredicateConst + ":"
+        + this.input.isObjectConst;
+    String cmd = SQLTemplateCache.get(shape);
+    if (cmd == null) {
+      String head = " FILTER (WHERE cumulative - score <= total * ?)";
+      cmd = SQLTemplateCache.put(shape, "SELECT count(*) AS num_matches, "
+          + "max(score) AS max_score, min(score) AS min_score, max(total) AS total_score, "
+          + "count(*)" + head + " AS inflection_rank, min(score)" + head + " AS score_at_rank, "
+          + "max(cumulative)" + head + " AS cumulative_score_at_rank FROM (SELECT score, "
+          + "SUM(score) OVER (ORDER BY score DESC ROWS UNBOUNDED PRECEDING) AS cumulative, "
+          + "SUM(score) OVER () AS total FROM (SELECT CAST("
+          + getScoreColumn(isScored, isPreJoined) + " AS float8) AS score"
+          + getMatchesClause(isScored, isPreJoined, Lists.<String>newArrayList()) + ") m) r");
+    }
+    List<Object> params = Lists.<Object>newArrayList(Config.fractionOfScoreInTheHead,
+        Config.fractionOfScoreInTheHead, Config.fractionOfScoreInTheHead);
+    params.addAll(getDBParameters());
+    Connection statConn = getConnection();
+    PreparedStatement statStmt = null;
+    ResultSet statRs = null;
+    try {
+      statStmt = SQLTemplateCache.prepare(statConn, cmd, params);
+      statRs = statStmt.executeQuery();
+      statRs.next();
+      return new PatternStatistics(statRs.getLong("num_matches"), statRs.getDouble("max_score"),
+          statRs.getDouble("min_score"), statRs.getDouble("total_score"),
+          Config.fractionOfScoreInTheHead, statRs.getLong("inflection_rank"),
+          statRs.getDouble("score_at_rank"), statRs.getDouble("cumulative_score_at_rank"));
+    } finally {
+      if (statRs != null) {
+        statRs.close();
+      }
+      if (statStmt != null) {
+        statStmt.close();
+      }
+      statConn.close();
+    }
+  }
+
+  /**
+   * Reads the matches at which the bucket boundaries of a histogram may lie, in score order, with
+   * their rank, normalized score and the total normalized score of the matches ranked above.
+   *
+   * The matches are grouped into levels by the number of {@code thresholds} they pass, as per
+   * {@code comparison} on {@code rn}, {@code score} or {@code before} and {@code t}. A boundary
+   * lies at most {@code span} matches after the first match of its level, so only these matches
+   * are read, and the last match.
+   *
+   * @param maxScore The highest score as stored in the database, normalizing the scores.
+   */
+  List<ScoreAggregation.RankedScore> readRankedScores(double maxScore, String comparison,
+      double[] thresholds, int span) throws SQLException {
+    boolean isScored = this.input.isObjectResource || !this.input.isObjectConst;
+    boolean isPreJoined = isScored && ScoredDataTable.isAvailable();
+    String shape = "PopularityBasedScan:rankedScores:" + comparison + ":" + isScored + ":"
+        + isPreJoined + ":" + this.input.isSubjectConst + ":" + this.input.isPredicateConst + ":"
+        + this.input.isObjectConst;
+    String cmd = SQLTemplateCache.get(shape);
+    if (cmd == null) {
+      cmd = SQLTemplateCache.put(shape, "SELECT rn, score, before FROM (SELECT rn, score, "
+          + "before, n, min(rn) OVER (PARTITION BY level) AS level_start FROM (SELECT rn, score, "
+          + "before, count(*) OVER () AS n, (SELECT count(*) FROM unnest(CAST(? AS float8[])) t "
+          + "WHERE " + comparison + ") AS level FROM (SELECT row_number() OVER w AS rn, score, "
+          + "COALESCE(SUM(score) OVER (w ROWS BETWEEN UNBOUNDED PRECEDING AND 1 PRECEDING), 0) "
+          + "AS before FROM (SELECT CAST(" + getScoreColumn(isScored, isPreJoined)
+          + " AS float8) * ? * ? AS score"
+          + getMatchesClause(isScored, isPreJoined, Lists.<String>newArrayList())
+          + ") m WINDOW w AS (ORDER BY score DESC)) r) l) c "
+          + "WHERE rn - level_start < ? OR rn = n ORDER BY rn");
+    }
+    List<String> bounds = Lists.newArrayList();
+    for (double threshold : thresholds) {
+      bounds.add(Double.toString(threshold));
+    }
+    // The scores are normalized as in next().
+    List<Object> params = Lists.<Object>newArrayList("{" + Joiner.on(",").join(bounds) + "}",
+        1 / maxScore, Config.scoreMultipler);
+    params.addAll(getDBParameters());
+    params.add(span);
+    List<ScoreAggregation.RankedScore> rankedScores = Lists.newArrayList();
+    Connection statConn = getConnection();
+    PreparedStatement statStmt = null;
+    ResultSet statRs = null;
+    try {
+      statStmt = SQLTemplateCache.prepare(statConn, cmd, params);
+      statRs = statStmt.executeQuery();
+      while (statRs.next()) {
+        rankedScores.add(new ScoreAggregation.RankedScore(statRs.getLong("rn"),
+            statRs.getDouble("score"), statRs.getDouble("before")));
+      }
+    } finally {
+      if (statRs != null) {
+        statRs.close();
+      }
+      if (statStmt != null) {
+        statStmt.close();
+      }
+      statConn.close();
+    }
+    return rankedScores;
+  }
+
+  /**
+   * Reads the matches grouped into the buckets of a histogram, with one row per non-empty bucket,
+   * in bucket order.
+   *
+   * @param maxScore The highest score as stored in the database, normalizing the scores.
+   * @param bucket The SQL expression giving the bucket of a match from its normalized score
+   *        {@code score}, which may be a window function over the matches.
+   * @param bucketParams The parameters of {@code bucket}.
+   */
+  List<ScoreAggregation.ScoreBucket> readBuckets(double maxScore, String bucket,
+      List<Object> bucketParams) throws SQLException {
+    boolean isScored = this.input.isObjectResource || !this.input.isObjectConst;
+    boolean isPreJoined = isScored && ScoredDataTable.isAvailable();
+    String shape = "PopularityBasedScan:buckets:" + bucket + ":" + isScored + ":" + isPreJoined
+        + ":" + this.input.isSubjectConst + ":" + this.input.isPredicateConst + ":"
+        + this.input.isObjectConst;
+    String cmd = SQLTemplateCache.get(shape);
+    if (cmd == null) {
+      cmd = SQLTemplateCache.put(shape, "SELECT bucket, max(score) AS max_score, "
+          + "min(score) AS min_score, sum(score) AS total_score FROM (SELECT score, " + bucket
+          + " AS bucket FROM (SELECT CAST(" + getScoreColumn(isScored, isPreJoined)
+          + " AS float8) * ? * ? AS score"
+          + getMatchesClause(isScored, isPreJoined, Lists.<String>newArrayList())
+          + ") m) b GROUP BY bucket ORDER BY bucket");
+    }
+    // The scores are normalized as in next().
+    List<Object> params = Lists.newArrayList(bucketParams);
+    params.add(1 / maxScore);
+    params.add(Config.scoreMultipler);
+    params.addAll(getDBParameters());
+    List<ScoreAggregation.ScoreBucket> buckets = Lists.newArrayList();
+    Connection statConn = getConnection();
+    PreparedStatement statStmt = null;
+    ResultSet statRs = null;
+    try {
+      statStmt = SQLTemplateCache.prepare(statConn, cmd, params);
+      statRs = statStmt.executeQuery();
+      while (statRs.next()) {
+        buckets.add(new ScoreAggregation.ScoreBucket(statRs.getInt("bucket"),
+            statRs.getDouble("max_score"), statRs.getDouble("min_score"),
+            statRs.getDouble("total_score")));
+      }
+    } finally {
+      if (statRs != null) {
+        statRs.close();
+      }
+      if (statStmt != null) {
+        statStmt.close();
+      }
+      statConn.close();
+    }
+    return buckets;
+  }
+
+  /**
+   * Reads the scores of all matches, as stored in the database, into a
+   * {@link QuantileSketchDistribution}, in one pass without sorting them.
+   */
+  QuantileSketchDistribution readScores() throws SQLException {
+    boolean isScored = this.input.isObjectResource || !this.input.isObjectConst;
+    boolean isPreJoined = isScored && ScoredDataTable.isAvailable();
+    String shape = "PopularityBasedScan:scores:" + isScored + ":" + isPreJoined + ":"
+        + this.input.isSubjectConst + ":" + this.input.isPredicateConst + ":"
+        + this.input.isObjectConst;
+    String cmd = SQLTemplateCache.get(shape);
+    if (cmd == null) {
+      cmd = SQLTemplateCache.put(shape, "SELECT CAST(" + getScoreColumn(isScored, isPreJoined)
+          + " AS float8) AS score"
+          + getMatchesClause(isScored, isPreJoined, Lists.<String>newArrayList()));
+    }
+    QuantileSketchDistribution sketch = new QuantileSketchDistribution();
+    Connection scoreConn = getConnection();
+    PreparedStatement scoreStmt = null;
+    ResultSet scoreRs = null;
+    try {
+      // A cursor, so the matches are not all held in memory.
+      scoreConn.setAutoCommit(false);
+      scoreStmt = SQLTemplateCache.prepare(scoreConn, cmd, getDBParameters());
+      scoreStmt.setFetchSize(Config.maxScanFetchSize);
+      scoreRs = scoreStmt.executeQuery();
+      while (scoreRs.next()) {
+        sketch.update(scoreRs.getDouble(1));
+      }
+    } finally {
+      if (scoreRs != null) {
+        scoreRs.close();
+      }
+      if (scoreStmt != null) {
+        scoreStmt.close();
+      }
+      scoreConn.rollback();
+      scoreConn.setAutoCommit(true);
+      scoreConn.close();
+    }
+    return sketch;
+  }
+
+  public List<Answer> probe(String var, Collection<String> keys) throws SQLException {
+    String column = getColumn(var);
+    if (column == null) {
+      return null;
+    }
+    if (Double.isNaN(maxScore)) {
+      readStatistics();
+    }
+    List<Answer> matches = Lists.newArrayList();
+    if (numMatches == 0 || keys.isEmpty()) {
+      return matches;
+    }
+    boolean isScored = this.input.isObjectResource || !this.input.isObjectConst;
+    boolean isPreJoined = isScored && ScoredDataTable.isAvailable();
+    String shape = "PopularityBasedScan:probe:" + column + ":" + isScored + ":" + isPreJoined
+        + ":" + this.input.isSubjectConst + ":" + this.input.isPredicateConst + ":"
+        + this.input.isObjectConst;
+    String cmd = SQLTemplateCache.get(shape);
+    if (cmd == null) {
+      cmd = SQLTemplateCache.put(shape, "SELECT d.subject as subject, d.predicate as predicate, "
+          + "d.object as object, " + getScoreColumn(isScored, isPreJoined) + " AS score"
+          + getMatchesClause(isScored, isPreJoined, Lists.newArrayList("d." + column
+              + " = ANY(string_to_array(?, chr(" + (int) KEY_SEPARATOR + ")))")));
+    }
+    List<Object> params = Lists.<Object>newArrayList(getDBParameters());
+    params.add(Joiner.on(KEY_SEPARATOR).join(keys));
+    Connection probeConn = getConnection();
+    PreparedStatement probeStmt = null;
+    ResultSet probeRs = null;
+    try {
+      probeStmt = SQLTemplateCache.prepare(probeConn, cmd, params);
+      probeRs = probeStmt.executeQuery();
+      while (probeRs.next()) {
+        HashMapBasedAnswer ans = new HashMapBasedAnswer(toBeCounted);
+        if (!this.input.isSubjectConst && isNeeded(this.input.subject)) {
+          ans.setVariableBinding(this.input.subject, probeRs.getString("subject"));
+        }
+        if (!this.input.isObjectConst && isNeeded(this.input.object)) {
+          ans.setVariableBinding(this.input.object, probeRs.getString("object"));
+        }
+        if (!this.input.isPredicateConst && isNeeded(this.input.predicate)) {
+          ans.setVariableBinding(this.input.predicate, probeRs.getString("predicate"));
+        }
+        ans.setScore(probeRs.getDouble("score") / maxScore * Config.scoreMultipler);
+        ans.setQuery(this.input.toString());
+        matches.add(ans);
+      }
+    } catch (SQLException e) {
+      throw e;
+    } catch (Exception e) {
+      e.printStackTrace();
+    } finally {
+      if (probeRs != null) {
+        probeRs.close();
+      }
+      if (probeStmt != null) {
+        probeStmt.close();
+      }
+      probeConn.close();
+    }
+    return matches;
+  }
+
+  public void setKeyFilter(String var, Set<String> keys) throws SQLException {
+    String column = getColumn(var);
+    if (column == null) {
+      return;
+    }
+    Logger.println("Restricting " + this.input + " to " + keys.size() + " keys of " + var,
+        LoggingLevel.INTERMEDIATEINFO);
+    keyFilterColumn = column;
+    keyFilter = Lists.newArrayList(keys);
+    if (Double.isNaN(maxScore)) {
+      isKeyFilterPending = true;
+    } else if (isOpen && !isBelowThreshold) {
+      reexecute();
+    }
+  }
+
+  /**
+   * Re-issues the query of an open scan, continuing after the last row read.
+   */
+  private void reexecute() throws SQLException {
+    release();
+    execute();
   }
 
   public boolean hasNext() throws SQLException {
     if (current != null) {
       return true;
     }
+    if (isBelowThreshold) {
+      return false;
+    }
     try {
-      if (rs.next()) {
+      if (nextRow()) {
+        position.set(rs.getDouble("score"), getKey());
         HashMapBasedAnswer ans = new HashMapBasedAnswer(toBeCounted);
-        if (!this.input.isSubjectConst) {
+        if (!this.input.isSubjectConst && isNeeded(this.input.subject)) {
           String var = this.input.subject;
           String binding = rs.getString("subject");
           ans.setVariableBinding(var, binding);
         }
-        if (!this.input.isObjectConst) {
+        if (!this.input.isObjectConst && isNeeded(this.input.object)) {
           String var = this.input.object;
           String binding = rs.getString("object");
           ans.setVariableBinding(var, binding);
         }
-        if (!this.input.isPredicateConst) {
+        if (!this.input.isPredicateConst && isNeeded(this.input.predicate)) {
           String var = this.input.predicate;
           String binding = rs.getString("predicate");
           ans.setVariableBinding(var, binding);
@@ -151,7 +822,18 @@ public class PopularityBasedScan implements Operator {
         Double score = rs.getDouble("score") * getScoreMultiplier() * Config.scoreMultipler;
         ans.setScore(score);
         ans.setQuery(this.input.toString());
-        current = ans;
+        if (isKeyFilterPending) {
+          isKeyFilterPending = false;
+          reexecute();
+        }
+        if (ans.getScore() < scoreThreshold) {
+          // The matches come in descending score order, so none of the remaining ones qualify.
+          Logger.println("Scan of " + this.input + " stopped below threshold " + scoreThreshold,
+              LoggingLevel.INTERMEDIATEINFO);
+          isBelowThreshold = true;
+        } else {
+          current = ans;
+        }
       }
     } catch (Exception e) {
       e.printStackTrace();
@@ -164,6 +846,53 @@ public class PopularityBasedScan implements Operator {
     }
   }
 
+  /**
+   * Moves to the next row, fetching the next batch of a multiplexed cursor if needed.
+   */
+  private boolean nextRow() throws SQLException {
+    boolean hasRow = rs.next();
+    if (!hasRow && cursor != null && rowsRead == rowsFetched) {
+      // The whole batch was read, so the cursor may have more rows.
+      rs.close();
+      if (Config.adaptiveFetchSize) {
+        fetchSize = Math.min(2 * fetchSize, Config.maxScanFetchSize);
+      }
+      rs = cursor.fetch(fetchSize);
+      rowsFetched += fetchSize;
+      hasRow = rs.next();
+    }
+    if (hasRow) {
+      rowsRead++;
+      if (isStreaming && Config.adaptiveFetchSize && rowsRead == rowsFetched) {
+        growFetchSize();
+      }
+    }
+    return hasRow;
+  }
+
+  /**
+   * Returns the values of the key columns of the current row.
+   */
+  private List<String> getKey() throws SQLException {
+    List<String> key = Lists.newArrayList();
+    for (String column : keyColumns) {
+      key.add(rs.getString(column));
+    }
+    return key;
+  }
+
+  /**
+   * Doubles the number of rows fetched from the cursor with the next batch. It is called once the
+   * last row of the current batch is read, so a scan that is consumed deeply needs only a
+   * logarithmic number of round trips, while a shallow one does not fetch much more than it
+   * reads.
+   */
+  private void growFetchSize() throws SQLException {
+    fetchSize = Math.min(2 * fetchSize, Config.maxScanFetchSize);
+    rs.setFetchSize(fetchSize);
+    rowsFetched += fetchSize;
+  }
+
   public Answer next() throws Exception {
     if (current != null) {
       Answer tuple = current;
@@ -179,6 +908,20 @@ public class PopularityBasedScan implements Operator {
     return this.maxScore;
   }
 
+  public void setScoreThreshold(double threshold) {
+    if (threshold > scoreThreshold) {
+      scoreThreshold = threshold;
+    }
+  }
+
+  public void setNeededVariables(Set<String> neededVariables) {
+    this.neededVariables = neededVariables;
+  }
+
+  private boolean isNeeded(String var) {
+    return neededVariables == null || neededVariables.contains(var);
+  }
+
   public String getPartQuery() {
     return this.input.toString();
   }
@@ -0,0 +1,314 @@
+package de.mpii.trinitreloaded.queryprocessing;
+
+import gnu.trove.list.array.TIntArrayList;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+
+import de.mpii.trinitreloaded.datastructures.Answer;
+import de.mpii.trinitreloaded.datastructures.HashMapBasedAnswer;
+import de.mpii.trinitreloaded.datastructures.TriplePattern;
+import de.mpii.trinitreloaded.utils.Config;
+import de.mpii.trinitreloaded.utils.Logger;
+import de.mpii.trinitreloaded.utils.PostingStore;
+import de.mpii.trinitreloaded.utils.Config.LoggingLevel;
+
+/**
+ * A scan operator for individual {@link TriplePattern} over the memory-mapped
+ * {@link PostingStore}.
+ *
+ * It returns the same answers as a {@link PopularityBasedScan}, but reads them from the posting
+ * list of the constants of the pattern, which is already in score order, so no query is sent to
+ * the database. Only patterns with a constant predicate and a constant subject or object have a
+ * posting list, see {@code supports()}. The entry of a term is found in the key index of the
+ * list, so a key filter, see {@link KeyFilteredOperator}, jumps from one of its entries to the
+ * next, and the answers of given keys are looked up directly, see {@link RandomAccessOperator}.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class PostingListScan implements ProjectingOperator, ThresholdedOperator,
+    KeyFilteredOperator, RandomAccessOperator {
+  final TriplePattern input;
+  PostingStore store;
+  PostingStore.PostingList list;
+  /** Set once {@code list}, {@code start} and {@code end} have been looked up. */
+  boolean isListFound;
+  /** The entries of {@code list} matching the pattern. */
+  int start;
+  int end;
+  /** The next entry to be returned. */
+  int position;
+  boolean isOpen;
+  /** The variables to bind, {@code null} for all. */
+  Set<String> neededVariables;
+  /** Answers scoring below it are not returned, see {@link ThresholdedOperator}. */
+  volatile double scoreThreshold = Double.NEGATIVE_INFINITY;
+  boolean isBelowThreshold;
+  Answer current;
+  double maxScore = Double.NaN;
+  boolean toBeCounted;
+  /**
+   * The positions, in ascending order, of the entries the variable is restricted to, see
+   * {@link KeyFilteredOperator}.
+   */
+  int[] keyFilter;
+
+  public PostingListScan(TriplePattern input) {
+    this.toBeCounted = true;
+    this.input = input;
+  }
+
+  public PostingListScan(TriplePattern input, boolean toBeCounted) {
+    this.toBeCounted = toBeCounted;
+    this.input = input;
+  }
+
+  /**
+   * Returns whether the matches of a {@link TriplePattern} can be read from the
+   * {@link PostingStore}.
+   */
+  public static boolean supports(TriplePattern tp) {
+    return tp.isPredicateConst && (tp.isSubjectConst || tp.isObjectConst);
+  }
+
+  @Override
+  public String toString() {
+    return "PostingListScan [input=" + input + "]";
+  }
+
+  public boolean open() throws SQLException {
+    if (this.isOpen) {
+      return true;
+    }
+    findList();
+    this.isOpen = true;
+    current = null;
+    isBelowThreshold = false;
+    position = start;
+    Logger.println("PostingListScan of " + this.input + ": " + (end - start) + " matches",
+        LoggingLevel.VARIABLEVALUES);
+    return true;
+  }
+
+  /**
+   * Looks up the posting list of the pattern and the range of its entries matching it, once.
+   */
+  private void findList() throws SQLException {
+    if (isListFound) {
+      return;
+    }
+    mapStore();
+    start = 0;
+    end = 0;
+    boolean isScored = this.input.isObjectResource || !this.input.isObjectConst;
+    int predicate = getTermId(this.input.predicate);
+    if (this.input.isSubjectConst) {
+      int subject = getTermId(this.input.subject);
+      list = store.getList(isScored ? PostingStore.DATA_SUBJECT_PREDICATE
+          : PostingStore.TEXTUAL_SUBJECT_PREDICATE, subject, predicate);
+      if (list != null) {
+        end = list.size();
+        if (this.input.isObjectConst) {
+          // The only match, if any, is the entry of the object.
+          start = list.indexOf(getTermId(this.input.object));
+          end = start < 0 ? 0 : start + 1;
+          start = Math.max(start, 0);
+        }
+      }
+    } else {
+      int object = getTermId(this.input.object);
+      list = store.getList(isScored ? PostingStore.DATA_PREDICATE_OBJECT
+          : PostingStore.TEXTUAL_PREDICATE_OBJECT, predicate, object);
+      if (list != null) {
+        end = list.size();
+      }
+    }
+    if (end > start) {
+      maxScore = list.getScore(start);
+    }
+    isListFound = true;
+  }
+
+  private void mapStore() throws SQLException {
+    try {
+      store = PostingStore.get();
+    } catch (IOException e) {
+      throw new SQLException("Cannot map the posting store " + Config.postingStoreFile, e);
+    }
+  }
+
+  private int getTermId(String constant) {
+    return store.getTermId(QueryPlanner.formatParameter(constant));
+  }
+
+  public boolean close() {
+    this.isOpen = false;
+    return true;
+  }
+
+  public boolean hasNext() {
+    if (current != null) {
+      return true;
+    }
+    if (isBelowThreshold || !isOpen || position >= end) {
+      return false;
+    }
+    try {
+      if (keyFilter != null) {
+        int i = Arrays.binarySearch(keyFilter, position);
+        if (i < 0) {
+          i = -i - 1;
+        }
+        if (i >= keyFilter.length) {
+          position = end;
+          return false;
+        }
+        position = keyFilter[i];
+      }
+      Answer ans = getAnswer(position);
+      position++;
+      if (ans.getScore() < scoreThreshold) {
+        // The matches come in descending score order, so none of the remaining ones qualify.
+        Logger.println("Scan of " + this.input + " stopped below threshold " + scoreThreshold,
+            LoggingLevel.INTERMEDIATEINFO);
+        isBelowThreshold = true;
+      } else {
+        current = ans;
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+
+    if (current == null) {
+      return false;
+    } else {
+      return true;
+    }
+  }
+
+  public Answer next() throws Exception {
+    if (current != null) {
+      Answer tuple = current;
+      current = null;
+      return tuple;
+    } else {
+      throw new NoSuchElementException("No more results.");
+    }
+  }
+
+  /**
+   * Returns the answer of the {@code i}-th entry of the list.
+   */
+  private Answer getAnswer(int i) throws Exception {
+    HashMapBasedAnswer ans = new HashMapBasedAnswer(toBeCounted);
+    if (!this.input.isSubjectConst && isNeeded(this.input.subject)) {
+      ans.setVariableBinding(this.input.subject, store.getTerm(list.getTermId(i)));
+    }
+    if (!this.input.isObjectConst && isNeeded(this.input.object)) {
+      ans.setVariableBinding(this.input.object, store.getTerm(list.getTermId(i)));
+    }
+    ans.setScore(list.getScore(i) / maxScore * Config.scoreMultipler);
+    ans.setQuery(this.input.toString());
+    return ans;
+  }
+
+  /**
+   * Returns the variable of the pattern, the only position which is not constant, or
+   * {@code null} if all are.
+   */
+  private String getVariable() {
+    if (!this.input.isSubjectConst) {
+      return this.input.subject;
+    } else if (!this.input.isObjectConst) {
+      return this.input.object;
+    }
+    return null;
+  }
+
+  public void setKeyFilter(String var, Set<String> keys) throws SQLException {
+    if (!var.equals(getVariable())) {
+      return;
+    }
+    Logger.println("Restricting " + this.input + " to " + keys.size() + " keys of " + var,
+        LoggingLevel.INTERMEDIATEINFO);
+    findList();
+    TIntArrayList positions = getPositions(keys);
+    positions.sort();
+    keyFilter = positions.toArray();
+  }
+
+  /**
+   * Returns the positions of the entries of {@code keys} matching the pattern, in any order.
+   */
+  private TIntArrayList getPositions(Collection<String> keys) {
+    TIntArrayList positions = new TIntArrayList(keys.size());
+    if (list == null) {
+      return positions;
+    }
+    for (String key : keys) {
+      // The bindings are terms as stored, so they are not formatted again.
+      int id = store.getTermId(key);
+      int i = id < 0 ? -1 : list.indexOf(id);
+      if (i >= start && i < end) {
+        positions.add(i);
+      }
+    }
+    return positions;
+  }
+
+  public long getNumAnswers() throws SQLException {
+    findList();
+    return end - start;
+  }
+
+  public double getScoreUpperBound() {
+    return Config.scoreMultipler;
+  }
+
+  public List<Answer> probe(String var, Collection<String> keys) throws SQLException {
+    if (!var.equals(getVariable())) {
+      return null;
+    }
+    findList();
+    TIntArrayList positions = getPositions(keys);
+    List<Answer> matches = Lists.newArrayListWithCapacity(positions.size());
+    try {
+      for (int i = 0; i < positions.size(); i++) {
+        matches.add(getAnswer(positions.get(i)));
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    return matches;
+  }
+
+  public Double getMaxScore() {
+    return this.maxScore;
+  }
+
+  public void setScoreThreshold(double threshold) {
+    if (threshold > scoreThreshold) {
+      scoreThreshold = threshold;
+    }
+  }
+
+  public void setNeededVariables(Set<String> neededVariables) {
+    this.neededVariables = neededVariables;
+  }
+
+  private boolean isNeeded(String var) {
+    return neededVariables == null || neededVariables.contains(var);
+  }
+
+  public String getPartQuery() {
+    return this.input.toString();
+  }
+}
@@ -0,0 +1,253 @@
+package de.mpii.trinitreloaded.queryprocessing;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import de.mpii.trinitreloaded.datastructures.Answer;
+import de.mpii.trinitreloaded.datastructures.HashMapBasedAnswer;
+import de.mpii.trinitreloaded.utils.Config.LoggingLevel;
+import de.mpii.trinitreloaded.utils.Logger;
+
+/**
+ * An operator which reads the answers of its input ahead of the consumer.
+ *
+ * On {@code open()}, a background thread opens the input and moves its answers, in order, into
+ * a bounded buffer. The consumer only blocks when the buffer is empty, so the database latency of
+ * all the leaves of an operator tree overlaps instead of adding up. The background thread stops
+ * when the buffer is full and resumes as the consumer reads.
+ *
+ * The input must not be used by anyone else between {@code open()} and {@code close()}. So a key
+ * filter, see {@link KeyFilteredOperator}, is passed on to the input by the background thread,
+ * between two answers; the answers already in the buffer are returned as they are.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class PrefetchingOperator implements ThresholdedOperator, KeyFilteredOperator,
+    RandomAccessOperator {
+
+  /** Marks the end of the input in the buffer. */
+  private static final Answer END_OF_INPUT = new HashMapBasedAnswer(false);
+  private static final long OFFER_TIMEOUT_MS = 10;
+
+  /**
+   * A key filter waiting to be passed on to the input.
+   */
+  private static class KeyFilter {
+    final String var;
+    final Set<String> keys;
+
+    KeyFilter(String var, Set<String> keys) {
+      this.var = var;
+      this.keys = keys;
+    }
+  }
+
+  final Operator operator;
+  final BlockingQueue<Answer> buffer;
+
+  Thread reader;
+  volatile boolean isClosing;
+  volatile Exception failure;
+  volatile KeyFilter pendingKeyFilter;
+  boolean isOpen;
+  boolean isExhausted;
+  Answer current;
+
+  public PrefetchingOperator(Operator operator, int bufferSize) {
+    this.operator = operator;
+    this.buffer = new ArrayBlockingQueue<Answer>(bufferSize);
+  }
+
+  public boolean open() throws SQLException {
+    if (isOpen) {
+      return true;
+    }
+    isOpen = true;
+    isClosing = false;
+    isExhausted = false;
+    current = null;
+    reader = new Thread(new Runnable() {
+      public void run() {
+        readAhead();
+      }
+    }, "prefetch-" + operator.getPartQuery());
+    reader.setDaemon(true);
+    reader.start();
+    return true;
+  }
+
+  /**
+   * Runs on the background thread: moves the answers of the input into the buffer until the
+   * input is exhausted or the operator is closed.
+   */
+  private void readAhead() {
+    try {
+      operator.open();
+      while (!isClosing && applyKeyFilter() && operator.hasNext()) {
+        if (!put(operator.next())) {
+          break;
+        }
+      }
+    } catch (Exception e) {
+      failure = e;
+    }
+    Logger.println("Prefetching of " + operator.getPartQuery() + " done.",
+        LoggingLevel.INTERMEDIATEINFO);
+    put(END_OF_INPUT);
+  }
+
+  /**
+   * Runs on the background thread: passes the pending key filter, if any, on to the input.
+   *
+   * @return {@code true}, so it can be called in the condition of the read loop.
+   */
+  private boolean applyKeyFilter() throws SQLException {
+    KeyFilter filter = pendingKeyFilter;
+    if (filter != null) {
+      pendingKeyFilter = null;
+      ((KeyFilteredOperator) operator).setKeyFilter(filter.var, filter.keys);
+    }
+    return true;
+  }
+
+  /**
+   * Adds an answer to the buffer, waiting for the consumer while it is full.
+   *
+   * @return {@code false} if the operator was closed, or the thread interrupted, before the
+   *         answer could be added.
+   */
+  private boolean put(Answer a) {
+    try {
+      while (!isClosing) {
+        if (buffer.offer(a, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+          return true;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return false;
+  }
+
+  public boolean hasNext() throws SQLException {
+    if (current != null) {
+      return true;
+    }
+    if (isExhausted) {
+      return false;
+    }
+    Answer a;
+    try {
+      a = buffer.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for " + operator.getPartQuery(), e);
+    }
+    if (a == END_OF_INPUT) {
+      isExhausted = true;
+      if (failure != null) {
+        throw new SQLException("Prefetching " + operator.getPartQuery() + " failed.", failure);
+      }
+      return false;
+    }
+    current = a;
+    return true;
+  }
+
+  public Answer next() throws SQLException {
+    if (!hasNext()) {
+      throw new NoSuchElementException("No more results.");
+    }
+    Answer tuple = current;
+    current = null;
+    return tuple;
+  }
+
+  public boolean close() throws SQLException {
+    if (!isOpen) {
+      return true;
+    }
+    isClosing = true;
+    try {
+      reader.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    buffer.clear();
+    isOpen = false;
+    return operator.close();
+  }
+
+  /**
+   * Returns the operator read ahead, e.g. for a plan to use it directly instead.
+   */
+  public Operator getOperator() {
+    return operator;
+  }
+
+  /**
+   * Passes the threshold on to the input, so that the background thread stops reading ahead
+   * once the input falls below it.
+   */
+  public void setScoreThreshold(double threshold) {
+    if (operator instanceof ThresholdedOperator) {
+      ((ThresholdedOperator) operator).setScoreThreshold(threshold);
+    }
+  }
+
+  /**
+   * Passes the key filter on to the input. If the input is being read ahead, the background
+   * thread does so before reading its next answer.
+   */
+  public void setKeyFilter(String var, Set<String> keys) throws SQLException {
+    if (!(operator instanceof KeyFilteredOperator)) {
+      return;
+    }
+    if (isOpen) {
+      pendingKeyFilter = new KeyFilter(var, keys);
+    } else {
+      ((KeyFilteredOperator) operator).setKeyFilter(var, keys);
+    }
+  }
+
+  public long getNumAnswers() throws SQLException {
+    if (operator instanceof RandomAccessOperator) {
+      return ((RandomAccessOperator) operator).getNumAnswers();
+    }
+    return -1;
+  }
+
+  public double getScoreUpperBound() throws SQLException {
+    if (operator instanceof RandomAccessOperator) {
+      return ((RandomAccessOperator) operator).getScoreUpperBound();
+    }
+    return Double.POSITIVE_INFINITY;
+  }
+
+  /**
+   * Looks up the answers of the input directly. Since the input is not opened for that, nothing
+   * is read ahead if the operator is only probed.
+   */
+  public List<Answer> probe(String var, Collection<String> keys) throws SQLException {
+    if (operator instanceof RandomAccessOperator) {
+      return ((RandomAccessOperator) operator).probe(var, keys);
+    }
+    return null;
+  }
+
+  public String getPartQuery() {
+    return operator.getPartQuery();
+  }
+
+  @Override
+  public String toString() {
+    return "PrefetchingOperator [operator=" + operator + "]";
+  }
+}
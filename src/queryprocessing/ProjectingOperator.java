@@ -0,0 +1,21 @@
+package de.mpii.trinitreloaded.queryprocessing;
+
+import java.util.Set;
+
+/**
+ * An {@link Operator} which can drop the bindings of variables not needed by its consumers.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public interface ProjectingOperator extends Operator {
+
+  /**
+   * Restricts the answers of the operator to bindings of {@code neededVariables}. Bindings of
+   * other variables are neither decoded nor copied. It must be called before {@code open()}.
+   *
+   * @param neededVariables The variables to keep, or {@code null} to keep all.
+   */
+  public void setNeededVariables(Set<String> neededVariables);
+
+}
@@ -1,9 +1,12 @@
 package de.mpii.trinitreloaded.queryprocessing;
 
+import gnu.trove.list.TDoubleList;
+import gnu.trove.list.array.TDoubleArrayList;
+
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -17,6 +20,8 @@ import com.google.common.collect.Sets;
 import de.mpii.trinitreloaded.datastructures.Answer;
 import de.mpii.trinitreloaded.datastructures.LogicalQueryPlan;
 import de.mpii.trinitreloaded.datastructures.MultiBucketHistogram;
+import de.mpii.trinitreloaded.datastructures.PatternStatistics;
+import de.mpii.trinitreloaded.datastructures.QuantileSketchDistribution;
 import de.mpii.trinitreloaded.datastructures.TriplePatternInPlan;
 import de.mpii.trinitreloaded.datastructures.ProbabilityDistribution;
 import de.mpii.trinitreloaded.datastructures.Query;
@@ -28,6 +33,10 @@ import de.mpii.trinitreloaded.utils.Config.PlanType;
 import de.mpii.trinitreloaded.utils.Convolution;
 import de.mpii.trinitreloaded.utils.DBConnection;
 import de.mpii.trinitreloaded.utils.Logger;
+import de.mpii.trinitreloaded.utils.SQLTemplateCache;
+import de.mpii.trinitreloaded.utils.ScoreDistributionCache;
+import de.mpii.trinitreloaded.utils.ScoredDataTable;
+import de.mpii.trinitreloaded.utils.Shards;
 import de.mpii.trinitreloaded.utils.Timer;
 
 /**
@@ -47,11 +56,17 @@ public class QueryPlanner {
   ProbabilityDistribution allTriplePatternJoinPDF;
   public long duration;
   PlanType planType;
+  /** SQL templates of the join cardinality probes of this query, keyed by their shape. */
+  private final HashMap<String, String> cardinalityTemplates;
+  /** The join cardinalities computed while planning this query, by join signature. */
+  private final HashMap<String, Double> joinCardinalities;
 
   public QueryPlanner(Query q) {
     this.q = q;
     this.triplePatternPDFs = new ArrayList<ProbabilityDistribution>();
     this.duration = 0;
+    this.cardinalityTemplates = new HashMap<String, String>();
+    this.joinCardinalities = new HashMap<String, Double>();
   }
 
   /**
@@ -85,6 +100,24 @@ public class QueryPlanner {
     }
   }
 
+  /**
+   * Returns the variables whose bindings are needed to execute the query: the projection
+   * variables and the join variables, i.e., those occurring in more than one
+   * {@link TriplePattern}. Bindings of all other variables can be dropped by the scans.
+   */
+  Set<String> getNeededVariables() {
+    Set<String> needed = Sets.newHashSet(q.projectionVariables);
+    Set<String> seen = Sets.newHashSet();
+    for (TriplePattern tp : q.triplePatterns) {
+      for (String var : tp.variables()) {
+        if (!seen.add(var)) {
+          needed.add(var);
+        }
+      }
+    }
+    return needed;
+  }
+
   /**
    * Generates a {@link LogicalQueryPlan} for the original query without any relaxations.
    *
@@ -97,7 +130,8 @@ public class QueryPlanner {
       newPartition.add(q.triplePatterns.get(i));
     }
     plan.add(new TriplePatternInPlan(newPartition, false));
-    LogicalQueryPlan queryplan = new LogicalQueryPlan(plan, Config.PlanType.ORIGINAL);
+    LogicalQueryPlan queryplan = new LogicalQueryPlan(plan, Config.PlanType.ORIGINAL,
+        q.projectionVariables, getNeededVariables());
     return queryplan;
   }
 
@@ -113,7 +147,8 @@ public class QueryPlanner {
       tpSet.add(q.triplePatterns.get(i));
       plan.add(new TriplePatternInPlan(tpSet, true));
     }
-    LogicalQueryPlan queryplan = new LogicalQueryPlan(plan, Config.PlanType.NONSPECULATIVE);
+    LogicalQueryPlan queryplan = new LogicalQueryPlan(plan, Config.PlanType.NONSPECULATIVE,
+        q.projectionVariables, getNeededVariables());
     return queryplan;
   }
 
@@ -159,7 +194,8 @@ public class QueryPlanner {
     }
     if(mainPartition.size()>0)
       plan.add(new TriplePatternInPlan(mainPartition,false));
-    LogicalQueryPlan queryplan = new LogicalQueryPlan(plan, this.planType);
+    LogicalQueryPlan queryplan = new LogicalQueryPlan(plan, this.planType,
+        q.projectionVariables, getNeededVariables());
     // timer.stop();
     // timer.getDuration();
     return queryplan;
@@ -172,6 +208,7 @@ public class QueryPlanner {
   private void constructAllTriplePatternsJoinPDF() {
 
     allTriplePatternJoinPDF = this.triplePatternPDFs.get(0);
+    getJoinCardinalities(getPrefixes(), false, null, -1);
     for (int j = 1; j < this.q.triplePatterns.size(); j++) {
       double joinCardinality = getJoinCardinality(j);
       double joinSelectivity =
@@ -182,6 +219,8 @@ public class QueryPlanner {
       if (joinCardinality == 0) {
         if(Config.histType==Config.HistogramType.POWERLAW)
           allTriplePatternJoinPDF = new ScoreProbabilityDistributionFunction(0.0,0.0,0.0,0,0);
+        else if(Config.histType==Config.HistogramType.SKETCH)
+          allTriplePatternJoinPDF = new QuantileSketchDistribution();
         else
           allTriplePatternJoinPDF = new MultiBucketHistogram(new ArrayList<Double>(),new ArrayList<Double>(),0.0,0,0.0,0);
         return;
@@ -196,6 +235,18 @@ public class QueryPlanner {
     }
   }
 
+  /**
+   * Returns the prefixes of the {@link Query} which are joined, by the index of their last
+   * {@link TriplePattern}, so their cardinalities can be computed together.
+   */
+  private List<Integer> getPrefixes() {
+    List<Integer> prefixes = Lists.newArrayList();
+    for (int j = 1; j < this.q.triplePatterns.size(); j++) {
+      prefixes.add(j);
+    }
+    return prefixes;
+  }
+
   /**
    * Computes the join cardinality without relaxation.
    *
@@ -225,15 +276,283 @@ public class QueryPlanner {
    */
   private double getJoinCardinality(int endIndex, boolean relaxation, TriplePattern relaxed,
       int relaxedIndex) {
+    return getJoinCardinalities(Lists.newArrayList(endIndex), relaxation, relaxed,
+        relaxedIndex)[0];
+  }
+
+  /**
+   * Computes the join cardinalities of several prefixes of the {@link Query}, with the same
+   * relaxation, as {@code getJoinCardinality()} does for one.
+   *
+   * The cardinalities are kept for the rest of the planning under the signature of the join, so
+   * a prefix is counted once, whether it is reached with or without a relaxation after it. A join
+   * extending an empty one is empty without counting. The prefixes which have to be counted in
+   * the database are counted with one query if {@code batchCardinalityProbes} is set.
+   */
+  private double[] getJoinCardinalities(List<Integer> endIndexes, boolean relaxation,
+      TriplePattern relaxed, int relaxedIndex) {
+    double[] cardinalities = new double[endIndexes.size()];
+    List<Integer> probes = Lists.newArrayList();
+    for (int p = 0; p < endIndexes.size(); p++) {
+      int endIndex = endIndexes.get(p);
+      List<TriplePattern> tps = Lists.newArrayList();
+      for (int i = 0; i <= endIndex; i++) {
+        tps.add(i == relaxedIndex && relaxation ? relaxed : this.q.triplePatterns.get(i));
+      }
+      Double cardinality = getKnownCardinality(tps, relaxation ? relaxedIndex : -1);
+      if (cardinality == null && Config.isSyntheticData) {
+        cardinality = SyntheticData.estimateJoinCardinality(tps);
+      }
+      if (cardinality == null && Config.isRDFDB && Config.useTDB && !Config.isSyntheticData) {
+        // The data is only in the TDB dataset, so the join is counted there.
+        cardinality = (double) TDBScan.countJoin(tps);
+        Logger.println("Join cardinality of " + tps + " in TDB: " + cardinality,
+            LoggingLevel.VARIABLEVALUES);
+      }
+      if (cardinality == null && !Config.exactJoinCardinality && !Config.isRDFDB) {
+        double estimate = JoinCardinalityEstimator.estimate(tps);
+        if (!Double.isNaN(estimate)) {
+          Logger.println("Estimated join cardinality of " + tps + ": " + estimate,
+              LoggingLevel.VARIABLEVALUES);
+          cardinality = estimate;
+        }
+      }
+      if (cardinality != null) {
+        this.joinCardinalities.put(getJoinSignature(tps, relaxation ? relaxedIndex : -1),
+            cardinality);
+        cardinalities[p] = cardinality;
+      } else if (Config.batchCardinalityProbes) {
+        probes.add(p);
+      } else {
+        List<Integer> probe = Lists.newArrayList(p);
+        countJoins(endIndexes, probe, relaxation, relaxed, relaxedIndex, cardinalities);
+      }
+    }
+    if (!probes.isEmpty()) {
+      countJoins(endIndexes, probes, relaxation, relaxed, relaxedIndex, cardinalities);
+    }
+    return cardinalities;
+  }
+
+  /**
+   * Returns the cardinality of the join of {@code tps} known from earlier in the planning, 0 if
+   * the join of some of its first patterns is known to be empty, or {@code null}.
+   *
+   * @param relaxedIndex The index of the relaxed {@link TriplePattern}, -1 if there is none.
+   */
+  private Double getKnownCardinality(List<TriplePattern> tps, int relaxedIndex) {
+    for (int i = 0; i < tps.size(); i++) {
+      Double cardinality =
+          this.joinCardinalities.get(getJoinSignature(tps.subList(0, i + 1), relaxedIndex));
+      if (cardinality != null && (cardinality == 0 || i == tps.size() - 1)) {
+        return cardinality;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the signature of the join of {@code tps}, which determines its count: the patterns,
+   * and whether the relaxed one, which is matched in its own table, is among them.
+   */
+  private static String getJoinSignature(List<TriplePattern> tps, int relaxedIndex) {
+    List<String> patterns = Lists.newArrayList();
+    for (int i = 0; i < tps.size(); i++) {
+      TriplePattern tp = tps.get(i);
+      patterns.add(tp.subject + " " + tp.predicate + " " + tp.object + " "
+          + (i == relaxedIndex ? tp.isObjectResource : "-"));
+    }
+    return Joiner.on(" . ").join(patterns);
+  }
+
+  /**
+   * Counts the joins of the prefixes {@code endIndexes} at the positions {@code probes} in the
+   * database, with one query, and records their cardinalities in {@code cardinalities} and for
+   * the rest of the planning. A count which fails is taken as 0 but not kept.
+   */
+  private void countJoins(List<Integer> endIndexes, List<Integer> probes, boolean relaxation,
+      TriplePattern relaxed, int relaxedIndex, double[] cardinalities) {
+    List<String> cmds = Lists.newArrayList();
+    List<String> params = Lists.newArrayList();
+    int[] numSubjects = new int[probes.size()];
+    int[] subjectShards = new int[probes.size()];
+    for (int k = 0; k < probes.size(); k++) {
+      int endIndex = endIndexes.get(probes.get(k));
+      // The relaxed pattern only differs from the original in its constants, so the template is
+      // fixed by the prefix length, the relaxed position and the table the relaxed pattern uses.
+      String shape = endIndex + ":"
+          + (relaxation ? relaxedIndex + ":" + relaxed.isObjectResource : "-");
+      String cmd = this.cardinalityTemplates.get(shape);
+      if (cmd == null) {
+        cmd = getJoinCardinalityCommand(endIndex, relaxation, relaxed, relaxedIndex);
+        this.cardinalityTemplates.put(shape, cmd);
+      }
+      cmds.add(cmd);
+
+      Set<String> subjects = Sets.newHashSet();
+      Set<String> constantSubjects = Sets.newHashSet();
+      TriplePattern tp = null;
+      for (int i = 0; i <= endIndex; i++) {
+        if (i == relaxedIndex && relaxation) {
+          tp = relaxed;
+        } else {
+          tp = this.q.triplePatterns.get(i);
+        }
+        if (tp.isSubjectConst) {
+          constantSubjects.add(formatParameter(tp.subject));
+          params.add(formatParameter(tp.subject));
+        } else {
+          subjects.add(tp.subject);
+        }
+        if (tp.isPredicateConst) {
+          params.add(formatParameter(tp.predicate));
+        }
+        if (tp.isObjectConst) {
+          params.add(formatParameter(tp.object));
+        }
+      }
+      numSubjects[k] = subjects.size();
+      subjectShards[k] = Shards.isSharded() ? getSubjectShard(constantSubjects) : -1;
+    }
+    String cmd = cmds.get(0);
+    if (cmds.size() > 1) {
+      // One round trip, each count tagged with its position.
+      List<String> unions = Lists.newArrayList();
+      for (int k = 0; k < cmds.size(); k++) {
+        unions.add("SELECT " + k + " AS probe, tcount FROM (" + cmds.get(k) + ") c" + k);
+      }
+      cmd = Joiner.on(" UNION ALL ").join(unions);
+    }
+
+    long[] counts;
+    try {
+      if (Shards.isSharded()) {
+        counts = getShardedJoinCardinalities(cmd, params, numSubjects, subjectShards);
+      } else {
+        counts = countJoins(DBConnection.getConnection(), cmd, params, probes.size());
+      }
+    } catch (SQLException e) {
+      e.printStackTrace();
+      return;
+    }
+    for (int k = 0; k < probes.size(); k++) {
+      int p = probes.get(k);
+      List<TriplePattern> tps = Lists.newArrayList();
+      for (int i = 0; i <= endIndexes.get(p); i++) {
+        tps.add(i == relaxedIndex && relaxation ? relaxed : this.q.triplePatterns.get(i));
+      }
+      cardinalities[p] = counts[k];
+      this.joinCardinalities.put(getJoinSignature(tps, relaxation ? relaxedIndex : -1),
+          (double) counts[k]);
+    }
+  }
+
+  /**
+   * Runs the count query {@code cmd} of {@code numProbes} joins on {@code conn}, and closes it.
+   */
+  private static long[] countJoins(Connection conn, String cmd, List<String> params,
+      int numProbes) throws SQLException {
+    long[] counts = new long[numProbes];
+    PreparedStatement stmt = null;
+    ResultSet rs = null;
+    try {
+      Logger.println("Querying for join cardinality:" + cmd + " with " + params,
+          LoggingLevel.VARIABLEVALUES);
+      stmt = SQLTemplateCache.prepare(conn, cmd, params);
+      rs = stmt.executeQuery();
+      while (rs.next()) {
+        counts[numProbes > 1 ? rs.getInt("probe") : 0] = rs.getLong("tcount");
+      }
+    } finally {
+      try {
+        if (rs != null) {
+          rs.close();
+        }
+        if (stmt != null) {
+          stmt.close();
+        }
+        conn.close();
+      } catch (Exception e) {
+      }
+    }
+    return counts;
+  }
+
+  /**
+   * Returns the shard of the constant subjects of a join, -1 if it has none, or -2 if they are on
+   * different shards.
+   */
+  private static int getSubjectShard(Set<String> constantSubjects) {
+    int shard = -1;
+    for (String subject : constantSubjects) {
+      int subjectShard = Shards.getShard(subject);
+      if (shard >= 0 && subjectShard != shard) {
+        return -2;
+      }
+      shard = subjectShard;
+    }
+    return shard;
+  }
 
+  /**
+   * Computes join cardinalities over sharded data, by counting the joins on all shards in
+   * parallel. Answers joining on the subject are on the same shard, so the sum of the counts is
+   * exact if all patterns share their subject. Otherwise each further variable subject only joins
+   * with the matches on one of the shards, and the sum is scaled up accordingly. The matches of a
+   * constant subject are all on its shard, so each variable subject only joins with them on that
+   * shard. Joins whose constant subjects are on different shards have no answers on any single
+   * shard, so they are counted on the main database, which holds all the data.
+   *
+   * @param numSubjects The number of distinct variable subjects of the {@link TriplePattern} of
+   *        each join.
+   * @param subjectShards The shard of the constant subjects of each join, see
+   *        {@code getSubjectShard()}.
+   */
+  private long[] getShardedJoinCardinalities(final String cmd, final List<String> params,
+      final int[] numSubjects, int[] subjectShards) throws SQLException {
+    for (int shard : subjectShards) {
+      if (shard == -2) {
+        return countJoins(DBConnection.getConnection(), cmd, params, numSubjects.length);
+      }
+    }
+    List<long[]> shardCounts = Shards.scatter(new Shards.ShardTask<long[]>() {
+      public long[] run(int shard) throws SQLException {
+        return countJoins(DBConnection.getConnection(shard), cmd, params, numSubjects.length);
+      }
+    });
+    long[] counts = new long[numSubjects.length];
+    for (int k = 0; k < counts.length; k++) {
+      long count = 0;
+      for (long[] shardCount : shardCounts) {
+        count += shardCount[k];
+      }
+      // Without a constant subject, the first variable subject may be on any shard.
+      int numScaled = subjectShards[k] < 0 ? Math.max(0, numSubjects[k] - 1) : numSubjects[k];
+      counts[k] = (long) (count * Math.pow(Shards.getNumShards(), numScaled));
+    }
+    return counts;
+  }
+
+  /**
+   * Builds the parameterized SQL template counting the join of the first {@code endIndex}
+   * {@link TriplePattern}. The constants of the patterns are left as placeholders, in
+   * subject, predicate, object order of each pattern.
+   */
+  private String getJoinCardinalityCommand(int endIndex, boolean relaxation,
+      TriplePattern relaxed, int relaxedIndex) {
     String cmd = "SELECT count(*) as tcount FROM " ;
     
     char tbl_name = 'a';
     List<String> tblClause = Lists.newArrayList();
+    boolean isPreJoined = false;
     if(!Config.isSyntheticData){
       for (int i = 0; i <= endIndex; i++) {
         if (i == relaxedIndex && relaxation && !relaxed.isObjectResource) {
           tblClause.add(Config.textualTypeDataTableName + " " + tbl_name);
+        } else if (i == 0 && ScoredDataTable.isAvailable()) {
+          // The scored matches already only hold subjects with a score.
+          tblClause.add(Config.scoredDataTableName + " " + tbl_name);
+          isPreJoined = true;
         } else {
           tblClause.add(Config.dataTableName + " " + tbl_name);
         }
@@ -249,7 +568,7 @@ public class QueryPlanner {
     
     cmd += Joiner.on(" , ").join(tblClause);
     /* Needed for evaluating exact counts.*/
-    if(!Config.isSyntheticData){
+    if(!Config.isSyntheticData && !isPreJoined){
       cmd += ", " + Config.scoreTableName + " WHERE a.subject=entity AND "; // TODO: This is assuming that all the queries query for only one resource.
     }
     else
@@ -267,53 +586,25 @@ public class QueryPlanner {
         tp = this.q.triplePatterns.get(i);
       }
       if (tp.isSubjectConst) {
-        whereClause.add(tblname + ".subject='" + format(tp.subject) + "' ");
+        whereClause.add(tblname + ".subject=? ");
       } else {
         whereClause.add(tblname + ".subject=" + mapOfVariablesToRelations.get(tp.subject) + " ");
       }
       if (tp.isPredicateConst) {
-        whereClause.add(tblname + ".predicate='" + format(tp.predicate) + "' ");
+        whereClause.add(tblname + ".predicate=? ");
       } else {
         whereClause
         .add(tblname + ".predicate=" + mapOfVariablesToRelations.get(tp.predicate) + " ");
       }
       if (tp.isObjectConst) {
-        whereClause.add(tblname + ".object='" + format(tp.object) + "' ");
+        whereClause.add(tblname + ".object=? ");
       } else {
         whereClause.add(tblname + ".object=" + mapOfVariablesToRelations.get(tp.object) + " ");
       }
       tblname++;
     }
     cmd += Joiner.on(" AND ").join(whereClause);
-    Long count = (long) 0;
-    Connection conn = null;
-    Statement stmt = null;
-    ResultSet rs = null;
-    try {
-      conn = DBConnection.getConnection();
-      stmt = conn.createStatement();
-      Logger.println("Querying for join cardinality:" + cmd, LoggingLevel.VARIABLEVALUES);
-      rs = stmt.executeQuery(cmd);
-      while (rs.next()) {
-        count = rs.getLong("tcount");
-      }
-    } catch (SQLException e) {
-      e.printStackTrace();
-    } finally {
-      try {
-        if (rs != null) {
-          rs.close();
-        }
-        if (stmt != null) {
-          stmt.close();
-        }
-        if (conn != null) {
-          conn.close();
-        }
-      } catch (Exception e) {
-      }
-    }
-    return count;
+    return cmd;
   }
 
   /**
@@ -451,6 +742,7 @@ public class QueryPlanner {
       return null;
     }
     ProbabilityDistribution relaxationJoinPDF = this.triplePatternPDFs.get(0);
+    getJoinCardinalities(getPrefixes(), true, tp_relaxed, i);
 
     for (int j = 1; j < this.q.triplePatterns.size(); j++) {
       if (j != i) {
@@ -527,12 +819,14 @@ public class QueryPlanner {
         fetchField1 = "semantic_type";
         fetchField2 = "prob_semantic_type_given_textual_type";
       }
-      String cmd =
-          "SELECT " + fetchField1 + "," + fetchField2 + " FROM " + relaxationRelationalTable
-          + " WHERE " + seekField + " = '" + tp.object + "' ORDER BY " + fetchField2
-          + " DESC LIMIT 1";
       field = 2;
-      topmostRelaxation = getRelaxationFromDB(cmd,field);
+      if(Config.isSyntheticData){
+        topmostRelaxation = getSyntheticRelaxation(tp.object, field);
+      } else {
+        String cmd = getRelaxationCommand(fetchField1, fetchField2, relaxationRelationalTable,
+            seekField);
+        topmostRelaxation = getRelaxationFromDB(cmd,tp.object,field);
+      }
     }
 
     if(!Config.onlyObjectRelaxed){ // If relaxation is allowed for predicates and subjects, check for them.
@@ -552,12 +846,10 @@ public class QueryPlanner {
           fetchField1 = "paraphrase";
           fetchField2 = "cp";
         }
-        String cmd =
-            "SELECT " + fetchField1 + "," + fetchField2 + " FROM " + relaxationRelationalTable
-            + " WHERE " + seekField + " = '" + tp.predicate + "' ORDER BY " + fetchField2
-            + " DESC LIMIT 1";
+        String cmd = getRelaxationCommand(fetchField1, fetchField2, relaxationRelationalTable,
+            seekField);
         field = 1;
-        Relaxation rP = getRelaxationFromDB(cmd,field);
+        Relaxation rP = getRelaxationFromDB(cmd,tp.predicate,field);
         if(topmostRelaxation==null)
           topmostRelaxation = rP;
         if(rP!=null && topmostRelaxation.weight<rP.weight)
@@ -578,12 +870,10 @@ public class QueryPlanner {
           fetchField1 = "semantic_type";
           fetchField2 = "prob_semantic_type_given_textual_type";
         }
-        String cmd =
-            "SELECT " + fetchField1 + "," + fetchField2 + " FROM " + relaxationRelationalTable
-            + " WHERE " + seekField + " = '" + tp.subject + "' ORDER BY " + fetchField2
-            + " DESC LIMIT 1";
+        String cmd = getRelaxationCommand(fetchField1, fetchField2, relaxationRelationalTable,
+            seekField);
         field = 0;
-        Relaxation rS = getRelaxationFromDB(cmd,field);
+        Relaxation rS = getRelaxationFromDB(cmd,tp.subject,field);
         if(topmostRelaxation==null)
           topmostRelaxation = rS;
         if(rS!=null && topmostRelaxation.weight<rS.weight)
@@ -593,15 +883,25 @@ public class QueryPlanner {
     return topmostRelaxation;
   }
 
-  private Relaxation getRelaxationFromDB(String cmd, int field) {
+  /**
+   * Returns the topmost relaxation of a constant in the {@link SyntheticData}.
+   */
+  private Relaxation getSyntheticRelaxation(String seekFieldVal, int field) {
+    List<String> relaxations = Lists.newArrayList();
+    TDoubleList weights = new TDoubleArrayList();
+    SyntheticData.getRelaxations(seekFieldVal, 1, relaxations, weights);
+    return new Relaxation(relaxations.get(0), weights.get(0), field);
+  }
+
+  private Relaxation getRelaxationFromDB(String cmd, String seekFieldVal, int field) {
     Connection conn = null;
-    Statement statement = null;
+    PreparedStatement statement = null;
     ResultSet rs = null;
     try {
       conn = DBConnection.getConnection();
-      Logger.print("Getting relaxation:" + cmd, LoggingLevel.VARIABLEVALUES);
-      statement = conn.createStatement();
-      rs = statement.executeQuery(cmd);
+      Logger.print("Getting relaxation:" + cmd + " for " + seekFieldVal, LoggingLevel.VARIABLEVALUES);
+      statement = SQLTemplateCache.prepare(conn, cmd, Lists.<Object>newArrayList(seekFieldVal, 1));
+      rs = statement.executeQuery();
       while (rs.next()) {
         return new Relaxation(rs.getString(1), rs.getDouble(2), field);
       }
@@ -624,6 +924,33 @@ public class QueryPlanner {
     return null;
   }
 
+  /**
+   * Returns the parameterized SQL template looking up the most likely relaxations of a constant.
+   * Its parameters are the constant to be relaxed and the maximum number of relaxations.
+   *
+   * @param fetchField1
+   *          The column holding the relaxation.
+   * @param fetchField2
+   *          The column holding the weight of the relaxation.
+   * @param relaxationRelationalTable
+   *          The paraphrase table to look up.
+   * @param seekField
+   *          The column holding the constant to be relaxed.
+   * @return The SQL template.
+   */
+  static String getRelaxationCommand(String fetchField1, String fetchField2,
+      String relaxationRelationalTable, String seekField) {
+    String shape = "Relaxation:" + relaxationRelationalTable + ":" + seekField + ":" + fetchField1
+        + ":" + fetchField2;
+    String cmd = SQLTemplateCache.get(shape);
+    if (cmd == null) {
+      cmd = SQLTemplateCache.put(shape,
+          "SELECT " + fetchField1 + "," + fetchField2 + " FROM " + relaxationRelationalTable
+          + " WHERE " + seekField + " = ? ORDER BY " + fetchField2 + " DESC LIMIT ?");
+    }
+    return cmd;
+  }
+
   /**
    * Constructs the {@link ProbabilityDistribution} of a weighted {@link TriplePattern}
    * .
@@ -637,13 +964,19 @@ public class QueryPlanner {
    * @return The {@link ProbabilityDistribution} of {@code tp}.
    */
   private ProbabilityDistribution generatePDF(TriplePattern tp, double weight) {
-    ProbabilityDistribution pdf = null;
+    ProbabilityDistribution pdf = ScoreDistributionCache.get(tp, weight);
+    if (pdf != null) {
+      return pdf;
+    }
 
     if(Config.histType==Config.HistogramType.POWERLAW)
       pdf = get2BucketPDF(tp, weight);
+    else if(Config.histType==Config.HistogramType.SKETCH)
+      pdf = getSketchPDF(tp, weight);
     else
       pdf = getMultiBucketPDF(tp, weight);
 
+    ScoreDistributionCache.put(tp, weight, pdf);
     return pdf;
   }
 
@@ -656,6 +989,14 @@ public class QueryPlanner {
    */
   private ProbabilityDistribution get2BucketPDF(TriplePattern tp, double weight) {
     ProbabilityDistribution pdf = null;
+    PatternStatistics stats = ScoreAggregation.getStatistics(tp);
+    if (stats != null && stats.hasInflectionRank()) {
+      Logger.println("RankR for:" + tp + " is:" + stats.inflectionRank + " (aggregated)",
+          LoggingLevel.VARIABLEVALUES);
+      return new ScoreProbabilityDistributionFunction(stats.scoreAtInflectionRank * weight,
+          stats.cumulativeScoreAtInflectionRank * weight, stats.totalScore * weight,
+          stats.numberOfResults, stats.maxScore * weight);
+    }
     long inflectionRank = 0;
     double totalCumulativeScore= 0;
     if(Config.adaptiveInflectionRank)
@@ -663,22 +1004,7 @@ public class QueryPlanner {
     else
       inflectionRank = Config.inflectionRank;
 
-    Operator sc;
-
-    if(Config.isSyntheticData){
-      if(Config.isRDFDB)
-        sc = new SyntheticRDFScan(tp, false);
-      else
-        sc = new SyntheticScan(tp, false);
-    }
-    else if(Config.isRDFDB)
-    {
-      sc = new PopularityBasedRDFScan(tp, false);
-    }
-    else
-    {
-      sc = new PopularityBasedScan(tp, false);
-    }
+    Operator sc = CodeGen.newScan(tp, false);
 
     long rankR = 0;
     try {
@@ -733,6 +1059,46 @@ public class QueryPlanner {
     return pdf;
   }
 
+  /**
+   * Function to generate a {@link QuantileSketchDistribution} for input {@link TriplePattern}.
+   *
+   * The sketch of a relaxation is the sketch of the relaxed pattern, which is cached, scaled by its
+   * weight, so the matches are not read again for each weight.
+   *
+   * @param tp Input {@link TriplePattern}.
+   * @param weight Weight, if the input {@code tp} is relaxed.
+   * @return A {@link QuantileSketchDistribution} for input {@link TriplePattern}.
+   */
+  private ProbabilityDistribution getSketchPDF(TriplePattern tp, double weight) {
+    if (weight != 1.0) {
+      QuantileSketchDistribution sketch = (QuantileSketchDistribution) generatePDF(tp, 1.0);
+      return sketch == null ? null : sketch.scale(weight);
+    }
+    QuantileSketchDistribution sketch = ScoreAggregation.getSketch(tp);
+    if (sketch != null) {
+      return sketch;
+    }
+    sketch = new QuantileSketchDistribution();
+    Operator sc = CodeGen.newScan(tp, false);
+    try {
+      sc.open();
+      while (sc.hasNext()) {
+        sketch.update(sc.next().getScore());
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      return null;
+    } finally {
+      try {
+        sc.close();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }
+    Logger.println("Sketch for " + tp + ": " + sketch, LoggingLevel.VARIABLEVALUES);
+    return sketch;
+  }
+
   /**
    * Function to generate a {@link MultiBucketHistogram} for input {@link TriplePattern}.
    * 
@@ -752,21 +1118,11 @@ public class QueryPlanner {
    * @return The sum of the scores from the matches of {@code tp}.
    */
   private double getSumOfTotalScore(TriplePattern tp) {
-    Operator sc;
-    if(Config.isSyntheticData){
-      if(Config.isRDFDB)
-        sc = new SyntheticRDFScan(tp, false);
-      else
-        sc = new SyntheticScan(tp, false);
-    }
-    else if(Config.isRDFDB)
-    {
-      sc = new PopularityBasedRDFScan(tp, false);
-    }
-    else
-    {
-      sc = new PopularityBasedScan(tp, false);
+    PatternStatistics stats = ScoreAggregation.getStatistics(tp);
+    if (stats != null) {
+      return stats.totalScore;
     }
+    Operator sc = CodeGen.newScan(tp, false);
     double totalScore = 0.0;
     try {
       sc.open();
@@ -784,7 +1140,14 @@ public class QueryPlanner {
   }
 
   public static String format(String str) {
-    str = str.replace("'", "''");
+    return formatParameter(str.replace("'", "''"));
+  }
+
+  /**
+   * Formats a constant to be bound as a parameter of a {@link PreparedStatement}. Unlike
+   * {@code format()}, quotes are not escaped since the driver takes care of them.
+   */
+  public static String formatParameter(String str) {
     if (!str.startsWith("<")) {
       return "<" + str + ">";
     } else {
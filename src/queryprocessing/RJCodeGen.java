@@ -10,6 +10,7 @@ import de.mpii.trinitreloaded.datastructures.LogicalQueryPlan;
 import de.mpii.trinitreloaded.datastructures.TriplePattern;
 import de.mpii.trinitreloaded.datastructures.TriplePatternInPlan;
 import de.mpii.trinitreloaded.utils.Config;
+import de.mpii.trinitreloaded.utils.Shards;
 
 /**
  * Executes the {@link LogicalQueryPlan} generated by {@link QueryPlanner} using the correct order
@@ -35,8 +36,9 @@ public class RJCodeGen extends CodeGen{
 
     /**
      * Create {@link IncrementalMerge} for single {@link TriplePattern}. Create
-     * {@link PopularityBasedScan} for triple patterns in conjunctive queries. Create {@link RankJoin} for all
-     * the operators.
+     * {@link PopularityBasedScan} for triple patterns in conjunctive queries, or a single
+     * {@link PopularityBasedDBJoinSort} if they are not relaxed and {@code dbJoinSort} is set.
+     * Create {@link RankJoin} for all the operators.
      */
     for (TriplePatternInPlan querySubset : plan) {
       switch (querySubset.getTPSet().size()) {
@@ -53,6 +55,19 @@ public class RJCodeGen extends CodeGen{
         variables.add(vars);
         break;
       default:
+        if (isJoinedInDB(querySubset)) {
+          ops.add(createJoinSort(querySubset.getTPSet()));
+          ArrayList<String> vars2 = new ArrayList<String>();
+          for (TriplePattern tp2 : querySubset.getTPSet()) {
+            for (String var : tp2.variables()) {
+              if (!vars2.contains(var)) {
+                vars2.add(var);
+              }
+            }
+          }
+          variables.add(vars2);
+          break;
+        }
         ops.addAll(createScans(querySubset.getTPSet()));
 
         ArrayList<TriplePattern> tp2 = new ArrayList<TriplePattern>();
@@ -78,25 +93,20 @@ public class RJCodeGen extends CodeGen{
     }
   }
 
+  /**
+   * Returns whether the patterns of a partition are joined by the database, in one operator.
+   * Relaxed partitions are not, since their relaxations are merged into each pattern's scan.
+   */
+  private boolean isJoinedInDB(TriplePatternInPlan querySubset) {
+    return Config.dbJoinSort && !querySubset.isRelaxed && !Config.isRDFDB && !Shards.isSharded();
+  }
 
   public ArrayList<Operator> createScans(Set<TriplePattern> querySubset) {
     ArrayList<TriplePattern> inputs = new ArrayList<TriplePattern>();
     inputs.addAll(querySubset);
     ArrayList<Operator> ops = new ArrayList<Operator>();
     for(TriplePattern tp:inputs){
-      if(Config.isSyntheticData){
-        if(Config.isRDFDB)
-          ops.add(new SyntheticRDFScan(tp));
-        else
-          ops.add(new SyntheticScan(tp));
-      }
-      else if(Config.isRDFDB){
-        ops.add(new PopularityBasedRDFScan(tp));
-      } 
-      else
-      {
-        ops.add(new PopularityBasedScan(tp));
-      }
+      ops.add(createScan(tp));
     }
     return ops;
   }
@@ -0,0 +1,40 @@
+package de.mpii.trinitreloaded.queryprocessing;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+
+import de.mpii.trinitreloaded.datastructures.Answer;
+
+/**
+ * An {@link Operator} whose answers can be looked up by the binding of a variable, without
+ * reading them in score order.
+ *
+ * An {@link IndexNestedLoopRankJoin} reads its other input in score order and looks up, in
+ * batches, only the answers of this one joining with it, instead of reading it as deep as the
+ * top-k stopping bound requires.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public interface RandomAccessOperator extends Operator {
+
+  /**
+   * Returns the number of answers of the operator, or -1 if it is not known.
+   */
+  public long getNumAnswers() throws SQLException;
+
+  /**
+   * Returns an upper bound of the scores of the answers of the operator.
+   */
+  public double getScoreUpperBound() throws SQLException;
+
+  /**
+   * Returns all answers binding {@code var} to one of {@code keys}, in any order, with the
+   * scores they have when read in score order. The operator need not be open.
+   *
+   * @return {@code null} if the operator does not bind {@code var}.
+   */
+  public List<Answer> probe(String var, Collection<String> keys) throws SQLException;
+
+}
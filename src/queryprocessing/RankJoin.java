@@ -6,6 +6,7 @@ import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.PriorityQueue;
 import java.util.Random;
+import java.util.Set;
 
 import com.beust.jcommander.internal.Lists;
 import com.google.common.base.Preconditions;
@@ -20,11 +21,13 @@ import de.mpii.trinitreloaded.utils.Logger;
  * A Rank Join operator as per Ilyas et al., 2003.
  *
  */
-public class RankJoin implements Operator {
+public class RankJoin implements ThresholdedOperator {
 
   public final Operator left;
   public final Operator right;
   public final String joinVar;
+  /** The variables copied into join results, {@code null} for all. */
+  Set<String> neededVariables;
 
   Random rand = new Random(2);
 
@@ -34,6 +37,14 @@ public class RankJoin implements Operator {
   private PriorityQueue<Answer> q;
   private double unseenUpperBound;
   boolean isOpen = false;
+  /** The number of answers the consumer reads, if known; 0 otherwise. */
+  int k;
+  /** The {@code k} highest scores of the join results produced so far. */
+  PriorityQueue<Double> topScores;
+  /** Join results scoring below it are of no use to the consumer. */
+  volatile double scoreThreshold = Double.NEGATIVE_INFINITY;
+  /** Set once the join keys of an exhausted input were considered for the other input. */
+  private boolean areKeysPushed;
 
   public RankJoin(Operator left, Operator right, String joinVar) {
 
@@ -53,7 +64,9 @@ public class RankJoin implements Operator {
     leftRel = new RankJoinInputRel(left);
     rightRel = new RankJoinInputRel(right);
     q = new PriorityQueue<Answer>();
+    topScores = new PriorityQueue<Double>();
     unseenUpperBound = 0.0;
+    areKeysPushed = false;
 
     this.isOpen = true;
 
@@ -83,6 +96,9 @@ public class RankJoin implements Operator {
     // Let's compute a new join result, if possible.
     try {
       while (true) {
+        if (Config.semiJoinPushdown && !areKeysPushed) {
+          pushJoinKeys();
+        }
         RankJoinInputRel input = getInput();
         if (input != null) {
 
@@ -95,7 +111,12 @@ public class RankJoin implements Operator {
             input.firstTupleRead = true;
           }
           input.bottom = scoredTuple.getScore();
-          input.addToHashTable(joinVar, scoredTuple.getVariableBinding(joinVar), scoredTuple);
+          String key = scoredTuple.getVariableBinding(joinVar);
+          // Once the other input is exhausted, all its keys are hashed and it probes no more, so
+          // the tuples of this input, in particular those which cannot join, are not hashed.
+          if (!other.isConsumed()) {
+            input.addToHashTable(joinVar, key, scoredTuple);
+          }
 
           if (other.firstTupleRead) {
             // if other input has not read: (i) no join will be possible, and
@@ -111,14 +132,15 @@ public class RankJoin implements Operator {
             unseenUpperBound = newUnseenUpperBound;
 
             // For now, we have single matches.
-            Collection<Answer> matches =
-                other.get(joinVar, scoredTuple.getVariableBinding(joinVar));
+            Collection<Answer> matches = other.get(joinVar, key);
             if (matches != null) {
               Collection<Answer> joinedTuples = constructJoin(scoredTuple, matches, input, other);
               for (Answer joinedTuple : joinedTuples) {
                 q.add(joinedTuple);
+                recordScore(joinedTuple.getScore());
               }
             }
+            pushThresholds();
           }
         }
         if (!q.isEmpty()) {
@@ -148,20 +170,7 @@ public class RankJoin implements Operator {
     List<Answer> joinResults = Lists.newArrayList();
     try {
       for (Answer matchedTuple : matchedTuples) {
-        HashMapBasedAnswer tuple = new HashMapBasedAnswer();
-        tuple.putAll(inputTuple);
-        tuple.putAll(matchedTuple);
-        tuple.setScore(aggregateScore(inputTuple.getScore(), matchedTuple.getScore()));
-
-        if (!Double.isNaN(matchedTuple.getJoinScore())) {
-          tuple.setJoinScore(matchedTuple.getJoinScore());
-        } else if (!Double.isNaN(inputTuple.getJoinScore())) {
-          tuple.setJoinScore(inputTuple.getJoinScore());
-        }
-        tuple.SetComesFromRelaxation(matchedTuple.comesFromRelaxation()
-            || inputTuple.comesFromRelaxation());
-        tuple.setQuery(inputTuple.getQuery()+","+matchedTuple.getQuery());
-        joinResults.add(tuple);
+        joinResults.add(joinTuples(inputTuple, matchedTuple));
       }
     } catch (Exception e) {
       e.printStackTrace();
@@ -170,7 +179,123 @@ public class RankJoin implements Operator {
     return joinResults;
   }
 
-  private double aggregateScore(double score1, double score2) {
+  /**
+   * Returns the join result of two joining tuples.
+   */
+  Answer joinTuples(Answer inputTuple, Answer matchedTuple) throws Exception {
+    HashMapBasedAnswer tuple = new HashMapBasedAnswer();
+    if (neededVariables == null) {
+      tuple.putAll(inputTuple);
+      tuple.putAll(matchedTuple);
+    } else {
+      tuple.putAll(inputTuple, neededVariables);
+      tuple.putAll(matchedTuple, neededVariables);
+    }
+    tuple.setScore(aggregateScore(inputTuple.getScore(), matchedTuple.getScore()));
+
+    if (!Double.isNaN(matchedTuple.getJoinScore())) {
+      tuple.setJoinScore(matchedTuple.getJoinScore());
+    } else if (!Double.isNaN(inputTuple.getJoinScore())) {
+      tuple.setJoinScore(inputTuple.getJoinScore());
+    }
+    tuple.SetComesFromRelaxation(matchedTuple.comesFromRelaxation()
+        || inputTuple.comesFromRelaxation());
+    tuple.setQuery(inputTuple.getQuery()+","+matchedTuple.getQuery());
+    return tuple;
+  }
+
+  /**
+   * Restricts the join results to bindings of {@code neededVariables}, which must contain the
+   * join variables of all joins above this one.
+   *
+   * @param neededVariables The variables to keep, or {@code null} to keep all.
+   */
+  public void setNeededVariables(Set<String> neededVariables) {
+    this.neededVariables = neededVariables;
+  }
+
+  /**
+   * Tells the operator that its consumer reads at most {@code k} answers. Once {@code k} join
+   * results have been produced, the inputs are told to skip tuples which cannot join into a
+   * result scoring at least as high as the k-th of them.
+   */
+  public void setTopK(int k) {
+    this.k = k;
+  }
+
+  public void setScoreThreshold(double threshold) {
+    if (threshold > scoreThreshold) {
+      scoreThreshold = threshold;
+    }
+  }
+
+  void recordScore(double score) {
+    if (k <= 0) {
+      return;
+    }
+    topScores.add(score);
+    if (topScores.size() > k) {
+      topScores.poll();
+    }
+  }
+
+  /**
+   * Derives, from the lowest score a join result must reach, the lowest score a tuple of each
+   * input must have to join into such a result, and passes it on to the input.
+   */
+  private void pushThresholds() {
+    double threshold = getResultThreshold();
+    if (threshold == Double.NEGATIVE_INFINITY || !leftRel.firstTupleRead
+        || !rightRel.firstTupleRead) {
+      return;
+    }
+    // A tuple can at best join with the top tuple of the other input.
+    if (left instanceof ThresholdedOperator) {
+      ((ThresholdedOperator) left).setScoreThreshold(threshold - rightRel.top);
+    }
+    if (right instanceof ThresholdedOperator) {
+      ((ThresholdedOperator) right).setScoreThreshold(threshold - leftRel.top);
+    }
+  }
+
+  /**
+   * Returns the lowest score a join result must reach to be of use: the threshold set by the
+   * consumer, or the k-th highest score produced so far if higher.
+   */
+  double getResultThreshold() {
+    double threshold = scoreThreshold;
+    if (k > 0 && topScores.size() == k) {
+      threshold = Math.max(threshold, topScores.peek());
+    }
+    return threshold;
+  }
+
+  /**
+   * Once one input is exhausted, all join keys it has are known. If there are at most
+   * {@code semiJoinMaxKeys} of them, the other input is restricted to these keys.
+   */
+  private void pushJoinKeys() throws SQLException {
+    RankJoinInputRel exhausted;
+    Operator other;
+    if (!left.hasNext() && right.hasNext()) {
+      exhausted = leftRel;
+      other = right;
+    } else if (!right.hasNext() && left.hasNext()) {
+      exhausted = rightRel;
+      other = left;
+    } else {
+      return;
+    }
+    areKeysPushed = true;
+    Set<String> keys = exhausted.getKeys(joinVar);
+    if (other instanceof KeyFilteredOperator && keys.size() <= Config.semiJoinMaxKeys) {
+      Logger.println("Pushing " + keys.size() + " keys of " + joinVar + " into "
+          + other.getPartQuery(), LoggingLevel.INTERMEDIATEINFO);
+      ((KeyFilteredOperator) other).setKeyFilter(joinVar, keys);
+    }
+  }
+
+  double aggregateScore(double score1, double score2) {
     return score1 + score2;
   }
 
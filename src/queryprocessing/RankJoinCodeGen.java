@@ -11,10 +11,12 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import com.google.common.base.Preconditions;
 
 import de.mpii.trinitreloaded.datastructures.Answer;
+import de.mpii.trinitreloaded.utils.Config;
 import de.mpii.trinitreloaded.utils.Logger;
 import de.mpii.trinitreloaded.utils.Config.LoggingLevel;
 
@@ -31,11 +33,22 @@ public class RankJoinCodeGen{
 
   private final List<Operator> query;
   private final List<ArrayList<String>> variables;
+  private final Set<String> projectionVariables;
 
   public RankJoinCodeGen( List<Operator> query, List<ArrayList<String>> variables) {
+    this(query, variables, null);
+  }
+
+  /**
+   * @param projectionVariables If not {@code null}, each {@link RankJoin} only keeps the bindings
+   *        of these variables and of the variables still to be joined on above it.
+   */
+  public RankJoinCodeGen(List<Operator> query, List<ArrayList<String>> variables,
+      Set<String> projectionVariables) {
     Preconditions.checkArgument(query.size() > 1);
     this.variables = variables;
     this.query = query;
+    this.projectionVariables = projectionVariables;
   }
 
   public WrappedRankJoin translate() {
@@ -52,6 +65,13 @@ public class RankJoinCodeGen{
     TIntHashSet seenRels = new TIntHashSet();
 
     HashSet<String> varsAvailable = new HashSet<String>();
+    // The relations in the order they are joined, and for each join the position in this order
+    // from which on the variables are still needed above it.
+    TIntList visitOrder = new TIntArrayList();
+    List<RankJoin> joins = new ArrayList<RankJoin>();
+    TIntList neededFrom = new TIntArrayList();
+    // The fewest answers of a relation joined so far, -1 if not known, see createJoin().
+    long minNumAnswers = -1;
 
     // DFS
     stack.push(0);
@@ -72,10 +92,22 @@ public class RankJoinCodeGen{
               continue;
             }
 
-            currentRoot = new RankJoin(currentRoot, query.get(currentRel), vars.get(i));
+            currentRoot = createJoin(currentRoot, query.get(currentRel), vars.get(i),
+                joins.isEmpty() ? getNumAnswers(currentRoot) : minNumAnswers, joins.isEmpty());
+            // A further join on this relation still needs its variables.
+            if (joins.size() > 0 && neededFrom.get(neededFrom.size() - 1) == visitOrder.size() + 1) {
+              neededFrom.set(neededFrom.size() - 1, visitOrder.size());
+            }
+            joins.add((RankJoin) currentRoot);
+            neededFrom.add(visitOrder.size() + 1);
           }
         }
         seenRels.add(currentRel);
+        visitOrder.add(currentRel);
+        long numAnswers = getNumAnswers(query.get(currentRel));
+        if (numAnswers >= 0 && (minNumAnswers < 0 || numAnswers < minNumAnswers)) {
+          minNumAnswers = numAnswers;
+        }
         // Record variables we can join on later
         varsAvailable.addAll(joinInfo.getVariablesInRelation(currentRel));
         TIntIterator neighbours = joinGraph.getNeighbours(currentRel).iterator();
@@ -86,9 +118,99 @@ public class RankJoinCodeGen{
       }
     }
 
+    if (projectionVariables != null) {
+      for (int j = 0; j < joins.size(); j++) {
+        HashSet<String> needed = new HashSet<String>(projectionVariables);
+        for (int pos = neededFrom.get(j); pos < visitOrder.size(); pos++) {
+          needed.addAll(joinInfo.getVariablesInRelation(visitOrder.get(pos)));
+        }
+        Logger.println("Variables kept by " + joins.get(j).getPartQuery() + ": " + needed,
+            LoggingLevel.VARIABLEVALUES);
+        joins.get(j).setNeededVariables(needed);
+      }
+    }
+
+    if (Config.scoreThresholdPushdown) {
+      ((RankJoin) currentRoot).setTopK(Config.k);
+    }
+
     return new WrappedRankJoin((RankJoin) currentRoot);
   }
 
+  /**
+   * Creates the join of the current root with the next relation. If {@code indexNestedLoopJoins}
+   * is set and one side has at least {@code indexNestedLoopRatio} times as many answers as the
+   * other, the join reads the smaller side and probes the larger one with an
+   * {@link IndexNestedLoopRankJoin}. The root can only be probed while it is the left-most
+   * relation; otherwise its answers are estimated by the fewest answers of a relation in it.
+   *
+   * Over sharded data, two scans joined on the subject of both are joined shard by shard with a
+   * {@link ShardedRankJoin}.
+   *
+   * @param rootAnswers The number of answers of the root, -1 if not known.
+   */
+  private RankJoin createJoin(Operator root, Operator relation, String var, long rootAnswers,
+      boolean isRootProbeable) {
+    if (isColocated(root, relation, var)) {
+      Logger.println("Joining " + root.getPartQuery() + " and " + relation.getPartQuery()
+          + " on " + var + " shard by shard", LoggingLevel.INTERMEDIATEINFO);
+      return new ShardedRankJoin((ShardedScan) unwrap(root), (ShardedScan) unwrap(relation), var);
+    }
+    if (Config.indexNestedLoopJoins && rootAnswers >= 0) {
+      long relationAnswers = getNumAnswers(relation);
+      if (relationAnswers >= 0
+          && relationAnswers >= Config.indexNestedLoopRatio * Math.max(rootAnswers, 1)) {
+        Logger.println("Probing " + relation.getPartQuery() + " (" + relationAnswers
+            + " answers) on " + var + " for about " + rootAnswers + " answers",
+            LoggingLevel.INTERMEDIATEINFO);
+        return new IndexNestedLoopRankJoin(root, (RandomAccessOperator) relation, var);
+      }
+      if (isRootProbeable && relationAnswers >= 0
+          && rootAnswers >= Config.indexNestedLoopRatio * Math.max(relationAnswers, 1)) {
+        Logger.println("Probing " + root.getPartQuery() + " (" + rootAnswers + " answers) on "
+            + var + " for " + relationAnswers + " answers", LoggingLevel.INTERMEDIATEINFO);
+        return new IndexNestedLoopRankJoin(relation, (RandomAccessOperator) root, var);
+      }
+    }
+    return new RankJoin(root, relation, var);
+  }
+
+  /**
+   * Returns whether the answers of two relations joining on {@code var} are on the same shard,
+   * i.e. both are sharded scans, read ahead or not, binding {@code var} to their subject.
+   */
+  private boolean isColocated(Operator root, Operator relation, String var) {
+    if (!(unwrap(root) instanceof ShardedScan) || !(unwrap(relation) instanceof ShardedScan)) {
+      return false;
+    }
+    ShardedScan rootScan = (ShardedScan) unwrap(root);
+    ShardedScan relationScan = (ShardedScan) unwrap(relation);
+    return rootScan.isShardedOn(var) && relationScan.isShardedOn(var);
+  }
+
+  /**
+   * Returns the scan a {@link PrefetchingOperator} reads ahead, or the operator itself. A
+   * {@link ShardedRankJoin} reads the shards of its scans itself, so they are not read ahead.
+   */
+  private static Operator unwrap(Operator op) {
+    return op instanceof PrefetchingOperator ? ((PrefetchingOperator) op).getOperator() : op;
+  }
+
+  /**
+   * Returns the number of answers of a relation, -1 if it is not known or not needed.
+   */
+  private long getNumAnswers(Operator op) {
+    if (!Config.indexNestedLoopJoins || !(op instanceof RandomAccessOperator)) {
+      return -1;
+    }
+    try {
+      return ((RandomAccessOperator) op).getNumAnswers();
+    } catch (SQLException e) {
+      e.printStackTrace();
+      return -1;
+    }
+  }
+
   private MultiWayJoinInfo createJoinInfo() {
     MultiWayJoinInfo multiWayJoinInfo = new MultiWayJoinInfo();
 
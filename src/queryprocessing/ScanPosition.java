@@ -0,0 +1,83 @@
+package de.mpii.trinitreloaded.queryprocessing;
+
+import java.util.List;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+
+/**
+ * The position of a scan after the last row it read, in the order of descending score and then
+ * descending key columns, the variable positions of its pattern.
+ *
+ * A query re-issued with a key filter, see {@link KeyFilteredOperator}, continues right after
+ * this position instead of skipping the rows already read. Only the last row is kept, however
+ * many rows share its score.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+final class ScanPosition {
+  private double score = Double.NaN;
+  private List<String> key;
+
+  /** Moves back before the first row. */
+  void clear() {
+    score = Double.NaN;
+    key = null;
+  }
+
+  /** Returns true once a row was read. */
+  boolean isSet() {
+    return key != null;
+  }
+
+  /** Moves to the row with the given score and values of the key columns. */
+  void set(double score, List<String> key) {
+    this.score = score;
+    this.key = key;
+  }
+
+  /**
+   * Returns the SQL condition selecting the rows after the position, whose placeholders are
+   * filled by {@link #getSQLParameters()}. As all sort keys are descending, it is a single row
+   * comparison.
+   */
+  static String getSQLCondition(String scoreColumn, List<String> keyColumns) {
+    List<String> sortKeys = Lists.newArrayList(scoreColumn);
+    sortKeys.addAll(keyColumns);
+    List<String> placeholders = Lists.newArrayList();
+    for (int i = 0; i < sortKeys.size(); i++) {
+      placeholders.add("?");
+    }
+    return "(" + Joiner.on(", ").join(sortKeys) + ") < (" + Joiner.on(", ").join(placeholders)
+        + ")";
+  }
+
+  /** Returns the parameters of {@link #getSQLCondition(String, List)}. */
+  List<Object> getSQLParameters() {
+    List<Object> params = Lists.<Object>newArrayList(score);
+    params.addAll(key);
+    return params;
+  }
+
+  /**
+   * Returns the SPARQL filter selecting the solutions after the position, for integer scores
+   * bound to {@code scoreVar} and keys compared as the strings of {@code keyVars}.
+   */
+  String getSPARQLFilter(String scoreVar, List<String> keyVars) {
+    // Written from the last key column outwards: each column only matters on equal prefixes.
+    String condition = null;
+    for (int i = keyVars.size() - 1; i >= 0; i--) {
+      String column = "STR(" + keyVars.get(i) + ")";
+      String value = "\"" + key.get(i).replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+      String before = column + " < " + value;
+      condition = condition == null ? before
+          : before + " || " + column + " = " + value + " && (" + condition + ")";
+    }
+    String before = scoreVar + " < " + (long) score;
+    if (condition != null) {
+      before += " || " + scoreVar + " = " + (long) score + " && (" + condition + ")";
+    }
+    return " FILTER (" + before + ")";
+  }
+}
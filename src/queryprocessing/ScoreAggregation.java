@@ -0,0 +1,196 @@
+package de.mpii.trinitreloaded.queryprocessing;
+
+import java.sql.SQLException;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import de.mpii.trinitreloaded.datastructures.PatternStatistics;
+import de.mpii.trinitreloaded.datastructures.QuantileSketchDistribution;
+import de.mpii.trinitreloaded.datastructures.TriplePattern;
+import de.mpii.trinitreloaded.utils.Config;
+import de.mpii.trinitreloaded.utils.Logger;
+import de.mpii.trinitreloaded.utils.PatternStatisticsCatalog;
+import de.mpii.trinitreloaded.utils.Shards;
+import de.mpii.trinitreloaded.utils.Config.LoggingLevel;
+
+/**
+ * Computes the statistics of the scores of a {@link TriplePattern} which the planner builds its
+ * score distributions from, in the database, so only the aggregates are sent instead of all
+ * matches.
+ *
+ * The statistics of a pattern are taken from the {@link PatternStatisticsCatalog} if it holds
+ * them, and otherwise aggregated by PostgreSQL with windowed cumulative sums, or by Virtuoso with
+ * SPARQL aggregates, which do not give the inflection rank. Histograms read their buckets
+ * aggregated by the database, see {@code getBuckets()}, or the few matches at which their bucket
+ * boundaries may lie, see {@code getRankedScores()}. All are only aggregated if
+ * {@code aggregationPushdown} is set. Quantile sketches are built from one unsorted pass over the
+ * scores, see {@code getSketch()}.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class ScoreAggregation {
+
+  /**
+   * A match in the score order of the matches of a pattern.
+   */
+  public static class RankedScore {
+    /** The rank, from 1. */
+    public final long rank;
+    /** The normalized score. */
+    public final double score;
+    /** The total normalized score of the matches ranked above. */
+    public final double scoreBefore;
+
+    public RankedScore(long rank, double score, double scoreBefore) {
+      this.rank = rank;
+      this.score = score;
+      this.scoreBefore = scoreBefore;
+    }
+  }
+
+  /**
+   * The matches of a pattern falling into one bucket of a histogram.
+   */
+  public static class ScoreBucket {
+    /** The position of the bucket, from 0 for the highest scores. */
+    public final int bucket;
+    /** The highest normalized score in the bucket. */
+    public final double maxScore;
+    /** The lowest normalized score in the bucket. */
+    public final double minScore;
+    /** The total normalized score of the bucket. */
+    public final double totalScore;
+
+    public ScoreBucket(int bucket, double maxScore, double minScore, double totalScore) {
+      this.bucket = bucket;
+      this.maxScore = maxScore;
+      this.minScore = minScore;
+      this.totalScore = totalScore;
+    }
+  }
+
+  /**
+   * Returns the statistics of the matches of {@code tp}, or {@code null} if they cannot be
+   * computed without reading the matches.
+   */
+  public static PatternStatistics getStatistics(TriplePattern tp) {
+    PatternStatistics stats = PatternStatisticsCatalog.get(tp);
+    if (stats != null || !Config.aggregationPushdown || Config.isSyntheticData) {
+      return stats;
+    }
+    try {
+      if (Config.isRDFDB && !Config.useTDB) {
+        stats = PopularityBasedRDFScan.readStatistics(tp);
+      } else if (!Config.isRDFDB) {
+        stats = new PopularityBasedScan(tp, false).readScoreStatistics();
+      }
+    } catch (SQLException e) {
+      e.printStackTrace();
+      return null;
+    }
+    if (stats != null) {
+      Logger.println("Aggregated statistics for " + tp + ": " + stats,
+          LoggingLevel.VARIABLEVALUES);
+    }
+    return stats;
+  }
+
+  /**
+   * Returns the matches of {@code tp} grouped by the database into the buckets of a histogram,
+   * one per non-empty bucket in bucket order, or {@code null} if they cannot be read without
+   * reading all matches.
+   *
+   * @param stats The statistics of {@code tp}, giving the score normalizing the scores.
+   * @param bucket The SQL expression giving the bucket of a match from its normalized score
+   *        {@code score}, which may be a window function over the matches.
+   * @param bucketParams The parameters of {@code bucket}.
+   */
+  public static List<ScoreBucket> getBuckets(TriplePattern tp, PatternStatistics stats,
+      String bucket, List<Object> bucketParams) {
+    if (!Config.aggregationPushdown || Config.isSyntheticData || Config.isRDFDB
+        || stats.numberOfResults == 0) {
+      return null;
+    }
+    try {
+      return new PopularityBasedScan(tp, false).readBuckets(stats.rawMaxScore, bucket,
+          bucketParams);
+    } catch (SQLException e) {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * Returns the matches of {@code tp} at which the bucket boundaries of a histogram may lie, and
+   * its last match, in score order, or {@code null} if they cannot be read without reading all
+   * matches.
+   *
+   * A boundary is crossed at the first match after the previous boundary which passes the next of
+   * {@code thresholds}, as per {@code comparison}, an SQL condition on the rank {@code rn}, the
+   * normalized score {@code score} or the score of the matches above {@code before}, and a
+   * threshold {@code t}. The thresholds must be passed in order, each match passing a threshold
+   * passing the ones before, so a boundary is crossed at most {@code thresholds.length} matches
+   * after the first match passing as many thresholds as the match at the boundary. Only these
+   * matches are read, with {@code span} of {@code thresholds.length}, or 1 if each boundary is
+   * crossed at the first match passing its threshold.
+   *
+   * @param stats The statistics of {@code tp}, giving the score normalizing the scores.
+   */
+  public static List<RankedScore> getRankedScores(TriplePattern tp, PatternStatistics stats,
+      String comparison, double[] thresholds, int span) {
+    if (!Config.aggregationPushdown || Config.isSyntheticData || Config.isRDFDB
+        || stats.numberOfResults == 0) {
+      return null;
+    }
+    try {
+      return new PopularityBasedScan(tp, false).readRankedScores(stats.rawMaxScore, comparison,
+          thresholds, span);
+    } catch (SQLException e) {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * Returns a {@link QuantileSketchDistribution} of the normalized scores of {@code tp}, built in
+   * one unsorted pass over its scores in the database, or {@code null} if they are not in a
+   * relational database. If the data is sharded, the shards are read in parallel and their
+   * sketches merged.
+   */
+  public static QuantileSketchDistribution getSketch(TriplePattern tp) {
+    if (Config.isSyntheticData || Config.isRDFDB) {
+      return null;
+    }
+    QuantileSketchDistribution sketch;
+    try {
+      if (Shards.isSharded()) {
+        final List<PopularityBasedScan> scans = new ShardedScan(tp, false).shardScans;
+        List<Integer> positions = Lists.newArrayList();
+        for (int i = 0; i < scans.size(); i++) {
+          positions.add(i);
+        }
+        sketch = new QuantileSketchDistribution();
+        for (QuantileSketchDistribution shardSketch : Shards.scatter(
+            new Shards.ShardTask<QuantileSketchDistribution>() {
+              public QuantileSketchDistribution run(int i) throws SQLException {
+                return scans.get(i).readScores();
+              }
+            }, positions)) {
+          sketch.merge(shardSketch);
+        }
+      } else {
+        sketch = new PopularityBasedScan(tp, false).readScores();
+      }
+    } catch (SQLException e) {
+      e.printStackTrace();
+      return null;
+    }
+    // The scores are normalized as the scans normalize them.
+    double maxScore = sketch.getMaxScore();
+    sketch = sketch.scale(maxScore != 0.0 ? Config.scoreMultipler / maxScore : 0.0);
+    Logger.println("Sketch for " + tp + ": " + sketch, LoggingLevel.VARIABLEVALUES);
+    return sketch;
+  }
+}
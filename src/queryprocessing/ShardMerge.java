@@ -0,0 +1,134 @@
+package de.mpii.trinitreloaded.queryprocessing;
+
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+
+import de.mpii.trinitreloaded.datastructures.Answer;
+import de.mpii.trinitreloaded.utils.Shards;
+
+/**
+ * Merges the answers of operators over the shards of the data, each in descending score order,
+ * into one stream in descending score order.
+ *
+ * The inputs are opened in parallel, so their queries run on all shards at the same time. Their
+ * scores must be comparable, e.g. normalized by the same highest score.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class ShardMerge implements Operator {
+
+  final List<? extends Operator> inputs;
+  /** The next answer of each input not exhausted, highest score first. */
+  PriorityQueue<Head> heads;
+  boolean isOpen;
+
+  public ShardMerge(List<? extends Operator> inputs) {
+    this.inputs = inputs;
+  }
+
+  public boolean open() throws SQLException {
+    if (isOpen) {
+      return true;
+    }
+    List<Integer> positions = Lists.newArrayList();
+    for (int i = 0; i < inputs.size(); i++) {
+      positions.add(i);
+    }
+    // Opening runs the query of a scan, and reading its first answer fetches its first rows.
+    List<Head> firstHeads = Shards.scatter(new Shards.ShardTask<Head>() {
+      public Head run(int i) throws SQLException {
+        Operator input = inputs.get(i);
+        input.open();
+        return readHead(input);
+      }
+    }, positions);
+    heads = new PriorityQueue<Head>(Math.max(1, inputs.size()), new Comparator<Head>() {
+      public int compare(Head h1, Head h2) {
+        return Double.compare(h2.answer.getScore(), h1.answer.getScore());
+      }
+    });
+    for (Head head : firstHeads) {
+      if (head != null) {
+        heads.add(head);
+      }
+    }
+    isOpen = true;
+    return true;
+  }
+
+  /**
+   * Returns the next answer of an input, {@code null} if it is exhausted.
+   */
+  private static Head readHead(Operator input) throws SQLException {
+    if (!input.hasNext()) {
+      return null;
+    }
+    try {
+      return new Head(input.next(), input);
+    } catch (SQLException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new SQLException(e);
+    }
+  }
+
+  public boolean close() throws SQLException {
+    if (!isOpen) {
+      return true;
+    }
+    for (Operator input : inputs) {
+      input.close();
+    }
+    heads = null;
+    isOpen = false;
+    return true;
+  }
+
+  public boolean hasNext() throws SQLException {
+    return isOpen && !heads.isEmpty();
+  }
+
+  public Answer next() throws SQLException {
+    if (!hasNext()) {
+      throw new NoSuchElementException("No more results.");
+    }
+    Head head = heads.poll();
+    Head following = readHead(head.input);
+    if (following != null) {
+      heads.add(following);
+    }
+    return head.answer;
+  }
+
+  /**
+   * Returns the score of the next answer, without consuming it.
+   */
+  double peekScore() {
+    return heads.peek().answer.getScore();
+  }
+
+  public String getPartQuery() {
+    List<String> parts = Lists.newArrayList();
+    for (Operator input : inputs) {
+      parts.add(input.getPartQuery());
+    }
+    return Joiner.on("|").join(parts);
+  }
+
+  private static class Head {
+    final Answer answer;
+    final Operator input;
+
+    Head(Answer answer, Operator input) {
+      this.answer = answer;
+      this.input = input;
+    }
+  }
+}
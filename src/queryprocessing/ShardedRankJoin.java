@@ -0,0 +1,99 @@
+package de.mpii.trinitreloaded.queryprocessing;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.google.common.collect.Lists;
+
+import de.mpii.trinitreloaded.datastructures.Answer;
+
+/**
+ * A rank join of two {@link ShardedScan}s on the subject of both, on which the data is sharded.
+ *
+ * Joining answers are then on the same shard, so the inputs are joined shard by shard with a
+ * {@link RankJoin} each, and the results of the shards are merged by score with a
+ * {@link ShardMerge}. The joins of all shards start in parallel.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class ShardedRankJoin extends RankJoin {
+
+  private final ShardedScan shardedLeft;
+  private final ShardedScan shardedRight;
+  private List<RankJoin> shardJoins;
+  private ShardMerge merge;
+
+  public ShardedRankJoin(ShardedScan left, ShardedScan right, String joinVar) {
+    super(left, right, joinVar);
+    this.shardedLeft = left;
+    this.shardedRight = right;
+  }
+
+  @Override
+  public boolean open() throws SQLException {
+    if (isOpen) {
+      return true;
+    }
+    List<PopularityBasedScan> leftScans = shardedLeft.getShardScans();
+    List<PopularityBasedScan> rightScans = shardedRight.getShardScans();
+    shardJoins = Lists.newArrayList();
+    for (int shard = 0; shard < leftScans.size(); shard++) {
+      RankJoin join = new RankJoin(leftScans.get(shard), rightScans.get(shard), joinVar);
+      join.setNeededVariables(neededVariables);
+      // The k-th result of a shard is a lower bound of the k-th result of all shards.
+      join.setTopK(k);
+      join.setScoreThreshold(scoreThreshold);
+      shardJoins.add(join);
+    }
+    merge = new ShardMerge(shardJoins);
+    merge.open();
+    this.isOpen = true;
+    return true;
+  }
+
+  @Override
+  public boolean hasNext() throws SQLException {
+    return isOpen && merge.hasNext();
+  }
+
+  @Override
+  public Answer next() throws SQLException {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return merge.next();
+  }
+
+  @Override
+  public boolean close() throws SQLException {
+    if (!isOpen) {
+      return true;
+    }
+    merge.close();
+    this.isOpen = false;
+    return true;
+  }
+
+  @Override
+  public void setScoreThreshold(double threshold) {
+    super.setScoreThreshold(threshold);
+    if (shardJoins != null) {
+      for (RankJoin join : shardJoins) {
+        join.setScoreThreshold(threshold);
+      }
+    }
+  }
+
+  @Override
+  public double scoreOfNext() throws SQLException {
+    if (!isOpen) {
+      open();
+    }
+    if (!hasNext()) {
+      return 0.0;
+    }
+    return merge.peekScore();
+  }
+}
@@ -0,0 +1,226 @@
+package de.mpii.trinitreloaded.queryprocessing;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import de.mpii.trinitreloaded.datastructures.Answer;
+import de.mpii.trinitreloaded.datastructures.TriplePattern;
+import de.mpii.trinitreloaded.utils.Config;
+import de.mpii.trinitreloaded.utils.Logger;
+import de.mpii.trinitreloaded.utils.Shards;
+import de.mpii.trinitreloaded.utils.Config.LoggingLevel;
+
+/**
+ * A scan operator for individual {@link TriplePattern} over data sharded by subject, see
+ * {@link Shards}.
+ *
+ * It reads the matches on each shard with a {@link PopularityBasedScan} and merges them by score
+ * with a {@link ShardMerge}. A pattern with a constant subject only has matches on the shard of
+ * that subject. Before the first answer, the number of matches and the highest score are read
+ * from all shards in parallel, and every shard normalizes its scores by the highest score of all,
+ * so the answers are as without sharding.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class ShardedScan implements ProjectingOperator, ThresholdedOperator,
+    RandomAccessOperator {
+  final TriplePattern input;
+  /** The scans of the shards which may have matches, and the shard of each. */
+  final List<PopularityBasedScan> shardScans;
+  final List<Integer> shards;
+  ShardMerge merge;
+  long numMatches = -1;
+  double maxScore = Double.NaN;
+  boolean isOpen;
+
+  public ShardedScan(TriplePattern input) {
+    this(input, true);
+  }
+
+  public ShardedScan(TriplePattern input, boolean toBeCounted) {
+    this.input = input;
+    this.shards = Lists.newArrayList();
+    if (input.isSubjectConst) {
+      shards.add(Shards.getShard(QueryPlanner.formatParameter(input.subject)));
+    } else {
+      for (int shard = 0; shard < Shards.getNumShards(); shard++) {
+        shards.add(shard);
+      }
+    }
+    this.shardScans = Lists.newArrayList();
+    for (int shard : shards) {
+      PopularityBasedScan scan = new PopularityBasedScan(input, toBeCounted);
+      scan.setShard(shard);
+      shardScans.add(scan);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "ShardedScan [input=" + input + ", shards=" + shards + "]";
+  }
+
+  /**
+   * Reads the number of matches and the highest score of each shard, and makes all shards
+   * normalize their scores by the highest one. It is done once, before the scans are used.
+   */
+  void prepare() throws SQLException {
+    if (numMatches >= 0) {
+      return;
+    }
+    Shards.scatter(new Shards.ShardTask<Long>() {
+      public Long run(int i) throws SQLException {
+        return shardScans.get(i).getNumAnswers();
+      }
+    }, getPositions());
+    long count = 0;
+    double max = Double.NaN;
+    for (PopularityBasedScan scan : shardScans) {
+      count += scan.getNumAnswers();
+      if (scan.getNumAnswers() > 0 && !(scan.getMaxScore() <= max)) {
+        max = scan.getMaxScore();
+      }
+    }
+    if (!Double.isNaN(max)) {
+      for (PopularityBasedScan scan : shardScans) {
+        scan.setMaxScore(max);
+      }
+    }
+    maxScore = max;
+    numMatches = count;
+    Logger.println("ShardedScan of " + input + ": " + numMatches + " matches on " + shards.size()
+        + " shards", LoggingLevel.INTERMEDIATEINFO);
+  }
+
+  private List<Integer> getPositions() {
+    List<Integer> positions = Lists.newArrayList();
+    for (int i = 0; i < shardScans.size(); i++) {
+      positions.add(i);
+    }
+    return positions;
+  }
+
+  /**
+   * Returns the scans of the shards, in shard order, if the pattern has matches on all shards;
+   * {@code null} otherwise. The scans are prepared, so their answers can be compared across
+   * shards.
+   */
+  List<PopularityBasedScan> getShardScans() throws SQLException {
+    if (shards.size() != Shards.getNumShards()) {
+      return null;
+    }
+    prepare();
+    return shardScans;
+  }
+
+  /**
+   * Returns whether the pattern binds {@code var} to its subject, on which the data is sharded.
+   */
+  boolean isShardedOn(String var) {
+    return !input.isSubjectConst && input.subject.equals(var);
+  }
+
+  public boolean open() throws SQLException {
+    if (isOpen) {
+      return true;
+    }
+    prepare();
+    merge = new ShardMerge(shardScans);
+    merge.open();
+    isOpen = true;
+    return true;
+  }
+
+  public boolean close() throws SQLException {
+    if (!isOpen) {
+      return true;
+    }
+    merge.close();
+    isOpen = false;
+    return true;
+  }
+
+  public boolean hasNext() throws SQLException {
+    return isOpen && merge.hasNext();
+  }
+
+  public Answer next() throws SQLException {
+    if (!hasNext()) {
+      throw new NoSuchElementException("No more results.");
+    }
+    return merge.next();
+  }
+
+  public Double getMaxScore() {
+    return maxScore;
+  }
+
+  /**
+   * Passes the threshold on to the scans of the shards, which all normalize scores alike.
+   */
+  public void setScoreThreshold(double threshold) {
+    for (PopularityBasedScan scan : shardScans) {
+      scan.setScoreThreshold(threshold);
+    }
+  }
+
+  public void setNeededVariables(Set<String> neededVariables) {
+    for (PopularityBasedScan scan : shardScans) {
+      scan.setNeededVariables(neededVariables);
+    }
+  }
+
+  public long getNumAnswers() throws SQLException {
+    prepare();
+    return numMatches;
+  }
+
+  public double getScoreUpperBound() {
+    return Config.scoreMultipler;
+  }
+
+  /**
+   * Looks up the keys on all shards in parallel, or, if {@code var} is the subject, each key
+   * only on its own shard.
+   */
+  public List<Answer> probe(final String var, Collection<String> keys) throws SQLException {
+    prepare();
+    final Map<Integer, List<String>> keysOfScans = Maps.newLinkedHashMap();
+    for (String key : keys) {
+      int i = isShardedOn(var) ? shards.indexOf(Shards.getShard(key)) : -1;
+      for (int j = 0; j < shardScans.size(); j++) {
+        if (i < 0 || i == j) {
+          if (!keysOfScans.containsKey(j)) {
+            keysOfScans.put(j, Lists.<String>newArrayList());
+          }
+          keysOfScans.get(j).add(key);
+        }
+      }
+    }
+    List<List<Answer>> shardMatches = Shards.scatter(new Shards.ShardTask<List<Answer>>() {
+      public List<Answer> run(int i) throws SQLException {
+        return shardScans.get(i).probe(var, keysOfScans.get(i));
+      }
+    }, Lists.newArrayList(keysOfScans.keySet()));
+    List<Answer> matches = Lists.newArrayList();
+    for (List<Answer> m : shardMatches) {
+      if (m == null) {
+        return null;
+      }
+      matches.addAll(m);
+    }
+    return matches;
+  }
+
+  public String getPartQuery() {
+    return this.input.toString();
+  }
+}
@@ -0,0 +1,265 @@
+package de.mpii.trinitreloaded.queryprocessing;
+
+import gnu.trove.list.TLongList;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import de.mpii.trinitreloaded.datastructures.Answer;
+import de.mpii.trinitreloaded.datastructures.HashMapBasedAnswer;
+import de.mpii.trinitreloaded.datastructures.TriplePattern;
+import de.mpii.trinitreloaded.utils.Config;
+import de.mpii.trinitreloaded.utils.Logger;
+import de.mpii.trinitreloaded.utils.Config.LoggingLevel;
+
+/**
+ * A join operator for a conjunction of {@link TriplePattern} over the {@link SyntheticData},
+ * returning all join results in descending score order.
+ *
+ * The patterns are joined by index nested loops: starting from the pattern with the fewest
+ * matches, each following pattern shares a variable with the previous ones and only its matches
+ * for the bound value of that variable are looked up. The score of a result is the sum of the
+ * normalized scores of its matches, as in {@link RankJoin}.
+ *
+ * The results are produced incrementally. The matches of the first, driving pattern are expanded
+ * one at a time in score order, and their results are kept in a heap. The top of the heap is
+ * returned once no result of the remaining driving matches can score higher, i.e. once it scores
+ * at least the normalized score of the next driving match plus the highest normalized score, 1,
+ * of each other pattern. So only the results of the driving matches read so far are held in
+ * memory.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class SyntheticDBJoinSort implements Operator {
+  final List<TriplePattern> inputs;
+  /** The patterns in join order, with their matches and highest score. */
+  List<TriplePattern> order;
+  List<SyntheticData.Matches> matches;
+  double[] maxScores;
+  /** The join variables, and whether each is bound to a predicate rather than an entity. */
+  List<String> variables;
+  boolean[] isPredicate;
+  /** The bindings of the join variables while expanding a driving match. */
+  long[] bindings;
+  boolean[] isBound;
+  /** The results of the driving matches expanded so far, not returned yet, best first. */
+  PriorityQueue<Result> results;
+  /** The next driving match to be expanded. */
+  long driver;
+  long numReturned;
+  boolean isOpen;
+
+  public SyntheticDBJoinSort(ArrayList<TriplePattern> inputs) {
+    this.inputs = inputs;
+  }
+
+  @Override
+  public String toString() {
+    return "SyntheticDBJoinSort [inputs=" + inputs + "]";
+  }
+
+  public boolean open() {
+    if (this.isOpen) {
+      return true;
+    }
+    orderInputs();
+    variables = Lists.newArrayList();
+    for (TriplePattern tp : order) {
+      for (String var : tp.variables()) {
+        if (!variables.contains(var)) {
+          variables.add(var);
+        }
+      }
+    }
+    isPredicate = new boolean[variables.size()];
+    for (TriplePattern tp : order) {
+      if (!tp.isPredicateConst) {
+        isPredicate[variables.indexOf(tp.predicate)] = true;
+      }
+    }
+
+    bindings = new long[variables.size()];
+    isBound = new boolean[variables.size()];
+    results = new PriorityQueue<Result>(11, new Comparator<Result>() {
+      public int compare(Result r1, Result r2) {
+        return Double.compare(r2.score, r1.score);
+      }
+    });
+    driver = 0;
+    numReturned = 0;
+    this.isOpen = true;
+    return true;
+  }
+
+  /**
+   * Orders the patterns so that each one after the first shares a variable with an earlier one,
+   * if possible, taking the one with the fewest matches first.
+   */
+  private void orderInputs() {
+    List<TriplePattern> remaining = Lists.newArrayList(inputs);
+    Map<TriplePattern, SyntheticData.Matches> allMatches = Maps.newHashMap();
+    for (TriplePattern tp : inputs) {
+      allMatches.put(tp, SyntheticData.getMatches(tp));
+    }
+    order = Lists.newArrayList();
+    matches = Lists.newArrayList();
+    List<String> bound = Lists.newArrayList();
+    while (!remaining.isEmpty()) {
+      TriplePattern best = null;
+      boolean isBestJoined = false;
+      for (TriplePattern tp : remaining) {
+        boolean isJoined = false;
+        for (String var : tp.variables()) {
+          isJoined |= bound.contains(var);
+        }
+        if (best == null || isJoined && !isBestJoined || isJoined == isBestJoined
+            && allMatches.get(tp).size() < allMatches.get(best).size()) {
+          best = tp;
+          isBestJoined = isJoined;
+        }
+      }
+      remaining.remove(best);
+      order.add(best);
+      matches.add(allMatches.get(best));
+      bound.addAll(best.variables());
+    }
+    maxScores = new double[order.size()];
+    for (int i = 0; i < order.size(); i++) {
+      maxScores[i] = matches.get(i).size() > 0 ? matches.get(i).getScore(0) : 1.0;
+    }
+  }
+
+  /**
+   * Returns the highest score of a result of the driving matches not expanded yet.
+   */
+  private double getScoreBound() {
+    return matches.get(0).getScore(driver) / maxScores[0] + (order.size() - 1);
+  }
+
+  /**
+   * Adds the results extending the bindings of the first {@code depth} patterns.
+   */
+  private void join(int depth, double score) {
+    if (depth == order.size()) {
+      results.add(new Result(bindings.clone(), score));
+      return;
+    }
+    TriplePattern tp = order.get(depth);
+    SyntheticData.Matches m = matches.get(depth);
+
+    String lookupVar = null;
+    for (String var : tp.variables()) {
+      if (isBound[variables.indexOf(var)]) {
+        lookupVar = var;
+        if (!var.equals(tp.predicate)) {
+          // Subjects and objects are more selective than predicates.
+          break;
+        }
+      }
+    }
+    if (lookupVar == null) {
+      for (long i = 0; i < m.size(); i++) {
+        extend(depth, i, score);
+      }
+    } else {
+      TLongList candidates = m.lookup(lookupVar, bindings[variables.indexOf(lookupVar)]);
+      for (int c = 0; c < candidates.size(); c++) {
+        extend(depth, candidates.get(c), score);
+      }
+    }
+  }
+
+  /**
+   * Binds the variables of the {@code depth}-th pattern to match {@code i}, if it agrees with the
+   * bindings of the first {@code depth} patterns, and adds the results extending them.
+   */
+  private void extend(int depth, long i, double score) {
+    SyntheticData.Matches m = matches.get(depth);
+    boolean[] isNewlyBound = new boolean[variables.size()];
+    boolean isConsistent = true;
+    for (String var : order.get(depth).variables()) {
+      int v = variables.indexOf(var);
+      long value = m.getBinding(i, var);
+      if (isBound[v] && !isNewlyBound[v]) {
+        isConsistent &= bindings[v] == value;
+      } else {
+        bindings[v] = value;
+        isBound[v] = true;
+        isNewlyBound[v] = true;
+      }
+    }
+    if (isConsistent) {
+      join(depth + 1, score + m.getScore(i) / maxScores[depth]);
+    }
+    for (int v = 0; v < isNewlyBound.length; v++) {
+      if (isNewlyBound[v]) {
+        isBound[v] = false;
+      }
+    }
+  }
+
+  public boolean close() {
+    if (this.isOpen) {
+      Logger.println("SyntheticDBJoinSort of " + inputs + ": " + numReturned + " results from "
+          + driver + " of " + matches.get(0).size() + " driving matches",
+          LoggingLevel.INTERMEDIATEINFO);
+    }
+    results = null;
+    this.isOpen = false;
+    return true;
+  }
+
+  public boolean hasNext() {
+    if (!isOpen) {
+      return false;
+    }
+    SyntheticData.Matches driving = matches.get(0);
+    while (driver < driving.size()
+        && (results.isEmpty() || results.peek().score < getScoreBound())) {
+      extend(0, driver++, 0.0);
+    }
+    return !results.isEmpty();
+  }
+
+  public Answer next() throws Exception {
+    if (!hasNext()) {
+      throw new NoSuchElementException("No more results.");
+    }
+    Result result = results.poll();
+    numReturned++;
+    HashMapBasedAnswer ans = new HashMapBasedAnswer(true);
+    for (int v = 0; v < variables.size(); v++) {
+      ans.setVariableBinding(variables.get(v),
+          isPredicate[v] ? SyntheticData.getPredicate(result.bindings[v], Config.isRDFDB)
+              : SyntheticData.getEntity(result.bindings[v], Config.isRDFDB));
+    }
+    ans.setScore(result.score * Config.scoreMultipler);
+    ans.setQuery(getPartQuery());
+    return ans;
+  }
+
+  public String getPartQuery() {
+    return this.inputs.toString();
+  }
+
+  /**
+   * A join result: the ids bound to the join variables, and its score.
+   */
+  private static class Result {
+    final long[] bindings;
+    final double score;
+
+    Result(long[] bindings, double score) {
+      this.bindings = bindings;
+      this.score = score;
+    }
+  }
+}
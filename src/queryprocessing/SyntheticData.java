@@ -0,0 +1,361 @@
+package de.mpii.trinitreloaded.queryprocessing;
+
+import gnu.trove.list.TDoubleList;
+import gnu.trove.list.TLongList;
+import gnu.trove.list.array.TLongArrayList;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+import de.mpii.trinitreloaded.datastructures.TriplePattern;
+import de.mpii.trinitreloaded.utils.Config;
+
+/**
+ * A deterministic, seeded generator of synthetic data, read by {@link SyntheticScan},
+ * {@link SyntheticRDFScan} and {@link SyntheticDBJoinSort} instead of a database.
+ *
+ * The data is a set of relations, one per (predicate, object) of a pattern, where a variable
+ * counts as a wildcard. A relation has between {@code syntheticMinMatches} and
+ * {@code syntheticMaxMatches} subjects, chosen pseudo-randomly from
+ * {@code syntheticNumEntities} entities, and {@code syntheticFanOut} objects per subject if its
+ * object is a variable. The subject of rank {@code r} scores {@code (r+1)^-syntheticZipfExponent},
+ * like the inlinks of popular entities, so the matches of a pattern are generated in score order
+ * by their index, in constant time and without being stored. The subjects and objects are
+ * pseudo-random permutations of the entities, and the predicates of a variable predicate of the
+ * predicates, which can be inverted to find the matches of a given entity or predicate, so
+ * patterns sharing a variable join as independent random samples would.
+ *
+ * Entities are named {@code <e}<i>id</i>{@code >} and predicates {@code <p}<i>id</i>{@code >};
+ * any other constant is mapped to an entity by its hash. The same seed always generates the same
+ * data.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class SyntheticData {
+
+  /**
+   * Returns the matches of a {@link TriplePattern}.
+   */
+  public static Matches getMatches(TriplePattern tp) {
+    return new Matches(tp);
+  }
+
+  /**
+   * Returns the expected number of results of joining {@link TriplePattern}: the product of their
+   * number of matches, divided by the number of values of a variable for each of its occurrences
+   * after the first.
+   */
+  public static double estimateJoinCardinality(List<TriplePattern> tps) {
+    double cardinality = 1.0;
+    Map<String, Integer> occurrences = Maps.newHashMap();
+    for (TriplePattern tp : tps) {
+      cardinality *= getMatches(tp).size();
+      for (String var : tp.variables()) {
+        Integer n = occurrences.get(var);
+        occurrences.put(var, n == null ? 1 : n + 1);
+        if (n != null) {
+          cardinality /= var.equals(tp.predicate) ? Config.syntheticNumPredicates
+              : Config.syntheticNumEntities;
+        }
+      }
+    }
+    return cardinality;
+  }
+
+  /**
+   * Adds the relaxations of a constant, best first, with their weights. The relaxations of
+   * {@code <x>} are {@code <x_r1>}, {@code <x_r2>}, ..., whose matches are generated as for any
+   * other constant.
+   *
+   * @param term The constant to be relaxed.
+   * @param n The number of relaxations.
+   * @param relaxations The list to add the relaxations to.
+   * @param weights The list to add their weights, in (0, 1], to.
+   */
+  public static void getRelaxations(String term, int n, List<String> relaxations,
+      TDoubleList weights) {
+    long seed = getSeed("relaxations:" + term);
+    double weight = 1.0;
+    for (int k = 1; k <= n; k++) {
+      seed = mix(seed);
+      // Each relaxation is less likely than the previous one.
+      weight *= 0.5 + 0.5 * toUnit(seed);
+      relaxations.add(relax(term, k));
+      weights.add(weight);
+    }
+  }
+
+  private static String relax(String term, int k) {
+    if (term.length() >= 2 && (term.startsWith("<") && term.endsWith(">")
+        || term.startsWith("'") && term.endsWith("'"))) {
+      return term.substring(0, term.length() - 1) + "_r" + k
+          + term.substring(term.length() - 1);
+    }
+    return term + "_r" + k;
+  }
+
+  /**
+   * Returns the name of an entity, as an IRI under {@code syntheticGraphURI} if {@code isRDF}.
+   */
+  static String getEntity(long id, boolean isRDF) {
+    return isRDF ? Config.syntheticGraphURI + "e" + id : "<e" + id + ">";
+  }
+
+  /**
+   * Returns the name of a predicate, as an IRI under {@code syntheticGraphURI} if {@code isRDF}.
+   */
+  static String getPredicate(long id, boolean isRDF) {
+    return isRDF ? Config.syntheticGraphURI + "p" + id : "<p" + id + ">";
+  }
+
+  /**
+   * Returns the id of the entity named by a constant.
+   */
+  static long getEntityId(String constant) {
+    String name = constant;
+    if (name.startsWith("<") && name.endsWith(">")) {
+      name = name.substring(1, name.length() - 1);
+    }
+    if (name.startsWith(Config.syntheticGraphURI)) {
+      name = name.substring(Config.syntheticGraphURI.length());
+    }
+    if (name.matches("e[0-9]{1,18}")) {
+      long id = Long.parseLong(name.substring(1));
+      if (id < Config.syntheticNumEntities) {
+        return id;
+      }
+    }
+    return Math.abs(mix(constant.hashCode()) % Config.syntheticNumEntities);
+  }
+
+  private static long getSeed(String key) {
+    long h = Config.syntheticSeed;
+    for (int i = 0; i < key.length(); i++) {
+      h = h * 31 + key.charAt(i);
+    }
+    return mix(h);
+  }
+
+  /**
+   * The SplitMix64 finalizer: a bijection on 64 bits spreading every input bit over the output.
+   */
+  static long mix(long z) {
+    z += 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  /**
+   * Returns a number in [0, 1) from the bits of {@code z}.
+   */
+  private static double toUnit(long z) {
+    return (z >>> 11) * 0x1.0p-53;
+  }
+
+  /**
+   * A seeded pseudo-random permutation of [0, n), which can be inverted. It applies an invertible
+   * mix to the smallest power of two above {@code n} and walks the cycle back into range.
+   */
+  static class Permutation {
+    final long n;
+    final int bits;
+    final long mask;
+    final int shift;
+    final long a, aInverse, b, c, cInverse;
+
+    Permutation(long n, long seed) {
+      this.n = n;
+      int k = 1;
+      while ((1L << k) < n) {
+        k++;
+      }
+      this.bits = k;
+      this.mask = (1L << k) - 1;
+      this.shift = Math.max(1, (k + 1) / 2);
+      seed = mix(seed);
+      this.a = seed | 1;
+      seed = mix(seed);
+      this.b = seed;
+      seed = mix(seed);
+      this.c = seed | 1;
+      this.aInverse = inverse(a);
+      this.cInverse = inverse(c);
+    }
+
+    /** Returns the inverse of an odd number modulo 2^64, by Newton's iteration. */
+    private static long inverse(long x) {
+      long y = x;
+      for (int i = 0; i < 5; i++) {
+        y *= 2 - x * y;
+      }
+      return y;
+    }
+
+    private long forward(long x) {
+      x = (x * a) & mask;
+      x ^= x >>> shift;
+      x = (x + b) & mask;
+      x = (x * c) & mask;
+      x ^= x >>> shift;
+      return x;
+    }
+
+    private long backward(long y) {
+      y = unshift(y);
+      y = (y * cInverse) & mask;
+      y = (y - b) & mask;
+      y = unshift(y);
+      y = (y * aInverse) & mask;
+      return y;
+    }
+
+    private long unshift(long y) {
+      long x = y;
+      for (int s = shift; s < bits; s += shift) {
+        x = y ^ (x >>> shift);
+      }
+      return x;
+    }
+
+    long get(long i) {
+      long x = forward(i);
+      while (x >= n) {
+        x = forward(x);
+      }
+      return x;
+    }
+
+    long indexOf(long x) {
+      long i = backward(x);
+      while (i >= n) {
+        i = backward(i);
+      }
+      return i;
+    }
+  }
+
+  /**
+   * The matches of a {@link TriplePattern}, in descending score order. Match {@code i} belongs to
+   * the subject of rank {@code i / fanOut} in the relation of the pattern.
+   */
+  public static class Matches {
+    final TriplePattern tp;
+    final Permutation subjects;
+    final Permutation objects;
+    final Permutation predicates;
+    /** The number of subjects in the relation, and of matches per subject. */
+    final long numSubjects;
+    final long fanOut;
+    /** The rank of the constant subject in the relation, -1 if it is not in it. */
+    final long subjectRank;
+    final long numMatches;
+
+    Matches(TriplePattern tp) {
+      this.tp = tp;
+      long seed = getSeed((tp.isPredicateConst ? tp.predicate : "?") + " "
+          + (tp.isObjectConst ? tp.object : "?"));
+      double min = Math.max(1, Config.syntheticMinMatches);
+      double max = Math.max(min, Config.syntheticMaxMatches);
+      double u = toUnit(seed);
+      this.numSubjects = Math.min(Config.syntheticNumEntities,
+          Math.round(Math.exp(Math.log(min) + u * (Math.log(max) - Math.log(min)))));
+      this.fanOut = tp.isObjectConst ? 1 : Math.max(1, Config.syntheticFanOut);
+      this.subjects = new Permutation(Config.syntheticNumEntities, seed ^ 1);
+      this.objects = new Permutation(Config.syntheticNumEntities, seed ^ 2);
+      this.predicates = new Permutation(Config.syntheticNumPredicates, seed ^ 3);
+      if (tp.isSubjectConst) {
+        long rank = subjects.indexOf(getEntityId(tp.subject));
+        this.subjectRank = rank < numSubjects ? rank : -1;
+        this.numMatches = subjectRank < 0 ? 0 : fanOut;
+      } else {
+        this.subjectRank = -1;
+        this.numMatches = numSubjects * fanOut;
+      }
+    }
+
+    public long size() {
+      return numMatches;
+    }
+
+    /** Returns the position in the relation of match {@code i}. */
+    private long getRow(long i) {
+      return tp.isSubjectConst ? subjectRank * fanOut + i : i;
+    }
+
+    public long getSubject(long i) {
+      return subjects.get(getRow(i) / fanOut);
+    }
+
+    public long getObject(long i) {
+      return objects.get(getRow(i) % Config.syntheticNumEntities);
+    }
+
+    public long getPredicate(long i) {
+      return predicates.get(getRow(i) % Config.syntheticNumPredicates);
+    }
+
+    public double getScore(long i) {
+      return Math.pow(getRow(i) / fanOut + 1, -Config.syntheticZipfExponent);
+    }
+
+    /**
+     * Returns the matches binding a variable of the pattern to an id, in increasing order: an
+     * entity id for a subject or object, a predicate id for a predicate. Only the matches
+     * returned are visited.
+     *
+     * @throws IllegalArgumentException If {@code var} is not a variable of the pattern.
+     */
+    public TLongList lookup(String var, long id) {
+      TLongList result = new TLongArrayList();
+      if (!tp.isSubjectConst && var.equals(tp.subject)) {
+        long rank = subjects.indexOf(id);
+        if (rank < numSubjects) {
+          for (long j = 0; j < fanOut; j++) {
+            result.add(rank * fanOut + j);
+          }
+        }
+      } else if (!tp.isObjectConst && var.equals(tp.object)) {
+        // Rows are mapped to objects modulo the number of entities.
+        addRows(result, objects.indexOf(id), Config.syntheticNumEntities);
+      } else if (!tp.isPredicateConst && var.equals(tp.predicate)) {
+        // Rows are mapped to predicates modulo the number of predicates.
+        addRows(result, predicates.indexOf(id), Config.syntheticNumPredicates);
+      } else {
+        throw new IllegalArgumentException(var + " is not a variable of " + tp + ".");
+      }
+      return result;
+    }
+
+    /**
+     * Adds the matches whose rows are congruent to {@code row} modulo {@code period}.
+     */
+    private void addRows(TLongList result, long row, long period) {
+      long first = tp.isSubjectConst ? subjectRank * fanOut : 0;
+      long end = first + numMatches;
+      if (row < first) {
+        row += (first - row + period - 1) / period * period;
+      }
+      for (; row < end; row += period) {
+        result.add(row - first);
+      }
+    }
+
+    /**
+     * Returns the id bound to a variable of the pattern by match {@code i}: an entity id for a
+     * subject or object, a predicate id for a predicate.
+     */
+    public long getBinding(long i, String var) {
+      if (!tp.isSubjectConst && var.equals(tp.subject)) {
+        return getSubject(i);
+      } else if (!tp.isObjectConst && var.equals(tp.object)) {
+        return getObject(i);
+      } else {
+        return getPredicate(i);
+      }
+    }
+  }
+}
@@ -0,0 +1,36 @@
+package de.mpii.trinitreloaded.queryprocessing;
+
+import de.mpii.trinitreloaded.datastructures.TriplePattern;
+
+/**
+ * A scan operator for individual {@link TriplePattern} over the {@link SyntheticData}, binding
+ * variables to IRIs under {@code syntheticGraphURI}, as {@link PopularityBasedRDFScan} does.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class SyntheticRDFScan extends SyntheticScan {
+
+  public SyntheticRDFScan(TriplePattern input) {
+    super(input);
+  }
+
+  public SyntheticRDFScan(TriplePattern input, boolean toBeCounted) {
+    super(input, toBeCounted);
+  }
+
+  @Override
+  public String toString() {
+    return "SyntheticRDFScan [input=" + input + "]";
+  }
+
+  @Override
+  String getEntity(long id) {
+    return SyntheticData.getEntity(id, true);
+  }
+
+  @Override
+  String getPredicate(long id) {
+    return SyntheticData.getPredicate(id, true);
+  }
+}
@@ -0,0 +1,160 @@
+package de.mpii.trinitreloaded.queryprocessing;
+
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import de.mpii.trinitreloaded.datastructures.Answer;
+import de.mpii.trinitreloaded.datastructures.HashMapBasedAnswer;
+import de.mpii.trinitreloaded.datastructures.TriplePattern;
+import de.mpii.trinitreloaded.utils.Config;
+import de.mpii.trinitreloaded.utils.Logger;
+import de.mpii.trinitreloaded.utils.Config.LoggingLevel;
+
+/**
+ * A scan operator for individual {@link TriplePattern} over the {@link SyntheticData}.
+ *
+ * The matches are generated in score order as they are read, so a scan takes no memory and
+ * constant time per answer whatever the number of matches. As with {@link PopularityBasedScan},
+ * scores are normalized by the highest score of the pattern.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class SyntheticScan implements ProjectingOperator, ThresholdedOperator {
+  final TriplePattern input;
+  SyntheticData.Matches matches;
+  long position;
+  boolean isOpen;
+  /** The variables to bind, {@code null} for all. */
+  Set<String> neededVariables;
+  /** Answers scoring below it are not returned, see {@link ThresholdedOperator}. */
+  volatile double scoreThreshold = Double.NEGATIVE_INFINITY;
+  boolean isBelowThreshold;
+  Answer current;
+  double maxScore = Double.NaN;
+  boolean toBeCounted;
+
+  public SyntheticScan(TriplePattern input) {
+    this.toBeCounted = true;
+    this.input = input;
+  }
+
+  public SyntheticScan(TriplePattern input, boolean toBeCounted) {
+    this.toBeCounted = toBeCounted;
+    this.input = input;
+  }
+
+  @Override
+  public String toString() {
+    return "SyntheticScan [input=" + input + "]";
+  }
+
+  public boolean open() {
+    if (this.isOpen) {
+      return true;
+    }
+    matches = SyntheticData.getMatches(this.input);
+    Logger.println("SyntheticScan of " + this.input + ": " + matches.size() + " matches",
+        LoggingLevel.VARIABLEVALUES);
+    position = 0;
+    current = null;
+    isBelowThreshold = false;
+    this.isOpen = true;
+    return true;
+  }
+
+  /**
+   * Returns the name of an entity in the answers.
+   */
+  String getEntity(long id) {
+    return SyntheticData.getEntity(id, false);
+  }
+
+  /**
+   * Returns the name of a predicate in the answers.
+   */
+  String getPredicate(long id) {
+    return SyntheticData.getPredicate(id, false);
+  }
+
+  public boolean close() {
+    this.isOpen = false;
+    return true;
+  }
+
+  public boolean hasNext() {
+    if (current != null) {
+      return true;
+    }
+    if (isBelowThreshold || !isOpen || position >= matches.size()) {
+      return false;
+    }
+    try {
+      if (Double.isNaN(maxScore)) {
+        maxScore = matches.getScore(0);
+      }
+      HashMapBasedAnswer ans = new HashMapBasedAnswer(toBeCounted);
+      if (!this.input.isSubjectConst && isNeeded(this.input.subject)) {
+        ans.setVariableBinding(this.input.subject, getEntity(matches.getSubject(position)));
+      }
+      if (!this.input.isObjectConst && isNeeded(this.input.object)) {
+        ans.setVariableBinding(this.input.object, getEntity(matches.getObject(position)));
+      }
+      if (!this.input.isPredicateConst && isNeeded(this.input.predicate)) {
+        ans.setVariableBinding(this.input.predicate,
+            getPredicate(matches.getPredicate(position)));
+      }
+      ans.setScore(matches.getScore(position) / maxScore * Config.scoreMultipler);
+      ans.setQuery(this.input.toString());
+      position++;
+      if (ans.getScore() < scoreThreshold) {
+        // The matches come in descending score order, so none of the remaining ones qualify.
+        Logger.println("Scan of " + this.input + " stopped below threshold " + scoreThreshold,
+            LoggingLevel.INTERMEDIATEINFO);
+        isBelowThreshold = true;
+      } else {
+        current = ans;
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+
+    if (current == null) {
+      return false;
+    } else {
+      return true;
+    }
+  }
+
+  public Answer next() throws Exception {
+    if (current != null) {
+      Answer tuple = current;
+      current = null;
+      return tuple;
+    } else {
+      throw new NoSuchElementException("No more results.");
+    }
+  }
+
+  public Double getMaxScore() {
+    return this.maxScore;
+  }
+
+  public void setScoreThreshold(double threshold) {
+    if (threshold > scoreThreshold) {
+      scoreThreshold = threshold;
+    }
+  }
+
+  public void setNeededVariables(Set<String> neededVariables) {
+    this.neededVariables = neededVariables;
+  }
+
+  private boolean isNeeded(String var) {
+    return neededVariables == null || neededVariables.contains(var);
+  }
+
+  public String getPartQuery() {
+    return this.input.toString();
+  }
+}
@@ -0,0 +1,142 @@
+package de.mpii.trinitreloaded.queryprocessing;
+
+import gnu.trove.list.TDoubleList;
+import gnu.trove.list.array.TDoubleArrayList;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.ParameterizedSparqlString;
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.query.ReadWrite;
+import org.apache.jena.query.ResultSet;
+
+import com.google.common.collect.Lists;
+
+import de.mpii.trinitreloaded.datastructures.Answer;
+import de.mpii.trinitreloaded.datastructures.HashMapBasedAnswer;
+import de.mpii.trinitreloaded.utils.Config.LoggingLevel;
+import de.mpii.trinitreloaded.utils.Logger;
+import de.mpii.trinitreloaded.utils.TDBConnection;
+
+/**
+ * A scan operator for the relaxations of a term from a paraphrase table loaded into the embedded
+ * Jena TDB2 dataset, the counterpart of {@code QueryPlanner.getRelaxationCommand()}.
+ *
+ * Each row of a paraphrase table is a resource in the named graph of the table, with one property
+ * per column (see {@link de.mpii.trinitreloaded.utils.TDBLoader}). The answers bind
+ * {@code fetchField} to a relaxation of {@code seekValue} and are scored by {@code weightField},
+ * best first. As in {@link TDBScan}, all relaxations are read within one read transaction at
+ * {@code open()}.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class TDBRelaxationScan implements Operator {
+  final String table;
+  final String seekField;
+  final String fetchField;
+  final String weightField;
+  final String seekValue;
+  final int limit;
+  boolean isOpen;
+  List<String> relaxations;
+  TDoubleList weights;
+  int position;
+
+  /**
+   * @param table The paraphrase table.
+   * @param seekField The column holding the term to be relaxed.
+   * @param fetchField The column holding its relaxations.
+   * @param weightField The column holding the weight of a relaxation.
+   * @param seekValue The term to be relaxed.
+   * @param limit The maximum number of relaxations.
+   */
+  public TDBRelaxationScan(String table, String seekField, String fetchField, String weightField,
+      String seekValue, int limit) {
+    this.table = table;
+    this.seekField = seekField;
+    this.fetchField = fetchField;
+    this.weightField = weightField;
+    this.seekValue = seekValue;
+    this.limit = limit;
+  }
+
+  @Override
+  public String toString() {
+    return "TDBRelaxationScan [table=" + table + ", seekField=" + seekField + ", fetchField="
+        + fetchField + ", seekValue=" + seekValue + "]";
+  }
+
+  public boolean open() {
+    if (this.isOpen) {
+      return true;
+    }
+    relaxations = Lists.newArrayList();
+    weights = new TDoubleArrayList();
+    position = 0;
+    this.isOpen = true;
+
+    ParameterizedSparqlString cmd = new ParameterizedSparqlString(
+        "SELECT ?f ?w WHERE { GRAPH ?g { ?r ?seek ?v ; ?fetch ?f ; ?weight ?w . } }"
+            + " ORDER BY DESC(?w) LIMIT " + limit);
+    cmd.setIri("g", TDBConnection.getParaphraseGraphIRI(table));
+    cmd.setIri("seek", TDBConnection.getParaphrasePropertyIRI(seekField));
+    cmd.setIri("fetch", TDBConnection.getParaphrasePropertyIRI(fetchField));
+    cmd.setIri("weight", TDBConnection.getParaphrasePropertyIRI(weightField));
+    cmd.setLiteral("v", seekValue);
+    Logger.println("TDBRelaxationScan cmd: " + cmd, LoggingLevel.VARIABLEVALUES);
+
+    Dataset dataset = TDBConnection.getDataset();
+    dataset.begin(ReadWrite.READ);
+    try {
+      QueryExecution qe = QueryExecutionFactory.create(cmd.asQuery(), dataset);
+      try {
+        ResultSet results = qe.execSelect();
+        while (results.hasNext()) {
+          QuerySolution rs = results.nextSolution();
+          relaxations.add(rs.getLiteral("f").getString());
+          weights.add(rs.getLiteral("w").getDouble());
+        }
+      } finally {
+        qe.close();
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      return false;
+    } finally {
+      dataset.end();
+    }
+    return true;
+  }
+
+  public boolean close() {
+    relaxations = null;
+    weights = null;
+    this.isOpen = false;
+    return true;
+  }
+
+  public boolean hasNext() {
+    return isOpen && position < relaxations.size();
+  }
+
+  public Answer next() throws Exception {
+    if (!hasNext()) {
+      throw new NoSuchElementException("No more results.");
+    }
+    HashMapBasedAnswer ans = new HashMapBasedAnswer(false);
+    ans.setVariableBinding(fetchField, relaxations.get(position));
+    ans.setScore(weights.get(position));
+    ans.setQuery(getPartQuery());
+    position++;
+    return ans;
+  }
+
+  public String getPartQuery() {
+    return table + "(" + seekField + "=" + seekValue + ")";
+  }
+}
@@ -0,0 +1,387 @@
+package de.mpii.trinitreloaded.queryprocessing;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.query.ReadWrite;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.rdf.model.RDFNode;
+
+import com.google.common.collect.Lists;
+
+import de.mpii.trinitreloaded.datastructures.Answer;
+import de.mpii.trinitreloaded.datastructures.HashMapBasedAnswer;
+import de.mpii.trinitreloaded.datastructures.TriplePattern;
+import de.mpii.trinitreloaded.utils.Config;
+import de.mpii.trinitreloaded.utils.Logger;
+import de.mpii.trinitreloaded.utils.TDBConnection;
+import de.mpii.trinitreloaded.utils.Config.LoggingLevel;
+
+/**
+ * A scan operator for individual {@link TriplePattern} over the embedded Jena TDB2 dataset.
+ *
+ * It runs the same SPARQL command as {@link PopularityBasedRDFScan}, in process. A TDB2
+ * transaction belongs to the thread which began it and a thread can only have one, while many
+ * scans of a query are read alternately by the same thread. So each page of matches is read
+ * within its own read transaction, and its bindings are copied out before the transaction ends.
+ * Pages grow as in {@link PopularityBasedRDFScan}. If {@code rdfPageSize} is not set, the matches
+ * are streamed instead: a reader thread of the scan holds one read transaction for the whole
+ * query and hands the matches over through a buffer of {@code scanFetchSize} matches, so they are
+ * neither all held in memory nor sorted more than once.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class TDBScan implements ProjectingOperator, ThresholdedOperator {
+  private static final long OFFER_TIMEOUT_MS = 10;
+
+  /**
+   * A match streamed by the reader thread.
+   */
+  private static class Match {
+    final String subject;
+    final String predicate;
+    final int score;
+
+    Match(String subject, String predicate, int score) {
+      this.subject = subject;
+      this.predicate = predicate;
+      this.score = score;
+    }
+  }
+
+  /** Marks the end of the matches in the buffer. */
+  private static final Match END_OF_MATCHES = new Match(null, null, 0);
+
+  final TriplePattern input;
+  String dbCmd;
+  boolean isOpen;
+  /** The variables to bind, {@code null} for all. */
+  Set<String> neededVariables;
+  /** Answers scoring below it are not returned, see {@link ThresholdedOperator}. */
+  volatile double scoreThreshold = Double.NEGATIVE_INFINITY;
+  boolean isBelowThreshold;
+  Answer current;
+  double maxScore = Double.NaN;
+  boolean toBeCounted;
+  boolean isPaged;
+  /** The size and offset of the page being read. */
+  int limit;
+  long offset;
+  /** The bindings of ?s and ?p, and the score, of the matches of the page being read. */
+  List<String> subjects;
+  List<String> predicates;
+  TIntList scores;
+  int position;
+  /** The matches streamed by {@code reader}, if the scan is not paged. */
+  BlockingQueue<Match> buffer;
+  Thread reader;
+  volatile boolean isClosing;
+  volatile RuntimeException failure;
+  boolean isExhausted;
+
+  public TDBScan(TriplePattern input) {
+    this.toBeCounted = true;
+    this.input = input;
+  }
+
+  public TDBScan(TriplePattern input, boolean toBeCounted) {
+    this.toBeCounted = toBeCounted;
+    this.input = input;
+  }
+
+  @Override
+  public String toString() {
+    return "TDBScan [input=" + input + "]";
+  }
+
+  public boolean open() {
+    if (this.isOpen) {
+      return true;
+    }
+    isPaged = Config.rdfPageSize > 0;
+    dbCmd = PopularityBasedRDFScan.getSPARQLCommand(this.input, isPaged);
+    limit = Config.rdfPageSize;
+    offset = 0;
+    current = null;
+    isBelowThreshold = false;
+    this.isOpen = true;
+    if (!isPaged) {
+      startReader();
+      return true;
+    }
+    try {
+      readPage();
+    } catch (Exception e) {
+      e.printStackTrace();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Starts the thread streaming all matches into {@code buffer}.
+   */
+  private void startReader() {
+    buffer = new ArrayBlockingQueue<Match>(Math.max(Config.scanFetchSize, 1));
+    isClosing = false;
+    isExhausted = false;
+    failure = null;
+    reader = new Thread(new Runnable() {
+      public void run() {
+        readAll();
+      }
+    }, "tdb-" + this.input);
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  /**
+   * Runs on the reader thread: moves the matches into the buffer within one read transaction,
+   * until they are all read or the scan is closed.
+   */
+  private void readAll() {
+    Dataset dataset = TDBConnection.getDataset();
+    dataset.begin(ReadWrite.READ);
+    try {
+      QueryExecution qe = QueryExecutionFactory.create(dbCmd, dataset);
+      try {
+        ResultSet results = qe.execSelect();
+        while (!isClosing && results.hasNext()) {
+          QuerySolution rs = results.nextSolution();
+          if (!put(new Match(getBinding(rs, "s"), getBinding(rs, "p"),
+              rs.getLiteral("score").getInt()))) {
+            break;
+          }
+        }
+      } finally {
+        qe.close();
+      }
+    } catch (RuntimeException e) {
+      failure = e;
+    } finally {
+      dataset.end();
+    }
+    put(END_OF_MATCHES);
+  }
+
+  /**
+   * Adds a match to the buffer, waiting for the scan to be read while it is full.
+   *
+   * @return {@code false} if the scan was closed before the match could be added.
+   */
+  private boolean put(Match match) {
+    try {
+      while (!isClosing) {
+        if (buffer.offer(match, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+          return true;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return false;
+  }
+
+  /**
+   * Returns the next streamed match, or {@code null} after the last one.
+   */
+  private Match take() throws InterruptedException {
+    if (isExhausted) {
+      return null;
+    }
+    Match match = buffer.take();
+    if (match == END_OF_MATCHES) {
+      isExhausted = true;
+      if (failure != null) {
+        throw failure;
+      }
+      return null;
+    }
+    return match;
+  }
+
+  /**
+   * Reads the matches of the current page within a read transaction.
+   */
+  private void readPage() {
+    String cmd = dbCmd + " LIMIT " + limit + " OFFSET " + offset;
+    subjects = Lists.newArrayList();
+    predicates = Lists.newArrayList();
+    scores = new TIntArrayList();
+    position = 0;
+    Dataset dataset = TDBConnection.getDataset();
+    dataset.begin(ReadWrite.READ);
+    try {
+      QueryExecution qe = QueryExecutionFactory.create(cmd, dataset);
+      try {
+        ResultSet results = qe.execSelect();
+        while (results.hasNext()) {
+          QuerySolution rs = results.nextSolution();
+          subjects.add(getBinding(rs, "s"));
+          predicates.add(getBinding(rs, "p"));
+          scores.add(rs.getLiteral("score").getInt());
+        }
+      } finally {
+        qe.close();
+      }
+    } finally {
+      dataset.end();
+    }
+  }
+
+  /**
+   * Counts the answers of the join of {@code tps} in the dataset with one SPARQL
+   * {@code COUNT}, see {@link PopularityBasedRDFScan#getSPARQLJoinCountCommand(List)}.
+   */
+  static long countJoin(List<TriplePattern> tps) {
+    Dataset dataset = TDBConnection.getDataset();
+    dataset.begin(ReadWrite.READ);
+    try {
+      QueryExecution qe = QueryExecutionFactory.create(
+          PopularityBasedRDFScan.getSPARQLJoinCountCommand(tps), dataset);
+      try {
+        ResultSet results = qe.execSelect();
+        return results.hasNext() ? results.nextSolution().getLiteral("count").getLong() : 0;
+      } finally {
+        qe.close();
+      }
+    } finally {
+      dataset.end();
+    }
+  }
+
+  private static String getBinding(QuerySolution rs, String var) {
+    RDFNode node = rs.get(var);
+    return node == null ? null : node.toString();
+  }
+
+  public boolean close() {
+    if (reader != null) {
+      isClosing = true;
+      try {
+        reader.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      reader = null;
+      buffer = null;
+    }
+    subjects = null;
+    predicates = null;
+    scores = null;
+    this.isOpen = false;
+    return true;
+  }
+
+  public boolean hasNext() {
+    if (current != null) {
+      return true;
+    }
+    if (isBelowThreshold || !isOpen) {
+      return false;
+    }
+    try {
+      if (!isPaged) {
+        Match match = take();
+        if (match != null) {
+          setCurrent(match.subject, match.predicate, match.score);
+        }
+      } else if (nextInPage()) {
+        setCurrent(subjects.get(position), predicates.get(position), scores.get(position));
+        position++;
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+
+    if (current == null) {
+      return false;
+    } else {
+      return true;
+    }
+  }
+
+  /**
+   * Returns whether the page being read has another match, reading the next page if needed.
+   */
+  private boolean nextInPage() {
+    if (position == scores.size() && scores.size() == limit) {
+      // The page was full, so there may be more matches after it.
+      offset += limit;
+      limit = Math.min(2 * limit, Math.max(Config.rdfMaxPageSize, Config.rdfPageSize));
+      readPage();
+    }
+    return position < scores.size();
+  }
+
+  /**
+   * Makes the answer of a match the current one, unless it scores below the threshold.
+   */
+  private void setCurrent(String subject, String predicate, int score) throws Exception {
+    if (Double.isNaN(maxScore)) {
+      // The first match has the highest score.
+      maxScore = score;
+    }
+    HashMapBasedAnswer ans = new HashMapBasedAnswer(toBeCounted);
+    if (!this.input.isSubjectConst && isNeeded(this.input.subject)) {
+      ans.setVariableBinding(this.input.subject, subject);
+    }
+    if (!this.input.isPredicateConst && isNeeded(this.input.predicate)) {
+      ans.setVariableBinding(this.input.predicate, predicate);
+    }
+    ans.setScore(score / maxScore * Config.scoreMultipler);
+    ans.setQuery(this.input.toString());
+    if (ans.getScore() < scoreThreshold) {
+      // The matches come in descending score order, so none of the remaining ones qualify.
+      Logger.println("Scan of " + this.input + " stopped below threshold " + scoreThreshold,
+          LoggingLevel.INTERMEDIATEINFO);
+      isBelowThreshold = true;
+    } else {
+      current = ans;
+    }
+  }
+
+  public Answer next() throws Exception {
+    if (current != null) {
+      Answer tuple = current;
+      current = null;
+      return tuple;
+    } else {
+      throw new NoSuchElementException("No more results.");
+    }
+  }
+
+  public Double getMaxScore() {
+    return this.maxScore;
+  }
+
+  public void setScoreThreshold(double threshold) {
+    if (threshold > scoreThreshold) {
+      scoreThreshold = threshold;
+    }
+  }
+
+  public void setNeededVariables(Set<String> neededVariables) {
+    this.neededVariables = neededVariables;
+  }
+
+  private boolean isNeeded(String var) {
+    return neededVariables == null || neededVariables.contains(var);
+  }
+
+  public String getPartQuery() {
+    return this.input.toString();
+  }
+}
@@ -0,0 +1,22 @@
+package de.mpii.trinitreloaded.queryprocessing;
+
+/**
+ * An {@link Operator} which can be told by its consumer that answers scoring below a threshold
+ * are of no use any more.
+ *
+ * Operators returning answers in descending score order can then stop as soon as their next
+ * answer falls below the threshold, instead of reading the remaining, lower-scored, matches.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public interface ThresholdedOperator extends Operator {
+
+  /**
+   * Tells the operator that answers with a score below {@code threshold} will not be used. The
+   * threshold never decreases: a call with a lower threshold than a previous one has no effect.
+   * It may be called from another thread than the one reading the operator.
+   */
+  public void setScoreThreshold(double threshold);
+
+}
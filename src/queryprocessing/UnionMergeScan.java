@@ -0,0 +1,388 @@
+package de.mpii.trinitreloaded.queryprocessing;
+
+import gnu.trove.list.TDoubleList;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import de.mpii.trinitreloaded.datastructures.Answer;
+import de.mpii.trinitreloaded.datastructures.HashMapBasedAnswer;
+import de.mpii.trinitreloaded.datastructures.TriplePattern;
+import de.mpii.trinitreloaded.utils.Config;
+import de.mpii.trinitreloaded.utils.Config.LoggingLevel;
+import de.mpii.trinitreloaded.utils.DBConnection;
+import de.mpii.trinitreloaded.utils.Logger;
+import de.mpii.trinitreloaded.utils.SQLTemplateCache;
+import de.mpii.trinitreloaded.utils.ScoredDataTable;
+
+/**
+ * A scan operator merging a {@link TriplePattern} and its relaxations inside the database.
+ *
+ * It returns the same answers as an {@link IncrementalMerge} over the {@link PopularityBasedScan}
+ * of the pattern and of each relaxation, but with a single query: one {@code UNION ALL} branch
+ * per pattern, each normalized by its maximum score and multiplied by its weight. The maxima are
+ * read before the query, see {@code PopularityBasedScan.getRawMaxScores()}, and passed as
+ * parameters, so no branch has to be read to the end before the first answer. The database
+ * returns the matches of all branches in score order, and the client keeps the first, i.e.
+ * best-scored, occurrence of each binding.
+ *
+ * A key filter, see {@link KeyFilteredOperator}, re-issues the query restricted to the keys,
+ * continuing after the last row read, see {@link ScanPosition}.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class UnionMergeScan implements ProjectingOperator, ThresholdedOperator,
+    KeyFilteredOperator {
+  final TriplePattern input;
+  /** The original pattern followed by its relaxations. */
+  final List<TriplePattern> branches;
+  /** The weight of each branch, {@code ORIGINAL_TERM_WEIGHT} for the original pattern. */
+  final List<Double> weights;
+  /** The columns of the needed variable positions, which are the same for all branches. */
+  final List<String> keyColumns;
+  Connection conn;
+  PreparedStatement stmt;
+  ResultSet rs;
+  boolean isOpen;
+  /** The variables to bind, {@code null} for all. */
+  Set<String> neededVariables;
+  /** Answers scoring below it are not returned, see {@link ThresholdedOperator}. */
+  volatile double scoreThreshold = Double.NEGATIVE_INFINITY;
+  boolean isBelowThreshold;
+  Answer current;
+  boolean isStreaming;
+  /** The bindings returned so far, see {@code getKey()}. */
+  final Set<String> returnedBindings = Sets.newHashSet();
+  /** The highest score of each branch, as stored in the database. */
+  double[] maxScores;
+  /** Where a query re-issued with a key filter continues. */
+  final ScanPosition position = new ScanPosition();
+  /** The column restricted to {@code keyFilter}, see {@link KeyFilteredOperator}. */
+  String keyFilterColumn;
+  List<String> keyFilter;
+
+  public UnionMergeScan(TriplePattern input, List<TriplePattern> relaxations,
+      TDoubleList weights) {
+    assert (relaxations.size() == weights.size());
+    this.input = input;
+    this.branches = Lists.newArrayList(input);
+    this.branches.addAll(relaxations);
+    this.weights = Lists.newArrayList(IncrementalMerge.ORIGINAL_TERM_WEIGHT);
+    for (int i = 0; i < weights.size(); i++) {
+      this.weights.add(weights.get(i));
+    }
+    this.keyColumns = Lists.newArrayList();
+    if (!input.isSubjectConst) {
+      keyColumns.add("subject");
+    }
+    if (!input.isPredicateConst) {
+      keyColumns.add("predicate");
+    }
+    if (!input.isObjectConst) {
+      keyColumns.add("object");
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "UnionMergeScan [input=" + input + ", branches=" + branches + ", weights=" + weights
+        + "]";
+  }
+
+  public boolean open() throws SQLException {
+    if (this.isOpen) {
+      return true;
+    }
+    maxScores = PopularityBasedScan.getRawMaxScores(branches);
+    position.clear();
+    current = null;
+    isBelowThreshold = false;
+    returnedBindings.clear();
+    execute();
+    this.isOpen = true;
+    return true;
+  }
+
+  /**
+   * Runs the query, restricted by the key filter, if any, and continuing after the last row
+   * read, if any.
+   */
+  private void execute() throws SQLException {
+    boolean isContinuation = position.isSet();
+    String cmd = getDBCommand(isContinuation);
+    List<Object> params = getDBParameters(maxScores);
+    if (keyFilter != null) {
+      params.add(Joiner.on(PopularityBasedScan.KEY_SEPARATOR).join(keyFilter));
+    }
+    if (isContinuation) {
+      params.addAll(position.getSQLParameters());
+    }
+    Logger.println("UnionMergeScan of " + input + " with " + params, LoggingLevel.VARIABLEVALUES);
+    conn = DBConnection.getConnection();
+    stmt = SQLTemplateCache.prepare(conn, cmd, params);
+    isStreaming = Config.streamingScans;
+    if (isStreaming) {
+      conn.setAutoCommit(false);
+      stmt.setFetchSize(Config.scanFetchSize);
+    }
+    rs = stmt.executeQuery();
+  }
+
+  /**
+   * Closes the query being read and returns its connection.
+   */
+  private void release() throws SQLException {
+    rs.close();
+    stmt.close();
+    if (isStreaming) {
+      conn.rollback();
+      conn.setAutoCommit(true);
+    }
+    conn.close();
+  }
+
+  private static boolean isScored(TriplePattern tp) {
+    return tp.isObjectResource || !tp.isObjectConst;
+  }
+
+  private String getDBCommand(boolean isContinuation) {
+    List<String> shapes = Lists.newArrayList();
+    for (TriplePattern tp : branches) {
+      shapes.add(isScored(tp) + ":" + tp.isSubjectConst + ":" + tp.isPredicateConst + ":"
+          + tp.isObjectConst);
+    }
+    String shape = "UnionMergeScan:" + keyColumns + ":" + ScoredDataTable.isAvailable() + ":"
+        + keyFilterColumn + ":" + isContinuation + ":" + Joiner.on("|").join(shapes);
+    String cmd = SQLTemplateCache.get(shape);
+    if (cmd != null) {
+      return cmd;
+    }
+
+    List<String> unionBranches = Lists.newArrayList();
+    for (int i = 0; i < branches.size(); i++) {
+      unionBranches.add(getBranchCommand(branches.get(i), i));
+    }
+    String union = Joiner.on(" UNION ALL ").join(unionBranches);
+    if (keyColumns.isEmpty()) {
+      // No bindings to tell answers apart: all matches are the same, empty, answer.
+      cmd = "SELECT score, branch FROM (" + union + ") u ORDER BY score DESC, branch LIMIT 1";
+    } else {
+      // The database pushes these conditions down into the branches.
+      List<String> whereClause = Lists.newArrayList();
+      if (keyFilterColumn != null) {
+        whereClause.add(keyFilterColumn + " = ANY(string_to_array(?, chr("
+            + (int) PopularityBasedScan.KEY_SEPARATOR + ")))");
+      }
+      if (isContinuation) {
+        whereClause.add(ScanPosition.getSQLCondition("score", keyColumns));
+      }
+      // On equal scores and bindings, the original pattern comes first.
+      cmd = "SELECT * FROM (" + union + ") u"
+          + (whereClause.isEmpty() ? "" : " WHERE " + Joiner.on(" AND ").join(whereClause))
+          + " ORDER BY score DESC, " + Joiner.on(" DESC, ").join(keyColumns) + " DESC, branch";
+    }
+    Logger.println("UnionMergeScan cmd: " + cmd, LoggingLevel.VARIABLEVALUES);
+    return SQLTemplateCache.put(shape, cmd);
+  }
+
+  /**
+   * Returns the {@code UNION ALL} branch of one pattern, which selects the variable columns and
+   * the score multiplied by the weight of the pattern over its maximum score.
+   */
+  private String getBranchCommand(TriplePattern tp, int branch) {
+    List<String> columns = Lists.newArrayList();
+    for (String column : keyColumns) {
+      columns.add("d." + column + " AS " + column);
+    }
+    String from;
+    String scoreColumn;
+    List<String> whereClause = Lists.newArrayList();
+    if (isScored(tp) && ScoredDataTable.isAvailable()) {
+      scoreColumn = "d.score";
+      from = Config.scoredDataTableName + " d";
+    } else if (isScored(tp)) {
+      scoreColumn = "inlinks";
+      from = Config.dataTableName + " d, " + Config.scoreTableName;
+      whereClause.add("d.subject = entity");
+    } else {
+      scoreColumn = "d.count";
+      from = Config.textualTypeDataTableName + " d";
+    }
+    columns.add("CAST(? AS float8) * " + scoreColumn + " AS score");
+    columns.add(branch + " AS branch");
+    if (tp.isSubjectConst) {
+      whereClause.add("d.subject=?");
+    }
+    if (tp.isPredicateConst) {
+      whereClause.add("d.predicate=?");
+    }
+    if (tp.isObjectConst) {
+      whereClause.add("d.object=?");
+    }
+    return "(SELECT " + Joiner.on(", ").join(columns) + " FROM " + from + " WHERE "
+        + Joiner.on(" AND ").join(whereClause) + ")";
+  }
+
+  /**
+   * Returns the weight over the maximum score and the constants of each branch, in the order of
+   * the placeholders in {@code getDBCommand()}.
+   */
+  private List<Object> getDBParameters(double[] maxScores) {
+    List<Object> params = Lists.newArrayList();
+    for (int i = 0; i < branches.size(); i++) {
+      TriplePattern tp = branches.get(i);
+      // A branch without matches has a maximum of 0, and no scores to normalize.
+      params.add(maxScores[i] > 0 ? weights.get(i) / maxScores[i] : 0.0);
+      if (tp.isSubjectConst) {
+        params.add(QueryPlanner.formatParameter(tp.subject));
+      }
+      if (tp.isPredicateConst) {
+        params.add(QueryPlanner.formatParameter(tp.predicate));
+      }
+      if (tp.isObjectConst) {
+        params.add(QueryPlanner.formatParameter(tp.object));
+      }
+    }
+    return params;
+  }
+
+  public boolean close() throws SQLException {
+    if (!isOpen) {
+      return true;
+    }
+    release();
+    this.isOpen = false;
+    return true;
+  }
+
+  public boolean hasNext() throws SQLException {
+    if (current != null) {
+      return true;
+    }
+    if (isBelowThreshold) {
+      return false;
+    }
+    try {
+      while (current == null && !isBelowThreshold && rs.next()) {
+        List<String> key = getKey();
+        position.set(rs.getDouble("score"), key);
+        if (!returnedBindings.add(Joiner.on('\t').join(key))) {
+          // A lower-scored occurrence of a binding already returned.
+          continue;
+        }
+        HashMapBasedAnswer ans = new HashMapBasedAnswer(true);
+        if (!this.input.isSubjectConst && isNeeded(this.input.subject)) {
+          ans.setVariableBinding(this.input.subject, rs.getString("subject"));
+        }
+        if (!this.input.isObjectConst && isNeeded(this.input.object)) {
+          ans.setVariableBinding(this.input.object, rs.getString("object"));
+        }
+        if (!this.input.isPredicateConst && isNeeded(this.input.predicate)) {
+          ans.setVariableBinding(this.input.predicate, rs.getString("predicate"));
+        }
+        ans.setScore(rs.getDouble("score") * Config.scoreMultipler);
+        if (rs.getInt("branch") > 0) {
+          ans.SetComesFromRelaxation(true);
+        }
+        ans.setQuery(this.input.toString());
+        if (ans.getScore() < scoreThreshold) {
+          // The matches come in descending score order, so none of the remaining ones qualify.
+          Logger.println("Scan of " + this.input + " stopped below threshold " + scoreThreshold,
+              LoggingLevel.INTERMEDIATEINFO);
+          isBelowThreshold = true;
+        } else {
+          current = ans;
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+
+    if (current == null) {
+      return false;
+    } else {
+      return true;
+    }
+  }
+
+  public void setKeyFilter(String var, Set<String> keys) throws SQLException {
+    String column = null;
+    if (!input.isSubjectConst && input.subject.equals(var)) {
+      column = "subject";
+    } else if (!input.isPredicateConst && input.predicate.equals(var)) {
+      column = "predicate";
+    } else if (!input.isObjectConst && input.object.equals(var)) {
+      column = "object";
+    }
+    if (column == null || !keyColumns.contains(column)) {
+      return;
+    }
+    Logger.println("Restricting " + this.input + " to " + keys.size() + " keys of " + var,
+        LoggingLevel.INTERMEDIATEINFO);
+    keyFilterColumn = column;
+    keyFilter = Lists.newArrayList(keys);
+    if (isOpen && !isBelowThreshold) {
+      release();
+      execute();
+    }
+  }
+
+  /**
+   * Returns the values of the key columns of the current row, which tell answers apart.
+   */
+  private List<String> getKey() throws SQLException {
+    List<String> key = Lists.newArrayList();
+    for (String column : keyColumns) {
+      key.add(rs.getString(column));
+    }
+    return key;
+  }
+
+  public Answer next() throws Exception {
+    if (current != null) {
+      Answer tuple = current;
+      current = null;
+      return tuple;
+    } else {
+      throw new NoSuchElementException("No more results.");
+    }
+  }
+
+  public void setScoreThreshold(double threshold) {
+    if (threshold > scoreThreshold) {
+      scoreThreshold = threshold;
+    }
+  }
+
+  public void setNeededVariables(Set<String> neededVariables) {
+    this.neededVariables = neededVariables;
+    // Answers differing only in dropped bindings are duplicates, so only the first is returned.
+    if (!isNeeded(input.subject)) {
+      keyColumns.remove("subject");
+    }
+    if (!isNeeded(input.predicate)) {
+      keyColumns.remove("predicate");
+    }
+    if (!isNeeded(input.object)) {
+      keyColumns.remove("object");
+    }
+  }
+
+  private boolean isNeeded(String var) {
+    return neededVariables == null || neededVariables.contains(var);
+  }
+
+  public String getPartQuery() {
+    return this.input.toString();
+  }
+}
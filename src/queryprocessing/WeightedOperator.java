@@ -2,6 +2,7 @@ package de.mpii.trinitreloaded.queryprocessing;
 
 import java.sql.SQLException;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
 import de.mpii.trinitreloaded.datastructures.Answer;
 import de.mpii.trinitreloaded.utils.Config.LoggingLevel;
@@ -28,7 +29,8 @@ import de.mpii.trinitreloaded.utils.Logger;
  *
  *
  */
-public class WeightedOperator implements Operator, Comparable<WeightedOperator> {
+public class WeightedOperator implements ThresholdedOperator, KeyFilteredOperator,
+    Comparable<WeightedOperator> {
 
   final Operator operator;
   final double weight;
@@ -111,6 +113,21 @@ public class WeightedOperator implements Operator, Comparable<WeightedOperator>
     return Double.compare(o.high(), this.high());
   }
 
+  /**
+   * Passes the threshold on to the input, scaled to its scores before weighting.
+   */
+  public void setScoreThreshold(double threshold) {
+    if (operator instanceof ThresholdedOperator && weight > 0) {
+      ((ThresholdedOperator) operator).setScoreThreshold(threshold / weight);
+    }
+  }
+
+  public void setKeyFilter(String var, Set<String> keys) throws SQLException {
+    if (operator instanceof KeyFilteredOperator) {
+      ((KeyFilteredOperator) operator).setKeyFilter(var, keys);
+    }
+  }
+
   public boolean isOpen() {
     return isOpen;
   }
@@ -0,0 +1,71 @@
+package de.mpii.trinitreloaded.datastructures;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Checks the estimates of {@link HyperLogLog} against the exact sizes of the sets.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class HyperLogLogTest {
+  private static final int PRECISION = 12;
+  /** Three standard errors of the estimate, 1.04/sqrt(2^12), relative to the size. */
+  private static final double MAX_ERROR = 0.05;
+
+  /** Returns the sketch of the entities numbered from {@code from} until {@code to}. */
+  private static HyperLogLog getSketch(int from, int to) {
+    HyperLogLog sketch = new HyperLogLog(PRECISION);
+    for (int i = from; i < to; i++) {
+      sketch.add("http://example.org/entity" + i);
+    }
+    return sketch;
+  }
+
+  @Test
+  public void testCardinality() {
+    for (int size : new int[] {10, 100, 1000, 10000, 100000, 1000000}) {
+      assertEquals("cardinality of " + size, size, getSketch(0, size).cardinality(),
+          MAX_ERROR * size);
+    }
+    assertEquals(0.0, new HyperLogLog(PRECISION).cardinality(), 0.0);
+  }
+
+  @Test
+  public void testDuplicates() {
+    HyperLogLog sketch = getSketch(0, 1000);
+    double cardinality = sketch.cardinality();
+    for (int i = 0; i < 1000; i++) {
+      sketch.add("http://example.org/entity" + i);
+    }
+    assertEquals(cardinality, sketch.cardinality(), 0.0);
+  }
+
+  @Test
+  public void testUnion() {
+    HyperLogLog union = getSketch(0, 60000).union(getSketch(40000, 100000));
+    assertEquals(100000, union.cardinality(), MAX_ERROR * 100000);
+    // The union of stored registers is the same.
+    HyperLogLog stored = new HyperLogLog(getSketch(0, 60000).getRegisters());
+    assertEquals(union.cardinality(), stored.union(getSketch(40000, 100000)).cardinality(), 0.0);
+  }
+
+  @Test
+  public void testIntersectionSize() {
+    // The error of inclusion-exclusion is relative to the size of the union.
+    HyperLogLog sketch = getSketch(0, 60000);
+    assertEquals(20000, sketch.intersectionSize(getSketch(40000, 100000)), MAX_ERROR * 100000);
+    assertEquals(0, sketch.intersectionSize(getSketch(100000, 160000)), MAX_ERROR * 120000);
+    // Never more than the smaller set.
+    double contained = sketch.intersectionSize(getSketch(0, 1000));
+    assertEquals(1000, contained, MAX_ERROR * 60000);
+    assertEquals(true, contained <= getSketch(0, 1000).cardinality());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnionOfDifferentPrecision() {
+    getSketch(0, 10).union(new HyperLogLog(PRECISION + 1));
+  }
+}
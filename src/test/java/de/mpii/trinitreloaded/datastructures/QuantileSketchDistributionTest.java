@@ -0,0 +1,127 @@
+package de.mpii.trinitreloaded.datastructures;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the ranks of the scores of a {@link QuantileSketchDistribution} against the exact
+ * ranks of the sorted scores.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class QuantileSketchDistributionTest {
+  private static final int K = 64;
+  private static final int NUM_SCORES = 100000;
+  /** The largest error allowed for a rank, relative to the rank. */
+  private static final double MAX_RANK_ERROR = 0.1;
+
+  /** Skewed scores with many ties, as the popularity of entities. */
+  private static double[] getScores() {
+    Random random = new Random(42);
+    double[] scores = new double[NUM_SCORES];
+    for (int i = 0; i < scores.length; i++) {
+      scores[i] = Math.floor(1000 / Math.pow(1 - random.nextDouble(), 0.8)) / 10;
+    }
+    return scores;
+  }
+
+  /**
+   * Asserts that the k highest scores are exact, and that each score returned for a rank has,
+   * among the sorted scores, a rank within {@code MAX_RANK_ERROR} of it.
+   */
+  private static void assertRanks(double[] scores, QuantileSketchDistribution sketch) {
+    double[] sorted = scores.clone();
+    Arrays.sort(sorted);
+    int n = sorted.length;
+    for (long rank = 1; rank <= n; rank = rank < K ? rank + 1 : (long) Math.ceil(rank * 1.05)) {
+      double score = sketch.getPercentile(rank);
+      if (rank <= K) {
+        assertEquals("score at rank " + rank, sorted[n - (int) rank], score, 0.0);
+        continue;
+      }
+      // The ranks, in descending order, of the scores equal to the returned one.
+      int highest = n - upperBound(sorted, score) + 1;
+      int lowest = n - lowerBound(sorted, score);
+      assertTrue("score " + score + " at rank " + rank + " is not a score", highest <= lowest);
+      long error = rank < highest ? highest - rank : rank > lowest ? rank - lowest : 0;
+      assertTrue("score " + score + " at rank " + rank + " has ranks " + highest + " to "
+          + lowest, error <= MAX_RANK_ERROR * rank);
+    }
+  }
+
+  private static int lowerBound(double[] sorted, double score) {
+    int low = 0;
+    int high = sorted.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (sorted[mid] < score) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  private static int upperBound(double[] sorted, double score) {
+    int low = 0;
+    int high = sorted.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (sorted[mid] <= score) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  @Test
+  public void testRankError() {
+    double[] scores = getScores();
+    QuantileSketchDistribution sketch = new QuantileSketchDistribution(K);
+    double total = 0.0;
+    for (double score : scores) {
+      sketch.update(score);
+      total += score;
+    }
+    assertEquals(NUM_SCORES, sketch.getNumResults());
+    assertEquals(total, sketch.getTotalScore(), 1e-6 * total);
+    assertRanks(scores, sketch);
+    assertEquals(0.0, sketch.getPercentile(NUM_SCORES + 1), 0.0);
+  }
+
+  @Test
+  public void testMergeMatchesSinglePass() {
+    double[] scores = getScores();
+    QuantileSketchDistribution single = new QuantileSketchDistribution(K);
+    QuantileSketchDistribution[] shards = new QuantileSketchDistribution[4];
+    for (int i = 0; i < shards.length; i++) {
+      shards[i] = new QuantileSketchDistribution(K);
+    }
+    for (int i = 0; i < scores.length; i++) {
+      single.update(scores[i]);
+      shards[i % shards.length].update(scores[i]);
+    }
+    QuantileSketchDistribution merged = new QuantileSketchDistribution(K);
+    for (QuantileSketchDistribution shard : shards) {
+      merged.merge(shard);
+    }
+
+    assertEquals(single.getNumResults(), merged.getNumResults());
+    assertEquals(single.getMaxScore(), merged.getMaxScore(), 0.0);
+    assertEquals(single.getMinScore(), merged.getMinScore(), 0.0);
+    assertEquals(single.getTotalScore(), merged.getTotalScore(), 1e-6 * single.getTotalScore());
+    for (int rank = 1; rank <= K; rank++) {
+      assertEquals(single.getPercentile(rank), merged.getPercentile(rank), 0.0);
+    }
+    assertRanks(scores, merged);
+  }
+}
@@ -0,0 +1,120 @@
+package de.mpii.trinitreloaded.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.mpii.trinitreloaded.utils.PostingStore.PostingList;
+
+/**
+ * Writes a small {@link PostingStore} with {@link PostingStoreBuilder} and reads it back.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class PostingStoreTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private PostingStore build(String[][] entries) throws IOException {
+    File f = folder.newFile("store.bin");
+    PostingStoreBuilder builder = new PostingStoreBuilder();
+    builder.start(f);
+    try {
+      for (String[] entry : entries) {
+        builder.addEntry(Integer.parseInt(entry[0]), entry[1], entry[2], entry[3],
+            Double.parseDouble(entry[4]));
+      }
+      builder.finish(f);
+    } finally {
+      builder.discard();
+    }
+    return new PostingStore(f);
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    String po = Integer.toString(PostingStore.DATA_PREDICATE_OBJECT);
+    String sp = Integer.toString(PostingStore.TEXTUAL_SUBJECT_PREDICATE);
+    PostingStore store = build(new String[][] {
+        {po, "type", "Person", "alice", "30.5"},
+        {po, "type", "Person", "bob", "20"},
+        {po, "type", "Person", "carol", "20"},
+        {po, "type", "City", "paris", "5"},
+        // The same terms in another order, so the key index is not in entry order.
+        {po, "knows", "alice", "carol", "3"},
+        {po, "knows", "alice", "bob", "2"},
+        {sp, "alice", "name", "Alice Smith", "1"}});
+
+    for (String term : new String[] {"type", "Person", "alice", "Alice Smith", "paris"}) {
+      assertEquals(term, store.getTerm(store.getTermId(term)));
+    }
+    assertEquals(-1, store.getTermId("unknown"));
+
+    int type = store.getTermId("type");
+    int person = store.getTermId("Person");
+    PostingList persons = store.getList(PostingStore.DATA_PREDICATE_OBJECT, type, person);
+    assertEquals(3, persons.size());
+    String[] terms = {"alice", "bob", "carol"};
+    double[] scores = {30.5, 20, 20};
+    for (int i = 0; i < terms.length; i++) {
+      assertEquals(terms[i], store.getTerm(persons.getTermId(i)));
+      assertEquals(scores[i], persons.getScore(i), 0.0);
+      assertEquals(i, persons.indexOf(store.getTermId(terms[i])));
+    }
+    assertEquals(-1, persons.indexOf(store.getTermId("paris")));
+    // Lists of another kind are told apart by their kind.
+    assertNull(store.getList(PostingStore.DATA_SUBJECT_PREDICATE, type, person));
+
+    PostingList known = store.getList(PostingStore.DATA_PREDICATE_OBJECT,
+        store.getTermId("knows"), store.getTermId("alice"));
+    assertEquals(2, known.size());
+    assertEquals(0, known.indexOf(store.getTermId("carol")));
+    assertEquals(1, known.indexOf(store.getTermId("bob")));
+    assertEquals(-1, known.indexOf(store.getTermId("alice")));
+
+    PostingList names = store.getList(PostingStore.TEXTUAL_SUBJECT_PREDICATE,
+        store.getTermId("alice"), store.getTermId("name"));
+    assertEquals(1, names.size());
+    assertEquals("Alice Smith", store.getTerm(names.getTermId(0)));
+  }
+
+  @Test
+  public void testManyTerms() throws IOException {
+    // Enough terms and lists for the hash tables to have collisions.
+    int numLists = 50;
+    int listSize = 40;
+    String po = Integer.toString(PostingStore.DATA_PREDICATE_OBJECT);
+    String[][] entries = new String[numLists * listSize][];
+    for (int list = 0; list < numLists; list++) {
+      for (int i = 0; i < listSize; i++) {
+        // Each list holds the terms in a different order.
+        int term = (i * 7 + list) % listSize;
+        entries[list * listSize + i] =
+            new String[] {po, "p", "o" + list, "s" + term, Integer.toString(listSize - i)};
+      }
+    }
+    PostingStore store = build(entries);
+
+    int p = store.getTermId("p");
+    for (int list = 0; list < numLists; list++) {
+      PostingList postings =
+          store.getList(PostingStore.DATA_PREDICATE_OBJECT, p, store.getTermId("o" + list));
+      assertEquals(listSize, postings.size());
+      for (int i = 0; i < listSize; i++) {
+        int term = store.getTermId("s" + (i * 7 + list) % listSize);
+        assertEquals(term, postings.getTermId(i));
+        assertEquals(listSize - i, postings.getScore(i), 0.0);
+        assertEquals(i, postings.indexOf(term));
+      }
+    }
+    assertNull(store.getList(PostingStore.DATA_PREDICATE_OBJECT, p, store.getTermId("s0")));
+  }
+}
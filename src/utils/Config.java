@@ -101,6 +101,9 @@ public class Config {
   public static String relationRelationParaphraseTblName = "trinit.relation_relation_paraphrases";
   public static String syntheticParaphraseTblName = "trinit.twitterrelaxationsfromnewdataunique";
   public static String scoreTableName = "trinit.entityInlinksCount";
+  public static String scoredDataTableName = "trinit.scored_data";
+  public static String patternStatisticsTableName = "trinit.pattern_statistics";
+  public static String joinSketchTableName = "trinit.join_sketches";
   public static String rdfScoreTableName = "<xkg>";
   public static String rdfSyntheticGraphName = "<twitter>";
 
@@ -164,7 +167,8 @@ public class Config {
     EQUIDEPTH(1),
     POWERLAW(2),
     EQUIDEPTHSCORE(3),
-    VOPTIMAL(4);
+    VOPTIMAL(4),
+    SKETCH(5);
 
     private final int numVal;
 
@@ -194,6 +198,186 @@ public class Config {
    * The constant which is multiplied to the weights to make probabilities in the range [0,1].
    */
   public static double scoreMultipler;
+  /**
+   * Set to true to stream the matches of
+   * {@link de.mpii.trinitreloaded.queryprocessing.PopularityBasedScan} through a server-side
+   * cursor instead of materializing the whole result in the client.
+   */
+  public static boolean streamingScans;
+
+  /** The number of rows fetched from the cursor of a streaming scan at a time. */
+  public static int scanFetchSize;
+
+  /**
+   * Set to true to double the fetch size of a streaming scan each time a batch has been consumed,
+   * up to {@code maxScanFetchSize}.
+   */
+  public static boolean adaptiveFetchSize;
+  public static int maxScanFetchSize;
+
+  /**
+   * Set to true to read the matches of triple patterns during query execution with
+   * {@link de.mpii.trinitreloaded.queryprocessing.KeysetPopularityBasedScan}, in pages of growing
+   * size, instead of {@link de.mpii.trinitreloaded.queryprocessing.PopularityBasedScan}.
+   */
+  public static boolean keysetScans;
+
+  /**
+   * Set to true to read the matches of the scans of a query ahead, on background threads,
+   * into buffers of {@code prefetchBufferSize} answers.
+   */
+  public static boolean prefetchScans;
+  public static int prefetchBufferSize;
+
+  /**
+   * Set to true to merge a pattern and its relaxations with a single {@code UNION ALL} query
+   * (see {@link de.mpii.trinitreloaded.queryprocessing.UnionMergeScan}) instead of an
+   * {@link IncrementalMerge} over separate scans. Only used for PostgreSQL.
+   */
+  public static boolean unionMerge;
+
+  /**
+   * Set to true to let all the scans of a query share one connection per database, each through
+   * its own named cursor (see {@link CursorMultiplexer}). Over sharded data with a per-query
+   * connection budget, scans are always multiplexed, since a scan reads from every shard.
+   */
+  public static boolean multiplexScans;
+
+  /**
+   * Set to true to drop, already in the scans, the bindings of variables which are neither
+   * projected nor joined on, and to let each
+   * {@link de.mpii.trinitreloaded.queryprocessing.RankJoin} keep only the bindings still
+   * needed above it.
+   */
+  public static boolean projectionPushdown;
+
+  /**
+   * Set to true to let the top {@link de.mpii.trinitreloaded.queryprocessing.RankJoin} tell its
+   * inputs, down to the scans, the lowest score a tuple must have to still contribute to the top-k
+   * answers.
+   */
+  public static boolean scoreThresholdPushdown;
+
+  /**
+   * Set to true to let a {@link de.mpii.trinitreloaded.queryprocessing.RankJoin} restrict one input
+   * to the join keys of the other once that one is exhausted, if it has at most
+   * {@code semiJoinMaxKeys} keys. Up to {@code semiJoinArrayThreshold} keys are sent as an
+   * {@code IN} list, more as a single array parameter.
+   */
+  public static boolean semiJoinPushdown;
+  public static int semiJoinMaxKeys;
+  public static int semiJoinArrayThreshold;
+
+  /**
+   * The size of the first page of matches requested by a
+   * {@link de.mpii.trinitreloaded.queryprocessing.PopularityBasedRDFScan}, 0 to request all matches
+   * at once. Each further page is twice as large, up to {@code rdfMaxPageSize}.
+   */
+  public static int rdfPageSize;
+  public static int rdfMaxPageSize;
+
+  /**
+   * If set (with {@code isRDFDB}), the RDF data is read from the embedded Jena TDB2 dataset at
+   * {@code tdbLocation}, built by {@link TDBLoader}, instead of from Virtuoso.
+   */
+  public static boolean useTDB;
+  public static String tdbLocation;
+
+  /**
+   * If set, patterns supported by a {@link de.mpii.trinitreloaded.queryprocessing.PostingListScan}
+   * are read from the memory-mapped posting store at {@code postingStoreFile}, built by
+   * {@link PostingStoreBuilder}, instead of from the database.
+   */
+  public static boolean postingStoreScans;
+  public static String postingStoreFile;
+
+  /**
+   * The parameters of the {@link de.mpii.trinitreloaded.queryprocessing.SyntheticData} read in
+   * place of a database if {@code isSyntheticData} is set: the seed, the number of entities and
+   * predicates, the range of the number of subjects of a pattern, the number of objects per subject
+   * of a pattern with a variable object, and the exponent of the Zipf distribution of the scores.
+   */
+  public static long syntheticSeed;
+  public static long syntheticNumEntities;
+  public static int syntheticNumPredicates;
+  public static long syntheticMinMatches;
+  public static long syntheticMaxMatches;
+  public static int syntheticFanOut;
+  public static double syntheticZipfExponent;
+
+  /**
+   * Set to true to read the scored matches from the pre-joined {@code scoredDataTableName} (built
+   * by {@link ScoredDataTable}) instead of joining the data and score tables, when it exists.
+   */
+  public static boolean useScoredData;
+
+  /**
+   * Set to true to let the database join the patterns of a partition which is not relaxed, with
+   * {@link de.mpii.trinitreloaded.queryprocessing.PopularityBasedDBJoinSort}, instead of scanning
+   * them for {@link de.mpii.trinitreloaded.queryprocessing.RankJoin}. Its first page holds
+   * {@code dbJoinSortPageSize} results, and each next one twice as many.
+   */
+  public static boolean dbJoinSort;
+  public static int dbJoinSortPageSize;
+
+  /**
+   * Set to true to join a pattern with
+   * {@link de.mpii.trinitreloaded.queryprocessing.IndexNestedLoopRankJoin}, looking up its matches
+   * in batches of {@code probeBatchSize} join keys, when it has at least
+   * {@code indexNestedLoopRatio} times as many matches as the other input of the join.
+   */
+  public static boolean indexNestedLoopJoins;
+  public static double indexNestedLoopRatio;
+  public static int probeBatchSize;
+
+  /**
+   * Set to true to describe the matches of patterns by the statistics of
+   * {@code patternStatisticsTableName} (built by {@link PatternStatisticsCatalog}) instead of
+   * scanning them while planning, when it holds them.
+   */
+  public static boolean usePatternStatistics;
+
+  /**
+   * The number of score distributions of patterns kept by {@link ScoreDistributionCache} for
+   * later queries, and the number of seconds each is kept. A size of 0 disables the cache.
+   */
+  public static int scoreDistributionCacheSize;
+  public static long scoreDistributionCacheTtl;
+
+  /**
+   * Set to true to let the database aggregate the scores of a pattern into the statistics and
+   * histogram boundaries the planner needs, with
+   * {@link de.mpii.trinitreloaded.queryprocessing.ScoreAggregation}, instead of sending all its
+   * matches.
+   */
+  public static boolean aggregationPushdown;
+
+  /**
+   * The accuracy parameter of
+   * {@link de.mpii.trinitreloaded.datastructures.QuantileSketchDistribution}, for {@code histType}
+   * 5: the {@code sketchK} highest scores of a pattern are kept exactly, and about
+   * 2*{@code sketchK} per halving of the rest.
+   */
+  public static int sketchK;
+
+  /**
+   * Set to true to count join cardinalities exactly in the database while planning. Otherwise they
+   * are estimated by {@link de.mpii.trinitreloaded.queryprocessing.JoinCardinalityEstimator} from
+   * the {@link JoinSketchCatalog}, {@code joinSketchTableName}, if it describes the patterns. Its
+   * sketches have 2^{@code joinSketchPrecision} registers, and a (predicate, object) only has its
+   * own sketch with at least {@code joinSketchMinMatches} matches.
+   */
+  public static boolean exactJoinCardinality;
+  public static int joinSketchPrecision;
+  public static long joinSketchMinMatches;
+
+  /**
+   * Set to true to count the join cardinalities of all prefixes of a query, and of all prefixes
+   * with a relaxation, with one query each. A prefix with an empty join then does not save the
+   * counts of the longer ones, but the database is only queried once.
+   */
+  public static boolean batchCardinalityProbes;
+
   public static String graphURI = "http://xkg/";
   public static String syntheticGraphURI = "http://twitter/";
 
@@ -243,6 +427,64 @@ public class Config {
       Config.fractionOfScoreInTheHead = Double.parseDouble(props.getProperty("fractionOfScoreInTheHead"));
       Config.inflectionRank = Integer.parseInt(props.getProperty("inflectionRank"));
       Config.scoreMultipler = Double.parseDouble(props.getProperty("scoreMultipler"));
+      Config.keysetScans = props.getProperty("keysetScans", "false").equals("true");
+      Config.prefetchScans = props.getProperty("prefetchScans", "false").equals("true");
+      Config.prefetchBufferSize = Integer.parseInt(props.getProperty("prefetchBufferSize", "256"));
+      Config.streamingScans = props.getProperty("streamingScans", "true").equals("true");
+      Config.multiplexScans = props.getProperty("multiplexScans", "false").equals("true");
+      Config.unionMerge = props.getProperty("unionMerge", "false").equals("true");
+      Config.projectionPushdown = props.getProperty("projectionPushdown", "false").equals("true");
+      Config.scoreThresholdPushdown =
+          props.getProperty("scoreThresholdPushdown", "false").equals("true");
+      Config.semiJoinPushdown = props.getProperty("semiJoinPushdown", "false").equals("true");
+      Config.semiJoinMaxKeys = Integer.parseInt(props.getProperty("semiJoinMaxKeys", "10000"));
+      Config.semiJoinArrayThreshold =
+          Integer.parseInt(props.getProperty("semiJoinArrayThreshold", "32"));
+      Config.rdfPageSize = Integer.parseInt(props.getProperty("rdfPageSize", "0"));
+      Config.rdfMaxPageSize = Integer.parseInt(props.getProperty("rdfMaxPageSize", "8192"));
+      Config.useTDB = props.getProperty("useTDB", "false").equals("true");
+      Config.tdbLocation = props.getProperty("tdbLocation", "tdb2");
+      Config.postingStoreScans = props.getProperty("postingStoreScans", "false").equals("true");
+      Config.postingStoreFile = props.getProperty("postingStoreFile", "postings.bin");
+      Config.syntheticSeed = Long.parseLong(props.getProperty("syntheticSeed", "42"));
+      Config.syntheticNumEntities =
+          Long.parseLong(props.getProperty("syntheticNumEntities", "10000000"));
+      Config.syntheticNumPredicates =
+          Integer.parseInt(props.getProperty("syntheticNumPredicates", "100"));
+      Config.syntheticMinMatches = Long.parseLong(props.getProperty("syntheticMinMatches", "1000"));
+      Config.syntheticMaxMatches =
+          Long.parseLong(props.getProperty("syntheticMaxMatches", "1000000"));
+      Config.syntheticFanOut = Integer.parseInt(props.getProperty("syntheticFanOut", "3"));
+      Config.syntheticZipfExponent =
+          Double.parseDouble(props.getProperty("syntheticZipfExponent", "1.0"));
+      Config.useScoredData = props.getProperty("useScoredData", "true").equals("true");
+      Config.dbJoinSort = props.getProperty("dbJoinSort", "false").equals("true");
+      Config.dbJoinSortPageSize = Integer.parseInt(props.getProperty("dbJoinSortPageSize", "100"));
+      Config.indexNestedLoopJoins =
+          props.getProperty("indexNestedLoopJoins", "false").equals("true");
+      Config.indexNestedLoopRatio =
+          Double.parseDouble(props.getProperty("indexNestedLoopRatio", "100"));
+      Config.probeBatchSize = Integer.parseInt(props.getProperty("probeBatchSize", "100"));
+      Config.usePatternStatistics =
+          props.getProperty("usePatternStatistics", "true").equals("true");
+      Config.scoreDistributionCacheSize =
+          Integer.parseInt(props.getProperty("scoreDistributionCacheSize", "1000"));
+      Config.scoreDistributionCacheTtl =
+          Long.parseLong(props.getProperty("scoreDistributionCacheTtl", "3600"));
+      Config.aggregationPushdown =
+          props.getProperty("aggregationPushdown", "true").equals("true");
+      Config.sketchK = Integer.parseInt(props.getProperty("sketchK", "200"));
+      Config.exactJoinCardinality =
+          props.getProperty("exactJoinCardinality", "false").equals("true");
+      Config.joinSketchPrecision =
+          Integer.parseInt(props.getProperty("joinSketchPrecision", "10"));
+      Config.joinSketchMinMatches =
+          Long.parseLong(props.getProperty("joinSketchMinMatches", "1000"));
+      Config.batchCardinalityProbes =
+          props.getProperty("batchCardinalityProbes", "true").equals("true");
+      Config.scanFetchSize = Integer.parseInt(props.getProperty("scanFetchSize", "64"));
+      Config.adaptiveFetchSize = props.getProperty("adaptiveFetchSize", "true").equals("true");
+      Config.maxScanFetchSize = Integer.parseInt(props.getProperty("maxScanFetchSize", "8192"));
       int logLevel = Integer.parseInt(props.getProperty("logLevel"));
       switch(logLevel){
       case 0:
@@ -278,6 +520,9 @@ public class Config {
       case 4:
         Config.histType = HistogramType.VOPTIMAL;
         break;
+      case 5:
+        Config.histType = HistogramType.SKETCH;
+        break;
      default:
         Config.histType = HistogramType.EQUIWIDTH;
       }
@@ -303,7 +548,9 @@ public class Config {
    */
   public static String getVal() {
     String val = "*****Property Values*****\n";
-    if(Config.isRDFDB)
+    if(Config.isRDFDB && Config.useTDB)
+      val+="DB=TDB2\n";
+    else if(Config.isRDFDB)
       val+="DB=Virtuoso\n";
     else
       val+="DB=PostgreSQL\n";
@@ -321,6 +568,48 @@ public class Config {
     val+="fractionOfScoreInTheHead="+Config.fractionOfScoreInTheHead+"\n";
     val+="inflectionRank="+Config.inflectionRank+"\n";
     val+="scoreMultipler="+Config.scoreMultipler+"\n";
+    val+="keysetScans="+Config.keysetScans+"\n";
+    val+="prefetchScans="+Config.prefetchScans+"\n";
+    val+="prefetchBufferSize="+Config.prefetchBufferSize+"\n";
+    val+="streamingScans="+Config.streamingScans+"\n";
+    val+="multiplexScans="+Config.multiplexScans+"\n";
+    val+="unionMerge="+Config.unionMerge+"\n";
+    val+="projectionPushdown="+Config.projectionPushdown+"\n";
+    val+="scoreThresholdPushdown="+Config.scoreThresholdPushdown+"\n";
+    val+="semiJoinPushdown="+Config.semiJoinPushdown+"\n";
+    val+="semiJoinMaxKeys="+Config.semiJoinMaxKeys+"\n";
+    val+="semiJoinArrayThreshold="+Config.semiJoinArrayThreshold+"\n";
+    val+="rdfPageSize="+Config.rdfPageSize+"\n";
+    val+="rdfMaxPageSize="+Config.rdfMaxPageSize+"\n";
+    val+="useTDB="+Config.useTDB+"\n";
+    val+="tdbLocation="+Config.tdbLocation+"\n";
+    val+="postingStoreScans="+Config.postingStoreScans+"\n";
+    val+="postingStoreFile="+Config.postingStoreFile+"\n";
+    val+="syntheticSeed="+Config.syntheticSeed+"\n";
+    val+="syntheticNumEntities="+Config.syntheticNumEntities+"\n";
+    val+="syntheticNumPredicates="+Config.syntheticNumPredicates+"\n";
+    val+="syntheticMinMatches="+Config.syntheticMinMatches+"\n";
+    val+="syntheticMaxMatches="+Config.syntheticMaxMatches+"\n";
+    val+="syntheticFanOut="+Config.syntheticFanOut+"\n";
+    val+="syntheticZipfExponent="+Config.syntheticZipfExponent+"\n";
+    val+="useScoredData="+Config.useScoredData+"\n";
+    val+="dbJoinSort="+Config.dbJoinSort+"\n";
+    val+="dbJoinSortPageSize="+Config.dbJoinSortPageSize+"\n";
+    val+="indexNestedLoopJoins="+Config.indexNestedLoopJoins+"\n";
+    val+="indexNestedLoopRatio="+Config.indexNestedLoopRatio+"\n";
+    val+="probeBatchSize="+Config.probeBatchSize+"\n";
+    val+="usePatternStatistics="+Config.usePatternStatistics+"\n";
+    val+="scoreDistributionCacheSize="+Config.scoreDistributionCacheSize+"\n";
+    val+="scoreDistributionCacheTtl="+Config.scoreDistributionCacheTtl+"\n";
+    val+="aggregationPushdown="+Config.aggregationPushdown+"\n";
+    val+="sketchK="+Config.sketchK+"\n";
+    val+="exactJoinCardinality="+Config.exactJoinCardinality+"\n";
+    val+="joinSketchPrecision="+Config.joinSketchPrecision+"\n";
+    val+="joinSketchMinMatches="+Config.joinSketchMinMatches+"\n";
+    val+="batchCardinalityProbes="+Config.batchCardinalityProbes+"\n";
+    val+="scanFetchSize="+Config.scanFetchSize+"\n";
+    val+="adaptiveFetchSize="+Config.adaptiveFetchSize+"\n";
+    val+="maxScanFetchSize="+Config.maxScanFetchSize+"\n";
     val+="logLevel="+Config.loggingLevel+"\n";
     
     val+="*****End of Property Values*****\n";
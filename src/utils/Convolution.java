@@ -8,6 +8,7 @@ import de.mpii.trinitreloaded.datastructures.ProbabilityDistribution;
 import de.mpii.trinitreloaded.datastructures.PulsedMultiBucketHistogram;
 import de.mpii.trinitreloaded.datastructures.PulsedThreeBucketHistogram;
 import de.mpii.trinitreloaded.datastructures.PulsedScoreProbabilityDistribution;
+import de.mpii.trinitreloaded.datastructures.QuantileSketchDistribution;
 import de.mpii.trinitreloaded.datastructures.ScoreProbabilityDistributionFunction;
 
 /**
@@ -38,6 +39,8 @@ public class Convolution {
       ProbabilityDistribution pdf2, double joinSelectivity) {
     if(pdf1.getClass()==ScoreProbabilityDistributionFunction.class)
       return convoluteSPD((ScoreProbabilityDistributionFunction)pdf1,(ScoreProbabilityDistributionFunction)pdf2,joinSelectivity);
+    else if(pdf1.getClass()==QuantileSketchDistribution.class)
+      return convoluteSketches((QuantileSketchDistribution)pdf1,(QuantileSketchDistribution)pdf2,joinSelectivity);
     else
       return convoluteMultiBucketHistogram((MultiBucketHistogram)pdf1,(MultiBucketHistogram)pdf2,joinSelectivity);
   }
@@ -85,6 +88,22 @@ public class Convolution {
     return convPDF;
   }
 
+  /**
+   * Computes convolution of two {@link QuantileSketchDistribution}, directly from the sketches.
+   * 
+   * @param pdf1 First {@link QuantileSketchDistribution}
+   * @param pdf2 Second {@link QuantileSketchDistribution}
+   * @param joinSelectivity Join selectivity value of joining the two triple patterns.
+   * @return Convoluted {@link QuantileSketchDistribution}
+   */
+  private static QuantileSketchDistribution convoluteSketches(QuantileSketchDistribution pdf1,
+      QuantileSketchDistribution pdf2, double joinSelectivity) {
+    long numResults = (long) Math.floor((joinSelectivity*pdf1.getNumResults()*pdf2.getNumResults()));
+    QuantileSketchDistribution convPDF = pdf1.convolute(pdf2, numResults);
+    Logger.println("ConvPDF:"+convPDF, Config.LoggingLevel.VARIABLEVALUES);
+    return convPDF;
+  }
+
   /**
    * Computes convolution of two {@link MultiBucketHistogram}.
    * 
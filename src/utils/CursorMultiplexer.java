@@ -0,0 +1,185 @@
+package de.mpii.trinitreloaded.utils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+import de.mpii.trinitreloaded.utils.Config.LoggingLevel;
+
+/**
+ * Serves many scans of a query over a single connection per database.
+ *
+ * Each scan gets a named cursor, declared with {@code DECLARE ... CURSOR} on the connection
+ * shared by the whole query to its database, the main one or a shard, see {@link Shards}, and
+ * reads its matches batch-wise with {@code FETCH}. A query with many scans open at the same time
+ * (e.g., a pattern with all its relaxations, each scanning all shards) then holds one connection
+ * per database instead of one per scan. Cursors on different connections are read in parallel.
+ *
+ * Usage:
+ * A multiplexer is created for a query by {@code beginQuery()} and released by
+ * {@code endQuery()}, both called through {@link DBConnection}. Scans of the query obtain it with
+ * {@code current()}.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class CursorMultiplexer {
+
+  private static final InheritableThreadLocal<CursorMultiplexer> queryMultiplexer =
+      new InheritableThreadLocal<CursorMultiplexer>();
+
+  /** The shared connection to each database, by shard, -1 for the main database. */
+  private final Map<Integer, Connection> conns = Maps.newHashMap();
+  private int numCursors;
+  private volatile boolean isClosed;
+
+  /**
+   * Returns the multiplexer of the query running on this thread, or {@code null} if scans are
+   * not multiplexed.
+   */
+  public static CursorMultiplexer current() {
+    return queryMultiplexer.get();
+  }
+
+  /**
+   * Lets the calling thread, working for a query on another thread, use its multiplexer.
+   *
+   * @param multiplexer The multiplexer returned by {@code current()}, or {@code null} for none.
+   */
+  static void setCurrent(CursorMultiplexer multiplexer) {
+    if (multiplexer == null) {
+      queryMultiplexer.remove();
+    } else {
+      queryMultiplexer.set(multiplexer);
+    }
+  }
+
+  static void beginQuery() {
+    queryMultiplexer.set(new CursorMultiplexer());
+  }
+
+  static void endQuery() {
+    CursorMultiplexer multiplexer = queryMultiplexer.get();
+    if (multiplexer != null) {
+      multiplexer.close();
+      queryMultiplexer.remove();
+    }
+  }
+
+  /**
+   * Declares a cursor for a parameterized query on the shared connection to the main database.
+   *
+   * @param template The SQL template, as built for {@link SQLTemplateCache}.
+   * @param params The parameters of {@code template}.
+   * @return The declared {@link Cursor}.
+   */
+  public Cursor declare(String template, List<?> params) throws SQLException {
+    return declare(-1, template, params);
+  }
+
+  /**
+   * Declares a cursor for a parameterized query on the shared connection to shard
+   * {@code shard} of the data, or to the main database if it is -1.
+   */
+  public Cursor declare(int shard, String template, List<?> params) throws SQLException {
+    Connection conn;
+    String name;
+    synchronized (this) {
+      conn = conns.get(shard);
+      if (conn == null) {
+        // Cursors only live within a transaction.
+        conn = shard < 0 ? DBConnection.getConnection() : DBConnection.getConnection(shard);
+        conn.setAutoCommit(false);
+        conns.put(shard, conn);
+      }
+      name = "scan_cursor_" + (numCursors++);
+    }
+    synchronized (conn) {
+      PreparedStatement stmt =
+          SQLTemplateCache.prepare(conn, "DECLARE " + name + " NO SCROLL CURSOR FOR " + template,
+              params);
+      try {
+        stmt.execute();
+      } finally {
+        stmt.close();
+      }
+    }
+    Logger.println("Declared cursor " + name + " for: " + template, LoggingLevel.VARIABLEVALUES);
+    return new Cursor(conn, name);
+  }
+
+  /**
+   * Ends the transactions of the shared connections, which closes all of their cursors, and
+   * returns the connections to their pools.
+   */
+  private synchronized void close() {
+    isClosed = true;
+    for (Connection conn : conns.values()) {
+      synchronized (conn) {
+        try {
+          conn.rollback();
+          conn.setAutoCommit(true);
+          conn.close();
+        } catch (SQLException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+    conns.clear();
+  }
+
+  /**
+   * A named cursor on one of the shared connections.
+   */
+  public class Cursor {
+    private final Connection conn;
+    private final String name;
+    private Statement stmt;
+
+    private Cursor(Connection conn, String name) {
+      this.conn = conn;
+      this.name = name;
+    }
+
+    /**
+     * Returns the next {@code n} rows of the cursor. The rows of the previous call must have
+     * been read.
+     */
+    public ResultSet fetch(int n) throws SQLException {
+      synchronized (conn) {
+        if (stmt != null) {
+          stmt.close();
+        }
+        stmt = conn.createStatement();
+        return stmt.executeQuery("FETCH FORWARD " + n + " FROM " + name);
+      }
+    }
+
+    /**
+     * Closes the cursor, so the server stops producing its remaining rows.
+     */
+    public void close() throws SQLException {
+      synchronized (conn) {
+        if (stmt != null) {
+          stmt.close();
+          stmt = null;
+        }
+        if (isClosed) {
+          return;
+        }
+        Statement closeStmt = conn.createStatement();
+        try {
+          closeStmt.execute("CLOSE " + name);
+        } finally {
+          closeStmt.close();
+        }
+      }
+    }
+  }
+}
@@ -3,7 +3,12 @@ package de.mpii.trinitreloaded.utils;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.List;
 import java.util.Properties;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+
 /**
  * A class for database configuration parameters.
  * 
@@ -17,6 +22,16 @@ public class DBConfig {
   private String password;
   private String graphDBUsername;
   private String graphDBPassword;
+  private String connectionTestQuery;
+  private int maximumPoolSize;
+  private int minimumIdle;
+  private long connectionTimeout;
+  private int maxConnectionsPerQuery;
+  private int prepareThreshold;
+  private int preparedStatementCacheQueries;
+  private int graphPoolSize;
+  private List<String> shards;
+  private int shardPoolSize;
   public DBConfig(String configFile){
     Properties props = new Properties();
     FileInputStream in;
@@ -36,6 +51,18 @@ public class DBConfig {
     setPassword(props.getProperty("dataSource.password"));
     setGraphDBUsername(props.getProperty("dataSource.graphusername"));
     setGraphDBPassword(props.getProperty("dataSource.graphpassword"));
+    setConnectionTestQuery(props.getProperty("connectionTestQuery"));
+    setMaximumPoolSize(Integer.parseInt(props.getProperty("maximumPoolSize", "10")));
+    setMinimumIdle(Integer.parseInt(props.getProperty("minimumIdle", "" + getMaximumPoolSize())));
+    setConnectionTimeout(Long.parseLong(props.getProperty("connectionTimeout", "30000")));
+    setMaxConnectionsPerQuery(Integer.parseInt(props.getProperty("maxConnectionsPerQuery", "0")));
+    setPrepareThreshold(Integer.parseInt(props.getProperty("prepareThreshold", "1")));
+    setPreparedStatementCacheQueries(
+        Integer.parseInt(props.getProperty("preparedStatementCacheQueries", "256")));
+    setGraphPoolSize(Integer.parseInt(props.getProperty("graphPoolSize", "10")));
+    setShards(Lists.newArrayList(Splitter.on(',').trimResults().omitEmptyStrings()
+        .split(props.getProperty("dataSource.shards", ""))));
+    setShardPoolSize(Integer.parseInt(props.getProperty("shardPoolSize", "10")));
   }
   
   public String getServerName() {
@@ -85,4 +112,105 @@ public class DBConfig {
   public void setGraphDBPassword(String graphDBPassword) {
     this.graphDBPassword = graphDBPassword;
   }
+
+  public String getConnectionTestQuery() {
+    return connectionTestQuery;
+  }
+
+  public void setConnectionTestQuery(String connectionTestQuery) {
+    this.connectionTestQuery = connectionTestQuery;
+  }
+
+  public int getMaximumPoolSize() {
+    return maximumPoolSize;
+  }
+
+  public void setMaximumPoolSize(int maximumPoolSize) {
+    this.maximumPoolSize = maximumPoolSize;
+  }
+
+  public int getMinimumIdle() {
+    return minimumIdle;
+  }
+
+  public void setMinimumIdle(int minimumIdle) {
+    this.minimumIdle = minimumIdle;
+  }
+
+  public long getConnectionTimeout() {
+    return connectionTimeout;
+  }
+
+  public void setConnectionTimeout(long connectionTimeout) {
+    this.connectionTimeout = connectionTimeout;
+  }
+
+  /**
+   * The maximum number of connections a single query may hold at the same time. A value of
+   * 0 means no budget is enforced.
+   */
+  public int getMaxConnectionsPerQuery() {
+    return maxConnectionsPerQuery;
+  }
+
+  public void setMaxConnectionsPerQuery(int maxConnectionsPerQuery) {
+    this.maxConnectionsPerQuery = maxConnectionsPerQuery;
+  }
+
+  /**
+   * The number of executions of a prepared statement after which the driver switches to a
+   * server-side prepared statement.
+   */
+  public int getPrepareThreshold() {
+    return prepareThreshold;
+  }
+
+  public void setPrepareThreshold(int prepareThreshold) {
+    this.prepareThreshold = prepareThreshold;
+  }
+
+  /**
+   * The number of server-side prepared statements the driver keeps per connection.
+   */
+  public int getPreparedStatementCacheQueries() {
+    return preparedStatementCacheQueries;
+  }
+
+  public void setPreparedStatementCacheQueries(int preparedStatementCacheQueries) {
+    this.preparedStatementCacheQueries = preparedStatementCacheQueries;
+  }
+
+  /**
+   * The max. number of Virtuoso connections open at the same time.
+   */
+  public int getGraphPoolSize() {
+    return graphPoolSize;
+  }
+
+  public void setGraphPoolSize(int graphPoolSize) {
+    this.graphPoolSize = graphPoolSize;
+  }
+
+  /**
+   * The {@code serverName/databaseName} of each database holding a shard of the data, or an
+   * empty list if the data is not sharded.
+   */
+  public List<String> getShards() {
+    return shards;
+  }
+
+  public void setShards(List<String> shards) {
+    this.shards = shards;
+  }
+
+  /**
+   * The max. number of connections open at the same time to each shard.
+   */
+  public int getShardPoolSize() {
+    return shardPoolSize;
+  }
+
+  public void setShardPoolSize(int shardPoolSize) {
+    this.shardPoolSize = shardPoolSize;
+  }
 }
@@ -1,33 +1,306 @@
 package de.mpii.trinitreloaded.utils;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Lists;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
 
 /**
  * A class for managing database connections to Postgres.
  *
+ * Connections are handed out from a HikariCP pool. A query may additionally be given a budget
+ * on the number of connections it holds at the same time by enclosing it in
+ * {@code beginQuery()} and {@code endQuery()}.
  *
  * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
  *
  */
 public class DBConnection {
 
-  //private static HikariConfig config = new HikariConfig(Config.servContext+Config.dbConfigFile);
-  //private static HikariDataSource ds = new HikariDataSource(config);
   private static DBConfig dbc = new DBConfig(Config.servContext+Config.dbConfigFile);
-  private static final String JDBC_DRIVER = "org.postgresql.Driver"; 
+  private static final String JDBC_DRIVER = "org.postgresql.Driver";
+  /** The pool, built on first use so that runs without PostgreSQL do not need it. */
+  private static volatile HikariDataSource ds;
+  /** The pools of the shards of the data, see {@link Shards}, built on first use. */
+  private static volatile List<HikariDataSource> shardDataSources;
+
+  /** Permits left for the query running on this thread, {@code null} if it has no budget. */
+  private static final InheritableThreadLocal<Semaphore> queryBudget =
+      new InheritableThreadLocal<Semaphore>();
+
+  private static final AtomicLong numAcquired = new AtomicLong();
+  private static final AtomicLong totalWaitNanos = new AtomicLong();
+  private static final AtomicLong maxWaitNanos = new AtomicLong();
+
+  private static HikariDataSource getDataSource() {
+    if (ds == null) {
+      synchronized (DBConnection.class) {
+        if (ds == null) {
+          ds = createDataSource();
+        }
+      }
+    }
+    return ds;
+  }
+
+  private static List<HikariDataSource> getShardDataSources() {
+    if (shardDataSources == null) {
+      synchronized (DBConnection.class) {
+        if (shardDataSources == null) {
+          shardDataSources = createShardDataSources();
+        }
+      }
+    }
+    return shardDataSources;
+  }
+
+  private static HikariDataSource createDataSource() {
+    return createDataSource("trinit-qp", dbc.getServerName() + "/" + dbc.getDbName(),
+        dbc.getMaximumPoolSize(), dbc.getMinimumIdle());
+  }
+
+  private static List<HikariDataSource> createShardDataSources() {
+    List<HikariDataSource> dataSources = Lists.newArrayList();
+    for (int i = 0; i < dbc.getShards().size(); i++) {
+      dataSources.add(createDataSource("trinit-qp-shard" + i, dbc.getShards().get(i),
+          dbc.getShardPoolSize(), 0));
+    }
+    return dataSources;
+  }
+
+  /**
+   * @param database The {@code serverName/databaseName} to connect to.
+   */
+  private static HikariDataSource createDataSource(String poolName, String database,
+      int maximumPoolSize, int minimumIdle) {
+    HikariConfig config = new HikariConfig();
+    config.setPoolName(poolName);
+    config.setDriverClassName(JDBC_DRIVER);
+    config.setJdbcUrl("jdbc:postgresql://" + database);
+    config.setUsername(dbc.getUsername());
+    config.setPassword(dbc.getPassword());
+    config.setMaximumPoolSize(maximumPoolSize);
+    config.setMinimumIdle(Math.min(minimumIdle, maximumPoolSize));
+    config.setConnectionTimeout(dbc.getConnectionTimeout());
+    if (dbc.getConnectionTestQuery() != null) {
+      config.setConnectionTestQuery(dbc.getConnectionTestQuery());
+    }
+    // Statements are built from SQLTemplateCache, so the driver's per-connection cache of
+    // server-side prepared statements is hit by every query of the same shape.
+    config.addDataSourceProperty("prepareThreshold", dbc.getPrepareThreshold());
+    config.addDataSourceProperty("preparedStatementCacheQueries",
+        dbc.getPreparedStatementCacheQueries());
+    return new HikariDataSource(config);
+  }
 
   public static Connection getConnection() throws SQLException {
-    //return ds.getConnection();
-    Connection conn=null;
-    try{
-      Class.forName(JDBC_DRIVER);
-      String url = "jdbc:postgresql://"+dbc.getServerName()+"/"+dbc.getDbName();
-      conn=DriverManager.getConnection(url, dbc.getUsername(),dbc.getPassword());
-    }catch(Exception e){
+    return getConnection(getDataSource());
+  }
+
+  /**
+   * Returns a connection to the database holding shard {@code shard} of the data.
+   */
+  public static Connection getConnection(int shard) throws SQLException {
+    return getConnection(getShardDataSources().get(shard));
+  }
+
+  /**
+   * Returns the number of shards the data is split into, 0 if it is not sharded.
+   */
+  public static int getNumShards() {
+    return dbc.getShards().size();
+  }
+
+  private static Connection getConnection(HikariDataSource source) throws SQLException {
+    Semaphore budget = queryBudget.get();
+    if (budget != null) {
+      boolean acquired = false;
+      try {
+        acquired = budget.tryAcquire(dbc.getConnectionTimeout(), TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (!acquired) {
+        throw new SQLException("Query exceeded its budget of " + dbc.getMaxConnectionsPerQuery()
+            + " connections.");
+      }
+    }
+
+    Connection conn;
+    long start = System.nanoTime();
+    try {
+      conn = source.getConnection();
+    } catch (SQLException e) {
+      if (budget != null) {
+        budget.release();
+      }
+      throw e;
+    }
+    recordWait(System.nanoTime() - start);
+
+    if (budget == null) {
+      return conn;
+    }
+    return (Connection) Proxy.newProxyInstance(DBConnection.class.getClassLoader(),
+        new Class<?>[] {Connection.class}, new BudgetedConnection(conn, budget));
+  }
+
+  /**
+   * Starts a per-query connection budget for the calling thread (and threads it starts). It has
+   * no effect if {@code maxConnectionsPerQuery} is not set. If {@code multiplexScans} is set,
+   * the scans of the query share a single connection per database through a
+   * {@link CursorMultiplexer}. So do they over sharded data with a budget, as each scan would
+   * otherwise hold a connection to every shard, and a few scans would exhaust the budget.
+   */
+  public static void beginQuery() {
+    if (dbc.getMaxConnectionsPerQuery() > 0) {
+      queryBudget.set(new Semaphore(dbc.getMaxConnectionsPerQuery()));
+    }
+    if (Config.multiplexScans || dbc.getMaxConnectionsPerQuery() > 0 && getNumShards() > 0) {
+      CursorMultiplexer.beginQuery();
+    }
+  }
+
+  /**
+   * Returns the connection budget of the query running on this thread, {@code null} if it has
+   * none.
+   */
+  static Semaphore getQueryBudget() {
+    return queryBudget.get();
+  }
+
+  /**
+   * Lets the calling thread, working for a query on another thread, draw from its budget.
+   *
+   * @param budget The budget returned by {@code getQueryBudget()}, or {@code null} for none.
+   */
+  static void setQueryBudget(Semaphore budget) {
+    if (budget == null) {
+      queryBudget.remove();
+    } else {
+      queryBudget.set(budget);
+    }
+  }
+
+  /**
+   * Ends the connection budget started by {@code beginQuery()}, and releases the connection
+   * shared by the scans of the query, if any.
+   */
+  public static void endQuery() {
+    CursorMultiplexer.endQuery();
+    queryBudget.remove();
+  }
+
+  /**
+   * Opens {@code minimumIdle} connections up front, so that the first queries do not pay for
+   * connection setup.
+   */
+  public static void warmUp() {
+    List<Connection> conns = Lists.newArrayList();
+    try {
+      for (int i = 0; i < Math.min(dbc.getMinimumIdle(), dbc.getMaximumPoolSize()); i++) {
+        conns.add(getDataSource().getConnection());
+      }
+    } catch (SQLException e) {
       e.printStackTrace();
+    } finally {
+      for (Connection conn : conns) {
+        try {
+          conn.close();
+        } catch (SQLException e) {
+        }
+      }
+    }
+    Logger.println("Connection pool warmed up: " + getPoolStatistics(),
+        Config.LoggingLevel.EXPERIMENTS);
+  }
+
+  /**
+   * Closes the pools which were used and all their connections.
+   */
+  public static synchronized void shutdown() {
+    if (ds != null) {
+      ds.close();
+      ds = null;
+    }
+    if (shardDataSources != null) {
+      for (HikariDataSource shardDataSource : shardDataSources) {
+        shardDataSource.close();
+      }
+      shardDataSources = null;
+    }
+  }
+
+  private static void recordWait(long waitNanos) {
+    numAcquired.incrementAndGet();
+    totalWaitNanos.addAndGet(waitNanos);
+    long max = maxWaitNanos.get();
+    while (waitNanos > max && !maxWaitNanos.compareAndSet(max, waitNanos)) {
+      max = maxWaitNanos.get();
+    }
+  }
+
+  /**
+   * Resets the wait time statistics reported by {@code getPoolStatistics()}.
+   */
+  public static void resetStatistics() {
+    numAcquired.set(0);
+    totalWaitNanos.set(0);
+    maxWaitNanos.set(0);
+  }
+
+  /**
+   * Returns the current state of the pool and the time spent waiting for connections since the
+   * last call to {@code resetStatistics()}.
+   */
+  public static String getPoolStatistics() {
+    HikariPoolMXBean pool = ds != null ? ds.getHikariPoolMXBean() : null;
+    long acquired = numAcquired.get();
+    double avgWaitMs = acquired == 0 ? 0.0 : totalWaitNanos.get() / (acquired * 1e6);
+    String stats = "acquired=" + acquired + ", avgWaitMs=" + avgWaitMs + ", maxWaitMs="
+        + (maxWaitNanos.get() / 1e6);
+    if (pool != null) {
+      stats += ", active=" + pool.getActiveConnections() + ", idle=" + pool.getIdleConnections()
+          + ", total=" + pool.getTotalConnections() + ", waiting="
+          + pool.getThreadsAwaitingConnection();
+    }
+    return stats;
+  }
+
+  /**
+   * Gives the permit of a budgeted connection back when the connection is closed.
+   */
+  private static class BudgetedConnection implements InvocationHandler {
+    private final Connection conn;
+    private final Semaphore budget;
+    private boolean released = false;
+
+    BudgetedConnection(Connection conn, Semaphore budget) {
+      this.conn = conn;
+      this.budget = budget;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if (method.getName().equals("close") && !released) {
+        released = true;
+        budget.release();
+      }
+      try {
+        return method.invoke(conn, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
     }
-    return conn;
   }
 }
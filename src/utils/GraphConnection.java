@@ -1,10 +1,20 @@
 package de.mpii.trinitreloaded.utils;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
 import virtuoso.jena.driver.VirtGraph;
 
 /**
  * A class for managing database connections to Virtuoso.
  *
+ * Connections are pooled: at most {@code graphPoolSize} of them are handed out at the same time,
+ * and a connection given back with {@code release()} is reused by the next
+ * {@code getConnection()} instead of being closed. An open {@code PopularityBasedRDFScan} holds
+ * its connection until it is closed, so a query can have at most {@code graphPoolSize} scans
+ * open at the same time.
  *
  * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
  *
@@ -12,14 +22,65 @@ import virtuoso.jena.driver.VirtGraph;
 public class GraphConnection {
   private static DBConfig dbc = new DBConfig(Config.servContext+Config.dbConfigFile);
 
+  private static final BlockingQueue<VirtGraph> idle =
+      new ArrayBlockingQueue<VirtGraph>(Math.max(dbc.getGraphPoolSize(), 1));
+  private static final Semaphore permits = new Semaphore(Math.max(dbc.getGraphPoolSize(), 1));
+
+  /**
+   * Returns an idle pooled connection, or opens a new one if there is none. Waits up to
+   * {@code connectionTimeout} if all connections are in use.
+   *
+   * @throws IllegalStateException If no connection could be obtained.
+   */
   public static VirtGraph getConnection() {
-    VirtGraph set = null;
+    boolean acquired = false;
+    try {
+      acquired = permits.tryAcquire(dbc.getConnectionTimeout(), TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (!acquired) {
+      throw new IllegalStateException("Timed out after " + dbc.getConnectionTimeout()
+          + " ms waiting for one of the graphPoolSize=" + dbc.getGraphPoolSize()
+          + " Virtuoso connections, each held by an open scan.");
+    }
+    VirtGraph set = idle.poll();
+    while (set != null && set.isClosed()) {
+      set = idle.poll();
+    }
+    if (set != null) {
+      return set;
+    }
     try {
       String url = "jdbc:virtuoso://"+dbc.getServerName()+":1111/";
       set = new VirtGraph (url, dbc.getGraphDBUsername(), dbc.getGraphDBPassword());
     }catch (Exception e) {
-      e.printStackTrace();
+      permits.release();
+      throw new IllegalStateException("Cannot connect to Virtuoso at " + dbc.getServerName(), e);
     }
     return set;
   }
+
+  /**
+   * Gives a connection obtained from {@code getConnection()} back to the pool.
+   */
+  public static void release(VirtGraph set) {
+    if (set == null) {
+      return;
+    }
+    if (set.isClosed() || !idle.offer(set)) {
+      set.close();
+    }
+    permits.release();
+  }
+
+  /**
+   * Closes all idle connections.
+   */
+  public static void shutdown() {
+    VirtGraph set;
+    while ((set = idle.poll()) != null) {
+      set.close();
+    }
+  }
 }
@@ -0,0 +1,343 @@
+package de.mpii.trinitreloaded.utils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import de.mpii.trinitreloaded.datastructures.HyperLogLog;
+import de.mpii.trinitreloaded.utils.Config.LoggingLevel;
+
+/**
+ * Creates and refreshes the catalog of join-key sketches, {@code joinSketchTableName}, which
+ * {@link de.mpii.trinitreloaded.queryprocessing.JoinCardinalityEstimator} estimates join
+ * cardinalities from.
+ *
+ * For each predicate of the data and textual tables, the catalog holds the number of matches and
+ * a {@link HyperLogLog} of the distinct subjects and of the distinct objects, and for each
+ * (predicate, object) with at least {@code joinSketchMinMatches} matches, the number of matches
+ * and a {@link HyperLogLog} of the distinct subjects. The number of matches per distinct key is
+ * the average frequency of a join key. The sketches are built in one pass over each table, sorted
+ * by predicate and object. The matches of the data table are those with a score, as the scans
+ * read them: from {@code scoredDataTableName} if it exists, see {@link ScoredDataTable}, and
+ * otherwise from the data table joined with the score table, so the numbers of matches agree with
+ * exact counts.
+ *
+ * A refresh builds a new table next to the current one and swaps them in one transaction. The
+ * sketches are read on first use, one pattern at a time, and kept in memory until
+ * {@code reload()}. If the data is sharded, the catalog is built from and kept in the main
+ * database.
+ *
+ * Usage:
+ * {@code java de.mpii.trinitreloaded.utils.JoinSketchCatalog [create|refresh|drop]}, with the
+ * properties of {@link Config}.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class JoinSketchCatalog {
+  public static final String SUBJECT = "subject";
+  public static final String OBJECT = "object";
+  private static final String NEW_SUFFIX = "_new";
+  private static final int FETCH_SIZE = 10000;
+  private static final int BATCH_SIZE = 1000;
+
+  /**
+   * The matches of a pattern and the sketch of the distinct values of one of their columns.
+   */
+  public static class KeySketch {
+    public final long numMatches;
+    public final HyperLogLog keys;
+
+    public KeySketch(long numMatches, HyperLogLog keys) {
+      this.numMatches = numMatches;
+      this.keys = keys;
+    }
+  }
+
+  /** The sketches read so far by key, absent if the catalog does not hold them. */
+  private static final Map<String, Optional<KeySketch>> sketches = Maps.newConcurrentMap();
+  /** Set if the catalog could not be read, so it is not tried again until {@code reload()}. */
+  private static volatile boolean isMissing;
+
+  public static void main(String[] args) throws SQLException {
+    Config.loadProperties();
+    String action = args.length > 0 ? args[0] : "create";
+    if (action.equals("create") || action.equals("refresh")) {
+      build();
+    } else if (action.equals("drop")) {
+      drop();
+    } else {
+      System.err.println("Usage: JoinSketchCatalog [create|refresh|drop]");
+    }
+    DBConnection.shutdown();
+  }
+
+  /**
+   * Returns the sketch of the {@code keyColumn} of the matches of the predicate, or of the
+   * (predicate, object) if {@code object} is not {@code null}, in the data table if
+   * {@code isScored} and in the textual table otherwise; or {@code null} if the catalog does not
+   * hold it. The predicate and object are formatted as in the database.
+   */
+  public static KeySketch get(boolean isScored, String predicate, String object,
+      String keyColumn) {
+    if (isMissing) {
+      return null;
+    }
+    String key = isScored + "\t" + predicate + "\t" + (object == null ? "" : object) + "\t"
+        + keyColumn;
+    Optional<KeySketch> sketch = sketches.get(key);
+    if (sketch == null) {
+      sketch = Optional.fromNullable(read(isScored, predicate, object, keyColumn));
+      if (isMissing) {
+        return null;
+      }
+      sketches.put(key, sketch);
+    }
+    return sketch.orNull();
+  }
+
+  /**
+   * Makes {@code get()} read the catalog again, e.g. after it was refreshed.
+   */
+  public static void reload() {
+    sketches.clear();
+    isMissing = false;
+  }
+
+  private static KeySketch read(boolean isScored, String predicate, String object,
+      String keyColumn) {
+    String cmd = "SELECT num_matches, registers FROM " + Config.joinSketchTableName
+        + " WHERE is_scored = ? AND predicate = ? AND key_column = ? AND "
+        + (object == null ? "object IS NULL" : "object = ?");
+    List<Object> params = Lists.<Object>newArrayList(isScored, predicate, keyColumn);
+    if (object != null) {
+      params.add(object);
+    }
+    Connection conn = null;
+    PreparedStatement stmt = null;
+    ResultSet rs = null;
+    try {
+      conn = DBConnection.getConnection();
+      stmt = SQLTemplateCache.prepare(conn, cmd, params);
+      rs = stmt.executeQuery();
+      if (rs.next()) {
+        return new KeySketch(rs.getLong("num_matches"), new HyperLogLog(rs.getBytes("registers")));
+      }
+    } catch (SQLException e) {
+      // Without the table, join cardinalities are counted exactly.
+      isMissing = true;
+      Logger.println("Join sketch catalog " + Config.joinSketchTableName + " not read: "
+          + e.getMessage(), LoggingLevel.INTERMEDIATEINFO);
+    } finally {
+      try {
+        if (rs != null) {
+          rs.close();
+        }
+        if (stmt != null) {
+          stmt.close();
+        }
+        if (conn != null) {
+          conn.close();
+        }
+      } catch (SQLException e) {
+        e.printStackTrace();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Builds the catalog from the current data and textual tables, replacing the previous one.
+   */
+  public static void build() throws SQLException {
+    String table = Config.joinSketchTableName;
+    String newTable = table + NEW_SUFFIX;
+    Connection conn = DBConnection.getConnection();
+    Statement stmt = null;
+    try {
+      stmt = conn.createStatement();
+      execute(stmt, "DROP TABLE IF EXISTS " + newTable);
+      execute(stmt, "CREATE TABLE " + newTable + " (is_scored boolean, predicate text, "
+          + "object text, key_column text, num_matches bigint, registers bytea)");
+      if (ScoredDataTable.isAvailable()) {
+        addSketches(newTable, true, Config.scoredDataTableName + " d");
+      } else {
+        addSketches(newTable, true, Config.dataTableName + " d, " + Config.scoreTableName
+            + " WHERE d.subject = entity");
+      }
+      addSketches(newTable, false, Config.textualTypeDataTableName + " d");
+      execute(stmt, "CREATE INDEX ON " + newTable + " (predicate, object)");
+      execute(stmt, "ANALYZE " + newTable);
+
+      conn.setAutoCommit(false);
+      try {
+        execute(stmt, "DROP TABLE IF EXISTS " + table);
+        execute(stmt, "ALTER TABLE " + newTable + " RENAME TO "
+            + table.substring(table.lastIndexOf('.') + 1));
+        conn.commit();
+      } catch (SQLException e) {
+        conn.rollback();
+        throw e;
+      } finally {
+        conn.setAutoCommit(true);
+      }
+    } finally {
+      if (stmt != null) {
+        stmt.close();
+      }
+      conn.close();
+    }
+    reload();
+    Logger.println("Built join sketch catalog " + table, LoggingLevel.EXPERIMENTS);
+  }
+
+  /**
+   * Adds the sketches of the matches {@code from} selects, as the {@code d} table, read in
+   * predicate and object order.
+   */
+  private static void addSketches(String table, boolean isScored, String from)
+      throws SQLException {
+    String cmd = "SELECT d.predicate, d.object, d.subject FROM " + from + " ORDER BY d.predicate, "
+        + "d.object";
+    Logger.println("JoinSketchCatalog: " + cmd, LoggingLevel.INTERMEDIATEINFO);
+    Connection readConn = DBConnection.getConnection();
+    Connection writeConn = DBConnection.getConnection();
+    PreparedStatement readStmt = null;
+    PreparedStatement insertStmt = null;
+    ResultSet rs = null;
+    try {
+      // Without a transaction, the driver would read all rows into memory.
+      readConn.setAutoCommit(false);
+      readStmt = readConn.prepareStatement(cmd);
+      readStmt.setFetchSize(FETCH_SIZE);
+      insertStmt = writeConn.prepareStatement("INSERT INTO " + table
+          + " VALUES (?, ?, ?, ?, ?, ?)");
+      rs = readStmt.executeQuery();
+      Batch batch = new Batch(insertStmt, isScored);
+      String predicate = null;
+      String object = null;
+      long predicateMatches = 0;
+      long objectMatches = 0;
+      HyperLogLog predicateSubjects = null;
+      HyperLogLog predicateObjects = null;
+      HyperLogLog objectSubjects = null;
+      while (rs.next()) {
+        String rowPredicate = rs.getString(1);
+        String rowObject = rs.getString(2);
+        if (!rowPredicate.equals(predicate) || !rowObject.equals(object)) {
+          if (object != null && objectMatches >= Config.joinSketchMinMatches) {
+            batch.add(predicate, object, SUBJECT, objectMatches, objectSubjects);
+          }
+          if (!rowPredicate.equals(predicate)) {
+            if (predicate != null) {
+              batch.add(predicate, null, SUBJECT, predicateMatches, predicateSubjects);
+              batch.add(predicate, null, OBJECT, predicateMatches, predicateObjects);
+            }
+            predicate = rowPredicate;
+            predicateMatches = 0;
+            predicateSubjects = new HyperLogLog(Config.joinSketchPrecision);
+            predicateObjects = new HyperLogLog(Config.joinSketchPrecision);
+          }
+          object = rowObject;
+          objectMatches = 0;
+          objectSubjects = new HyperLogLog(Config.joinSketchPrecision);
+        }
+        String subject = rs.getString(3);
+        predicateMatches++;
+        predicateSubjects.add(subject);
+        predicateObjects.add(rowObject);
+        objectMatches++;
+        objectSubjects.add(subject);
+      }
+      if (predicate != null) {
+        if (objectMatches >= Config.joinSketchMinMatches) {
+          batch.add(predicate, object, SUBJECT, objectMatches, objectSubjects);
+        }
+        batch.add(predicate, null, SUBJECT, predicateMatches, predicateSubjects);
+        batch.add(predicate, null, OBJECT, predicateMatches, predicateObjects);
+      }
+      batch.flush();
+    } finally {
+      if (rs != null) {
+        rs.close();
+      }
+      if (readStmt != null) {
+        readStmt.close();
+      }
+      if (insertStmt != null) {
+        insertStmt.close();
+      }
+      readConn.rollback();
+      readConn.setAutoCommit(true);
+      readConn.close();
+      writeConn.close();
+    }
+  }
+
+  /**
+   * Inserts the sketches in batches.
+   */
+  private static class Batch {
+    final PreparedStatement stmt;
+    final boolean isScored;
+    int size;
+
+    Batch(PreparedStatement stmt, boolean isScored) {
+      this.stmt = stmt;
+      this.isScored = isScored;
+    }
+
+    void add(String predicate, String object, String keyColumn, long numMatches,
+        HyperLogLog keys) throws SQLException {
+      stmt.setBoolean(1, isScored);
+      stmt.setString(2, predicate);
+      stmt.setString(3, object);
+      stmt.setString(4, keyColumn);
+      stmt.setLong(5, numMatches);
+      stmt.setBytes(6, keys.getRegisters());
+      stmt.addBatch();
+      if (++size == BATCH_SIZE) {
+        flush();
+      }
+    }
+
+    void flush() throws SQLException {
+      if (size > 0) {
+        stmt.executeBatch();
+        size = 0;
+      }
+    }
+  }
+
+  /**
+   * Drops the catalog, so join cardinalities are counted exactly again.
+   */
+  public static void drop() throws SQLException {
+    Connection conn = DBConnection.getConnection();
+    Statement stmt = null;
+    try {
+      stmt = conn.createStatement();
+      execute(stmt, "DROP TABLE IF EXISTS " + Config.joinSketchTableName + NEW_SUFFIX);
+      execute(stmt, "DROP TABLE IF EXISTS " + Config.joinSketchTableName);
+    } finally {
+      if (stmt != null) {
+        stmt.close();
+      }
+      conn.close();
+    }
+    reload();
+  }
+
+  private static void execute(Statement stmt, String cmd) throws SQLException {
+    Logger.println("JoinSketchCatalog: " + cmd, LoggingLevel.INTERMEDIATEINFO);
+    stmt.execute(cmd);
+  }
+}
@@ -27,7 +27,9 @@ public class Logger {
 
   public static void startLog(){
     String db = "";
-    if(Config.isRDFDB)
+    if(Config.isRDFDB && Config.useTDB)
+      db = "TDB2";
+    else if(Config.isRDFDB)
       db = "Virtuoso";
     else
       db = "PostgreSQL";
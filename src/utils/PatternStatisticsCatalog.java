@@ -0,0 +1,243 @@
+package de.mpii.trinitreloaded.utils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+import de.mpii.trinitreloaded.datastructures.PatternStatistics;
+import de.mpii.trinitreloaded.datastructures.TriplePattern;
+import de.mpii.trinitreloaded.queryprocessing.QueryPlanner;
+import de.mpii.trinitreloaded.utils.Config.LoggingLevel;
+
+/**
+ * Creates and refreshes the catalog of pattern statistics, {@code patternStatisticsTableName},
+ * and keeps it in memory for the planner and the code generator.
+ *
+ * The catalog holds, for each predicate and each (predicate, object) of the data and textual
+ * tables, the {@link PatternStatistics} of the matches of a pattern with a variable subject and
+ * these constants: the number of matches, the highest, lowest and total score and the adaptive
+ * inflection rank for {@code fractionOfScoreInTheHead}. All patterns and relaxations of this form
+ * are then described without scanning their matches. The statistics are computed by the database,
+ * in one pass over each table.
+ *
+ * A refresh builds a new table next to the current one and swaps them in one transaction. The
+ * catalog is read into memory on first use, or again after {@code reload()}. If the data is
+ * sharded, the catalog is built from and kept in the main database.
+ *
+ * Usage:
+ * {@code java de.mpii.trinitreloaded.utils.PatternStatisticsCatalog [create|refresh|drop]}, with
+ * the properties of {@link Config}.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class PatternStatisticsCatalog {
+  private static final String NEW_SUFFIX = "_new";
+
+  /** The statistics by pattern key, {@code null} until the catalog is first read. */
+  private static volatile Map<String, PatternStatistics> statistics;
+
+  public static void main(String[] args) throws SQLException {
+    Config.loadProperties();
+    String action = args.length > 0 ? args[0] : "create";
+    if (action.equals("create") || action.equals("refresh")) {
+      build();
+    } else if (action.equals("drop")) {
+      drop();
+    } else {
+      System.err.println("Usage: PatternStatisticsCatalog [create|refresh|drop]");
+    }
+    DBConnection.shutdown();
+  }
+
+  /**
+   * Returns the statistics of the matches of {@code tp}, or {@code null} if the catalog is not
+   * used, does not exist or does not hold them.
+   */
+  public static PatternStatistics get(TriplePattern tp) {
+    if (!Config.usePatternStatistics || Config.isRDFDB || Config.isSyntheticData
+        || tp.isSubjectConst || !tp.isPredicateConst) {
+      return null;
+    }
+    if (statistics == null) {
+      synchronized (PatternStatisticsCatalog.class) {
+        if (statistics == null) {
+          statistics = load();
+        }
+      }
+    }
+    PatternStatistics stats = statistics.get(getKey(tp));
+    if (stats != null) {
+      Logger.println("Catalog statistics for " + tp + ": " + stats, LoggingLevel.VARIABLEVALUES);
+    }
+    return stats;
+  }
+
+  /**
+   * Makes the next {@code get()} read the catalog again, e.g. after it was refreshed.
+   */
+  public static void reload() {
+    statistics = null;
+  }
+
+  /**
+   * Returns the key of the statistics of {@code tp}: the table its matches are read from, as in
+   * {@link de.mpii.trinitreloaded.queryprocessing.PopularityBasedScan}, and its constants.
+   */
+  private static String getKey(TriplePattern tp) {
+    boolean isScored = tp.isObjectResource || !tp.isObjectConst;
+    return getKey(isScored, QueryPlanner.formatParameter(tp.predicate),
+        tp.isObjectConst ? QueryPlanner.formatParameter(tp.object) : null);
+  }
+
+  private static String getKey(boolean isScored, String predicate, String object) {
+    return isScored + "\t" + predicate + "\t" + (object == null ? "" : object);
+  }
+
+  private static Map<String, PatternStatistics> load() {
+    Map<String, PatternStatistics> loaded = Maps.newHashMap();
+    Connection conn = null;
+    Statement stmt = null;
+    ResultSet rs = null;
+    try {
+      conn = DBConnection.getConnection();
+      stmt = conn.createStatement();
+      rs = stmt.executeQuery("SELECT * FROM " + Config.patternStatisticsTableName);
+      while (rs.next()) {
+        loaded.put(
+            getKey(rs.getBoolean("is_scored"), rs.getString("predicate"), rs.getString("object")),
+            new PatternStatistics(rs.getLong("num_matches"), rs.getDouble("max_score"),
+                rs.getDouble("min_score"), rs.getDouble("total_score"),
+                rs.getDouble("head_fraction"), rs.getLong("inflection_rank"),
+                rs.getDouble("score_at_rank"), rs.getDouble("cumulative_score_at_rank")));
+      }
+      Logger.println("Read " + loaded.size() + " pattern statistics from "
+          + Config.patternStatisticsTableName, LoggingLevel.INTERMEDIATEINFO);
+    } catch (SQLException e) {
+      // Without the table, the planner scans the matches.
+      Logger.println("Pattern statistics catalog " + Config.patternStatisticsTableName
+          + " not read: " + e.getMessage(), LoggingLevel.INTERMEDIATEINFO);
+    } finally {
+      try {
+        if (rs != null) {
+          rs.close();
+        }
+        if (stmt != null) {
+          stmt.close();
+        }
+        if (conn != null) {
+          conn.close();
+        }
+      } catch (SQLException e) {
+        e.printStackTrace();
+      }
+    }
+    return loaded;
+  }
+
+  /**
+   * Builds the catalog from the current data, textual and score tables, replacing the previous
+   * one.
+   */
+  public static void build() throws SQLException {
+    String table = Config.patternStatisticsTableName;
+    String newTable = table + NEW_SUFFIX;
+    String scoredMatches = "SELECT d.predicate AS predicate, d.object AS object, "
+        + "CAST(s.inlinks AS float8) AS score FROM " + Config.dataTableName + " d JOIN "
+        + Config.scoreTableName + " s ON d.subject = s.entity";
+    String textualMatches = "SELECT d.predicate AS predicate, d.object AS object, "
+        + "CAST(d.count AS float8) AS score FROM " + Config.textualTypeDataTableName + " d";
+    Connection conn = DBConnection.getConnection();
+    Statement stmt = null;
+    try {
+      stmt = conn.createStatement();
+      execute(stmt, "DROP TABLE IF EXISTS " + newTable);
+      execute(stmt, "CREATE TABLE " + newTable + " (is_scored boolean, predicate text, "
+          + "object text, num_matches bigint, max_score float8, min_score float8, "
+          + "total_score float8, head_fraction float8, inflection_rank bigint, "
+          + "score_at_rank float8, cumulative_score_at_rank float8)");
+      insert(conn, newTable, true, scoredMatches, true);
+      insert(conn, newTable, true, scoredMatches, false);
+      insert(conn, newTable, false, textualMatches, true);
+      execute(stmt, "ANALYZE " + newTable);
+
+      conn.setAutoCommit(false);
+      try {
+        execute(stmt, "DROP TABLE IF EXISTS " + table);
+        execute(stmt, "ALTER TABLE " + newTable + " RENAME TO "
+            + table.substring(table.lastIndexOf('.') + 1));
+        conn.commit();
+      } catch (SQLException e) {
+        conn.rollback();
+        throw e;
+      } finally {
+        conn.setAutoCommit(true);
+      }
+    } finally {
+      if (stmt != null) {
+        stmt.close();
+      }
+      conn.close();
+    }
+    reload();
+    Logger.println("Built pattern statistics catalog " + table, LoggingLevel.EXPERIMENTS);
+  }
+
+  /**
+   * Adds the statistics of the matches grouped by predicate and, if {@code byObject}, object.
+   *
+   * A match is in the head if the scores ranked above it sum to at most
+   * {@code fractionOfScoreInTheHead} of the total, which makes the number of matches in the head
+   * the adaptive inflection rank.
+   */
+  private static void insert(Connection conn, String table, boolean isScored, String matches,
+      boolean byObject) throws SQLException {
+    String group = byObject ? "predicate, object" : "predicate";
+    String head = " FILTER (WHERE cumulative - score <= total * ?)";
+    String cmd = "INSERT INTO " + table + " SELECT " + isScored + ", predicate, "
+        + (byObject ? "object" : "NULL") + ", count(*), max(score), min(score), max(total), ?, "
+        + "count(*)" + head + ", min(score)" + head + ", max(cumulative)" + head
+        + " FROM (SELECT predicate, object, score, SUM(score) OVER (PARTITION BY " + group
+        + " ORDER BY score DESC ROWS UNBOUNDED PRECEDING) AS cumulative, SUM(score) OVER "
+        + "(PARTITION BY " + group + ") AS total FROM (" + matches + ") m) r GROUP BY " + group;
+    Logger.println("PatternStatisticsCatalog: " + cmd, LoggingLevel.INTERMEDIATEINFO);
+    PreparedStatement stmt = conn.prepareStatement(cmd);
+    try {
+      for (int i = 1; i <= 4; i++) {
+        stmt.setDouble(i, Config.fractionOfScoreInTheHead);
+      }
+      stmt.executeUpdate();
+    } finally {
+      stmt.close();
+    }
+  }
+
+  /**
+   * Drops the catalog, so the planner scans the matches again.
+   */
+  public static void drop() throws SQLException {
+    Connection conn = DBConnection.getConnection();
+    Statement stmt = null;
+    try {
+      stmt = conn.createStatement();
+      execute(stmt, "DROP TABLE IF EXISTS " + Config.patternStatisticsTableName + NEW_SUFFIX);
+      execute(stmt, "DROP TABLE IF EXISTS " + Config.patternStatisticsTableName);
+    } finally {
+      if (stmt != null) {
+        stmt.close();
+      }
+      conn.close();
+    }
+    reload();
+  }
+
+  private static void execute(Statement stmt, String cmd) throws SQLException {
+    Logger.println("PatternStatisticsCatalog: " + cmd, LoggingLevel.INTERMEDIATEINFO);
+    stmt.execute(cmd);
+  }
+}
@@ -0,0 +1,291 @@
+package de.mpii.trinitreloaded.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.google.common.base.Charsets;
+
+/**
+ * A read-only, memory-mapped store of the matches of the data tables, built by
+ * {@link PostingStoreBuilder}.
+ *
+ * The matches are kept in posting lists keyed by (predicate, object) and by (subject, predicate),
+ * separately for {@code dataTableName}, scored by the inlinks of the subject, and for
+ * {@code textualTypeDataTableName}, scored by their count. Each list holds the other term of its
+ * matches, dictionary-encoded, with its score, in descending score order, and a key index of
+ * the same entries sorted by term id. Terms and lists are found through hash tables stored in
+ * the file, so looking up a list and reading any of its entries take constant time, finding the
+ * entry of a term in a list takes logarithmic time, and no copy of the data is made on the heap.
+ *
+ * File layout (big-endian):
+ * <ul>
+ * <li>header: {@code MAGIC}, {@code VERSION}, the number of terms, term hash slots, lists and
+ * list hash slots, followed by the positions of the sections, the number of entries and the
+ * position of the keys,</li>
+ * <li>term offsets: for each term id, the position of the term,</li>
+ * <li>terms: for each term, its length and UTF-8 bytes,</li>
+ * <li>term hash: for each slot, the id of a term, or -1,</li>
+ * <li>list hash: for each slot, the kind of the list plus one (0 for an empty slot), its two
+ * key term ids, its number of entries and the index of its first entry,</li>
+ * <li>postings: for each entry, the term id and the score,</li>
+ * <li>keys: for each entry, in the same ranges as the postings but sorted by term id within each
+ * list, the term id and the position of its entry in the list.</li>
+ * </ul>
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class PostingStore {
+  static final int MAGIC = 0x54525053;
+  static final int VERSION = 2;
+  static final int HEADER_SIZE = 6 * 4 + 7 * 8;
+  static final int LIST_SLOT_SIZE = 4 * 4 + 8;
+  static final int ENTRY_SIZE = 4 + 8;
+  static final int KEY_SIZE = 4 + 4;
+  /** The longest term, in bytes, that can be stored. */
+  static final int MAX_TERM_LENGTH = MappedFile.OVERLAP - 4;
+
+  /** Matches of {@code dataTableName}, keyed by (predicate, object). */
+  public static final int DATA_PREDICATE_OBJECT = 0;
+  /** Matches of {@code dataTableName}, keyed by (subject, predicate). */
+  public static final int DATA_SUBJECT_PREDICATE = 1;
+  /** Matches of {@code textualTypeDataTableName}, keyed by (predicate, object). */
+  public static final int TEXTUAL_PREDICATE_OBJECT = 2;
+  /** Matches of {@code textualTypeDataTableName}, keyed by (subject, predicate). */
+  public static final int TEXTUAL_SUBJECT_PREDICATE = 3;
+
+  private static PostingStore store;
+
+  private final MappedFile file;
+  private final int numTerms;
+  private final int termSlots;
+  private final int listSlots;
+  private final long termOffsetsPos;
+  private final long termHashPos;
+  private final long listHashPos;
+  private final long postingsPos;
+  private final long keysPos;
+
+  /**
+   * Returns the store at {@code postingStoreFile}, mapping it on the first call. The store is
+   * immutable, so it is shared by all threads.
+   */
+  public static synchronized PostingStore get() throws IOException {
+    if (store == null) {
+      store = new PostingStore(new File(Config.postingStoreFile));
+    }
+    return store;
+  }
+
+  public PostingStore(File f) throws IOException {
+    this.file = new MappedFile(f);
+    if (file.getInt(0) != MAGIC || file.getInt(4) != VERSION) {
+      throw new IOException(f + " is not a posting store of version " + VERSION + ".");
+    }
+    this.numTerms = file.getInt(8);
+    this.termSlots = file.getInt(12);
+    this.listSlots = file.getInt(20);
+    this.termOffsetsPos = file.getLong(24);
+    this.termHashPos = file.getLong(40);
+    this.listHashPos = file.getLong(48);
+    this.postingsPos = file.getLong(56);
+    this.keysPos = file.getLong(72);
+  }
+
+  /**
+   * Returns the id of a term, or -1 if it does not occur in any match.
+   */
+  public int getTermId(String term) {
+    byte[] bytes = term.getBytes(Charsets.UTF_8);
+    int mask = termSlots - 1;
+    for (int slot = hash(term.hashCode()) & mask;; slot = (slot + 1) & mask) {
+      int id = file.getInt(termHashPos + 4L * slot);
+      if (id < 0) {
+        return -1;
+      }
+      if (equals(id, bytes)) {
+        return id;
+      }
+    }
+  }
+
+  private boolean equals(int id, byte[] bytes) {
+    long pos = file.getLong(termOffsetsPos + 8L * id);
+    if (file.getInt(pos) != bytes.length) {
+      return false;
+    }
+    for (int i = 0; i < bytes.length; i++) {
+      if (file.getByte(pos + 4 + i) != bytes[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the term of an id.
+   */
+  public String getTerm(int id) {
+    if (id < 0 || id >= numTerms) {
+      throw new IllegalArgumentException("No term with id " + id + ".");
+    }
+    long pos = file.getLong(termOffsetsPos + 8L * id);
+    return new String(file.getBytes(pos + 4, file.getInt(pos)), Charsets.UTF_8);
+  }
+
+  /**
+   * Returns the posting list of a key.
+   *
+   * @param kind One of {@code DATA_PREDICATE_OBJECT}, {@code DATA_SUBJECT_PREDICATE},
+   *        {@code TEXTUAL_PREDICATE_OBJECT} and {@code TEXTUAL_SUBJECT_PREDICATE}.
+   * @param first The id of the first term of the key.
+   * @param second The id of the second term of the key.
+   * @return The list, or {@code null} if the key has no matches.
+   */
+  public PostingList getList(int kind, int first, int second) {
+    int mask = listSlots - 1;
+    for (int slot = hash(listHash(kind, first, second)) & mask;; slot = (slot + 1) & mask) {
+      long pos = listHashPos + (long) LIST_SLOT_SIZE * slot;
+      int slotKind = file.getInt(pos) - 1;
+      if (slotKind < 0) {
+        return null;
+      }
+      if (slotKind == kind && file.getInt(pos + 4) == first && file.getInt(pos + 8) == second) {
+        return new PostingList(file.getLong(pos + 16), file.getInt(pos + 12));
+      }
+    }
+  }
+
+  static int listHash(int kind, int first, int second) {
+    return (kind * 31 + first) * 31 + second;
+  }
+
+  /**
+   * Spreads the bits of a hash code, so that the low bits used as slot depend on all of them.
+   */
+  static int hash(int h) {
+    h *= 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Returns the smallest power of two with at least twice as many slots as entries.
+   */
+  static int getNumSlots(int numEntries) {
+    int slots = 2;
+    while (slots < 2L * numEntries) {
+      slots <<= 1;
+    }
+    return slots;
+  }
+
+  /**
+   * The entries of one key, in descending score order.
+   */
+  public class PostingList {
+    private final long first;
+    private final int size;
+
+    PostingList(long first, int size) {
+      this.first = first;
+      this.size = size;
+    }
+
+    public int size() {
+      return size;
+    }
+
+    /**
+     * Returns the id of the term of the {@code i}-th entry.
+     */
+    public int getTermId(int i) {
+      return file.getInt(postingsPos + (first + i) * ENTRY_SIZE);
+    }
+
+    /**
+     * Returns the score of the {@code i}-th entry.
+     */
+    public double getScore(int i) {
+      return file.getDouble(postingsPos + (first + i) * ENTRY_SIZE + 4);
+    }
+
+    /**
+     * Returns the position of the entry of a term, or -1 if the list has none, by binary search
+     * in the key index.
+     */
+    public int indexOf(int termId) {
+      int low = 0;
+      int high = size - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        long pos = keysPos + (first + mid) * KEY_SIZE;
+        int midId = file.getInt(pos);
+        if (midId < termId) {
+          low = mid + 1;
+        } else if (midId > termId) {
+          high = mid - 1;
+        } else {
+          return file.getInt(pos + 4);
+        }
+      }
+      return -1;
+    }
+  }
+
+  /**
+   * A read-only file mapped in chunks, since a single mapping is limited to 2GB. Consecutive
+   * chunks overlap by {@code OVERLAP} bytes, so that any value shorter than that is read from
+   * the chunk it starts in.
+   */
+  static class MappedFile {
+    static final long CHUNK_SIZE = 1L << 30;
+    static final int OVERLAP = 1 << 20;
+
+    private final MappedByteBuffer[] chunks;
+
+    MappedFile(File f) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(f, "r");
+      try {
+        FileChannel channel = raf.getChannel();
+        long length = channel.size();
+        chunks = new MappedByteBuffer[(int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+        for (int i = 0; i < chunks.length; i++) {
+          long start = i * CHUNK_SIZE;
+          chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+              Math.min(CHUNK_SIZE + OVERLAP, length - start));
+        }
+      } finally {
+        // The mappings stay valid after the file is closed.
+        raf.close();
+      }
+    }
+
+    byte getByte(long pos) {
+      return chunks[(int) (pos / CHUNK_SIZE)].get((int) (pos % CHUNK_SIZE));
+    }
+
+    int getInt(long pos) {
+      return chunks[(int) (pos / CHUNK_SIZE)].getInt((int) (pos % CHUNK_SIZE));
+    }
+
+    long getLong(long pos) {
+      return chunks[(int) (pos / CHUNK_SIZE)].getLong((int) (pos % CHUNK_SIZE));
+    }
+
+    double getDouble(long pos) {
+      return chunks[(int) (pos / CHUNK_SIZE)].getDouble((int) (pos % CHUNK_SIZE));
+    }
+
+    byte[] getBytes(long pos, int length) {
+      ByteBuffer chunk = chunks[(int) (pos / CHUNK_SIZE)].duplicate();
+      chunk.position((int) (pos % CHUNK_SIZE));
+      byte[] bytes = new byte[length];
+      chunk.get(bytes);
+      return bytes;
+    }
+  }
+}
@@ -0,0 +1,322 @@
+package de.mpii.trinitreloaded.utils;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.TLongList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+
+import de.mpii.trinitreloaded.utils.Config.LoggingLevel;
+
+/**
+ * Exports the data tables into a {@link PostingStore} file.
+ *
+ * Each kind of posting list is read with one query which the database sorts by key and by
+ * descending score, so the entries are written out as they are read. The key index of a list is
+ * sorted in memory once the list has been read. Only the dictionary and the list keys are kept in
+ * memory until the end.
+ *
+ * Usage:
+ * {@code java de.mpii.trinitreloaded.utils.PostingStoreBuilder [file]}, with the properties of
+ * {@link Config}; the file defaults to {@code postingStoreFile}.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class PostingStoreBuilder {
+  private static final int FETCH_SIZE = 10000;
+
+  private final TObjectIntMap<String> termIds = new TObjectIntHashMap<String>(1 << 16, 0.5f, -1);
+  private final List<byte[]> terms = Lists.newArrayList();
+  private long termBytesSize;
+
+  /** The kind, key term ids, first entry and number of entries of each list. */
+  private final TIntList listKinds = new TIntArrayList();
+  private final TIntList listFirstTerms = new TIntArrayList();
+  private final TIntList listSecondTerms = new TIntArrayList();
+  private final TLongList listStarts = new TLongArrayList();
+  private final TIntList listSizes = new TIntArrayList();
+
+  private File postingsFile;
+  private File keysFile;
+  private DataOutputStream postings;
+  private DataOutputStream keys;
+  private long numEntries;
+  /** The term id and position of each entry of the list being read, for its key index. */
+  private final TLongList listKeys = new TLongArrayList();
+
+  public static void main(String[] args) throws IOException, SQLException {
+    Config.loadProperties();
+    String path = args.length > 0 ? args[0] : Config.postingStoreFile;
+    new PostingStoreBuilder().build(new File(path));
+    DBConnection.shutdown();
+  }
+
+  /**
+   * Reads the data tables and writes the store to {@code f}.
+   */
+  public void build(File f) throws IOException, SQLException {
+    start(f);
+    try {
+      String scored = " FROM " + Config.dataTableName + " d, " + Config.scoreTableName
+          + " WHERE d.subject = entity";
+      addLists(PostingStore.DATA_PREDICATE_OBJECT,
+          "SELECT d.predicate, d.object, d.subject, inlinks" + scored
+              + " ORDER BY d.predicate, d.object, inlinks DESC, d.subject");
+      addLists(PostingStore.DATA_SUBJECT_PREDICATE,
+          "SELECT d.subject, d.predicate, d.object, inlinks" + scored
+              + " ORDER BY d.subject, d.predicate, inlinks DESC, d.object");
+      String textual = " FROM " + Config.textualTypeDataTableName + " d";
+      addLists(PostingStore.TEXTUAL_PREDICATE_OBJECT,
+          "SELECT d.predicate, d.object, d.subject, d.count" + textual
+              + " ORDER BY d.predicate, d.object, d.count DESC, d.subject");
+      addLists(PostingStore.TEXTUAL_SUBJECT_PREDICATE,
+          "SELECT d.subject, d.predicate, d.object, d.count" + textual
+              + " ORDER BY d.subject, d.predicate, d.count DESC, d.object");
+      finish(f);
+    } finally {
+      discard();
+    }
+    Logger.println("PostingStoreBuilder: wrote " + terms.size() + " terms, " + listSizes.size()
+        + " lists and " + numEntries + " entries to " + f, LoggingLevel.EXPERIMENTS);
+  }
+
+  /**
+   * Opens the temporary files, next to {@code f}, which the postings and the key index are
+   * written to until {@code finish()}.
+   */
+  void start(File f) throws IOException {
+    postingsFile = File.createTempFile("postings", ".tmp", f.getAbsoluteFile().getParentFile());
+    keysFile = File.createTempFile("keys", ".tmp", f.getAbsoluteFile().getParentFile());
+    postings = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(postingsFile)));
+    keys = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(keysFile)));
+  }
+
+  /**
+   * Writes the store to {@code f}, with the entries added since {@code start()}.
+   */
+  void finish(File f) throws IOException {
+    writeListKeys();
+    postings.close();
+    keys.close();
+    write(f, postingsFile, keysFile);
+  }
+
+  /**
+   * Closes and deletes the temporary files.
+   */
+  void discard() throws IOException {
+    postings.close();
+    keys.close();
+    postingsFile.delete();
+    keysFile.delete();
+  }
+
+  /**
+   * Reads the entries of one kind of list, whose query returns the two key terms, the entry term
+   * and the score, sorted by key and by descending score.
+   */
+  private void addLists(int kind, String cmd) throws IOException, SQLException {
+    Logger.println("PostingStoreBuilder: " + cmd, LoggingLevel.INTERMEDIATEINFO);
+    Connection conn = DBConnection.getConnection();
+    PreparedStatement stmt = null;
+    ResultSet rs = null;
+    try {
+      // Without a transaction, the driver would read all rows into memory.
+      conn.setAutoCommit(false);
+      stmt = conn.prepareStatement(cmd);
+      stmt.setFetchSize(FETCH_SIZE);
+      rs = stmt.executeQuery();
+      while (rs.next()) {
+        addEntry(kind, rs.getString(1), rs.getString(2), rs.getString(3), rs.getDouble(4));
+      }
+    } finally {
+      if (rs != null) {
+        rs.close();
+      }
+      if (stmt != null) {
+        stmt.close();
+      }
+      conn.rollback();
+      conn.setAutoCommit(true);
+      conn.close();
+    }
+  }
+
+  /**
+   * Adds an entry to the list of a key. The entries must be added grouped by key and, within a
+   * key, in descending score order.
+   */
+  void addEntry(int kind, String first, String second, String term, double score)
+      throws IOException {
+    int firstId = getTermId(first);
+    int secondId = getTermId(second);
+    int last = listSizes.size() - 1;
+    if (last < 0 || listKinds.get(last) != kind || listFirstTerms.get(last) != firstId
+        || listSecondTerms.get(last) != secondId) {
+      writeListKeys();
+      listKinds.add(kind);
+      listFirstTerms.add(firstId);
+      listSecondTerms.add(secondId);
+      listStarts.add(numEntries);
+      listSizes.add(0);
+      last++;
+    }
+    int termId = getTermId(term);
+    postings.writeInt(termId);
+    postings.writeDouble(score);
+    numEntries++;
+    int position = listSizes.get(last);
+    listKeys.add((long) termId << 32 | position);
+    listSizes.set(last, position + 1);
+  }
+
+  /**
+   * Writes the key index of the list read last, its entries sorted by term id, and clears it.
+   * Term ids and positions are not negative, so sorting them packed in a long sorts by term id.
+   */
+  private void writeListKeys() throws IOException {
+    listKeys.sort();
+    for (int i = 0; i < listKeys.size(); i++) {
+      long key = listKeys.get(i);
+      keys.writeInt((int) (key >>> 32));
+      keys.writeInt((int) key);
+    }
+    listKeys.clear();
+  }
+
+  private int getTermId(String term) throws IOException {
+    int id = termIds.get(term);
+    if (id < 0) {
+      byte[] bytes = term.getBytes(Charsets.UTF_8);
+      if (bytes.length > PostingStore.MAX_TERM_LENGTH) {
+        throw new IOException("Term longer than " + PostingStore.MAX_TERM_LENGTH + " bytes: "
+            + term.substring(0, 100) + "...");
+      }
+      id = terms.size();
+      termIds.put(term, id);
+      terms.add(bytes);
+      termBytesSize += 4 + bytes.length;
+    }
+    return id;
+  }
+
+  /**
+   * Writes the header, the dictionary and the hash tables, followed by the postings and the key
+   * index.
+   */
+  private void write(File f, File postingsFile, File keysFile) throws IOException {
+    int numTerms = terms.size();
+    int numLists = listSizes.size();
+    int termSlots = PostingStore.getNumSlots(numTerms);
+    int listSlots = PostingStore.getNumSlots(numLists);
+    long termOffsetsPos = PostingStore.HEADER_SIZE;
+    long termBytesPos = termOffsetsPos + 8L * numTerms;
+    long termHashPos = termBytesPos + termBytesSize;
+    long listHashPos = termHashPos + 4L * termSlots;
+    long postingsPos = listHashPos + (long) PostingStore.LIST_SLOT_SIZE * listSlots;
+    long keysPos = postingsPos + PostingStore.ENTRY_SIZE * numEntries;
+
+    DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+    try {
+      out.writeInt(PostingStore.MAGIC);
+      out.writeInt(PostingStore.VERSION);
+      out.writeInt(numTerms);
+      out.writeInt(termSlots);
+      out.writeInt(numLists);
+      out.writeInt(listSlots);
+      out.writeLong(termOffsetsPos);
+      out.writeLong(termBytesPos);
+      out.writeLong(termHashPos);
+      out.writeLong(listHashPos);
+      out.writeLong(postingsPos);
+      out.writeLong(numEntries);
+      out.writeLong(keysPos);
+
+      long pos = termBytesPos;
+      for (byte[] term : terms) {
+        out.writeLong(pos);
+        pos += 4 + term.length;
+      }
+      for (byte[] term : terms) {
+        out.writeInt(term.length);
+        out.write(term);
+      }
+
+      int[] termHash = new int[termSlots];
+      Arrays.fill(termHash, -1);
+      for (int id = 0; id < numTerms; id++) {
+        String term = new String(terms.get(id), Charsets.UTF_8);
+        int slot = PostingStore.hash(term.hashCode()) & (termSlots - 1);
+        while (termHash[slot] >= 0) {
+          slot = (slot + 1) & (termSlots - 1);
+        }
+        termHash[slot] = id;
+      }
+      for (int id : termHash) {
+        out.writeInt(id);
+      }
+
+      int[] listHash = new int[listSlots];
+      Arrays.fill(listHash, -1);
+      for (int i = 0; i < numLists; i++) {
+        int slot = PostingStore.hash(PostingStore.listHash(listKinds.get(i),
+            listFirstTerms.get(i), listSecondTerms.get(i))) & (listSlots - 1);
+        while (listHash[slot] >= 0) {
+          slot = (slot + 1) & (listSlots - 1);
+        }
+        listHash[slot] = i;
+      }
+      for (int i : listHash) {
+        if (i < 0) {
+          out.writeInt(0);
+          out.writeInt(0);
+          out.writeInt(0);
+          out.writeInt(0);
+          out.writeLong(0);
+        } else {
+          out.writeInt(listKinds.get(i) + 1);
+          out.writeInt(listFirstTerms.get(i));
+          out.writeInt(listSecondTerms.get(i));
+          out.writeInt(listSizes.get(i));
+          out.writeLong(listStarts.get(i));
+        }
+      }
+
+      copy(postingsFile, out);
+      copy(keysFile, out);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void copy(File f, DataOutputStream out) throws IOException {
+    InputStream in = new BufferedInputStream(new FileInputStream(f));
+    try {
+      ByteStreams.copy(in, out);
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package de.mpii.trinitreloaded.utils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.Maps;
+
+/**
+ * A cache of parameterized SQL templates, keyed by the shape of the query they answer (which
+ * positions are constants, which tables are used, ...).
+ *
+ * Constants are never inlined into a template; they are bound as parameters of a
+ * {@link PreparedStatement}. Since the text of a template is the same for all queries of a
+ * shape, the driver's per-connection statement cache prepares it on the server only once.
+ *
+ * Usage:
+ * Call {@code get()} with the shape key. If it returns {@code null}, build the template and
+ * register it with {@code put()}. Use {@code prepare()} to bind the parameters.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class SQLTemplateCache {
+
+  private static final ConcurrentMap<String, String> templates = Maps.newConcurrentMap();
+
+  /**
+   * Returns the template for the given shape, or {@code null} if none has been built yet.
+   */
+  public static String get(String shape) {
+    return templates.get(shape);
+  }
+
+  /**
+   * Registers the template for a shape.
+   *
+   * @return The template now cached for {@code shape}, which is the one registered first if two
+   *         threads race.
+   */
+  public static String put(String shape, String template) {
+    String previous = templates.putIfAbsent(shape, template);
+    return previous == null ? template : previous;
+  }
+
+  /**
+   * Prepares {@code template} on {@code conn} and binds {@code params} in order.
+   */
+  public static PreparedStatement prepare(Connection conn, String template, List<?> params)
+      throws SQLException {
+    PreparedStatement stmt = conn.prepareStatement(template);
+    for (int i = 0; i < params.size(); i++) {
+      stmt.setObject(i + 1, params.get(i));
+    }
+    return stmt;
+  }
+}
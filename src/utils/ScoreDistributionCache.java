@@ -0,0 +1,104 @@
+package de.mpii.trinitreloaded.utils;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import de.mpii.trinitreloaded.datastructures.ProbabilityDistribution;
+import de.mpii.trinitreloaded.datastructures.TriplePattern;
+import de.mpii.trinitreloaded.utils.Config.LoggingLevel;
+
+/**
+ * A cache of the score distributions of {@link TriplePattern}, shared by all query planners.
+ *
+ * Building the distribution of a pattern reads its matches, so repeated and overlapping queries
+ * would read the same matches again for every plan. A distribution is cached under the pattern,
+ * its weight and the settings which shape it: the histogram type, the number of buckets, the
+ * inflection rank settings and the accuracy of sketches. At most
+ * {@code scoreDistributionCacheSize} distributions are kept, each for at most
+ * {@code scoreDistributionCacheTtl} seconds, so changes to the data are seen eventually. The
+ * cached distributions are shared, so they must not be modified.
+ *
+ * Usage:
+ * Call {@code get()}. If it returns {@code null}, build the distribution and register it with
+ * {@code put()}.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class ScoreDistributionCache {
+
+  private static volatile Cache<String, ProbabilityDistribution> distributions;
+
+  private static Cache<String, ProbabilityDistribution> getDistributions() {
+    if (distributions == null) {
+      synchronized (ScoreDistributionCache.class) {
+        if (distributions == null) {
+          distributions = CacheBuilder.newBuilder()
+              .maximumSize(Math.max(Config.scoreDistributionCacheSize, 0))
+              .expireAfterWrite(Config.scoreDistributionCacheTtl, TimeUnit.SECONDS)
+              .recordStats()
+              .build();
+        }
+      }
+    }
+    return distributions;
+  }
+
+  /**
+   * Returns the cached distribution of {@code tp} with weight {@code weight} under the current
+   * settings, or {@code null} if there is none.
+   */
+  public static ProbabilityDistribution get(TriplePattern tp, double weight) {
+    if (Config.scoreDistributionCacheSize <= 0) {
+      return null;
+    }
+    ProbabilityDistribution pdf = getDistributions().getIfPresent(getKey(tp, weight));
+    if (pdf != null) {
+      Logger.println("Cached pdf for:" + tp + " with weight " + weight,
+          LoggingLevel.VARIABLEVALUES);
+    }
+    return pdf;
+  }
+
+  /**
+   * Caches the distribution of {@code tp} with weight {@code weight} under the current settings.
+   */
+  public static void put(TriplePattern tp, double weight, ProbabilityDistribution pdf) {
+    if (Config.scoreDistributionCacheSize <= 0 || pdf == null) {
+      return;
+    }
+    getDistributions().put(getKey(tp, weight), pdf);
+  }
+
+  private static String getKey(TriplePattern tp, double weight) {
+    return tp.subject + "\t" + tp.predicate + "\t" + tp.object + "\t" + weight + "\t"
+        + Config.histType + "\t" + Config.numBuckets + "\t" + Config.adaptiveInflectionRank + "\t"
+        + Config.fractionOfScoreInTheHead + "\t" + Config.inflectionRank + "\t"
+        + Config.sketchK;
+  }
+
+  /**
+   * Empties the cache, e.g. after the data was changed.
+   */
+  public static void invalidateAll() {
+    if (distributions != null) {
+      distributions.invalidateAll();
+    }
+  }
+
+  /**
+   * Returns the size of the cache and its hits, misses and evictions so far, for logging.
+   */
+  public static String getStatistics() {
+    if (distributions == null) {
+      return "unused";
+    }
+    CacheStats stats = distributions.stats();
+    return "size=" + distributions.size() + ", hits=" + stats.hitCount() + ", misses="
+        + stats.missCount() + ", hitRate=" + stats.hitRate() + ", evictions="
+        + stats.evictionCount();
+  }
+}
@@ -0,0 +1,205 @@
+package de.mpii.trinitreloaded.utils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import de.mpii.trinitreloaded.utils.Config.LoggingLevel;
+
+/**
+ * Creates and refreshes the pre-joined table of scored matches, {@code scoredDataTableName},
+ * holding the rows of the data table with the score of their subject from the score table.
+ *
+ * The table is clustered on a {@code (predicate, object, score DESC)} index which also includes
+ * the subject, so the scored matches of a pattern with a constant predicate and object are read
+ * in score order by an index-only range scan, without joining or sorting. A second index serves
+ * patterns with a constant subject. The scans and cardinality probes read it instead of joining
+ * the data and score tables whenever it exists, see {@code isAvailable()}.
+ *
+ * A refresh builds a new table next to the current one and swaps them in one transaction, so
+ * running queries keep reading a complete table. If the data is sharded, each shard gets the table
+ * of its own triples.
+ *
+ * Usage:
+ * {@code java de.mpii.trinitreloaded.utils.ScoredDataTable [create|refresh|drop]}, with the
+ * properties of {@link Config}.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class ScoredDataTable {
+  private static final String NEW_SUFFIX = "_new";
+
+  /** Whether the table exists, {@code null} until it is first checked. */
+  private static volatile Boolean isAvailable;
+
+  public static void main(String[] args) throws SQLException {
+    Config.loadProperties();
+    String action = args.length > 0 ? args[0] : "create";
+    if (action.equals("create") || action.equals("refresh")) {
+      build();
+    } else if (action.equals("drop")) {
+      drop();
+    } else {
+      System.err.println("Usage: ScoredDataTable [create|refresh|drop]");
+    }
+    DBConnection.shutdown();
+  }
+
+  /**
+   * Returns whether the scans and probes should read the pre-joined table: it is enabled by
+   * {@code useScoredData} and exists. The check is made once, on first use.
+   */
+  public static boolean isAvailable() {
+    if (!Config.useScoredData || Config.isRDFDB || Config.isSyntheticData) {
+      return false;
+    }
+    if (isAvailable == null) {
+      synchronized (ScoredDataTable.class) {
+        if (isAvailable == null) {
+          isAvailable = exists(Config.scoredDataTableName);
+          Logger.println("Scored data table " + Config.scoredDataTableName
+              + (isAvailable ? " found" : " not found"), LoggingLevel.INTERMEDIATEINFO);
+        }
+      }
+    }
+    return isAvailable;
+  }
+
+  private static boolean exists(String table) {
+    Connection conn = null;
+    PreparedStatement stmt = null;
+    ResultSet rs = null;
+    try {
+      // The shards all have the table or none has.
+      conn = Shards.isSharded() ? DBConnection.getConnection(0) : DBConnection.getConnection();
+      stmt = conn.prepareStatement("SELECT to_regclass(?) IS NOT NULL");
+      stmt.setString(1, table);
+      rs = stmt.executeQuery();
+      return rs.next() && rs.getBoolean(1);
+    } catch (SQLException e) {
+      e.printStackTrace();
+      return false;
+    } finally {
+      try {
+        if (rs != null) {
+          rs.close();
+        }
+        if (stmt != null) {
+          stmt.close();
+        }
+        if (conn != null) {
+          conn.close();
+        }
+      } catch (SQLException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Builds the table from the current data and score tables, replacing the previous one.
+   */
+  public static void build() throws SQLException {
+    if (Shards.isSharded()) {
+      for (int shard = 0; shard < Shards.getNumShards(); shard++) {
+        build(DBConnection.getConnection(shard));
+      }
+    } else {
+      build(DBConnection.getConnection());
+    }
+    isAvailable = null;
+    Logger.println("Built scored data table " + Config.scoredDataTableName,
+        LoggingLevel.EXPERIMENTS);
+  }
+
+  private static void build(Connection conn) throws SQLException {
+    String table = Config.scoredDataTableName;
+    String newTable = table + NEW_SUFFIX;
+    String name = getName(table);
+    String newName = name + NEW_SUFFIX;
+    Statement stmt = null;
+    try {
+      stmt = conn.createStatement();
+      execute(stmt, "DROP TABLE IF EXISTS " + newTable);
+      // Inserting in index order lays the rows out as clustered from the start.
+      execute(stmt, "CREATE TABLE " + newTable + " AS SELECT d.subject AS subject, "
+          + "d.predicate AS predicate, d.object AS object, s.inlinks AS score FROM "
+          + Config.dataTableName + " d JOIN " + Config.scoreTableName
+          + " s ON d.subject = s.entity ORDER BY d.predicate, d.object, s.inlinks DESC");
+      execute(stmt, "CREATE INDEX " + newName + "_pos ON " + newTable
+          + " (predicate, object, score DESC) INCLUDE (subject)");
+      execute(stmt, "CREATE INDEX " + newName + "_sps ON " + newTable
+          + " (subject, predicate, score DESC) INCLUDE (object)");
+      // Lets a later CLUSTER on the table keep the same order.
+      execute(stmt, "ALTER TABLE " + newTable + " CLUSTER ON " + newName + "_pos");
+      execute(stmt, "ANALYZE " + newTable);
+
+      conn.setAutoCommit(false);
+      try {
+        execute(stmt, "DROP TABLE IF EXISTS " + table);
+        execute(stmt, "ALTER TABLE " + newTable + " RENAME TO " + name);
+        execute(stmt, "ALTER INDEX " + getSchemaPrefix(table) + newName + "_pos RENAME TO "
+            + name + "_pos");
+        execute(stmt, "ALTER INDEX " + getSchemaPrefix(table) + newName + "_sps RENAME TO "
+            + name + "_sps");
+        conn.commit();
+      } catch (SQLException e) {
+        conn.rollback();
+        throw e;
+      } finally {
+        conn.setAutoCommit(true);
+      }
+    } finally {
+      if (stmt != null) {
+        stmt.close();
+      }
+      conn.close();
+    }
+  }
+
+  /**
+   * Drops the table, so the scans join the data and score tables again.
+   */
+  public static void drop() throws SQLException {
+    if (Shards.isSharded()) {
+      for (int shard = 0; shard < Shards.getNumShards(); shard++) {
+        drop(DBConnection.getConnection(shard));
+      }
+    } else {
+      drop(DBConnection.getConnection());
+    }
+    isAvailable = null;
+  }
+
+  private static void drop(Connection conn) throws SQLException {
+    Statement stmt = null;
+    try {
+      stmt = conn.createStatement();
+      execute(stmt, "DROP TABLE IF EXISTS " + Config.scoredDataTableName + NEW_SUFFIX);
+      execute(stmt, "DROP TABLE IF EXISTS " + Config.scoredDataTableName);
+    } finally {
+      if (stmt != null) {
+        stmt.close();
+      }
+      conn.close();
+    }
+  }
+
+  private static void execute(Statement stmt, String cmd) throws SQLException {
+    Logger.println("ScoredDataTable: " + cmd, LoggingLevel.INTERMEDIATEINFO);
+    stmt.execute(cmd);
+  }
+
+  /** Returns the name of a table without its schema. */
+  private static String getName(String table) {
+    return table.substring(table.lastIndexOf('.') + 1);
+  }
+
+  /** Returns the schema of a table followed by a dot, or the empty string if it has none. */
+  private static String getSchemaPrefix(String table) {
+    return table.substring(0, table.lastIndexOf('.') + 1);
+  }
+}
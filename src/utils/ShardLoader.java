@@ -0,0 +1,155 @@
+package de.mpii.trinitreloaded.utils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+
+import de.mpii.trinitreloaded.utils.Config.LoggingLevel;
+
+/**
+ * Distributes the data, textual and score tables of the main database over the shards, as
+ * placed by {@link Shards}.
+ *
+ * Each table is read once, with a cursor, and its rows are inserted in batches into a table of
+ * the same name and columns on their shard, which is replaced if it exists. The shards then get
+ * the indexes the scans and probes use. To also pre-join the scores on the shards, run
+ * {@link ScoredDataTable} afterwards.
+ *
+ * Usage:
+ * {@code java de.mpii.trinitreloaded.utils.ShardLoader}, with the properties of {@link Config}
+ * and the shards of {@link DBConfig}.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class ShardLoader {
+  private static final int FETCH_SIZE = 10000;
+  private static final int BATCH_SIZE = 1000;
+
+  public static void main(String[] args) throws SQLException {
+    Config.loadProperties();
+    if (!Shards.isSharded()) {
+      System.err.println("No shards configured in " + Config.dbConfigFile);
+      return;
+    }
+    ShardLoader loader = new ShardLoader();
+    loader.load(Config.dataTableName, "subject",
+        Arrays.asList("predicate, object", "subject, predicate"));
+    loader.load(Config.textualTypeDataTableName, "subject",
+        Arrays.asList("predicate, object", "subject, predicate"));
+    loader.load(Config.scoreTableName, "entity", Arrays.asList("entity"));
+    DBConnection.shutdown();
+  }
+
+  /**
+   * Copies a table to the shards, placing each row by the value of {@code keyColumn}.
+   *
+   * @param indexes The columns of each index to create on the copies, comma-separated.
+   */
+  public void load(String table, String keyColumn, List<String> indexes) throws SQLException {
+    Connection conn = DBConnection.getConnection();
+    List<Connection> shardConns = Lists.newArrayList();
+    List<PreparedStatement> inserts = Lists.newArrayList();
+    int[] batchSizes = new int[Shards.getNumShards()];
+    long numRows = 0;
+    PreparedStatement stmt = null;
+    ResultSet rs = null;
+    try {
+      // Without a transaction, the driver would read all rows into memory.
+      conn.setAutoCommit(false);
+      stmt = conn.prepareStatement("SELECT * FROM " + table);
+      stmt.setFetchSize(FETCH_SIZE);
+      rs = stmt.executeQuery();
+      ResultSetMetaData meta = rs.getMetaData();
+      List<String> columns = Lists.newArrayList();
+      List<String> placeholders = Lists.newArrayList();
+      for (int i = 1; i <= meta.getColumnCount(); i++) {
+        columns.add(meta.getColumnName(i) + " " + meta.getColumnTypeName(i));
+        placeholders.add("?");
+      }
+      for (int shard = 0; shard < Shards.getNumShards(); shard++) {
+        Connection shardConn = DBConnection.getConnection(shard);
+        shardConns.add(shardConn);
+        shardConn.setAutoCommit(false);
+        Statement ddl = shardConn.createStatement();
+        try {
+          if (table.contains(".")) {
+            execute(ddl, "CREATE SCHEMA IF NOT EXISTS "
+                + table.substring(0, table.lastIndexOf('.')));
+          }
+          execute(ddl, "DROP TABLE IF EXISTS " + table);
+          execute(ddl, "CREATE TABLE " + table + " (" + Joiner.on(", ").join(columns) + ")");
+        } finally {
+          ddl.close();
+        }
+        inserts.add(shardConn.prepareStatement("INSERT INTO " + table + " VALUES ("
+            + Joiner.on(", ").join(placeholders) + ")"));
+      }
+
+      while (rs.next()) {
+        int shard = Shards.getShard(rs.getString(keyColumn));
+        PreparedStatement insert = inserts.get(shard);
+        for (int i = 1; i <= meta.getColumnCount(); i++) {
+          insert.setObject(i, rs.getObject(i));
+        }
+        insert.addBatch();
+        if (++batchSizes[shard] == BATCH_SIZE) {
+          insert.executeBatch();
+          batchSizes[shard] = 0;
+        }
+        numRows++;
+      }
+
+      for (int shard = 0; shard < Shards.getNumShards(); shard++) {
+        inserts.get(shard).executeBatch();
+        Statement ddl = shardConns.get(shard).createStatement();
+        try {
+          for (String index : indexes) {
+            execute(ddl, "CREATE INDEX ON " + table + " (" + index + ")");
+          }
+          execute(ddl, "ANALYZE " + table);
+        } finally {
+          ddl.close();
+        }
+        shardConns.get(shard).commit();
+      }
+    } catch (SQLException e) {
+      for (Connection shardConn : shardConns) {
+        shardConn.rollback();
+      }
+      throw e;
+    } finally {
+      if (rs != null) {
+        rs.close();
+      }
+      if (stmt != null) {
+        stmt.close();
+      }
+      conn.rollback();
+      conn.setAutoCommit(true);
+      conn.close();
+      for (PreparedStatement insert : inserts) {
+        insert.close();
+      }
+      for (Connection shardConn : shardConns) {
+        shardConn.setAutoCommit(true);
+        shardConn.close();
+      }
+    }
+    Logger.println("ShardLoader: copied " + numRows + " rows of " + table + " to "
+        + Shards.getNumShards() + " shards", LoggingLevel.EXPERIMENTS);
+  }
+
+  private static void execute(Statement stmt, String cmd) throws SQLException {
+    Logger.println("ShardLoader: " + cmd, LoggingLevel.INTERMEDIATEINFO);
+    stmt.execute(cmd);
+  }
+}
@@ -0,0 +1,112 @@
+package de.mpii.trinitreloaded.utils;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * The placement of the data on the shards configured in {@link DBConfig}, and the parallel
+ * execution of work on all of them.
+ *
+ * The triples of the data and textual tables are hash-partitioned by subject, and the rows of the
+ * score table by entity, so a triple and the score of its subject are on the same shard, as are
+ * all triples with the same subject. {@link ShardLoader} distributes the tables accordingly.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class Shards {
+  private static final HashFunction HASH = Hashing.murmur3_32();
+
+  private static final ExecutorService executor = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setNameFormat("trinit-qp-shard-%d").setDaemon(true).build());
+
+  /**
+   * Returns whether the data is split into shards.
+   */
+  public static boolean isSharded() {
+    return DBConnection.getNumShards() > 0;
+  }
+
+  public static int getNumShards() {
+    return DBConnection.getNumShards();
+  }
+
+  /**
+   * Returns the shard holding the triples with subject {@code subject}, as stored in the
+   * database.
+   */
+  public static int getShard(String subject) {
+    return Math.abs(HASH.hashString(subject, Charsets.UTF_8).asInt() % getNumShards());
+  }
+
+  /**
+   * Work to be done on one shard.
+   */
+  public interface ShardTask<T> {
+    public T run(int shard) throws SQLException;
+  }
+
+  /**
+   * Runs {@code task} on all shards in parallel, each on its own thread drawing from the
+   * connection budget and sharing the cursor connections of the calling one, and returns the
+   * results in shard order.
+   */
+  public static <T> List<T> scatter(ShardTask<T> task) throws SQLException {
+    List<Integer> shards = Lists.newArrayList();
+    for (int shard = 0; shard < getNumShards(); shard++) {
+      shards.add(shard);
+    }
+    return scatter(task, shards);
+  }
+
+  /**
+   * Runs {@code task} on the given shards in parallel, and returns the results in the same order.
+   */
+  public static <T> List<T> scatter(final ShardTask<T> task, List<Integer> shards)
+      throws SQLException {
+    final Semaphore budget = DBConnection.getQueryBudget();
+    final CursorMultiplexer multiplexer = CursorMultiplexer.current();
+    List<Future<T>> futures = Lists.newArrayList();
+    for (final Integer shard : shards) {
+      futures.add(executor.submit(new Callable<T>() {
+        public T call() throws SQLException {
+          DBConnection.setQueryBudget(budget);
+          CursorMultiplexer.setCurrent(multiplexer);
+          try {
+            return task.run(shard);
+          } finally {
+            DBConnection.setQueryBudget(null);
+            CursorMultiplexer.setCurrent(null);
+          }
+        }
+      }));
+    }
+    List<T> results = Lists.newArrayList();
+    try {
+      for (Future<T> future : futures) {
+        results.add(future.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for the shards", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof SQLException) {
+        throw (SQLException) e.getCause();
+      }
+      throw new SQLException("Shard task failed", e.getCause());
+    }
+    return results;
+  }
+}
@@ -0,0 +1,87 @@
+package de.mpii.trinitreloaded.utils;
+
+import org.apache.jena.query.Dataset;
+import org.apache.jena.riot.system.IRIResolver;
+import org.apache.jena.tdb2.TDB2Factory;
+
+/**
+ * A class for managing the embedded Jena TDB2 dataset, the in-process alternative to Virtuoso.
+ *
+ * The dataset is laid out as {@link de.mpii.trinitreloaded.queryprocessing.PopularityBasedRDFScan}
+ * expects it from Virtuoso: one named graph per type holding the triples of that type, and the
+ * count graph {@code rdfScoreTableName} holding the popularity of each entity. It is built by
+ * {@link TDBLoader}.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class TDBConnection {
+  /** The predicate of the popularity of an entity in the count graph. */
+  public static final String HAS_COUNT = "http://xkg/hasCount";
+  /** The prefix of the named graphs and properties of the paraphrase tables. */
+  public static final String PARAPHRASES_URI = "http://xkg/paraphrases/";
+
+  private static Dataset dataset;
+
+  /**
+   * Returns the dataset at {@code tdbLocation}, connecting to it on the first call. The dataset
+   * is shared by all threads; every access must be enclosed in a transaction.
+   */
+  public static synchronized Dataset getDataset() {
+    if (dataset == null) {
+      dataset = TDB2Factory.connectDataset(Config.tdbLocation);
+    }
+    return dataset;
+  }
+
+  /**
+   * Returns the IRI of a resource or type, as written in a query or stored in the database, in
+   * the same form as in the SPARQL commands of the RDF scans, but without the angle brackets.
+   */
+  public static String toIRI(String str) {
+    str = str.replace(" ", "_");
+    if (str.startsWith("<") && str.endsWith(">")) {
+      str = str.substring(1, str.length() - 1);
+    }
+    if (str.contains(":")) {
+      return str;
+    }
+    return Config.graphURI + str;
+  }
+
+  /**
+   * Returns the IRI of the count graph. {@code rdfScoreTableName} is relative, so it is resolved
+   * against the same base as the queries naming it.
+   */
+  public static String getScoreGraphIRI() {
+    String name = Config.rdfScoreTableName;
+    if (name.startsWith("<") && name.endsWith(">")) {
+      name = name.substring(1, name.length() - 1);
+    }
+    return IRIResolver.resolveString(name);
+  }
+
+  /**
+   * Returns the IRI of the named graph holding a paraphrase table.
+   */
+  public static String getParaphraseGraphIRI(String table) {
+    return PARAPHRASES_URI + table;
+  }
+
+  /**
+   * Returns the IRI of the property holding a column of a paraphrase table.
+   */
+  public static String getParaphrasePropertyIRI(String column) {
+    return PARAPHRASES_URI + column;
+  }
+
+  /**
+   * Releases the dataset. The next {@code getDataset()} connects again.
+   */
+  public static synchronized void shutdown() {
+    if (dataset != null) {
+      dataset.close();
+      dataset = null;
+    }
+  }
+}
@@ -0,0 +1,226 @@
+package de.mpii.trinitreloaded.utils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Set;
+
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.ReadWrite;
+import org.apache.jena.sparql.core.DatasetGraph;
+import org.apache.jena.sparql.core.Quad;
+
+import com.google.common.collect.Sets;
+
+import de.mpii.trinitreloaded.utils.Config.LoggingLevel;
+
+/**
+ * Builds the embedded Jena TDB2 dataset at {@code tdbLocation} from the PostgreSQL tables.
+ *
+ * The dataset gets:
+ * <ul>
+ * <li>for each type, a named graph holding the triples of {@code dataTableName} with that type
+ * as object,</li>
+ * <li>for each textual type, a named graph holding the triples of
+ * {@code textualTypeDataTableName} with that type as object and their count as object,</li>
+ * <li>the count graph {@code rdfScoreTableName}, holding the popularity of each entity of
+ * {@code scoreTableName} as its {@code <http://xkg/hasCount>},</li>
+ * <li>for each paraphrase table, a named graph with one resource per row and one property per
+ * column, read by {@link de.mpii.trinitreloaded.queryprocessing.TDBRelaxationScan}.</li>
+ * </ul>
+ * The rows are streamed from the database and written in transactions of
+ * {@code BATCH_SIZE} rows.
+ *
+ * Usage:
+ * {@code java de.mpii.trinitreloaded.utils.TDBLoader}, with the properties of {@link Config}.
+ *
+ * @author Madhulika Mohanty (madhulikam@cse.iitd.ac.in)
+ *
+ */
+public class TDBLoader {
+  private static final int BATCH_SIZE = 100000;
+  private static final int FETCH_SIZE = 10000;
+
+  private final Dataset dataset;
+  private final Node hasCount = NodeFactory.createURI(TDBConnection.HAS_COUNT);
+  private long numRows;
+
+  public TDBLoader(Dataset dataset) {
+    this.dataset = dataset;
+  }
+
+  public static void main(String[] args) throws SQLException {
+    Config.loadProperties();
+    new TDBLoader(TDBConnection.getDataset()).load();
+    TDBConnection.shutdown();
+    DBConnection.shutdown();
+  }
+
+  /**
+   * Loads all the tables into the dataset.
+   */
+  public void load() throws SQLException {
+    loadData();
+    loadTextualData();
+    loadScores();
+    Set<String> tables = Sets.newLinkedHashSet();
+    tables.add(Config.semanticTextualParaphrasesTblName);
+    tables.add(Config.textualSemanticParaphrasesTblName);
+    tables.add(Config.predicateRelationParaphraseTblName);
+    tables.add(Config.relationRelationParaphraseTblName);
+    for (String table : tables) {
+      loadParaphrases(table);
+    }
+    Logger.println("TDBLoader: loaded " + numRows + " rows into " + Config.tdbLocation,
+        LoggingLevel.EXPERIMENTS);
+  }
+
+  private void loadData() throws SQLException {
+    Loader loader = new Loader("SELECT subject, predicate, object FROM " + Config.dataTableName) {
+      @Override
+      void add(ResultSet rs, DatasetGraph dsg) throws SQLException {
+        Node type = toNode(rs.getString("object"));
+        dsg.add(new Quad(type, toNode(rs.getString("subject")),
+            toNode(rs.getString("predicate")), type));
+      }
+    };
+    loader.run();
+  }
+
+  private void loadTextualData() throws SQLException {
+    Loader loader = new Loader("SELECT subject, predicate, object, count FROM "
+        + Config.textualTypeDataTableName) {
+      @Override
+      void add(ResultSet rs, DatasetGraph dsg) throws SQLException {
+        dsg.add(new Quad(toNode(rs.getString("object")), toNode(rs.getString("subject")),
+            toNode(rs.getString("predicate")), toInt(rs.getLong("count"))));
+      }
+    };
+    loader.run();
+  }
+
+  private void loadScores() throws SQLException {
+    final Node graph = NodeFactory.createURI(TDBConnection.getScoreGraphIRI());
+    Loader loader = new Loader("SELECT entity, inlinks FROM " + Config.scoreTableName) {
+      @Override
+      void add(ResultSet rs, DatasetGraph dsg) throws SQLException {
+        dsg.add(new Quad(graph, toNode(rs.getString("entity")), hasCount,
+            toInt(rs.getLong("inlinks"))));
+      }
+    };
+    loader.run();
+  }
+
+  private void loadParaphrases(String table) throws SQLException {
+    final Node graph = NodeFactory.createURI(TDBConnection.getParaphraseGraphIRI(table));
+    Loader loader = new Loader("SELECT * FROM " + table) {
+      @Override
+      void add(ResultSet rs, DatasetGraph dsg) throws SQLException {
+        ResultSetMetaData md = rs.getMetaData();
+        Node row = NodeFactory.createBlankNode();
+        for (int i = 1; i <= md.getColumnCount(); i++) {
+          String value = rs.getString(i);
+          if (value == null) {
+            continue;
+          }
+          Node column =
+              NodeFactory.createURI(TDBConnection.getParaphrasePropertyIRI(md.getColumnName(i)));
+          Node object;
+          if (isNumeric(md.getColumnType(i))) {
+            object = NodeFactory.createLiteral(Double.toString(rs.getDouble(i)),
+                XSDDatatype.XSDdouble);
+          } else {
+            object = NodeFactory.createLiteral(value);
+          }
+          dsg.add(new Quad(graph, row, column, object));
+        }
+      }
+    };
+    loader.run();
+  }
+
+  private static boolean isNumeric(int sqlType) {
+    switch (sqlType) {
+    case Types.DOUBLE:
+    case Types.FLOAT:
+    case Types.REAL:
+    case Types.NUMERIC:
+    case Types.DECIMAL:
+    case Types.INTEGER:
+    case Types.BIGINT:
+    case Types.SMALLINT:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  private static Node toNode(String str) {
+    return NodeFactory.createURI(TDBConnection.toIRI(str));
+  }
+
+  private static Node toInt(long value) {
+    return NodeFactory.createLiteral(Long.toString(value), XSDDatatype.XSDint);
+  }
+
+  /**
+   * Streams the rows of a query into the dataset, committing every {@code BATCH_SIZE} rows.
+   */
+  private abstract class Loader {
+    final String cmd;
+
+    Loader(String cmd) {
+      this.cmd = cmd;
+    }
+
+    abstract void add(ResultSet rs, DatasetGraph dsg) throws SQLException;
+
+    void run() throws SQLException {
+      Logger.println("TDBLoader: " + cmd, LoggingLevel.INTERMEDIATEINFO);
+      Connection conn = DBConnection.getConnection();
+      PreparedStatement stmt = null;
+      ResultSet rs = null;
+      try {
+        // Without a transaction, the driver would read all rows into memory.
+        conn.setAutoCommit(false);
+        stmt = conn.prepareStatement(cmd);
+        stmt.setFetchSize(FETCH_SIZE);
+        rs = stmt.executeQuery();
+        DatasetGraph dsg = dataset.asDatasetGraph();
+        int rowsInBatch = 0;
+        dataset.begin(ReadWrite.WRITE);
+        try {
+          while (rs.next()) {
+            add(rs, dsg);
+            numRows++;
+            if (++rowsInBatch == BATCH_SIZE) {
+              dataset.commit();
+              dataset.end();
+              dataset.begin(ReadWrite.WRITE);
+              rowsInBatch = 0;
+            }
+          }
+          dataset.commit();
+        } finally {
+          dataset.end();
+        }
+      } finally {
+        if (rs != null) {
+          rs.close();
+        }
+        if (stmt != null) {
+          stmt.close();
+        }
+        conn.rollback();
+        conn.setAutoCommit(true);
+        conn.close();
+      }
+    }
+  }
+}